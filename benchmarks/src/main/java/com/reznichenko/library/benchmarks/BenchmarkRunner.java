@@ -0,0 +1,65 @@
+package com.reznichenko.library.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the benchmarks once per thread count and writes a JSON result file for each run.
+ * <pre>
+ * java -jar benchmarks.jar [-t 1,4,16] [-o results] [-p name=value,value...] [regexp...]
+ * </pre>
+ * Without a regexp every benchmark runs; {@code -p} overrides a {@code @Param}, e.g.
+ * {@code -p store=map,offheap}.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String threads = "1,4,16";
+        String output = "results";
+        List<String> params = new ArrayList<>();
+        List<String> includes = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-t":
+                    threads = args[++i];
+                    break;
+                case "-o":
+                    output = args[++i];
+                    break;
+                case "-p":
+                    params.add(args[++i]);
+                    break;
+                default:
+                    includes.add(args[i]);
+            }
+        }
+        File directory = new File(output);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("can't create " + directory);
+        }
+        for (String count : threads.split(",")) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .threads(Integer.parseInt(count.trim()))
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(directory, "threads-" + count.trim() + ".json").getPath());
+            if (includes.isEmpty()) {
+                options.include(BenchmarkRunner.class.getPackageName() + ".*");
+            }
+            for (String include : includes) {
+                options.include(include);
+            }
+            for (String param : params) {
+                int eq = param.indexOf('=');
+                options.param(param.substring(0, eq), param.substring(eq + 1).split(","));
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
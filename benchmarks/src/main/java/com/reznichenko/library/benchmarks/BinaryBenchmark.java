@@ -0,0 +1,136 @@
+package com.reznichenko.library.benchmarks;
+
+import com.reznichenko.library.client.BinaryClient;
+import com.reznichenko.library.protocol.Reply;
+import com.reznichenko.library.server.LibraryApplication;
+import com.reznichenko.library.server.binary.BinaryServer;
+import com.reznichenko.library.server.service.DataBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The same operations as {@link HttpBenchmark}, over the binary protocol of the same
+ * application: one connection per benchmark thread, and a pipelined variant that keeps
+ * {@link #PIPELINE} requests in flight on it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BinaryBenchmark {
+
+    static final int PIPELINE = 32;
+
+    @Param({"map", "concurrent"})
+    public String store;
+
+    @Param({"100000"})
+    public int books;
+
+    ConfigurableApplicationContext context;
+    int port;
+    long[] visitors;
+    final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        context = SpringApplication.run(LibraryApplication.class,
+                "--server.port=0",
+                "--library.binary.enabled=true",
+                "--library.binary.port=0",
+                "--library.database=" + store,
+                "--library.wal.enabled=false",
+                "--library.snapshot.enabled=false",
+                "--logging.level.root=WARN");
+        port = context.getBean(BinaryServer.class).getPort();
+        visitors = Stores.fill(context.getBean(DataBase.class), books);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+        private static final int OWN_BOOKS = 64;
+
+        final SplittableRandom random = new SplittableRandom();
+        final CompletableFuture<?>[] inFlight = new CompletableFuture<?>[PIPELINE];
+        BinaryClient client;
+        String[] own;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(BinaryBenchmark benchmark) throws Exception {
+            own = Stores.ownBooks(benchmark.context.getBean(DataBase.class),
+                    benchmark.threads.incrementAndGet(), OWN_BOOKS);
+            client = BinaryClient.connect("localhost", benchmark.port);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public String getBookName(Worker worker) {
+        return check(worker.client.getBookName(Stores.code(worker.random.nextInt(books))).join());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE)
+    public void getBookNamePipelined(Worker worker) {
+        for (int i = 0; i < PIPELINE; i++) {
+            worker.inFlight[i] = worker.client.getBookName(Stores.code(worker.random.nextInt(books)));
+        }
+        for (CompletableFuture<?> reply : worker.inFlight) {
+            check((Reply<?>) reply.join());
+        }
+    }
+
+    @Benchmark
+    public Object getBorrowedBooks(Worker worker) {
+        return check(worker.client.getBorrowedBooks(visitors[worker.random.nextInt(visitors.length)]).join());
+    }
+
+    // the return is sent right behind the lend, the connection keeps them in order
+    @Benchmark
+    public Object lendAndReceive(Worker worker) {
+        worker.next = (worker.next + 1) % worker.own.length;
+        String code = worker.own[worker.next];
+        CompletableFuture<Reply<Void>> lent = worker.client.lendBook(visitors[worker.random.nextInt(visitors.length)], code);
+        CompletableFuture<Reply<Void>> received = worker.client.receiveReturnedBook(code);
+        check(lent.join());
+        return check(received.join());
+    }
+
+    private static <T> T check(Reply<T> reply) {
+        if (!reply.isOk()) {
+            throw new IllegalStateException(reply.toString());
+        }
+        return reply.getValue();
+    }
+}
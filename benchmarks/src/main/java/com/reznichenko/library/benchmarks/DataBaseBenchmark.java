@@ -0,0 +1,172 @@
+package com.reznichenko.library.benchmarks;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.service.Change;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.Outcome;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Every {@link DataBase} method on its own, for each store and catalog size. The thread count
+ * is set from outside (see {@link BenchmarkRunner}); writes go to books owned by the thread.
+ * The setup prints the heap the filled store retains per book (not the direct memory of offheap).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DataBaseBenchmark {
+
+    @Param({"map", "concurrent", "snapshot", "offheap"})
+    public String store;
+
+    @Param({"10000", "1000000"})
+    public int books;
+
+    DataBase db;
+    long[] visitors;
+    final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        long before = Stores.usedHeap();
+        db = Stores.create(store);
+        visitors = Stores.fill(db, books);
+        long after = Stores.usedHeap();
+        System.out.printf("%n%s of %d books: %.1f bytes per book%n", store, books, (after - before) / (double) books);
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+        private static final int OWN_BOOKS = 64;
+        private static final int CHECKOUT = 10;
+
+        final SplittableRandom random = new SplittableRandom();
+        String[] own;
+        String[] renamed;
+        boolean[] isRenamed;
+        String fresh;
+        int next;
+        // a basket of own books checked out and returned at once
+        List<Change> checkout;
+        List<Change> checkin;
+
+        @Setup(Level.Trial)
+        public void setUp(DataBaseBenchmark benchmark) throws BookAlreadyExistsException {
+            int thread = benchmark.threads.incrementAndGet();
+            own = Stores.ownBooks(benchmark.db, thread, OWN_BOOKS);
+            renamed = new String[OWN_BOOKS];
+            isRenamed = new boolean[OWN_BOOKS];
+            for (int i = 0; i < OWN_BOOKS; i++) {
+                renamed[i] = own[i] + "-renamed";
+            }
+            fresh = "thread" + thread + "-fresh";
+            long visitor = benchmark.visitors[thread % benchmark.visitors.length];
+            checkout = new ArrayList<>();
+            checkin = new ArrayList<>();
+            for (int i = 0; i < CHECKOUT; i++) {
+                checkout.add(Change.lendBook(visitor, own[i]));
+                checkin.add(Change.receiveBook(own[i]));
+            }
+        }
+
+        String randomCode(int books) {
+            return Stores.code(random.nextInt(books));
+        }
+
+        int nextOwn() {
+            next = (next + 1) % OWN_BOOKS;
+            return next;
+        }
+    }
+
+    @Benchmark
+    public String getBookName(Worker worker) throws NoSuchBookException {
+        return db.getBookName(worker.randomCode(books));
+    }
+
+    @Benchmark
+    public String getBookAuthor(Worker worker) throws NoSuchBookException {
+        return db.getBookAuthor(worker.randomCode(books));
+    }
+
+    @Benchmark
+    public List<Book> getBorrowedBooks(Worker worker) throws NoSuchVisitorException {
+        return db.getBorrowedBooks(visitors[worker.random.nextInt(visitors.length)]);
+    }
+
+    @Benchmark
+    public long addVisitor() {
+        return db.addVisitor("name", "surname");
+    }
+
+    @Benchmark
+    public void addAndDeleteBook(Worker worker) throws BookAlreadyExistsException, NoSuchBookException {
+        db.addBook(new Book(worker.fresh, "author", "name"));
+        db.deleteBook(worker.fresh);
+    }
+
+    @Benchmark
+    public void lendAndReceive(Worker worker) throws NoSuchBookException, BookAlreadyBorrowedException, NoSuchVisitorException {
+        int i = worker.nextOwn();
+        String code = worker.isRenamed[i] ? worker.renamed[i] : worker.own[i];
+        db.lendBook(visitors[worker.random.nextInt(visitors.length)], code);
+        db.receiveReturnedBook(code);
+    }
+
+    @Benchmark
+    public void changeCode(Worker worker) throws NoSuchBookException, BookAlreadyExistsException {
+        int i = worker.nextOwn();
+        if (worker.isRenamed[i]) {
+            db.changeCode(worker.renamed[i], worker.own[i]);
+        } else {
+            db.changeCode(worker.own[i], worker.renamed[i]);
+        }
+        worker.isRenamed[i] = !worker.isRenamed[i];
+    }
+
+    @Benchmark
+    public void checkoutOneByOne(Worker worker) {
+        for (Change change : worker.checkout) {
+            check(change.applyTo(db));
+        }
+        for (Change change : worker.checkin) {
+            check(change.applyTo(db));
+        }
+    }
+
+    @Benchmark
+    public void checkoutAsTransaction(Worker worker) {
+        check(db.tryTransaction(worker.checkout));
+        check(db.tryTransaction(worker.checkin));
+    }
+
+    private static void check(Outcome<?> outcome) {
+        if (!outcome.isOk()) {
+            throw new IllegalStateException(outcome.getMessage());
+        }
+    }
+}
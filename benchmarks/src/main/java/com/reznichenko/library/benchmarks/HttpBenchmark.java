@@ -0,0 +1,134 @@
+package com.reznichenko.library.benchmarks;
+
+import com.reznichenko.library.server.LibraryApplication;
+import com.reznichenko.library.server.service.DataBase;
+import okhttp3.ConnectionPool;
+import okhttp3.FormBody;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The whole server over loopback: Tomcat, Spring MVC and the store behind them, driven with
+ * the same OkHttp requests the client sends. The catalog is filled through the store directly.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpBenchmark {
+
+    @Param({"map", "concurrent"})
+    public String store;
+
+    @Param({"100000"})
+    public int books;
+
+    ConfigurableApplicationContext context;
+    OkHttpClient client;
+    HttpUrl base;
+    long[] visitors;
+    final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        context = SpringApplication.run(LibraryApplication.class,
+                "--server.port=0",
+                "--library.database=" + store,
+                "--library.wal.enabled=false",
+                "--library.snapshot.enabled=false",
+                "--logging.level.root=WARN");
+        int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+        base = HttpUrl.get("http://localhost:" + port + "/");
+        visitors = Stores.fill(context.getBean(DataBase.class), books);
+        client = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(64, 5, TimeUnit.MINUTES))
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+        context.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+        private static final int OWN_BOOKS = 64;
+
+        final SplittableRandom random = new SplittableRandom();
+        String[] own;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(HttpBenchmark benchmark) throws Exception {
+            own = Stores.ownBooks(benchmark.context.getBean(DataBase.class),
+                    benchmark.threads.incrementAndGet(), OWN_BOOKS);
+        }
+    }
+
+    @Benchmark
+    public String getBookName(Worker worker) throws IOException {
+        HttpUrl url = base.newBuilder("book-name")
+                .addQueryParameter("code", Stores.code(worker.random.nextInt(books)))
+                .build();
+        return call(new Request.Builder().url(url).build());
+    }
+
+    @Benchmark
+    public String getBorrowedBooks(Worker worker) throws IOException {
+        HttpUrl url = base.newBuilder("borrowed-books")
+                .addQueryParameter("id", Long.toString(visitors[worker.random.nextInt(visitors.length)]))
+                .build();
+        return call(new Request.Builder().url(url).build());
+    }
+
+    @Benchmark
+    public String lendAndReceive(Worker worker) throws IOException {
+        worker.next = (worker.next + 1) % worker.own.length;
+        String code = worker.own[worker.next];
+        call(post("lend-book", new FormBody.Builder()
+                .add("id", Long.toString(visitors[worker.random.nextInt(visitors.length)]))
+                .add("code", code)
+                .build()));
+        return call(post("receive", new FormBody.Builder().add("code", code).build()));
+    }
+
+    private Request post(String path, FormBody body) {
+        return new Request.Builder().url(base.resolve(path)).post(body).build();
+    }
+
+    private String call(Request request) throws IOException {
+        try (Response response = client.newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IllegalStateException(request.url() + ": " + response.code());
+            }
+            return response.body() == null ? null : response.body().string();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.reznichenko.library.benchmarks;
+
+import com.reznichenko.library.server.loans.Loan;
+import com.reznichenko.library.server.loans.LoanTracker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The loan tracker with millions of loans out, due evenly over a two week period on a clock of
+ * one second ticks. {@code tick} moves the clock a tick on and lends the books that fell due
+ * again, so the number of loans stays the same however long it runs. The setup prints the heap
+ * a loan takes in the tracker, its code not counted (the catalog holds it anyway).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class LoanBenchmark {
+
+    private static final long TICK = 1000;
+    private static final long PERIOD = TimeUnit.DAYS.toMillis(14);
+
+    @Param({"1000000", "10000000"})
+    public int loans;
+
+    final AtomicLong clock = new AtomicLong();
+    LoanTracker tracker;
+    String[] codes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        codes = new String[loans];
+        for (int i = 0; i < loans; i++) {
+            codes[i] = Stores.code(i);
+        }
+        long before = Stores.usedHeap();
+        tracker = new LoanTracker(PERIOD, TICK, clock::get);
+        // lent over the last period, so that they fall due evenly over the next one
+        for (int i = 0; i < loans; i++) {
+            clock.set(PERIOD * i / loans);
+            tracker.onBookLent(i, codes[i]);
+        }
+        long after = Stores.usedHeap();
+        System.out.printf("%n%d loans: %.1f bytes per loan%n", loans, (after - before) / (double) loans);
+        tracker.addOverdueListener(this::lendAgain);
+    }
+
+    @Benchmark
+    public int tick() {
+        clock.addAndGet(TICK);
+        tracker.tick();
+        return tracker.overdueCount();
+    }
+
+    @Benchmark
+    public Loan renew() {
+        return tracker.renew(codes[ThreadLocalRandom.current().nextInt(loans)]);
+    }
+
+    private void lendAgain(Loan loan) {
+        tracker.onBookLent(loan.getVisitorId(), loan.getCode());
+    }
+}
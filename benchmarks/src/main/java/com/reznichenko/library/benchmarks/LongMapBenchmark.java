@@ -0,0 +1,119 @@
+package com.reznichenko.library.benchmarks;
+
+import com.reznichenko.library.server.collection.ConcurrentLongObjectHashMap;
+import com.reznichenko.library.server.collection.LongObjectHashMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+/**
+ * Lookups of visitor ids in the maps the stores keep them in: the boxed JDK maps against the
+ * primitive ones. Before the measurement the setup prints how many bytes of heap the filled map
+ * retains per entry, values not counted (they are the same object for every entry).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LongMapBenchmark {
+
+    private static final Object VALUE = new Object();
+
+    @Param({"HashMap", "LongObjectHashMap", "ConcurrentHashMap", "ConcurrentLongObjectHashMap"})
+    public String map;
+
+    @Param({"10000", "1000000"})
+    public int size;
+
+    // sequential as BlockIdAllocator hands them out, or scattered as SnowflakeIdAllocator's are
+    @Param({"sequential", "random"})
+    public String ids;
+
+    LongFunction<Object> lookup;
+    long[] present;
+    long[] absent;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(42);
+        present = new long[size];
+        absent = new long[size];
+        for (int i = 0; i < size; i++) {
+            boolean sequential = ids.equals("sequential");
+            present[i] = sequential ? i : random.nextLong() >>> 1;
+            absent[i] = sequential ? size + i : -1 - (random.nextLong() >>> 1);
+        }
+        long before = Stores.usedHeap();
+        lookup = fill(map, present);
+        long after = Stores.usedHeap();
+        System.out.printf("%n%s of %d %s ids: %.1f bytes per entry%n", map, size, ids, (after - before) / (double) size);
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+        final SplittableRandom random = new SplittableRandom();
+    }
+
+    @Benchmark
+    public Object getPresent(Worker worker) {
+        return lookup.apply(present[worker.random.nextInt(size)]);
+    }
+
+    @Benchmark
+    public Object getAbsent(Worker worker) {
+        return lookup.apply(absent[worker.random.nextInt(size)]);
+    }
+
+    private static LongFunction<Object> fill(String name, long[] ids) {
+        switch (name) {
+            case "HashMap": {
+                Map<Long, Object> map = new HashMap<>();
+                for (long id : ids) {
+                    map.put(id, VALUE);
+                }
+                return map::get;
+            }
+            case "ConcurrentHashMap": {
+                Map<Long, Object> map = new ConcurrentHashMap<>();
+                for (long id : ids) {
+                    map.put(id, VALUE);
+                }
+                return map::get;
+            }
+            case "LongObjectHashMap": {
+                LongObjectHashMap<Object> map = new LongObjectHashMap<>();
+                for (long id : ids) {
+                    map.put(id, VALUE);
+                }
+                return map::get;
+            }
+            case "ConcurrentLongObjectHashMap": {
+                ConcurrentLongObjectHashMap<Object> map = new ConcurrentLongObjectHashMap<>();
+                for (long id : ids) {
+                    map.put(id, VALUE);
+                }
+                return map::get;
+            }
+            default:
+                throw new IllegalArgumentException("unknown map: " + name);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.reznichenko.library.benchmarks;
+
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.service.DataBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads ({@code getBookName} of a random book) mixed with writes (lending one of the thread's
+ * own books or taking it back) in the given proportion.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MixedWorkloadBenchmark {
+
+    @Param({"map", "concurrent", "snapshot", "offheap"})
+    public String store;
+
+    @Param({"100000"})
+    public int books;
+
+    @Param({"95", "50"})
+    public int readPercent;
+
+    DataBase db;
+    long[] visitors;
+    final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        db = Stores.create(store);
+        visitors = Stores.fill(db, books);
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+        private static final int OWN_BOOKS = 64;
+
+        final SplittableRandom random = new SplittableRandom();
+        String[] own;
+        boolean[] lent;
+
+        @Setup(Level.Trial)
+        public void setUp(MixedWorkloadBenchmark benchmark) throws BookAlreadyExistsException {
+            own = Stores.ownBooks(benchmark.db, benchmark.threads.incrementAndGet(), OWN_BOOKS);
+            lent = new boolean[OWN_BOOKS];
+        }
+    }
+
+    @Benchmark
+    public Object operation(Worker worker) throws NoSuchBookException, BookAlreadyBorrowedException, NoSuchVisitorException {
+        if (worker.random.nextInt(100) < readPercent) {
+            return db.getBookName(Stores.code(worker.random.nextInt(books)));
+        }
+        int i = worker.random.nextInt(worker.own.length);
+        if (worker.lent[i]) {
+            db.receiveReturnedBook(worker.own[i]);
+        } else {
+            db.lendBook(visitors[worker.random.nextInt(visitors.length)], worker.own[i]);
+        }
+        worker.lent[i] = !worker.lent[i];
+        return null;
+    }
+}
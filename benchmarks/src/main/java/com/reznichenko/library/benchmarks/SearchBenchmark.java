@@ -0,0 +1,108 @@
+package com.reznichenko.library.benchmarks;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.search.SearchIndex;
+import com.reznichenko.library.server.search.SearchResult;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.MapDataBase;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The first page of 20 hits from the search index over a catalog whose names and authors are
+ * made of one vocabulary of random words, so that a prefix matches books by their names and by
+ * their authors alike. The queries, from the words of the vocabulary:
+ * <ul>
+ *     <li>{@code letter}: the first letter of a word, a prefix of a good part of the words;</li>
+ *     <li>{@code prefix}: its first three letters;</li>
+ *     <li>{@code word}: the whole word;</li>
+ *     <li>{@code words}: two whole words;</li>
+ *     <li>{@code skewed}: {@code vol}, a prefix of "volume" in every other name and of "volkov" in
+ *     one author in 10000.</li>
+ * </ul>
+ * The walk stops early once the page holds books nothing later can outrank. A prefix found in
+ * names and authors alike can only stop at books that have it in both, and with few of those, as
+ * with {@code skewed}, it walks every posting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class SearchBenchmark {
+
+    private static final int WORDS = 20_000;
+
+    @Param({"200000", "1000000"})
+    public int books;
+
+    @Param({"letter", "prefix", "word", "words", "skewed"})
+    public String query;
+
+    SearchIndex index;
+    String text;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        String[] words = new String[WORDS];
+        for (int i = 0; i < WORDS; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int length = 4 + random.nextInt(6); word.length() < length; ) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = word.toString();
+        }
+        List<Book> catalog = new ArrayList<>(books);
+        for (int i = 0; i < books; i++) {
+            String name = words[random.nextInt(WORDS)] + " " + words[random.nextInt(WORDS)] + " " + words[random.nextInt(WORDS)]
+                    + (i % 2 == 0 ? " volume" : "");
+            // far fewer authors than books
+            String author = (i % 10_000 == 1 ? "volkov" : words[random.nextInt(WORDS / 4)]) + " " + words[random.nextInt(WORDS / 4)];
+            catalog.add(new Book(Stores.code(i), author, name));
+        }
+        DataBase db = new MapDataBase();
+        db.addBooks(catalog, (i, e) -> {
+            throw new IllegalStateException(e);
+        });
+        index = new SearchIndex();
+        index.addAll(db.view());
+        switch (query) {
+            case "letter":
+                text = words[0].substring(0, 1);
+                break;
+            case "prefix":
+                text = words[0].substring(0, 3);
+                break;
+            case "word":
+                text = words[0];
+                break;
+            case "skewed":
+                text = "vol";
+                break;
+            default:
+                text = words[0] + " " + words[1];
+        }
+    }
+
+    @Benchmark
+    public SearchResult search() {
+        return index.search(text, 0, 20);
+    }
+}
@@ -0,0 +1,109 @@
+package com.reznichenko.library.benchmarks;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.offheap.OffHeapDataBase;
+import com.reznichenko.library.server.persistence.DurableDataBase;
+import com.reznichenko.library.server.persistence.FsyncPolicy;
+import com.reznichenko.library.server.persistence.WriteAheadLog;
+import com.reznichenko.library.server.service.ConcurrentDataBase;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.MapDataBase;
+import com.reznichenko.library.server.service.SnapshotDataBase;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+final class Stores {
+
+    static final int VISITORS = 1000;
+    // every tenth book is lent out, so that visitors have something to list
+    static final int LENT_EVERY = 10;
+
+    private Stores() {
+    }
+
+    // the same names as library.database
+    static DataBase create(String name) {
+        switch (name) {
+            case "map":
+                return new MapDataBase();
+            case "concurrent":
+                return new ConcurrentDataBase();
+            case "snapshot":
+                return new SnapshotDataBase();
+            case "offheap":
+                return new OffHeapDataBase();
+            case "durable":
+                // not a library.database name: map behind a log that is fsynced before each change is answered,
+                // as with library.wal.enabled=true; opt in with -p store=durable, the fill alone takes a while
+                try {
+                    WriteAheadLog log = new WriteAheadLog(Files.createTempDirectory("library-wal"), FsyncPolicy.COMMIT,
+                            10, 64L << 20);
+                    return DurableDataBase.recover(new MapDataBase(), log);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            default:
+                throw new IllegalArgumentException("unknown store: " + name);
+        }
+    }
+
+    static String code(int i) {
+        return "code" + i;
+    }
+
+    /**
+     * Adds {@code books} books and {@link #VISITORS} visitors, and lends every
+     * {@link #LENT_EVERY}th book.
+     *
+     * @return ids of the visitors
+     */
+    static long[] fill(DataBase db, int books) throws NoSuchBookException, BookAlreadyBorrowedException, NoSuchVisitorException {
+        List<Book> batch = new ArrayList<>();
+        for (int i = 0; i < books; i++) {
+            batch.add(new Book(code(i), "author " + i % 5000, "name " + i));
+            if (batch.size() == 10_000 || i == books - 1) {
+                db.addBooks(batch, (index, e) -> {
+                    throw new IllegalStateException(e);
+                });
+                batch.clear();
+            }
+        }
+        long[] visitors = new long[VISITORS];
+        for (int i = 0; i < VISITORS; i++) {
+            visitors[i] = db.addVisitor("name" + i, "surname" + i);
+        }
+        for (int i = 0; i < books; i += LENT_EVERY) {
+            db.lendBook(visitors[i / LENT_EVERY % VISITORS], code(i));
+        }
+        return visitors;
+    }
+
+    /**
+     * Books only one benchmark thread touches, so that writers never fail on each other.
+     */
+    static String[] ownBooks(DataBase db, int thread, int count) throws BookAlreadyExistsException {
+        String[] codes = new String[count];
+        for (int i = 0; i < count; i++) {
+            codes[i] = "thread" + thread + "-" + i;
+            db.addBook(new Book(codes[i], "author", "name"));
+        }
+        return codes;
+    }
+
+    // heap in use after a full collection, for footprints printed from a setup
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,319 @@
+package com.reznichenko.library.client;
+
+import com.reznichenko.library.protocol.BookData;
+import com.reznichenko.library.protocol.LibraryData;
+import com.reznichenko.library.protocol.Protocol;
+import com.reznichenko.library.protocol.Reply;
+import com.reznichenko.library.protocol.Status;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Client of the binary {@link Protocol}: one connection, shared by any number of threads.
+ * A call sends its request and returns at once, the future completes when the response
+ * arrives, so callers can keep many requests in flight. Requests made by different threads at
+ * the same time are written out together.
+ */
+public class BinaryClient implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final SocketChannel channel;
+    private final Map<Long, Pending<?>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong ids = new AtomicLong();
+    private final Thread reader;
+    // guarded by outLock: requests not yet written, and the buffer the writer gives back
+    private final Object outLock = new Object();
+    private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocate(BUFFER_SIZE);
+    private boolean writing;
+    private volatile IOException failure;
+
+    private BinaryClient(SocketChannel channel) {
+        this.channel = channel;
+        this.reader = new Thread(this::read, "library-binary-client-reader");
+        this.reader.setDaemon(true);
+    }
+
+    public static BinaryClient connect(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+        BinaryClient client = new BinaryClient(channel);
+        client.reader.start();
+        return client;
+    }
+
+    public CompletableFuture<Reply<Long>> addVisitor(String name, String surname) {
+        return send(Protocol.ADD_VISITOR, Protocol.maxLength(name) + Protocol.maxLength(surname), buffer -> {
+            Protocol.putString(buffer, name);
+            Protocol.putString(buffer, surname);
+        }, ByteBuffer::getLong);
+    }
+
+    public CompletableFuture<Reply<Void>> addBook(String code, String author, String name) {
+        return send(Protocol.ADD_BOOK, Protocol.maxLength(code) + Protocol.maxLength(author) + Protocol.maxLength(name),
+                buffer -> {
+                    Protocol.putString(buffer, code);
+                    Protocol.putString(buffer, author);
+                    Protocol.putString(buffer, name);
+                }, buffer -> null);
+    }
+
+    public CompletableFuture<Reply<Void>> lendBook(long visitorId, String code) {
+        return send(Protocol.LEND_BOOK, 8 + Protocol.maxLength(code), buffer -> {
+            buffer.putLong(visitorId);
+            Protocol.putString(buffer, code);
+        }, buffer -> null);
+    }
+
+    public CompletableFuture<Reply<Void>> receiveReturnedBook(String code) {
+        return send(Protocol.RECEIVE_RETURNED_BOOK, Protocol.maxLength(code),
+                buffer -> Protocol.putString(buffer, code), buffer -> null);
+    }
+
+    public CompletableFuture<Reply<Void>> changeCode(String oldCode, String newCode) {
+        return send(Protocol.CHANGE_CODE, Protocol.maxLength(oldCode) + Protocol.maxLength(newCode), buffer -> {
+            Protocol.putString(buffer, oldCode);
+            Protocol.putString(buffer, newCode);
+        }, buffer -> null);
+    }
+
+    public CompletableFuture<Reply<Void>> deleteBook(String code) {
+        return send(Protocol.DELETE_BOOK, Protocol.maxLength(code),
+                buffer -> Protocol.putString(buffer, code), buffer -> null);
+    }
+
+    public CompletableFuture<Reply<String>> getBookAuthor(String code) {
+        return send(Protocol.GET_BOOK_AUTHOR, Protocol.maxLength(code),
+                buffer -> Protocol.putString(buffer, code), Protocol::getString);
+    }
+
+    public CompletableFuture<Reply<String>> getBookName(String code) {
+        return send(Protocol.GET_BOOK_NAME, Protocol.maxLength(code),
+                buffer -> Protocol.putString(buffer, code), Protocol::getString);
+    }
+
+    public CompletableFuture<Reply<List<BookData>>> getBorrowedBooks(long visitorId) {
+        return send(Protocol.GET_BORROWED_BOOKS, 8, buffer -> buffer.putLong(visitorId), new Export())
+                .thenApply(reply -> new Reply<>(reply.getStatus(), reply.isOk() ? reply.getValue().getBooks() : null,
+                        reply.getMessage()));
+    }
+
+    public CompletableFuture<Reply<Void>> restoreVisitor(long id, String name, String surname) {
+        return send(Protocol.RESTORE_VISITOR, 8 + Protocol.maxLength(name) + Protocol.maxLength(surname), buffer -> {
+            buffer.putLong(id);
+            Protocol.putString(buffer, name);
+            Protocol.putString(buffer, surname);
+        }, buffer -> null);
+    }
+
+    // -1 if the book is in the library
+    public CompletableFuture<Reply<Long>> getOwner(String code) {
+        return send(Protocol.GET_OWNER, Protocol.maxLength(code),
+                buffer -> Protocol.putString(buffer, code), ByteBuffer::getLong);
+    }
+
+    public CompletableFuture<Reply<LibraryData>> export() {
+        return send(Protocol.EXPORT, 0, buffer -> {
+        }, new Export());
+    }
+
+    // the visitors only, none of them with books
+    public CompletableFuture<Reply<LibraryData>> exportVisitors() {
+        return send(Protocol.EXPORT_VISITORS, 0, buffer -> {
+        }, new Export());
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <T> CompletableFuture<Reply<T>> send(byte opcode, int size, Consumer<ByteBuffer> arguments,
+                                                 Function<ByteBuffer, T> result) {
+        return send(opcode, size, arguments, new Pending<>(result));
+    }
+
+    private <T> CompletableFuture<Reply<T>> send(byte opcode, int size, Consumer<ByteBuffer> arguments,
+                                                 Pending<T> request) {
+        if (failure != null) {
+            request.future.completeExceptionally(failure);
+            return request.future;
+        }
+        long id = ids.incrementAndGet();
+        pending.put(id, request);
+        synchronized (outLock) {
+            out = Protocol.ensure(out, Protocol.HEADER + size);
+            int start = out.position();
+            out.putInt(0).putLong(id).put(opcode);
+            arguments.accept(out);
+            out.putInt(start, out.position() - start - 4);
+            if (writing) {
+                return request.future;
+            }
+            writing = true;
+        }
+        flush();
+        return request.future;
+    }
+
+    // the caller that found no write going on writes everything queued until nothing is left
+    private void flush() {
+        while (true) {
+            ByteBuffer toWrite;
+            synchronized (outLock) {
+                if (out.position() == 0) {
+                    writing = false;
+                    return;
+                }
+                toWrite = out;
+                out = spare;
+                spare = null;
+            }
+            try {
+                toWrite.flip();
+                while (toWrite.hasRemaining()) {
+                    channel.write(toWrite);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+            toWrite.clear();
+            synchronized (outLock) {
+                spare = toWrite;
+            }
+        }
+    }
+
+    private static List<BookData> readBooks(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        List<BookData> books = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String code = Protocol.getString(buffer);
+            String author = Protocol.getString(buffer);
+            books.add(new BookData(code, author, Protocol.getString(buffer)));
+        }
+        return books;
+    }
+
+    private void read() {
+        ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        try {
+            while (channel.read(in) >= 0) {
+                in.flip();
+                while (in.remaining() >= 4) {
+                    int length = in.getInt(in.position());
+                    if (length < Protocol.HEADER - 4 || length > Protocol.MAX_FRAME) {
+                        throw new IOException("bad frame length " + length);
+                    }
+                    if (in.remaining() < 4 + length) {
+                        break;
+                    }
+                    int end = in.position() + 4 + length;
+                    in.getInt();
+                    long id = in.getLong();
+                    Status status = Status.of(in.get());
+                    Pending<?> request = pending.get(id);
+                    if (request != null && request.complete(status, in)) {
+                        pending.remove(id);
+                    }
+                    in.position(end);
+                }
+                in.compact();
+                if (!in.hasRemaining()) {
+                    in = Protocol.ensure(in, in.capacity());
+                }
+            }
+            fail(new IOException("connection closed"));
+        } catch (IOException | RuntimeException e) {
+            fail(e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+    }
+
+    private void fail(IOException e) {
+        failure = e;
+        for (Long id : pending.keySet()) {
+            Pending<?> request = pending.remove(id);
+            if (request != null) {
+                request.future.completeExceptionally(e);
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static class Pending<T> {
+        private final Function<ByteBuffer, T> result;
+        final CompletableFuture<Reply<T>> future = new CompletableFuture<>();
+
+        Pending(Function<ByteBuffer, T> result) {
+            this.result = result;
+        }
+
+        // false while more frames of the response are to come
+        boolean complete(Status status, ByteBuffer payload) {
+            if (status == Status.OK) {
+                future.complete(new Reply<>(status, result.apply(payload), null));
+            } else {
+                future.complete(new Reply<>(status, null, Protocol.getString(payload)));
+            }
+            return true;
+        }
+    }
+
+    // gathers the frames of an export, only the reader thread touches the lists
+    private static final class Export extends Pending<LibraryData> {
+        private final List<LibraryData.VisitorData> visitors = new ArrayList<>();
+        private final List<BookData> books = new ArrayList<>();
+
+        private Export() {
+            super(null);
+        }
+
+        @Override
+        boolean complete(Status status, ByteBuffer payload) {
+            if (status != Status.OK) {
+                future.complete(new Reply<>(status, null, Protocol.getString(payload)));
+                return true;
+            }
+            boolean more = payload.get() != 0;
+            int visitorCount = payload.getInt();
+            for (int i = 0; i < visitorCount; i++) {
+                long id = payload.getLong();
+                String name = Protocol.getString(payload);
+                String surname = Protocol.getString(payload);
+                int count = payload.getInt();
+                List<String> borrowed = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    borrowed.add(Protocol.getString(payload));
+                }
+                visitors.add(new LibraryData.VisitorData(id, name, surname, borrowed));
+            }
+            books.addAll(readBooks(payload));
+            if (more) {
+                return false;
+            }
+            future.complete(new Reply<>(status, new LibraryData(visitors, books), null));
+            return true;
+        }
+    }
+}
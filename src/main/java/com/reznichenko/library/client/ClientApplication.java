@@ -5,15 +5,28 @@ import okhttp3.*;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class ClientApplication {
 
-    private final String BASE_URL = "http://localhost:8080/";
+    private static final String DEFAULT_URL = "http://localhost:8080/";
+    private static final int DEFAULT_IN_FLIGHT = 64;
+    private static final int DEFAULT_CACHE_SIZE = 10_000;
     private final String END_STRING = "end";
     private final String HELP_STRING = "help";
 
@@ -29,8 +42,20 @@ public class ClientApplication {
             "help -- shows this message" + System.lineSeparator() +
             "end -- terminates the application";
 
-    OkHttpClient client = new OkHttpClient();
-    BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+    private static final String USAGE = "usage: [--url " + DEFAULT_URL + "] [--batch [file]] [--in-flight " + DEFAULT_IN_FLIGHT + "]"
+            + " [--cache " + DEFAULT_CACHE_SIZE + "] [--read-url url]" + System.lineSeparator()
+            + "--batch runs the commands of the file (or stdin) concurrently and prints the results in their order" + System.lineSeparator()
+            + "--cache is how many names and authors are kept and only revalidated with the server, 0 for none" + System.lineSeparator()
+            + "--read-url sends the reads to a follower, they still see every change made before";
+
+    // arguments naming a book or a visitor, batch mode keeps the commands on each of them in order
+    private static final Set<String> BOOK_ARGS = Set.of("code", "old", "new");
+    private static final String VISITOR_ARG = "id";
+
+    private final OkHttpClient client;
+    private final HttpUrl baseUrl;
+    private final BufferedReader reader;
+    private final PrintStream out;
 
     private final Map<String, Command> commands = Map.ofEntries(
             Map.entry("add-book",
@@ -53,6 +78,30 @@ public class ClientApplication {
                     new Command("borrowed-books", List.of("id"), RequestType.GET))
     );
 
+    public ClientApplication(HttpUrl baseUrl, BufferedReader reader, PrintStream out) {
+        this(baseUrl, DEFAULT_CACHE_SIZE, reader, out);
+    }
+
+    public ClientApplication(HttpUrl baseUrl, int cacheSize, BufferedReader reader, PrintStream out) {
+        this(baseUrl, null, cacheSize, reader, out);
+    }
+
+    /**
+     * @param readUrl a follower of {@code baseUrl} to send the reads to, null to send everything to {@code baseUrl}
+     */
+    public ClientApplication(HttpUrl baseUrl, HttpUrl readUrl, int cacheSize, BufferedReader reader, PrintStream out) {
+        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+        if (cacheSize > 0) {
+            builder.addInterceptor(new RevalidatingCache(Set.of("book-name", "author"), cacheSize));
+        }
+        if (readUrl != null) {
+            builder.addInterceptor(new ReadYourWrites(readUrl));
+        }
+        this.client = builder.build();
+        this.baseUrl = baseUrl;
+        this.reader = reader;
+        this.out = out;
+    }
 
     private void run() throws IOException {
         String line;
@@ -66,75 +115,185 @@ public class ClientApplication {
                 return;
             }
             if (type.equals(HELP_STRING)) {
-                System.out.println(HELP_MESSAGE);
+                out.println(HELP_MESSAGE);
                 continue;
             }
             try {
-                if (commands.containsKey(type)) {
-                    Command command = commands.get(type);
-                    processCommand(command, split);
-                } else {
-                    throw new UnknownCommandException("no such command, use help");
-                }
+                processCommand(split);
             } catch (UnknownCommandException e) {
                 //no need to stop the execution
-                System.out.println(e.getMessage());
+                out.println(e.getMessage());
             }
         }
 
     }
 
-    private void processCommand(Command command, String[] line) throws UnknownCommandException, IOException {
+    /**
+     * Reads commands until the end of the input (or "end") and keeps up to {@code maxInFlight}
+     * of them running at once over a shared connection pool. Commands on the same book code or
+     * visitor id are still sent one after another, in input order, and every result is printed
+     * in the order of its command.
+     */
+    public void runBatch(int maxInFlight) throws IOException {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxInFlight);
+        dispatcher.setMaxRequestsPerHost(maxInFlight);
+        OkHttpClient batchClient = client.newBuilder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(maxInFlight, 5, TimeUnit.MINUTES))
+                .build();
+        // results not printed yet, in input order; also bounds how much is in flight
+        Deque<CompletableFuture<String>> window = new ArrayDeque<>();
+        // the last command on each book or visitor, only touched by this thread
+        Map<String, CompletableFuture<String>> lastByKey = new HashMap<>();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] split = line.trim().split("\\s+");
+                if (split[0].isEmpty()) {
+                    continue;
+                }
+                if (split[0].equals(END_STRING)) {
+                    break;
+                }
+                while (window.size() >= maxInFlight) {
+                    printNext(window);
+                }
+                window.add(submit(batchClient, split, lastByKey));
+                while (!window.isEmpty() && window.peek().isDone()) {
+                    printNext(window);
+                }
+                if (lastByKey.size() > 2 * maxInFlight) {
+                    lastByKey.values().removeIf(CompletableFuture::isDone);
+                }
+            }
+            while (!window.isEmpty()) {
+                printNext(window);
+            }
+        } finally {
+            dispatcher.executorService().shutdown();
+            batchClient.connectionPool().evictAll();
+        }
+    }
+
+    private CompletableFuture<String> submit(OkHttpClient batchClient, String[] line,
+                                             Map<String, CompletableFuture<String>> lastByKey) {
+        if (line[0].equals(HELP_STRING)) {
+            return CompletableFuture.completedFuture(HELP_MESSAGE);
+        }
+        Request request;
+        List<String> keys;
+        try {
+            Command command = findCommand(line);
+            List<String> args = getArgs(command, line);
+            request = toRequest(command, args);
+            keys = orderingKeys(command, args);
+        } catch (UnknownCommandException e) {
+            return CompletableFuture.completedFuture(e.getMessage());
+        }
+        CompletableFuture<?>[] before = keys.stream()
+                .map(lastByKey::get)
+                .filter(Objects::nonNull)
+                .toArray(CompletableFuture<?>[]::new);
+        CompletableFuture<String> result = before.length == 0
+                ? enqueue(batchClient, request)
+                : CompletableFuture.allOf(before).thenCompose(ignored -> enqueue(batchClient, request));
+        keys.forEach(key -> lastByKey.put(key, result));
+        return result;
+    }
+
+    private void printNext(Deque<CompletableFuture<String>> window) {
+        out.println(window.poll().join());
+    }
+
+    // never completes exceptionally, a failed call is reported as its result
+    private static CompletableFuture<String> enqueue(OkHttpClient client, Request request) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        client.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                result.complete("IO exception occurred: " + e.getMessage());
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (response) {
+                    result.complete(response.body() == null ? "" : response.body().string());
+                } catch (IOException e) {
+                    result.complete("IO exception occurred: " + e.getMessage());
+                }
+            }
+        });
+        return result;
+    }
+
+    private void processCommand(String[] line) throws UnknownCommandException, IOException {
+        Command command = findCommand(line);
+        Request request = toRequest(command, getArgs(command, line));
+        try (Response response = client.newCall(request).execute()) {
+            if (response.body() == null) {
+                out.println();
+            } else {
+                out.println(Objects.requireNonNull(response.body()).string());
+            }
+        }
+    }
+
+    private Command findCommand(String[] line) throws UnknownCommandException {
+        Command command = commands.get(line[0]);
+        if (command == null) {
+            throw new UnknownCommandException("no such command, use help");
+        }
+        return command;
+    }
+
+    private List<String> getArgs(Command command, String[] line) throws UnknownCommandException {
         List<String> args = Arrays.stream(line).skip(1).collect(Collectors.toList());
         if (args.size() != command.argNames.size()) {
             throw new UnknownCommandException("command " + line[0] + " has "
                     + command.argNames.size() + " arguments");
         }
-        Response response;
+        return args;
+    }
+
+    private Request toRequest(Command command, List<String> args) throws UnknownCommandException {
         switch (command.type) {
             case POST: {
-                response = getPostResponse(command, args);
-                break;
+                FormBody.Builder bodyBuilder = new FormBody.Builder();
+                for (int i = 0; i < args.size(); i++) {
+                    bodyBuilder.add(command.argNames.get(i), args.get(i));
+                }
+                return new Request.Builder()
+                        .url(baseUrl.resolve(command.request))
+                        .post(bodyBuilder.build())
+                        .build();
             }
             case GET: {
-                response = getGetResponse(command, args);
-                break;
+                HttpUrl.Builder builder = Objects.requireNonNull(baseUrl.newBuilder(command.request));
+                for (int i = 0; i < args.size(); i++) {
+                    builder.addQueryParameter(command.argNames.get(i), args.get(i));
+                }
+                return new Request.Builder()
+                        .url(builder.build())
+                        .build();
             }
             default: {
                 throw new UnknownCommandException("no command known for request type: " + command.type);
             }
         }
-        if (response.body() == null) {
-            System.out.println();
-        } else {
-            System.out.println(Objects.requireNonNull(response.body()).string());
-        }
-
     }
 
-    private Response getPostResponse(Command command, List<String> args) throws IOException {
-        FormBody.Builder bodyBuilder = new FormBody.Builder();
+    private static List<String> orderingKeys(Command command, List<String> args) {
+        List<String> keys = new ArrayList<>();
         for (int i = 0; i < args.size(); i++) {
-            bodyBuilder.add(command.argNames.get(i), args.get(i));
+            String name = command.argNames.get(i);
+            if (BOOK_ARGS.contains(name)) {
+                keys.add("book " + args.get(i));
+            } else if (name.equals(VISITOR_ARG)) {
+                keys.add("visitor " + args.get(i));
+            }
         }
-        RequestBody body = bodyBuilder.build();
-        Request req = new Request.Builder()
-                .url(BASE_URL + command.request)
-                .post(body)
-                .build();
-        return client.newCall(req).execute();
-    }
-
-    private Response getGetResponse(Command command, List<String> args) throws IOException {
-        HttpUrl.Builder builder = Objects.requireNonNull(HttpUrl.parse(BASE_URL + command.request)).newBuilder();
-        for (int i = 0; i < args.size(); i++) {
-            builder.addQueryParameter(command.argNames.get(i), args.get(i));
-        }
-        String url = builder.build().toString();
-        Request req = new Request.Builder()
-                .url(url)
-                .build();
-        return client.newCall(req).execute();
+        return keys;
     }
 
     private static class Command {
@@ -161,8 +320,48 @@ public class ClientApplication {
 
 
     public static void main(String[] args) {
+        String url = DEFAULT_URL;
+        String batch = null;
+        int inFlight = DEFAULT_IN_FLIGHT;
+        int cacheSize = DEFAULT_CACHE_SIZE;
+        HttpUrl readUrl = null;
         try {
-            new ClientApplication().run();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--url":
+                        url = args[++i];
+                        break;
+                    case "--batch":
+                        batch = i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : "-";
+                        break;
+                    case "--in-flight":
+                        inFlight = Integer.parseInt(args[++i]);
+                        break;
+                    case "--cache":
+                        cacheSize = Integer.parseInt(args[++i]);
+                        break;
+                    case "--read-url":
+                        readUrl = HttpUrl.get(args[++i]);
+                        break;
+                    default:
+                        throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.out.println(USAGE);
+            return;
+        }
+        try {
+            if (batch == null) {
+                new ClientApplication(HttpUrl.get(url), readUrl, cacheSize, new BufferedReader(new InputStreamReader(System.in)), System.out).run();
+            } else {
+                BufferedReader input = batch.equals("-")
+                        ? new BufferedReader(new InputStreamReader(System.in))
+                        : Files.newBufferedReader(Path.of(batch), StandardCharsets.UTF_8);
+                try (input) {
+                    new ClientApplication(HttpUrl.get(url), readUrl, cacheSize, input, System.out).runBatch(Math.max(1, inFlight));
+                }
+            }
         } catch (IOException e) {
             System.out.println("IO exception occurred: " + e.getMessage());
             e.printStackTrace();
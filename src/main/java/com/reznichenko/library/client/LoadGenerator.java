@@ -0,0 +1,503 @@
+package com.reznichenko.library.client;
+
+import com.reznichenko.library.server.metrics.Histogram;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.FormBody;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load against a running server. Requests are started on a schedule given by the
+ * arrival rate, whether or not the earlier ones have been answered, and a latency is counted
+ * from the moment its request was due rather than the moment it was sent. A server that stalls
+ * therefore shows up as high latency of everything due during the stall, not as a single slow
+ * request followed by a quiet period (coordinated omission).
+ */
+public class LoadGenerator {
+
+    public enum Operation {
+        BOOK_NAME("book-name"), AUTHOR("author"), LEND("lend"), RECEIVE("receive");
+
+        private final String command;
+
+        Operation(String command) {
+            this.command = command;
+        }
+
+        public static Operation of(String command) {
+            for (Operation operation : values()) {
+                if (operation.command.equals(command)) {
+                    return operation;
+                }
+            }
+            throw new IllegalArgumentException("unknown operation " + command);
+        }
+    }
+
+    private static final String CODE_PREFIX = "load-";
+    private static final int SET_UP_IN_FLIGHT = 64;
+    // 1/128 resolution, so that p99.9 is within one percent
+    private static final int HISTOGRAM_SUB_BITS = 7;
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final Options options;
+    private final OkHttpClient client;
+    private final Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+    private final Histogram all = new Histogram(HISTOGRAM_SUB_BITS);
+    private final AtomicLong inFlight = new AtomicLong();
+    private final SplittableRandom random;
+    private final ZipfKeys keys;
+    private final Operation[] mix;
+    private long[] visitors;
+    private long maxLag;
+    private long measuredNanos;
+
+    public LoadGenerator(Options options) {
+        this.options = options;
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(options.connections);
+        dispatcher.setMaxRequestsPerHost(options.connections);
+        this.client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(options.connections, 5, TimeUnit.MINUTES))
+                .build();
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new Stats());
+        }
+        this.random = new SplittableRandom(options.seed);
+        this.keys = new ZipfKeys(options.books, options.zipf);
+        this.mix = expandMix(options.mix);
+    }
+
+    /**
+     * Adds the visitors and (unless told not to) the books the load works on, then runs the warmup
+     * and the measured period and waits for the answers still outstanding.
+     */
+    public void run() throws IOException {
+        try {
+            setUp();
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            long measureFrom = start + options.warmupNanos;
+            long end = measureFrom + options.durationNanos;
+            double meanInterval = 1e9 / options.rate;
+            double offset = 0;
+            long due = start;
+            while (due < end) {
+                long now = System.nanoTime();
+                while (now < due) {
+                    LockSupport.parkNanos(due - now);
+                    now = System.nanoTime();
+                }
+                maxLag = Math.max(maxLag, now - due);
+                send(mix[random.nextInt(mix.length)], due, due >= measureFrom);
+                offset += options.poisson ? -Math.log(1 - random.nextDouble()) * meanInterval : meanInterval;
+                due = start + (long) offset;
+            }
+            long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+            while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+            measuredNanos = Math.max(System.nanoTime(), end) - measureFrom;
+        } finally {
+            client.dispatcher().executorService().shutdown();
+            client.connectionPool().evictAll();
+        }
+    }
+
+    public Histogram getLatencies() {
+        return all;
+    }
+
+    public Histogram getLatencies(Operation operation) {
+        return stats.get(operation).latencies;
+    }
+
+    public void report(PrintStream out) {
+        double seconds = measuredNanos / 1e9;
+        out.printf(Locale.ROOT, "%-10s %9s %9s %9s %9s %10s %10s %10s %10s%n",
+                "operation", "ok", "rejected", "failed", "per sec", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Operation operation : Operation.values()) {
+            Stats s = stats.get(operation);
+            if (s.latencies.count() > 0) {
+                printRow(out, operation.command, s.ok.sum(), s.rejected.sum(), s.failed.sum(), s.latencies, seconds);
+            }
+        }
+        long ok = 0, rejected = 0, failed = 0;
+        for (Stats s : stats.values()) {
+            ok += s.ok.sum();
+            rejected += s.rejected.sum();
+            failed += s.failed.sum();
+        }
+        printRow(out, "all", ok, rejected, failed, all, seconds);
+        out.printf(Locale.ROOT, "target rate %.0f/s, still unanswered %d, max send lag %.3f ms%n",
+                options.rate, inFlight.get(), maxLag / 1e6);
+        if (maxLag > 1e9 / options.rate * 10) {
+            out.println("the generator fell behind its schedule, the latencies above include that delay");
+        }
+    }
+
+    private static void printRow(PrintStream out, String name, long ok, long rejected, long failed,
+                                 Histogram latencies, double seconds) {
+        out.printf(Locale.ROOT, "%-10s %9d %9d %9d %9.0f %10.3f %10.3f %10.3f %10.3f%n",
+                name, ok, rejected, failed, latencies.count() / seconds,
+                latencies.quantile(0.5) / 1e6, latencies.quantile(0.99) / 1e6,
+                latencies.quantile(0.999) / 1e6, latencies.max() / 1e6);
+    }
+
+    private void send(Operation operation, long due, boolean measured) {
+        inFlight.incrementAndGet();
+        client.newCall(request(operation)).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                finish(operation, due, measured, stats.get(operation).failed);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                Stats s = stats.get(operation);
+                LongAdder outcome;
+                try (response) {
+                    response.body().bytes();
+                    outcome = response.isSuccessful() ? s.ok : response.code() < 500 ? s.rejected : s.failed;
+                } catch (IOException e) {
+                    outcome = s.failed;
+                }
+                finish(operation, due, measured, outcome);
+            }
+        });
+    }
+
+    private void finish(Operation operation, long due, boolean measured, LongAdder outcome) {
+        if (measured) {
+            long latency = System.nanoTime() - due;
+            stats.get(operation).latencies.record(latency);
+            all.record(latency);
+            outcome.increment();
+        }
+        inFlight.decrementAndGet();
+    }
+
+    private Request request(Operation operation) {
+        String code = CODE_PREFIX + keys.next(random);
+        switch (operation) {
+            case BOOK_NAME:
+                return get("book-name", code);
+            case AUTHOR:
+                return get("author", code);
+            case LEND:
+                return post("lend-book", new FormBody.Builder()
+                        .add("id", Long.toString(visitors[random.nextInt(visitors.length)]))
+                        .add("code", code)
+                        .build());
+            case RECEIVE:
+                return post("receive", new FormBody.Builder().add("code", code).build());
+            default:
+                throw new IllegalStateException(operation.name());
+        }
+    }
+
+    private Request get(String path, String code) {
+        HttpUrl url = options.url.newBuilder(path).addQueryParameter("code", code).build();
+        return new Request.Builder().url(url).build();
+    }
+
+    private Request post(String path, FormBody body) {
+        return new Request.Builder().url(options.url.resolve(path)).post(body).build();
+    }
+
+    private void setUp() throws IOException {
+        if (options.setUp) {
+            List<Request> books = new ArrayList<>(options.books);
+            for (int i = 0; i < options.books; i++) {
+                books.add(post("add-book", new FormBody.Builder()
+                        .add("name", "book " + i)
+                        .add("author", "author " + i)
+                        .add("code", CODE_PREFIX + i)
+                        .build()));
+            }
+            callAll(books);
+        }
+        List<Request> visitorRequests = new ArrayList<>(options.visitors);
+        for (int i = 0; i < options.visitors; i++) {
+            visitorRequests.add(post("add-visitor", new FormBody.Builder()
+                    .add("name", "visitor")
+                    .add("surname", Integer.toString(i))
+                    .build()));
+        }
+        List<String> ids = callAll(visitorRequests);
+        visitors = new long[ids.size()];
+        for (int i = 0; i < visitors.length; i++) {
+            try {
+                visitors[i] = Long.parseLong(ids.get(i).trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("couldn't add visitor: " + ids.get(i));
+            }
+        }
+    }
+
+    // bodies of the responses in request order; books that already exist are fine
+    private List<String> callAll(List<Request> requests) throws IOException {
+        Semaphore window = new Semaphore(SET_UP_IN_FLIGHT);
+        List<CompletableFuture<String>> bodies = new ArrayList<>(requests.size());
+        for (Request request : requests) {
+            window.acquireUninterruptibly();
+            CompletableFuture<String> body = new CompletableFuture<>();
+            bodies.add(body);
+            client.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    window.release();
+                    body.completeExceptionally(e);
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try (response) {
+                        body.complete(response.body().string());
+                    } catch (IOException e) {
+                        body.completeExceptionally(e);
+                    } finally {
+                        window.release();
+                    }
+                }
+            });
+        }
+        List<String> result = new ArrayList<>(bodies.size());
+        for (CompletableFuture<String> body : bodies) {
+            try {
+                result.add(body.join());
+            } catch (RuntimeException e) {
+                throw new IOException("set up failed", e.getCause());
+            }
+        }
+        return result;
+    }
+
+    // every operation repeated by its weight, so that picking one is a single random index
+    private static Operation[] expandMix(Map<Operation, Integer> weights) {
+        List<Operation> expanded = new ArrayList<>();
+        weights.forEach((operation, weight) -> {
+            for (int i = 0; i < weight; i++) {
+                expanded.add(operation);
+            }
+        });
+        if (expanded.isEmpty()) {
+            throw new IllegalArgumentException("the mix has no operations");
+        }
+        return expanded.toArray(new Operation[0]);
+    }
+
+    private static final class Stats {
+        private final Histogram latencies = new Histogram(HISTOGRAM_SUB_BITS);
+        private final LongAdder ok = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+    }
+
+    /**
+     * Key {@code k} (from 0) is drawn with probability proportional to {@code 1 / (k + 1)^s},
+     * by a binary search over the cumulative distribution; {@code s = 0} is uniform.
+     */
+    static final class ZipfKeys {
+        private final double[] cumulative;
+
+        ZipfKeys(int keys, double exponent) {
+            cumulative = new double[keys];
+            double sum = 0;
+            for (int k = 0; k < keys; k++) {
+                sum += 1 / Math.pow(k + 1, exponent);
+                cumulative[k] = sum;
+            }
+            for (int k = 0; k < keys; k++) {
+                cumulative[k] /= sum;
+            }
+        }
+
+        int next(SplittableRandom random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(index < 0 ? -index - 1 : index, cumulative.length - 1);
+        }
+    }
+
+    public static final class Options {
+        private HttpUrl url = HttpUrl.get("http://localhost:8080/");
+        private double rate = 1000;
+        private long durationNanos = TimeUnit.SECONDS.toNanos(30);
+        private long warmupNanos = TimeUnit.SECONDS.toNanos(5);
+        private Map<Operation, Integer> mix = parseMix("book-name=60,author=20,lend=10,receive=10");
+        private int books = 10_000;
+        private int visitors = 100;
+        private double zipf = 0.99;
+        private boolean poisson = true;
+        private int connections = 256;
+        private boolean setUp = true;
+        private long seed = System.nanoTime();
+
+        public Options url(HttpUrl url) {
+            this.url = url;
+            return this;
+        }
+
+        // requests started per second
+        public Options rate(double rate) {
+            if (rate <= 0) {
+                throw new IllegalArgumentException("rate must be positive");
+            }
+            this.rate = rate;
+            return this;
+        }
+
+        public Options duration(long amount, TimeUnit unit) {
+            this.durationNanos = unit.toNanos(amount);
+            return this;
+        }
+
+        // sent as usual, but left out of the report
+        public Options warmup(long amount, TimeUnit unit) {
+            this.warmupNanos = unit.toNanos(amount);
+            return this;
+        }
+
+        public Options mix(Map<Operation, Integer> mix) {
+            this.mix = mix;
+            return this;
+        }
+
+        public Options books(int books) {
+            this.books = books;
+            return this;
+        }
+
+        public Options visitors(int visitors) {
+            this.visitors = visitors;
+            return this;
+        }
+
+        // skew of the book codes, 0 for uniform
+        public Options zipf(double exponent) {
+            this.zipf = exponent;
+            return this;
+        }
+
+        // exponential gaps between arrivals if true, equal ones otherwise
+        public Options poisson(boolean poisson) {
+            this.poisson = poisson;
+            return this;
+        }
+
+        // concurrent requests at most; the ones above it wait, and the wait counts as latency
+        public Options connections(int connections) {
+            this.connections = connections;
+            return this;
+        }
+
+        // false to use the books added by an earlier run
+        public Options setUp(boolean setUp) {
+            this.setUp = setUp;
+            return this;
+        }
+
+        public Options seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        // e.g. "book-name=60,author=20,lend=10,receive=10"
+        public static Map<Operation, Integer> parseMix(String mix) {
+            Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+            for (String part : mix.split(",")) {
+                String[] pair = part.trim().split("=");
+                if (pair.length != 2) {
+                    throw new IllegalArgumentException("expected operation=weight, got " + part);
+                }
+                weights.put(Operation.of(pair[0]), Integer.parseInt(pair[1]));
+            }
+            return weights;
+        }
+    }
+
+    private static final String USAGE = "usage: [--url http://localhost:8080/] [--rate 1000] [--duration 30] [--warmup 5]"
+            + " [--mix book-name=60,author=20,lend=10,receive=10] [--books 10000] [--visitors 100]"
+            + " [--zipf 0.99] [--arrivals poisson|uniform] [--connections 256] [--no-setup] [--seed n]"
+            + System.lineSeparator() + "durations are in seconds, --rate is requests started per second";
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--url":
+                        options.url(HttpUrl.get(args[++i]));
+                        break;
+                    case "--rate":
+                        options.rate(Double.parseDouble(args[++i]));
+                        break;
+                    case "--duration":
+                        options.duration(Long.parseLong(args[++i]), TimeUnit.SECONDS);
+                        break;
+                    case "--warmup":
+                        options.warmup(Long.parseLong(args[++i]), TimeUnit.SECONDS);
+                        break;
+                    case "--mix":
+                        options.mix(Options.parseMix(args[++i]));
+                        break;
+                    case "--books":
+                        options.books(Integer.parseInt(args[++i]));
+                        break;
+                    case "--visitors":
+                        options.visitors(Integer.parseInt(args[++i]));
+                        break;
+                    case "--zipf":
+                        options.zipf(Double.parseDouble(args[++i]));
+                        break;
+                    case "--arrivals":
+                        options.poisson(!args[++i].equals("uniform"));
+                        break;
+                    case "--connections":
+                        options.connections(Integer.parseInt(args[++i]));
+                        break;
+                    case "--no-setup":
+                        options.setUp(false);
+                        break;
+                    case "--seed":
+                        options.seed(Long.parseLong(args[++i]));
+                        break;
+                    default:
+                        throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.out.println(USAGE);
+            return;
+        }
+        try {
+            LoadGenerator generator = new LoadGenerator(options);
+            generator.run();
+            generator.report(System.out);
+        } catch (IOException e) {
+            System.out.println("IO exception occurred: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
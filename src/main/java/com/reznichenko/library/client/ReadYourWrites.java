@@ -0,0 +1,74 @@
+package com.reznichenko.library.client;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the reads to a follower and everything else to the leader, without ever reading older
+ * data than this client already saw: the highest {@code Library-Lsn} of the responses so far goes
+ * along with every read, and a follower that can't catch up with it in time answers 503, after
+ * which the read is repeated on the leader.
+ */
+public class ReadYourWrites implements Interceptor {
+
+    static final String LSN_HEADER = "Library-Lsn";
+
+    private final HttpUrl follower;
+    private final AtomicLong position = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    public ReadYourWrites(HttpUrl follower) {
+        this.follower = follower;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (!request.method().equals("GET")) {
+            return seen(chain.proceed(request));
+        }
+        HttpUrl url = request.url().newBuilder()
+                .scheme(follower.scheme())
+                .host(follower.host())
+                .port(follower.port())
+                .build();
+        long lsn = position.get();
+        Request.Builder read = request.newBuilder().url(url);
+        if (lsn > 0) {
+            read.header(LSN_HEADER, Long.toString(lsn));
+        }
+        Response response = chain.proceed(read.build());
+        if (response.code() != 503) {
+            return seen(response);
+        }
+        response.close();
+        fallbacks.incrementAndGet();
+        return seen(chain.proceed(request));
+    }
+
+    public long getPosition() {
+        return position.get();
+    }
+
+    // reads the follower couldn't answer in time
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    private Response seen(Response response) {
+        String lsn = response.header(LSN_HEADER);
+        if (lsn != null) {
+            try {
+                position.accumulateAndGet(Long.parseLong(lsn.trim()), Math::max);
+            } catch (NumberFormatException ignored) {
+                // not ours to judge, the response is passed on as it is
+            }
+        }
+        return response;
+    }
+}
@@ -0,0 +1,115 @@
+package com.reznichenko.library.client;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the answers to GET requests of the given endpoints together with their ETags and
+ * only asks the server whether they are still current; a 304 is answered from memory. Once
+ * there are more than {@code maxEntries}, the least recently used answers are dropped.
+ */
+public class RevalidatingCache implements Interceptor {
+
+    private final Set<String> endpoints;
+    // guarded by itself, in access order
+    private final Map<HttpUrl, Entry> entries;
+    private long revalidated;
+
+    public RevalidatingCache(Set<String> endpoints, int maxEntries) {
+        this.endpoints = endpoints;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<HttpUrl, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        List<String> segments = request.url().pathSegments();
+        if (!request.method().equals("GET") || !endpoints.contains(segments.get(segments.size() - 1))) {
+            return chain.proceed(request);
+        }
+        HttpUrl url = request.url();
+        Entry cached = get(url);
+        if (cached != null) {
+            request = request.newBuilder().header("If-None-Match", cached.tag).build();
+        }
+        Response response = chain.proceed(request);
+        if (response.code() == 304 && cached != null) {
+            response.close();
+            synchronized (entries) {
+                revalidated++;
+            }
+            return response.newBuilder()
+                    .code(200)
+                    .message("OK")
+                    .body(ResponseBody.create(cached.body, cached.contentType))
+                    .build();
+        }
+        String tag = response.header("ETag");
+        if (!response.isSuccessful() || tag == null || response.body() == null) {
+            remove(url);
+            return response;
+        }
+        MediaType contentType = response.body().contentType();
+        byte[] body = response.body().bytes();
+        put(url, new Entry(tag, body, contentType));
+        return response.newBuilder().body(ResponseBody.create(body, contentType)).build();
+    }
+
+    // answers served from memory after a 304
+    public long getRevalidated() {
+        synchronized (entries) {
+            return revalidated;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private Entry get(HttpUrl url) {
+        synchronized (entries) {
+            return entries.get(url);
+        }
+    }
+
+    private void put(HttpUrl url, Entry entry) {
+        synchronized (entries) {
+            entries.put(url, entry);
+        }
+    }
+
+    private void remove(HttpUrl url) {
+        synchronized (entries) {
+            entries.remove(url);
+        }
+    }
+
+    private static final class Entry {
+        private final String tag;
+        private final byte[] body;
+        private final MediaType contentType;
+
+        private Entry(String tag, byte[] body, MediaType contentType) {
+            this.tag = tag;
+            this.body = body;
+            this.contentType = contentType;
+        }
+    }
+}
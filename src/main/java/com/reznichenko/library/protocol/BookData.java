@@ -0,0 +1,51 @@
+package com.reznichenko.library.protocol;
+
+import java.util.Objects;
+
+// a book as the binary protocol carries it
+public final class BookData {
+
+    private final String code;
+    private final String author;
+    private final String name;
+
+    public BookData(String code, String author, String name) {
+        this.code = code;
+        this.author = author;
+        this.name = name;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BookData)) {
+            return false;
+        }
+        BookData other = (BookData) o;
+        return code.equals(other.code) && author.equals(other.author) && name.equals(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(code, author, name);
+    }
+
+    @Override
+    public String toString() {
+        return author + " - " + name + " (" + code + ")";
+    }
+}
@@ -0,0 +1,54 @@
+package com.reznichenko.library.protocol;
+
+import java.util.List;
+
+// everything a server holds, as EXPORT carries it
+public final class LibraryData {
+
+    private final List<VisitorData> visitors;
+    private final List<BookData> books;
+
+    public LibraryData(List<VisitorData> visitors, List<BookData> books) {
+        this.visitors = visitors;
+        this.books = books;
+    }
+
+    public List<VisitorData> getVisitors() {
+        return visitors;
+    }
+
+    public List<BookData> getBooks() {
+        return books;
+    }
+
+    public static final class VisitorData {
+        private final long id;
+        private final String name;
+        private final String surname;
+        private final List<String> borrowed;
+
+        public VisitorData(long id, String name, String surname, List<String> borrowed) {
+            this.id = id;
+            this.name = name;
+            this.surname = surname;
+            this.borrowed = borrowed;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getSurname() {
+            return surname;
+        }
+
+        // codes, in the order they were lent
+        public List<String> getBorrowed() {
+            return borrowed;
+        }
+    }
+}
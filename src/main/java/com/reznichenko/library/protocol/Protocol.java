@@ -0,0 +1,99 @@
+package com.reznichenko.library.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary protocol of {@code BinaryServer} and {@code BinaryClient}. Every
+ * frame starts with the length of the rest of it, then the request id chosen by the client:
+ * <pre>
+ * request:  int length, long id, byte opcode, arguments
+ * response: int length, long id, byte status, result if the status is OK, a message otherwise
+ * </pre>
+ * A client may send any number of requests without waiting for the responses. Requests of
+ * one connection are carried out in the order they were sent, and answered in that order.
+ * The exports and the borrowed books are answered with a run of frames of about
+ * {@link #EXPORT_PAGE} bytes each, all carrying the request id, so that a library or a list of
+ * any size fits; only the last one, or a failure, ends the response.
+ * <p>
+ * Strings are an unsigned short byte length followed by UTF-8, numbers are big-endian.
+ * The arguments and results of each opcode are listed next to it.
+ */
+public final class Protocol {
+
+    public static final int MAX_FRAME = 1 << 24;
+    // an export frame is cut after the first record that takes it past this
+    public static final int EXPORT_PAGE = 1 << 20;
+    // length, id and opcode or status
+    public static final int HEADER = 4 + 8 + 1;
+
+    // name, surname -> long id
+    public static final byte ADD_VISITOR = 1;
+    // code, author, name -> nothing
+    public static final byte ADD_BOOK = 2;
+    // long visitor id, code -> nothing
+    public static final byte LEND_BOOK = 3;
+    // code -> nothing
+    public static final byte RECEIVE_RETURNED_BOOK = 4;
+    // old code, new code -> nothing
+    public static final byte CHANGE_CODE = 5;
+    // code -> nothing
+    public static final byte DELETE_BOOK = 6;
+    // code -> author
+    public static final byte GET_BOOK_AUTHOR = 7;
+    // code -> name
+    public static final byte GET_BOOK_NAME = 8;
+    // long visitor id -> the frames of EXPORT with no visitors, so that any number of books fits
+    public static final byte GET_BORROWED_BOOKS = 9;
+    // long id, name, surname -> nothing; puts a visitor with a known id, as replicas and shards do
+    public static final byte RESTORE_VISITOR = 10;
+    // nothing -> frames of: byte 1 if more follow, int count, then id, name, surname, int count and the
+    // codes lent of each visitor, then int count and code, author and name of each book; visitors come
+    // before books, all from one view
+    public static final byte EXPORT = 11;
+    // code -> long id of the visitor holding the book, -1 if none
+    public static final byte GET_OWNER = 12;
+    // nothing -> the frames of EXPORT with no codes lent and no books
+    public static final byte EXPORT_VISITORS = 13;
+
+    private Protocol() {
+    }
+
+    public static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("string of " + bytes.length + " bytes is too long");
+        }
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    public static String getString(ByteBuffer buffer) {
+        int length = Short.toUnsignedInt(buffer.getShort());
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    // an upper bound of the bytes putString writes
+    public static int maxLength(String value) {
+        return 2 + value.length() * 3;
+    }
+
+    /**
+     * @return the buffer, or a larger copy of it with room for {@code extra} more bytes
+     */
+    public static ByteBuffer ensure(ByteBuffer buffer, int extra) {
+        if (buffer.remaining() >= extra) {
+            return buffer;
+        }
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < extra) {
+            capacity *= 2;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
@@ -0,0 +1,41 @@
+package com.reznichenko.library.protocol;
+
+/**
+ * Response to one request: the result if the status is {@link Status#OK}, the message of the
+ * failure otherwise.
+ */
+public final class Reply<T> {
+
+    private final Status status;
+    private final T value;
+    private final String message;
+
+    public Reply(Status status, T value, String message) {
+        this.status = status;
+        this.value = value;
+        this.message = message;
+    }
+
+    public boolean isOk() {
+        return status == Status.OK;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    // null unless ok
+    public T getValue() {
+        return value;
+    }
+
+    // null if ok
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return isOk() ? "ok " + value : status + ": " + message;
+    }
+}
@@ -0,0 +1,23 @@
+package com.reznichenko.library.protocol;
+
+/**
+ * Status byte of a response, its ordinal on the wire. The failures are those of the
+ * {@code DataBase} operations, plus a request the server couldn't make sense of.
+ */
+public enum Status {
+    OK,
+    NO_SUCH_BOOK,
+    NO_SUCH_VISITOR,
+    BOOK_ALREADY_EXISTS,
+    BOOK_ALREADY_BORROWED,
+    BAD_REQUEST;
+
+    private static final Status[] VALUES = values();
+
+    public static Status of(byte code) {
+        if (code < 0 || code >= VALUES.length) {
+            throw new IllegalArgumentException("unknown status " + code);
+        }
+        return VALUES[code];
+    }
+}
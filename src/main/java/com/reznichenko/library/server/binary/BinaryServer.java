@@ -0,0 +1,610 @@
+package com.reznichenko.library.server.binary;
+
+import com.reznichenko.library.protocol.Protocol;
+import com.reznichenko.library.protocol.Status;
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.LibraryView;
+import com.reznichenko.library.server.service.Outcome;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the {@link Protocol} over NIO. An acceptor thread hands connections out to a few
+ * event loops, which only read and split frames; the requests of a connection are then carried
+ * out in order by one worker at a time, so that a slow store call never holds up the loops and
+ * the requests a client pipelined are all served by a single task. A worker writes the
+ * responses itself and asks the loop to finish the write only if the socket doesn't take them.
+ * <p>
+ * A connection whose unsent responses pile up beyond {@value #HIGH_WATER} bytes, or whose
+ * requests waiting for a worker pile up beyond {@value #MAX_PENDING} bytes, is not read from
+ * until they drain.
+ */
+public class BinaryServer implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BinaryServer.class);
+    private static final int HIGH_WATER = 1 << 22;
+    private static final int MAX_PENDING = 1 << 22;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final DataBase db;
+    private final InetSocketAddress address;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private ServerSocketChannel server;
+    private Thread acceptor;
+    private volatile boolean closed;
+
+    public BinaryServer(DataBase db, InetSocketAddress address, int ioThreads, int workerThreads) {
+        this.db = db;
+        this.address = address;
+        this.loops = new EventLoop[ioThreads];
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(workerThreads, task -> {
+            Thread thread = new Thread(task, "library-binary-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(address, 1024);
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(Selector.open());
+            Thread thread = new Thread(loops[i], "library-binary-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        acceptor = new Thread(this::accept, "library-binary-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOG.info("binary protocol listening on {}", server.getLocalAddress());
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (server != null) {
+            server.close();
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accept() {
+        int next = 0;
+        while (!closed) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[next++ % loops.length].add(channel);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                LOG.warn("accept failed", e);
+            }
+        }
+    }
+
+    // one request, decoded by the loop and carried out by a worker
+    private static final class Request {
+        private final long id;
+        private final byte opcode;
+        private final ByteBuffer arguments;
+
+        private Request(long id, byte opcode, ByteBuffer arguments) {
+            this.id = id;
+            this.opcode = opcode;
+            this.arguments = arguments;
+        }
+
+        // what the request holds up while it waits
+        private int size() {
+            return Protocol.HEADER + arguments.capacity();
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> changed = new ConcurrentLinkedQueue<>();
+
+        private EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        private void add(SocketChannel channel) {
+            accepted.add(channel);
+            selector.wakeup();
+        }
+
+        // called by workers when a connection needs its interest ops updated
+        private void update(Connection connection) {
+            changed.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    for (SocketChannel channel; (channel = accepted.poll()) != null; ) {
+                        Connection connection = new Connection(channel, this);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    }
+                    for (Connection connection; (connection = changed.poll()) != null; ) {
+                        connection.updateInterest();
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            connection.close();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException e) {
+                LOG.error("event loop failed", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private final class Connection implements Runnable {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private SelectionKey key;
+        // used by the loop only
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        // guarded by this
+        private final ArrayDeque<Request> pending = new ArrayDeque<>();
+        // of the requests read and not answered yet, the batch being answered included
+        private int pendingBytes;
+        private boolean scheduled;
+        // guarded by outLock
+        private final Object outLock = new Object();
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+        private int frameStart;
+        private volatile boolean closed;
+
+        private Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        private void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            List<Request> requests = new ArrayList<>();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (length < Protocol.HEADER - 4 || length > Protocol.MAX_FRAME) {
+                    throw new IOException("bad frame length " + length);
+                }
+                if (in.remaining() < 4 + length) {
+                    break;
+                }
+                in.getInt();
+                long id = in.getLong();
+                byte opcode = in.get();
+                int size = length - (Protocol.HEADER - 4);
+                ByteBuffer arguments = ByteBuffer.allocate(size);
+                in.get(arguments.array(), 0, size);
+                requests.add(new Request(id, opcode, arguments));
+            }
+            in.compact();
+            if (!in.hasRemaining()) {
+                // a frame larger than the buffer
+                in = Protocol.ensure(in, in.capacity());
+            }
+            if (!requests.isEmpty() && submit(requests)) {
+                updateInterest();
+            }
+        }
+
+        // whether the requests waiting now take reading off until a worker answers them
+        private boolean submit(List<Request> requests) {
+            boolean start;
+            boolean full;
+            synchronized (this) {
+                pending.addAll(requests);
+                for (Request request : requests) {
+                    pendingBytes += request.size();
+                }
+                full = pendingBytes >= MAX_PENDING;
+                start = !scheduled;
+                scheduled = true;
+            }
+            if (start) {
+                try {
+                    workers.execute(this);
+                } catch (RejectedExecutionException e) {
+                    close();
+                }
+            }
+            return full;
+        }
+
+        // a worker drains the pending requests, new ones may keep arriving meanwhile
+        @Override
+        public void run() {
+            while (!closed) {
+                Request[] batch;
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        scheduled = false;
+                        return;
+                    }
+                    batch = pending.toArray(new Request[0]);
+                    pending.clear();
+                }
+                int answered = 0;
+                for (Request request : batch) {
+                    respond(request);
+                    answered += request.size();
+                }
+                boolean resume;
+                synchronized (this) {
+                    resume = pendingBytes >= MAX_PENDING;
+                    pendingBytes -= answered;
+                    resume &= pendingBytes < MAX_PENDING;
+                }
+                try {
+                    boolean backlog;
+                    synchronized (outLock) {
+                        backlog = write() > 0;
+                    }
+                    if (backlog || resume) {
+                        loop.update(this);
+                    }
+                } catch (IOException e) {
+                    close();
+                }
+            }
+        }
+
+        private void respond(Request request) {
+            ByteBuffer arguments = request.arguments;
+            try {
+                switch (request.opcode) {
+                    case Protocol.ADD_VISITOR: {
+                        String name = Protocol.getString(arguments);
+                        long id = db.addVisitor(name, Protocol.getString(arguments));
+                        synchronized (outLock) {
+                            start(request.id, Status.OK, 8).putLong(id);
+                            finish();
+                        }
+                        return;
+                    }
+                    case Protocol.ADD_BOOK: {
+                        String code = Protocol.getString(arguments);
+                        String author = Protocol.getString(arguments);
+                        done(request.id, db.tryAddBook(new Book(code, author, Protocol.getString(arguments))));
+                        return;
+                    }
+                    case Protocol.LEND_BOOK: {
+                        long visitorId = arguments.getLong();
+                        done(request.id, db.tryLendBook(visitorId, Protocol.getString(arguments)));
+                        return;
+                    }
+                    case Protocol.RECEIVE_RETURNED_BOOK:
+                        done(request.id, db.tryReceiveReturnedBook(Protocol.getString(arguments)));
+                        return;
+                    case Protocol.CHANGE_CODE: {
+                        String oldCode = Protocol.getString(arguments);
+                        done(request.id, db.tryChangeCode(oldCode, Protocol.getString(arguments)));
+                        return;
+                    }
+                    case Protocol.DELETE_BOOK:
+                        done(request.id, db.tryDeleteBook(Protocol.getString(arguments)));
+                        return;
+                    case Protocol.GET_BOOK_AUTHOR:
+                        text(request.id, db.tryGetBookAuthor(Protocol.getString(arguments)));
+                        return;
+                    case Protocol.GET_BOOK_NAME:
+                        text(request.id, db.tryGetBookName(Protocol.getString(arguments)));
+                        return;
+                    case Protocol.GET_BORROWED_BOOKS:
+                        borrowedBooks(request.id, db.tryGetBorrowedBooks(arguments.getLong()));
+                        return;
+                    case Protocol.RESTORE_VISITOR: {
+                        long visitorId = arguments.getLong();
+                        String name = Protocol.getString(arguments);
+                        db.restoreVisitor(new Visitor(visitorId, name, Protocol.getString(arguments)));
+                        done(request.id, Outcome.done());
+                        return;
+                    }
+                    case Protocol.EXPORT:
+                        export(request.id, db.view());
+                        return;
+                    case Protocol.EXPORT_VISITORS: {
+                        ExportPages pages = new ExportPages(request.id);
+                        for (Visitor visitor : db.getVisitors()) {
+                            pages.visitor(visitor, List.of());
+                        }
+                        pages.end();
+                        return;
+                    }
+                    case Protocol.GET_OWNER: {
+                        Outcome<Long> owner = db.tryGetOwner(Protocol.getString(arguments));
+                        if (!owner.isOk()) {
+                            failure(request.id, owner);
+                            return;
+                        }
+                        synchronized (outLock) {
+                            start(request.id, Status.OK, 8).putLong(owner.getValue());
+                            finish();
+                        }
+                        return;
+                    }
+                    default:
+                        failure(request.id, Status.BAD_REQUEST, "unknown opcode " + request.opcode);
+                }
+            } catch (BufferUnderflowException e) {
+                failure(request.id, Status.BAD_REQUEST, "arguments too short for opcode " + request.opcode);
+            } catch (RuntimeException e) {
+                LOG.warn("request {} with opcode {} failed", request.id, request.opcode, e);
+                failure(request.id, Status.BAD_REQUEST, String.valueOf(e.getMessage()));
+            }
+        }
+
+        private void done(long id, Outcome<Void> outcome) {
+            if (!outcome.isOk()) {
+                failure(id, outcome);
+                return;
+            }
+            synchronized (outLock) {
+                start(id, Status.OK, 0);
+                finish();
+            }
+        }
+
+        private void text(long id, Outcome<String> outcome) {
+            if (!outcome.isOk()) {
+                failure(id, outcome);
+                return;
+            }
+            synchronized (outLock) {
+                Protocol.putString(start(id, Status.OK, Protocol.maxLength(outcome.getValue())), outcome.getValue());
+                finish();
+            }
+        }
+
+        // cut into export frames, a list too long for one frame would be more than the client reads
+        private void borrowedBooks(long id, Outcome<List<Book>> outcome) {
+            if (!outcome.isOk()) {
+                failure(id, outcome);
+                return;
+            }
+            ExportPages pages = new ExportPages(id);
+            outcome.getValue().forEach(pages::book);
+            pages.end();
+        }
+
+        private void export(long id, LibraryView view) {
+            ExportPages pages = new ExportPages(id);
+            view.forEachVisitor(pages::visitor);
+            view.forEachBook(pages::book);
+            pages.end();
+        }
+
+        private void failure(long id, Outcome<?> outcome) {
+            failure(id, Status.valueOf(outcome.getStatus().name()), outcome.getMessage());
+        }
+
+        private void failure(long id, Status status, String message) {
+            synchronized (outLock) {
+                Protocol.putString(start(id, status, Protocol.maxLength(message)), message);
+                finish();
+            }
+        }
+
+        // under outLock: the header of a response with at most size bytes of result after it
+        private ByteBuffer start(long id, Status status, int size) {
+            out = Protocol.ensure(out, Protocol.HEADER + size);
+            frameStart = out.position();
+            out.putInt(0).putLong(id).put((byte) status.ordinal());
+            return out;
+        }
+
+        private void finish() {
+            out.putInt(frameStart, out.position() - frameStart - 4);
+        }
+
+        // under outLock, returns the bytes still unsent
+        private int write() throws IOException {
+            out.flip();
+            try {
+                channel.write(out);
+            } finally {
+                out.compact();
+            }
+            return out.position();
+        }
+
+        // called by the loop, which finishes writes the workers couldn't
+        private void flush() throws IOException {
+            synchronized (outLock) {
+                write();
+            }
+            updateInterest();
+        }
+
+        private void updateInterest() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            int unsent;
+            synchronized (outLock) {
+                unsent = out.position();
+            }
+            int waiting;
+            synchronized (this) {
+                waiting = pendingBytes;
+            }
+            int ops = unsent < HIGH_WATER && waiting < MAX_PENDING ? SelectionKey.OP_READ : 0;
+            if (unsent > 0) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        /**
+         * Cuts an export into frames of about {@link Protocol#EXPORT_PAGE} bytes, each encoded aside
+         * and then queued with a write attempt, so that the socket drains while the rest is encoded.
+         */
+        private final class ExportPages {
+            private final long id;
+            private ByteBuffer page = ByteBuffer.allocate(BUFFER_SIZE);
+            private int visitors;
+            private int books;
+            // where the count of the page's books goes, -1 while it has none
+            private int booksAt = -1;
+
+            private ExportPages(long id) {
+                this.id = id;
+                page.put((byte) 1).putInt(0);
+            }
+
+            private void visitor(Visitor visitor, List<Book> borrowed) {
+                int size = 8 + Protocol.maxLength(visitor.getName()) + Protocol.maxLength(visitor.getSurname()) + 4;
+                for (Book book : borrowed) {
+                    size += Protocol.maxLength(book.getCode());
+                }
+                page = Protocol.ensure(page, size);
+                page.putLong(visitor.getId());
+                Protocol.putString(page, visitor.getName());
+                Protocol.putString(page, visitor.getSurname());
+                page.putInt(borrowed.size());
+                for (Book book : borrowed) {
+                    Protocol.putString(page, book.getCode());
+                }
+                visitors++;
+                if (page.position() >= Protocol.EXPORT_PAGE) {
+                    send(true);
+                }
+            }
+
+            private void book(Book book) {
+                if (booksAt < 0) {
+                    startBooks();
+                }
+                page = Protocol.ensure(page, Protocol.maxLength(book.getCode())
+                        + Protocol.maxLength(book.getAuthor()) + Protocol.maxLength(book.getName()));
+                Protocol.putString(page, book.getCode());
+                Protocol.putString(page, book.getAuthor());
+                Protocol.putString(page, book.getName());
+                books++;
+                if (page.position() >= Protocol.EXPORT_PAGE) {
+                    send(true);
+                    startBooks();
+                }
+            }
+
+            private void end() {
+                send(false);
+            }
+
+            private void startBooks() {
+                page = Protocol.ensure(page, 4);
+                booksAt = page.position();
+                page.putInt(0);
+            }
+
+            private void send(boolean more) {
+                if (booksAt < 0) {
+                    page = Protocol.ensure(page, 4);
+                    page.putInt(0);
+                } else {
+                    page.putInt(booksAt, books);
+                }
+                page.put(0, (byte) (more ? 1 : 0)).putInt(1, visitors);
+                page.flip();
+                if (Protocol.HEADER + page.remaining() > Protocol.MAX_FRAME) {
+                    // a single visitor holding more books than a frame takes
+                    throw new IllegalStateException("export record of " + page.remaining() + " bytes is too large");
+                }
+                try {
+                    synchronized (outLock) {
+                        start(id, Status.OK, page.remaining()).put(page);
+                        finish();
+                        write();
+                    }
+                } catch (IOException e) {
+                    close();
+                }
+                page.clear();
+                page.put((byte) 1).putInt(0);
+                visitors = 0;
+                books = 0;
+                booksAt = -1;
+            }
+        }
+
+        private void close() {
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.reznichenko.library.server.binary;
+
+import com.reznichenko.library.server.service.ListeningDataBase;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+@Configuration
+@ConditionalOnProperty(value = "library.binary.enabled", havingValue = "true")
+public class BinaryServerConfiguration {
+
+    @Value("${library.binary.port:7070}")
+    private int port;
+
+    @Value("${library.binary.io-threads:2}")
+    private int ioThreads;
+
+    @Value("${library.binary.workers:8}")
+    private int workers;
+
+    // goes through the same chain as the HTTP API, so the log, metrics and listeners see its changes too
+    @Bean(destroyMethod = "close")
+    public BinaryServer binaryServer(ListeningDataBase db) throws IOException {
+        BinaryServer server = new BinaryServer(db, new InetSocketAddress(port), ioThreads, workers);
+        server.start();
+        return server;
+    }
+}
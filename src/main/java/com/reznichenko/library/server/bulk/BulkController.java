@@ -0,0 +1,89 @@
+package com.reznichenko.library.server.bulk;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.reznichenko.library.server.exception.IllegalRequestException;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.LibraryView;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.BufferedWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class BulkController {
+
+    private final DataBase db;
+    private final BulkTransfer transfer;
+
+    public BulkController(DataBase db, ObjectMapper mapper,
+                          @Value("${library.bulk.batch-size:1000}") int batchSize,
+                          @Value("${library.bulk.max-errors:1000}") int maxErrors) {
+        this.db = db;
+        this.transfer = new BulkTransfer(db, mapper, batchSize, maxErrors);
+    }
+
+    @PostMapping(value = "import/books", consumes = {"text/csv", "application/x-ndjson"})
+    public ResponseEntity<ImportReport> importBooks(@RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType,
+                                                    InputStream body) {
+        MediaType type = MediaType.parseMediaType(contentType);
+        return ResponseEntity.ok(transfer.importBooks(reader(body, type), Format.of(type)));
+    }
+
+    @PostMapping(value = "import/visitors", consumes = {"text/csv", "application/x-ndjson"})
+    public ResponseEntity<ImportReport> importVisitors(@RequestHeader(HttpHeaders.CONTENT_TYPE) String contentType,
+                                                       InputStream body) {
+        MediaType type = MediaType.parseMediaType(contentType);
+        return ResponseEntity.ok(transfer.importVisitors(reader(body, type), Format.of(type)));
+    }
+
+    @GetMapping("export/books")
+    public ResponseEntity<StreamingResponseBody> exportBooks(@RequestParam(value = "format", defaultValue = "csv") String format) {
+        Format parsed = parse(format);
+        LibraryView view = db.view();
+        return ResponseEntity.ok().contentType(parsed.getMediaType())
+                .body(out -> transfer.exportBooks(view, writer(out), parsed));
+    }
+
+    @GetMapping("export/visitors")
+    public ResponseEntity<StreamingResponseBody> exportVisitors(@RequestParam(value = "format", defaultValue = "csv") String format) {
+        Format parsed = parse(format);
+        LibraryView view = db.view();
+        return ResponseEntity.ok().contentType(parsed.getMediaType())
+                .body(out -> transfer.exportVisitors(view, writer(out), parsed));
+    }
+
+    private static Format parse(String format) {
+        try {
+            return Format.of(format);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalRequestException(e);
+        }
+    }
+
+    private static Reader reader(InputStream body, MediaType type) {
+        Charset charset = type.getCharset() == null ? StandardCharsets.UTF_8 : type.getCharset();
+        return new InputStreamReader(body, charset);
+    }
+
+    private static Writer writer(OutputStream out) {
+        return new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+    }
+}
@@ -0,0 +1,315 @@
+package com.reznichenko.library.server.bulk;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.LibraryView;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams books and visitors in and out of a {@link DataBase}. An import reads one row at a
+ * time and hands them to the database in batches of {@code batchSize}, so memory stays bounded
+ * whatever the size of the input and a batch costs a single lock (and a single log commit).
+ * Batches that were applied stay applied when a later row fails.
+ */
+public class BulkTransfer {
+
+    private static final String[] BOOK_COLUMNS = {"code", "author", "name"};
+    private static final String[] VISITOR_COLUMNS = {"id", "name", "surname"};
+
+    private final DataBase db;
+    private final ObjectMapper mapper;
+    private final int batchSize;
+    private final int maxErrors;
+
+    public BulkTransfer(DataBase db, ObjectMapper mapper, int batchSize, int maxErrors) {
+        this.db = db;
+        this.mapper = mapper;
+        this.batchSize = batchSize;
+        this.maxErrors = maxErrors;
+    }
+
+    public ImportReport importBooks(Reader reader, Format format) {
+        ImportReport report = new ImportReport(maxErrors);
+        List<Book> batch = new ArrayList<>(batchSize);
+        long[] rowNumbers = new long[batchSize];
+        read(reader, format, report, row -> {
+            Book book = new Book(row.require("code"), row.require("author"), row.require("name"));
+            rowNumbers[batch.size()] = row.number;
+            batch.add(book);
+            if (batch.size() == batchSize) {
+                addBooks(batch, rowNumbers, report);
+            }
+        });
+        addBooks(batch, rowNumbers, report);
+        report.finish();
+        return report;
+    }
+
+    /**
+     * Visitors with an id are restored under it (so an export can be loaded back), the ones
+     * without get a new id.
+     */
+    public ImportReport importVisitors(Reader reader, Format format) {
+        ImportReport report = new ImportReport(maxErrors);
+        List<Visitor> batch = new ArrayList<>(batchSize);
+        List<String> names = new ArrayList<>(batchSize);
+        List<String> surnames = new ArrayList<>(batchSize);
+        read(reader, format, report, row -> {
+            String name = row.require("name");
+            String surname = row.require("surname");
+            String id = row.get("id");
+            if (id == null || id.isEmpty()) {
+                names.add(name);
+                surnames.add(surname);
+                if (names.size() == batchSize) {
+                    addVisitors(names, surnames, report);
+                }
+                return;
+            }
+            batch.add(new Visitor(parseId(id), name, surname));
+            if (batch.size() == batchSize) {
+                restoreVisitors(batch, report);
+            }
+        });
+        restoreVisitors(batch, report);
+        addVisitors(names, surnames, report);
+        report.finish();
+        return report;
+    }
+
+    public void exportBooks(LibraryView view, Writer writer, Format format) throws IOException {
+        export(writer, format, BOOK_COLUMNS, rows -> view.forEachBook(book ->
+                rows.write(book.getCode(), book.getAuthor(), book.getName())));
+    }
+
+    public void exportVisitors(LibraryView view, Writer writer, Format format) throws IOException {
+        export(writer, format, VISITOR_COLUMNS, rows -> view.forEachVisitor((visitor, books) ->
+                rows.write(String.valueOf(visitor.getId()), visitor.getName(), visitor.getSurname())));
+    }
+
+    private void addBooks(List<Book> batch, long[] rowNumbers, ImportReport report) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        int[] failed = new int[1];
+        db.addBooks(batch, (i, e) -> {
+            failed[0]++;
+            report.failed(rowNumbers[i], e.getMessage());
+        });
+        report.imported(batch.size() - failed[0]);
+        batch.clear();
+    }
+
+    private void addVisitors(List<String> names, List<String> surnames, ImportReport report) {
+        if (names.isEmpty()) {
+            return;
+        }
+        db.addVisitors(names, surnames);
+        report.imported(names.size());
+        names.clear();
+        surnames.clear();
+    }
+
+    private void restoreVisitors(List<Visitor> batch, ImportReport report) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        db.restoreVisitors(batch);
+        report.imported(batch.size());
+        batch.clear();
+    }
+
+    private static long parseId(String id) {
+        long parsed;
+        try {
+            parsed = Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("id is not a number: " + id);
+        }
+        if (parsed < 0) {
+            throw new IllegalArgumentException("id must not be negative: " + id);
+        }
+        return parsed;
+    }
+
+    // a malformed row is reported and skipped, malformed input stops the import
+    private void read(Reader reader, Format format, ImportReport report, RowHandler handler) {
+        Rows rows = format == Format.CSV ? new CsvRows(reader) : new JsonRows(reader);
+        try {
+            while (true) {
+                try {
+                    if (!rows.next()) {
+                        break;
+                    }
+                    handler.handle(rows);
+                } catch (IllegalArgumentException e) {
+                    report.failed(rows.number, e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            report.failed(rows.number + 1, "couldn't read the input: " + e.getMessage());
+        }
+        report.rows(rows.number);
+    }
+
+    private void export(Writer writer, Format format, String[] columns, ExportAction action) throws IOException {
+        JsonGenerator generator = format == Format.CSV ? null : mapper.getFactory().createGenerator(writer);
+        RowWriter rows;
+        if (generator == null) {
+            CsvWriter csv = new CsvWriter(writer);
+            csv.write(columns);
+            rows = csv::write;
+        } else {
+            // the objects are separated by newlines instead
+            generator.setRootValueSeparator(null);
+            rows = fields -> {
+                generator.writeStartObject();
+                for (int i = 0; i < columns.length; i++) {
+                    generator.writeStringField(columns[i], fields[i]);
+                }
+                generator.writeEndObject();
+                generator.writeRaw('\n');
+            };
+        }
+        try {
+            action.run((String... fields) -> {
+                try {
+                    rows.write(fields);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (generator != null) {
+            generator.flush();
+        }
+        writer.flush();
+    }
+
+    private interface RowHandler {
+        void handle(Rows row);
+    }
+
+    private interface RowWriter {
+        void write(String... fields) throws IOException;
+    }
+
+    private interface RowSink {
+        void write(String... fields);
+    }
+
+    private interface ExportAction {
+        void run(RowSink rows);
+    }
+
+    private abstract static class Rows {
+        // of the current row, 1-based
+        long number;
+
+        // false at the end of the input, IllegalArgumentException if the row is malformed
+        abstract boolean next() throws IOException;
+
+        // null if the row doesn't have the column
+        abstract String get(String column);
+
+        String require(String column) {
+            String value = get(column);
+            if (value == null) {
+                throw new IllegalArgumentException("missing column: " + column);
+            }
+            return value;
+        }
+    }
+
+    private static class CsvRows extends Rows {
+        private final CsvReader reader;
+        private final Map<String, Integer> columns = new HashMap<>();
+        private boolean headerRead;
+        private List<String> fields;
+
+        private CsvRows(Reader reader) {
+            this.reader = new CsvReader(reader);
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (!headerRead) {
+                List<String> header = reader.next();
+                if (header == null) {
+                    return false;
+                }
+                for (int i = 0; i < header.size(); i++) {
+                    columns.put(header.get(i).trim(), i);
+                }
+                headerRead = true;
+            }
+            do {
+                fields = reader.next();
+            } while (fields != null && fields.size() == 1 && fields.get(0).isEmpty());
+            if (fields == null) {
+                return false;
+            }
+            number++;
+            return true;
+        }
+
+        @Override
+        String get(String column) {
+            Integer index = columns.get(column);
+            return index == null || index >= fields.size() ? null : fields.get(index);
+        }
+    }
+
+    private class JsonRows extends Rows {
+        private final BufferedReader reader;
+        private JsonNode row;
+
+        private JsonRows(Reader reader) {
+            this.reader = new BufferedReader(reader, 1 << 16);
+        }
+
+        @Override
+        boolean next() throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+            } while (line != null && line.isBlank());
+            if (line == null) {
+                return false;
+            }
+            number++;
+            try {
+                row = mapper.readTree(line);
+            } catch (JsonProcessingException e) {
+                row = null;
+                throw new IllegalArgumentException("malformed json: " + e.getOriginalMessage());
+            }
+            if (!row.isObject()) {
+                throw new IllegalArgumentException("expected a json object");
+            }
+            return true;
+        }
+
+        @Override
+        String get(String column) {
+            JsonNode value = row.get(column);
+            return value == null || value.isNull() ? null : value.asText();
+        }
+    }
+}
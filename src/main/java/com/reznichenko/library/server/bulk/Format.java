@@ -0,0 +1,37 @@
+package com.reznichenko.library.server.bulk;
+
+import org.springframework.http.MediaType;
+
+public enum Format {
+    // with a header row naming the columns
+    CSV("text/csv"),
+    // one json object per line
+    NDJSON("application/x-ndjson");
+
+    private final MediaType mediaType;
+
+    Format(String mediaType) {
+        this.mediaType = MediaType.parseMediaType(mediaType);
+    }
+
+    public MediaType getMediaType() {
+        return mediaType;
+    }
+
+    public static Format of(MediaType mediaType) {
+        for (Format format : values()) {
+            if (format.mediaType.isCompatibleWith(mediaType)) {
+                return format;
+            }
+        }
+        throw new IllegalArgumentException("unsupported format: " + mediaType);
+    }
+
+    public static Format of(String name) {
+        try {
+            return valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("unsupported format: " + name);
+        }
+    }
+}
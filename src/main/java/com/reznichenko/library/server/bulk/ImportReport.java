@@ -0,0 +1,81 @@
+package com.reznichenko.library.server.bulk;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Outcome of a bulk import: how many rows were read and applied, and why the others were not.
+ * Only the first {@code maxErrors} errors are listed, the rest are just counted.
+ */
+public class ImportReport {
+
+    private final int maxErrors;
+    private final List<RowError> errors = new ArrayList<>();
+    private long rows;
+    private long imported;
+    private long failed;
+
+    ImportReport(int maxErrors) {
+        this.maxErrors = maxErrors;
+    }
+
+    void rows(long rows) {
+        this.rows = rows;
+    }
+
+    void imported(long count) {
+        imported += count;
+    }
+
+    void failed(long row, String message) {
+        failed++;
+        if (errors.size() < maxErrors) {
+            errors.add(new RowError(row, message));
+        }
+    }
+
+    // errors of a batch are only known once it is applied, after the rows read since
+    void finish() {
+        errors.sort(Comparator.comparingLong(RowError::getRow));
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getImported() {
+        return imported;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public boolean isTruncated() {
+        return failed > errors.size();
+    }
+
+    public List<RowError> getErrors() {
+        return errors;
+    }
+
+    public static class RowError {
+        private final long row;
+        private final String message;
+
+        RowError(long row, String message) {
+            this.row = row;
+            this.message = message;
+        }
+
+        // 1-based, the csv header isn't counted
+        public long getRow() {
+            return row;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
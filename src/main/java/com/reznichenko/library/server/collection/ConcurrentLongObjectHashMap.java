@@ -0,0 +1,224 @@
+package com.reznichenko.library.server.collection;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Objects;
+
+/**
+ * Thread safe counterpart of {@link LongObjectHashMap} for stores whose reads take no lock.
+ * Keys are split over segments by the high bits of their hash; writers lock one segment,
+ * readers only read the segment's current table.
+ * <p>
+ * A slot is claimed once per table: its key is written first and its value published after
+ * it, so a reader that sees a value also sees its key and a slot never changes key under a
+ * reader. That rules out shifting entries back on removal, a removed entry keeps its slot with
+ * a tombstone value until the segment copies its live entries into a new table. Iteration is
+ * weakly consistent, as with {@link java.util.concurrent.ConcurrentHashMap}.
+ */
+public class ConcurrentLongObjectHashMap<V> {
+
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+    private static final Object REMOVED = new Object();
+    private static final int SEGMENT_BITS = 4;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Segment<V>[] segments = new Segment[1 << SEGMENT_BITS];
+
+    public ConcurrentLongObjectHashMap() {
+        this(0);
+    }
+
+    public ConcurrentLongObjectHashMap(int expectedSize) {
+        int capacity = LongObjectHashMap.capacityFor(expectedSize >> SEGMENT_BITS);
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment<>(capacity);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    public V get(long key) {
+        long hash = hash(key);
+        return segment(hash).table.get(key, (int) hash);
+    }
+
+    /**
+     * @return the previous value, null if there was none
+     */
+    public V put(long key, V value) {
+        long hash = hash(key);
+        return segment(hash).put(key, (int) hash, Objects.requireNonNull(value), false);
+    }
+
+    /**
+     * @return the present value, null if the key was absent and the value has been added
+     */
+    public V putIfAbsent(long key, V value) {
+        long hash = hash(key);
+        return segment(hash).put(key, (int) hash, Objects.requireNonNull(value), true);
+    }
+
+    /**
+     * @return the removed value, null if there was none
+     */
+    public V remove(long key) {
+        long hash = hash(key);
+        return segment(hash).remove(key, (int) hash);
+    }
+
+    public void forEach(LongObjectHashMap.EntryConsumer<? super V> action) {
+        for (Segment<V> segment : segments) {
+            segment.table.forEach(action);
+        }
+    }
+
+    private Segment<V> segment(long hash) {
+        return segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+    }
+
+    // the same mixing as the single threaded map, the low half picks the slot, the high bits the segment
+    private static long hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 32);
+    }
+
+    private static final class Segment<V> {
+        private volatile Table<V> table;
+        // written under the segment's monitor, read without it by size()
+        private volatile int size;
+        // live entries and tombstones, which both end a probe only at a free slot
+        private int used;
+
+        private Segment(int capacity) {
+            table = new Table<>(capacity);
+        }
+
+        private synchronized V put(long key, int hash, V value, boolean onlyIfAbsent) {
+            Table<V> table = this.table;
+            int mask = table.mask;
+            int i = hash & mask;
+            int reusable = -1;
+            for (Object slot; (slot = table.values[i]) != null; i = (i + 1) & mask) {
+                if (table.keys[i] == key) {
+                    if (slot == REMOVED) {
+                        // the key's own slot, claimed in this table already
+                        reusable = i;
+                        break;
+                    }
+                    if (!onlyIfAbsent) {
+                        SLOTS.setRelease(table.values, i, value);
+                    }
+                    @SuppressWarnings("unchecked")
+                    V old = (V) slot;
+                    return old;
+                }
+            }
+            if (reusable >= 0) {
+                SLOTS.setRelease(table.values, reusable, value);
+                size++;
+                return null;
+            }
+            table.keys[i] = key;
+            SLOTS.setRelease(table.values, i, value);
+            size++;
+            if (++used > LongObjectHashMap.maxSize(table.keys.length)) {
+                rehash(table);
+            }
+            return null;
+        }
+
+        private synchronized V remove(long key, int hash) {
+            Table<V> table = this.table;
+            int mask = table.mask;
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                Object slot = table.values[i];
+                if (slot == null) {
+                    return null;
+                }
+                if (table.keys[i] == key) {
+                    if (slot == REMOVED) {
+                        return null;
+                    }
+                    SLOTS.setRelease(table.values, i, REMOVED);
+                    size--;
+                    @SuppressWarnings("unchecked")
+                    V old = (V) slot;
+                    return old;
+                }
+            }
+        }
+
+        // grows when the live entries fill more than half of the limit, otherwise only drops tombstones
+        private void rehash(Table<V> old) {
+            int capacity = old.keys.length;
+            if (size > LongObjectHashMap.maxSize(capacity) / 2) {
+                capacity *= 2;
+            }
+            Table<V> table = new Table<>(capacity);
+            int mask = table.mask;
+            for (int j = 0; j < old.keys.length; j++) {
+                Object value = old.values[j];
+                if (value != null && value != REMOVED) {
+                    int i = (int) hash(old.keys[j]) & mask;
+                    while (table.values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    table.keys[i] = old.keys[j];
+                    table.values[i] = value;
+                }
+            }
+            used = size;
+            // the volatile write publishes the filled arrays
+            this.table = table;
+        }
+    }
+
+    private static final class Table<V> {
+        private final long[] keys;
+        private final Object[] values;
+        private final int mask;
+
+        private Table(int capacity) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+            mask = capacity - 1;
+        }
+
+        @SuppressWarnings("unchecked")
+        private V get(long key, int hash) {
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                Object value = SLOTS.getAcquire(values, i);
+                if (value == null) {
+                    return null;
+                }
+                if (keys[i] == key) {
+                    return value == REMOVED ? null : (V) value;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void forEach(LongObjectHashMap.EntryConsumer<? super V> action) {
+            for (int i = 0; i < keys.length; i++) {
+                Object value = SLOTS.getAcquire(values, i);
+                if (value != null && value != REMOVED) {
+                    action.accept(keys[i], (V) value);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.reznichenko.library.server.collection;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Insertion-ordered set with constant time {@link #add} and {@link #remove}: elements are
+ * chained into a doubly linked list and found through an {@link IdentityHashMap}, so elements
+ * whose {@code hashCode} changes while inside (a book getting a new code) are still found.
+ * <p>
+ * {@link #snapshot} copies the elements into an immutable list once and hands out the same
+ * list until the set changes. Elements are numbered in the order they were added, from 1, so
+ * that {@link #forEachAfter} can page through the set while it changes. Not thread safe.
+ */
+public class LinkedIdentitySet<E> {
+
+    private final Map<E, Node<E>> nodes = new IdentityHashMap<>();
+    private Node<E> first;
+    private Node<E> last;
+    private List<E> snapshot = Collections.emptyList();
+    // number of the last element added
+    private long added;
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+
+    public boolean contains(E element) {
+        return nodes.containsKey(element);
+    }
+
+    /**
+     * @return false if the element is already in the set
+     */
+    public boolean add(E element) {
+        if (nodes.containsKey(element)) {
+            return false;
+        }
+        Node<E> node = new Node<>(element, ++added);
+        node.prev = last;
+        if (last == null) {
+            first = node;
+        } else {
+            last.next = node;
+        }
+        last = node;
+        nodes.put(element, node);
+        snapshot = null;
+        return true;
+    }
+
+    /**
+     * @return false if the element isn't in the set
+     */
+    public boolean remove(E element) {
+        Node<E> node = nodes.remove(element);
+        if (node == null) {
+            return false;
+        }
+        if (node.prev == null) {
+            first = node.next;
+        } else {
+            node.prev.next = node.next;
+        }
+        if (node.next == null) {
+            last = node.prev;
+        } else {
+            node.next.prev = node.prev;
+        }
+        snapshot = null;
+        return true;
+    }
+
+    /**
+     * @return immutable list of the elements in the order they were added
+     */
+    @SuppressWarnings("unchecked")
+    public List<E> snapshot() {
+        if (snapshot == null) {
+            Object[] elements = new Object[nodes.size()];
+            int i = 0;
+            for (Node<E> node = first; node != null; node = node.next) {
+                elements[i++] = node.element;
+            }
+            snapshot = Collections.unmodifiableList((List<E>) Arrays.asList(elements));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Hands up to {@code limit} elements to the action in order, starting after the one numbered
+     * {@code after}, or from the first for 0. If {@code last} is that element and still in the
+     * set this takes no longer than the elements handed out, otherwise it walks past the
+     * elements numbered lower first.
+     *
+     * @return number of the last element handed out if more follow it, 0 if it was the last
+     */
+    public long forEachAfter(long after, E last, int limit, Consumer<? super E> action) {
+        Node<E> node = last == null ? null : nodes.get(last);
+        if (node != null && node.number == after) {
+            node = node.next;
+        } else {
+            node = first;
+            while (node != null && node.number <= after) {
+                node = node.next;
+            }
+        }
+        Node<E> handed = null;
+        for (int i = 0; i < limit && node != null; i++) {
+            action.accept(node.element);
+            handed = node;
+            node = node.next;
+        }
+        return node == null || handed == null ? 0 : handed.number;
+    }
+
+    private static final class Node<E> {
+        private final E element;
+        private final long number;
+        private Node<E> prev;
+        private Node<E> next;
+
+        private Node(E element, long number) {
+            this.element = element;
+            this.number = number;
+        }
+    }
+}
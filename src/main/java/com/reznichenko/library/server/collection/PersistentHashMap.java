@@ -0,0 +1,370 @@
+package com.reznichenko.library.server.collection;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable hash array mapped trie (CHAMP layout). Every update returns a new map that
+ * shares all untouched nodes with the old one, so old versions stay valid forever.
+ */
+public final class PersistentHashMap<K, V> {
+
+    private static final PersistentHashMap<?, ?> EMPTY = new PersistentHashMap<>(BitmapNode.EMPTY, 0);
+
+    private final Node<K, V> root;
+    private final int size;
+
+    private PersistentHashMap(Node<K, V> root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentHashMap<K, V> empty() {
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public V get(Object key) {
+        return root.get(key, hash(key), 0);
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    public PersistentHashMap<K, V> plus(K key, V value) {
+        Objects.requireNonNull(value);
+        Change change = new Change();
+        Node<K, V> newRoot = root.put(key, value, hash(key), 0, change);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentHashMap<>(newRoot, change.added ? size + 1 : size);
+    }
+
+    public PersistentHashMap<K, V> minus(Object key) {
+        Node<K, V> newRoot = root.remove(key, hash(key), 0);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentHashMap<>(newRoot, size - 1);
+    }
+
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        root.forEach(action);
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int mask(int hash, int shift) {
+        return (hash >>> shift) & 31;
+    }
+
+    private static class Change {
+        boolean added;
+    }
+
+    private abstract static class Node<K, V> {
+        abstract V get(Object key, int hash, int shift);
+
+        abstract Node<K, V> put(K key, V value, int hash, int shift, Change change);
+
+        abstract Node<K, V> remove(Object key, int hash, int shift);
+
+        abstract void forEach(BiConsumer<? super K, ? super V> action);
+
+        abstract int payloadArity();
+
+        abstract int nodeArity();
+
+        abstract K keyAt(int index);
+
+        abstract V valueAt(int index);
+
+        @SuppressWarnings("unchecked")
+        static <K, V> Node<K, V> mergeTwo(K key0, V value0, int hash0, K key1, V value1, int hash1, int shift) {
+            if (shift > 30) {
+                return new CollisionNode<>(hash0, new Object[]{key0, key1}, new Object[]{value0, value1});
+            }
+            int mask0 = mask(hash0, shift);
+            int mask1 = mask(hash1, shift);
+            if (mask0 != mask1) {
+                int dataMap = (1 << mask0) | (1 << mask1);
+                if (mask0 < mask1) {
+                    return new BitmapNode<>(dataMap, 0, new Object[]{key0, value0, key1, value1});
+                }
+                return new BitmapNode<>(dataMap, 0, new Object[]{key1, value1, key0, value0});
+            }
+            Node<K, V> child = mergeTwo(key0, value0, hash0, key1, value1, hash1, shift + 5);
+            return new BitmapNode<>(0, 1 << mask0, new Object[]{child});
+        }
+    }
+
+    // payload pairs are stored from the front of content, child nodes from the back
+    private static final class BitmapNode<K, V> extends Node<K, V> {
+
+        static final BitmapNode<?, ?> EMPTY = new BitmapNode<>(0, 0, new Object[0]);
+
+        private final int dataMap;
+        private final int nodeMap;
+        private final Object[] content;
+
+        BitmapNode(int dataMap, int nodeMap, Object[] content) {
+            this.dataMap = dataMap;
+            this.nodeMap = nodeMap;
+            this.content = content;
+        }
+
+        private static int index(int bitmap, int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @SuppressWarnings("unchecked")
+        private Node<K, V> nodeAt(int index) {
+            return (Node<K, V>) content[content.length - 1 - index];
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        K keyAt(int index) {
+            return (K) content[2 * index];
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        V valueAt(int index) {
+            return (V) content[2 * index + 1];
+        }
+
+        @Override
+        int payloadArity() {
+            return Integer.bitCount(dataMap);
+        }
+
+        @Override
+        int nodeArity() {
+            return Integer.bitCount(nodeMap);
+        }
+
+        @Override
+        V get(Object key, int hash, int shift) {
+            int bit = 1 << mask(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int index = index(dataMap, bit);
+                return keyAt(index).equals(key) ? valueAt(index) : null;
+            }
+            if ((nodeMap & bit) != 0) {
+                return nodeAt(index(nodeMap, bit)).get(key, hash, shift + 5);
+            }
+            return null;
+        }
+
+        @Override
+        Node<K, V> put(K key, V value, int hash, int shift, Change change) {
+            int bit = 1 << mask(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int index = index(dataMap, bit);
+                K currentKey = keyAt(index);
+                if (currentKey.equals(key)) {
+                    if (valueAt(index) == value) {
+                        return this;
+                    }
+                    Object[] copy = content.clone();
+                    copy[2 * index + 1] = value;
+                    return new BitmapNode<>(dataMap, nodeMap, copy);
+                }
+                change.added = true;
+                Node<K, V> child = mergeTwo(currentKey, valueAt(index), PersistentHashMap.hash(currentKey),
+                        key, value, hash, shift + 5);
+                return migrateInlineToNode(bit, index, child);
+            }
+            if ((nodeMap & bit) != 0) {
+                int index = index(nodeMap, bit);
+                Node<K, V> child = nodeAt(index);
+                Node<K, V> newChild = child.put(key, value, hash, shift + 5, change);
+                if (newChild == child) {
+                    return this;
+                }
+                Object[] copy = content.clone();
+                copy[content.length - 1 - index] = newChild;
+                return new BitmapNode<>(dataMap, nodeMap, copy);
+            }
+            change.added = true;
+            int index = 2 * index(dataMap, bit);
+            Object[] copy = new Object[content.length + 2];
+            System.arraycopy(content, 0, copy, 0, index);
+            copy[index] = key;
+            copy[index + 1] = value;
+            System.arraycopy(content, index, copy, index + 2, content.length - index);
+            return new BitmapNode<>(dataMap | bit, nodeMap, copy);
+        }
+
+        @Override
+        Node<K, V> remove(Object key, int hash, int shift) {
+            int bit = 1 << mask(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int index = index(dataMap, bit);
+                if (!keyAt(index).equals(key)) {
+                    return this;
+                }
+                Object[] copy = new Object[content.length - 2];
+                System.arraycopy(content, 0, copy, 0, 2 * index);
+                System.arraycopy(content, 2 * index + 2, copy, 2 * index, content.length - 2 * index - 2);
+                return new BitmapNode<>(dataMap ^ bit, nodeMap, copy);
+            }
+            if ((nodeMap & bit) != 0) {
+                int index = index(nodeMap, bit);
+                Node<K, V> child = nodeAt(index);
+                Node<K, V> newChild = child.remove(key, hash, shift + 5);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild.nodeArity() == 0 && newChild.payloadArity() == 1) {
+                    return migrateNodeToInline(bit, index, newChild.keyAt(0), newChild.valueAt(0));
+                }
+                Object[] copy = content.clone();
+                copy[content.length - 1 - index] = newChild;
+                return new BitmapNode<>(dataMap, nodeMap, copy);
+            }
+            return this;
+        }
+
+        private Node<K, V> migrateInlineToNode(int bit, int dataIndex, Node<K, V> child) {
+            int nodeIndex = content.length - 2 - index(nodeMap, bit);
+            Object[] copy = new Object[content.length - 1];
+            System.arraycopy(content, 0, copy, 0, 2 * dataIndex);
+            System.arraycopy(content, 2 * dataIndex + 2, copy, 2 * dataIndex, nodeIndex - 2 * dataIndex);
+            copy[nodeIndex] = child;
+            System.arraycopy(content, nodeIndex + 2, copy, nodeIndex + 1, content.length - nodeIndex - 2);
+            return new BitmapNode<>(dataMap ^ bit, nodeMap | bit, copy);
+        }
+
+        private Node<K, V> migrateNodeToInline(int bit, int nodeIndex, K key, V value) {
+            int oldNodePosition = content.length - 1 - nodeIndex;
+            int dataIndex = 2 * index(dataMap, bit);
+            Object[] copy = new Object[content.length + 1];
+            System.arraycopy(content, 0, copy, 0, dataIndex);
+            copy[dataIndex] = key;
+            copy[dataIndex + 1] = value;
+            System.arraycopy(content, dataIndex, copy, dataIndex + 2, oldNodePosition - dataIndex);
+            System.arraycopy(content, oldNodePosition + 1, copy, oldNodePosition + 2, content.length - oldNodePosition - 1);
+            return new BitmapNode<>(dataMap | bit, nodeMap ^ bit, copy);
+        }
+
+        @Override
+        void forEach(BiConsumer<? super K, ? super V> action) {
+            int payload = payloadArity();
+            for (int i = 0; i < payload; i++) {
+                action.accept(keyAt(i), valueAt(i));
+            }
+            int nodes = nodeArity();
+            for (int i = 0; i < nodes; i++) {
+                nodeAt(i).forEach(action);
+            }
+        }
+    }
+
+    private static final class CollisionNode<K, V> extends Node<K, V> {
+        private final int hash;
+        private final Object[] keys;
+        private final Object[] values;
+
+        CollisionNode(int hash, Object[] keys, Object[] values) {
+            this.hash = hash;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        private int find(Object key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        V get(Object key, int hash, int shift) {
+            int index = find(key);
+            return index < 0 ? null : (V) values[index];
+        }
+
+        @Override
+        Node<K, V> put(K key, V value, int hash, int shift, Change change) {
+            int index = find(key);
+            if (index >= 0) {
+                if (values[index] == value) {
+                    return this;
+                }
+                Object[] newValues = values.clone();
+                newValues[index] = value;
+                return new CollisionNode<>(this.hash, keys, newValues);
+            }
+            change.added = true;
+            Object[] newKeys = Arrays.copyOf(keys, keys.length + 1);
+            Object[] newValues = Arrays.copyOf(values, values.length + 1);
+            newKeys[keys.length] = key;
+            newValues[values.length] = value;
+            return new CollisionNode<>(this.hash, newKeys, newValues);
+        }
+
+        @Override
+        Node<K, V> remove(Object key, int hash, int shift) {
+            int index = find(key);
+            if (index < 0) {
+                return this;
+            }
+            Object[] newKeys = new Object[keys.length - 1];
+            Object[] newValues = new Object[values.length - 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(keys, index + 1, newKeys, index, keys.length - index - 1);
+            System.arraycopy(values, 0, newValues, 0, index);
+            System.arraycopy(values, index + 1, newValues, index, values.length - index - 1);
+            return new CollisionNode<>(this.hash, newKeys, newValues);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        void forEach(BiConsumer<? super K, ? super V> action) {
+            for (int i = 0; i < keys.length; i++) {
+                action.accept((K) keys[i], (V) values[i]);
+            }
+        }
+
+        @Override
+        int payloadArity() {
+            return keys.length;
+        }
+
+        @Override
+        int nodeArity() {
+            return 0;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        K keyAt(int index) {
+            return (K) keys[index];
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        V valueAt(int index) {
+            return (V) values[index];
+        }
+    }
+}
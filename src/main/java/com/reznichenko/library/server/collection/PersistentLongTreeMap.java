@@ -0,0 +1,223 @@
+package com.reznichenko.library.server.collection;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+/**
+ * Immutable map from {@code long} keys to values, kept sorted by key. It is a treap whose
+ * priorities are derived from the keys, so the shape doesn't depend on the insertion order;
+ * nodes keep their subtree sizes, which gives positional access for {@link #values()}.
+ */
+public final class PersistentLongTreeMap<V> {
+
+    private static final PersistentLongTreeMap<?> EMPTY = new PersistentLongTreeMap<>(null);
+
+    private final Node<V> root;
+
+    private PersistentLongTreeMap(Node<V> root) {
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> PersistentLongTreeMap<V> empty() {
+        return (PersistentLongTreeMap<V>) EMPTY;
+    }
+
+    public int size() {
+        return sizeOf(root);
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    public V get(long key) {
+        Node<V> node = root;
+        while (node != null) {
+            if (key < node.key) {
+                node = node.left;
+            } else if (key > node.key) {
+                node = node.right;
+            } else {
+                return node.value;
+            }
+        }
+        return null;
+    }
+
+    public PersistentLongTreeMap<V> plus(long key, V value) {
+        Objects.requireNonNull(value);
+        Node<V> newRoot = insert(root, key, value, priority(key));
+        return newRoot == root ? this : new PersistentLongTreeMap<>(newRoot);
+    }
+
+    public PersistentLongTreeMap<V> minus(long key) {
+        Node<V> newRoot = delete(root, key);
+        return newRoot == root ? this : new PersistentLongTreeMap<>(newRoot);
+    }
+
+    /**
+     * Values in key order. The list is a view of this (immutable) map, nothing is copied.
+     */
+    public List<V> values() {
+        return new ValueList();
+    }
+
+    /**
+     * Values in key order, starting with the first key strictly greater than {@code key}.
+     */
+    public Iterator<V> valuesAfter(long key) {
+        return new ValueIterator(key, false);
+    }
+
+    private static int sizeOf(Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static int priority(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 32;
+        return (int) h;
+    }
+
+    private static <V> Node<V> insert(Node<V> node, long key, V value, int priority) {
+        if (node == null) {
+            return new Node<>(key, value, priority, null, null);
+        }
+        if (key == node.key) {
+            return node.value == value ? node : new Node<>(key, value, node.priority, node.left, node.right);
+        }
+        if (key < node.key) {
+            Node<V> left = insert(node.left, key, value, priority);
+            if (left.priority > node.priority) {
+                // rotate right
+                return new Node<>(left.key, left.value, left.priority, left.left,
+                        new Node<>(node.key, node.value, node.priority, left.right, node.right));
+            }
+            return new Node<>(node.key, node.value, node.priority, left, node.right);
+        }
+        Node<V> right = insert(node.right, key, value, priority);
+        if (right.priority > node.priority) {
+            // rotate left
+            return new Node<>(right.key, right.value, right.priority,
+                    new Node<>(node.key, node.value, node.priority, node.left, right.left), right.right);
+        }
+        return new Node<>(node.key, node.value, node.priority, node.left, right);
+    }
+
+    private static <V> Node<V> delete(Node<V> node, long key) {
+        if (node == null) {
+            return null;
+        }
+        if (key < node.key) {
+            Node<V> left = delete(node.left, key);
+            return left == node.left ? node : new Node<>(node.key, node.value, node.priority, left, node.right);
+        }
+        if (key > node.key) {
+            Node<V> right = delete(node.right, key);
+            return right == node.right ? node : new Node<>(node.key, node.value, node.priority, node.left, right);
+        }
+        return merge(node.left, node.right);
+    }
+
+    private static <V> Node<V> merge(Node<V> left, Node<V> right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            return new Node<>(left.key, left.value, left.priority, left.left, merge(left.right, right));
+        }
+        return new Node<>(right.key, right.value, right.priority, merge(left, right.left), right.right);
+    }
+
+    private static final class Node<V> {
+        final long key;
+        final V value;
+        final int priority;
+        final Node<V> left;
+        final Node<V> right;
+        final int size;
+
+        Node(long key, V value, int priority, Node<V> left, Node<V> right) {
+            this.key = key;
+            this.value = value;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = 1 + sizeOf(left) + sizeOf(right);
+        }
+    }
+
+    private final class ValueList extends AbstractList<V> {
+
+        @Override
+        public V get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("index: " + index + ", size: " + size());
+            }
+            Node<V> node = root;
+            while (true) {
+                int leftSize = sizeOf(node.left);
+                if (index < leftSize) {
+                    node = node.left;
+                } else if (index > leftSize) {
+                    index -= leftSize + 1;
+                    node = node.right;
+                } else {
+                    return node.value;
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return PersistentLongTreeMap.this.size();
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return new ValueIterator(0, true);
+        }
+    }
+
+    private final class ValueIterator implements Iterator<V> {
+        private final Deque<Node<V>> path = new ArrayDeque<>();
+
+        private ValueIterator(long after, boolean all) {
+            Node<V> node = root;
+            while (node != null) {
+                if (all || node.key > after) {
+                    path.push(node);
+                    node = node.left;
+                } else {
+                    node = node.right;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !path.isEmpty();
+        }
+
+        @Override
+        public V next() {
+            if (path.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            Node<V> node = path.pop();
+            for (Node<V> next = node.right; next != null; next = next.left) {
+                path.push(next);
+            }
+            return node.value;
+        }
+    }
+}
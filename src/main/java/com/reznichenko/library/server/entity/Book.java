@@ -2,10 +2,16 @@ package com.reznichenko.library.server.entity;
 
 import java.util.Objects;
 
+/**
+ * A store swaps the author for its copy in the store's {@link StringDictionary} once the book is
+ * in, so a catalog holds each author once however many books it has. Titles are mostly unique
+ * and aren't shared.
+ */
 public class Book {
-    private final String author;
+    // swapped for an equal string while readers may see the book, so either copy reads the same
+    private volatile String author;
     private final String name;
-    private String code;
+    private volatile String code;
 
     public Book(String code, String author, String name) {
         this.code = code;
@@ -17,6 +23,10 @@ public class Book {
         return author;
     }
 
+    public void shareAuthor(StringDictionary authors) {
+        author = authors.share(author);
+    }
+
     public String getName() {
         return name;
     }
@@ -44,6 +54,6 @@ public class Book {
 
     @Override
     public String toString() {
-        return author + " - " + name + " (" + code + ")";
+        return getAuthor() + " - " + name + " (" + code + ")";
     }
 }
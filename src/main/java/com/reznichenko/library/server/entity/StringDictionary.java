@@ -0,0 +1,34 @@
+package com.reznichenko.library.server.entity;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one copy of each distinct string for the entities of a store, so that every copy of a
+ * repeated string is shared: a catalog has far fewer authors than books and a city far fewer
+ * names than visitors. A store owns its dictionaries and passes an entity's strings through them
+ * only once the entity is in, so the books and visitors built for requests, copies and checks
+ * never reach them, and they go away with the store. Strings are never dropped, a dictionary
+ * grows with the vocabulary its store has seen, not with the number of entities.
+ */
+public final class StringDictionary {
+
+    private final Map<String, String> strings = new ConcurrentHashMap<>();
+
+    // the copy every entity of the store shares, null for null
+    public String share(String string) {
+        if (string == null) {
+            return null;
+        }
+        String shared = strings.get(string);
+        if (shared != null) {
+            return shared;
+        }
+        shared = strings.putIfAbsent(string, string);
+        return shared != null ? shared : string;
+    }
+
+    public int size() {
+        return strings.size();
+    }
+}
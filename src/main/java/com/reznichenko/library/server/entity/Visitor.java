@@ -2,6 +2,10 @@ package com.reznichenko.library.server.entity;
 
 import java.util.Objects;
 
+/**
+ * A store swaps the name and surname for its copies in the store's {@link StringDictionary}
+ * before the visitor is in.
+ */
 public class Visitor {
     private final long id;
     private String name;
@@ -33,6 +37,11 @@ public class Visitor {
         this.surname = surname;
     }
 
+    public void shareNames(StringDictionary names) {
+        name = names.share(name);
+        surname = names.share(surname);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -48,6 +57,6 @@ public class Visitor {
 
     @Override
     public String toString() {
-        return name + " " + surname + " (" + id + ")";
+        return getName() + " " + getSurname() + " (" + id + ")";
     }
 }
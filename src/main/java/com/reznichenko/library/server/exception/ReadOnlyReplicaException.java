@@ -0,0 +1,11 @@
+package com.reznichenko.library.server.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.FORBIDDEN)
+public class ReadOnlyReplicaException extends RuntimeException {
+    public ReadOnlyReplicaException(String leader) {
+        super("this server is a read-only follower, send changes to the leader at " + leader);
+    }
+}
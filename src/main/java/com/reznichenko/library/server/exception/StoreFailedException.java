@@ -0,0 +1,12 @@
+package com.reznichenko.library.server.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+// the store may hold changes its log doesn't, so it takes no more until a restart recovers it from the log
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class StoreFailedException extends RuntimeException {
+    public StoreFailedException(Throwable cause) {
+        super("the store takes no more changes until it is restarted: " + cause.getMessage(), cause);
+    }
+}
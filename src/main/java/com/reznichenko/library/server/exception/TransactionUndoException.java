@@ -0,0 +1,12 @@
+package com.reznichenko.library.server.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+// a transaction failed part way and some of the changes it had already made couldn't be undone
+@ResponseStatus(HttpStatus.INTERNAL_SERVER_ERROR)
+public class TransactionUndoException extends RuntimeException {
+    public TransactionUndoException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,68 @@
+package com.reznichenko.library.server.feed;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * One successful change, numbered in the order the feed heard of it. Only the fields that make
+ * sense for the type are set.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ChangeEvent {
+
+    public enum Type {
+        BOOK_ADDED, BOOK_DELETED, CODE_CHANGED, BOOK_LENT, BOOK_RETURNED, VISITOR_ADDED, BOOK_OVERDUE
+    }
+
+    private final long seq;
+    private final Type type;
+    private final String code;
+    private final String newCode;
+    private final String author;
+    private final String name;
+    private final Long visitorId;
+
+    ChangeEvent(long seq, Type type, String code, String newCode, String author, String name, Long visitorId) {
+        this.seq = seq;
+        this.type = type;
+        this.code = code;
+        this.newCode = newCode;
+        this.author = author;
+        this.name = name;
+        this.visitorId = visitorId;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    // the old one for CODE_CHANGED
+    public String getCode() {
+        return code;
+    }
+
+    public String getNewCode() {
+        return newCode;
+    }
+
+    public String getAuthor() {
+        return author;
+    }
+
+    // of the book, or of the visitor for VISITOR_ADDED
+    public String getName() {
+        return name;
+    }
+
+    public Long getVisitorId() {
+        return visitorId;
+    }
+
+    @Override
+    public String toString() {
+        return seq + " " + type + " " + (code != null ? code : visitorId);
+    }
+}
@@ -0,0 +1,136 @@
+package com.reznichenko.library.server.feed;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.loans.Loan;
+import com.reznichenko.library.server.service.DataBaseListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The last {@code capacity} changes in a ring, numbered from 1. A writer takes the next number
+ * and stores its event in the slot of that number, overwriting whatever was there: it never
+ * waits for a reader. A reader that falls more than a ring behind finds its events
+ * overwritten; it is told how many it missed and goes on from the oldest one still there.
+ */
+public class ChangeFeed implements DataBaseListener {
+
+    private final AtomicReferenceArray<ChangeEvent> slots;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong(1);
+
+    public ChangeFeed(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two, got " + capacity);
+        }
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    // number of the last change so far, 0 before the first one
+    public long latest() {
+        return next.get() - 1;
+    }
+
+    /**
+     * Up to {@code max} events after {@code since}, in order. Stops early at a number whose
+     * writer hasn't stored its event yet, so that nothing is ever delivered out of order.
+     */
+    public Page read(long since, int max) {
+        long seq = since + 1;
+        long skipped = 0;
+        List<ChangeEvent> events = null;
+        while (events == null || events.size() < max) {
+            long oldest = Math.max(1, next.get() - slots.length());
+            if (seq < oldest) {
+                skipped += oldest - seq;
+                seq = oldest;
+            }
+            ChangeEvent event = slots.get((int) seq & mask);
+            if (event == null || event.getSeq() < seq) {
+                break;
+            }
+            if (event.getSeq() > seq) {
+                // overwritten while reading, the next round skips to the new oldest
+                continue;
+            }
+            if (events == null) {
+                events = new ArrayList<>();
+            }
+            events.add(event);
+            seq++;
+        }
+        return new Page(events == null ? Collections.emptyList() : events, skipped, seq - 1);
+    }
+
+    @Override
+    public void onBookAdded(Book book) {
+        publish(ChangeEvent.Type.BOOK_ADDED, book.getCode(), null, book.getAuthor(), book.getName(), null);
+    }
+
+    @Override
+    public void onBookDeleted(String code) {
+        publish(ChangeEvent.Type.BOOK_DELETED, code, null, null, null, null);
+    }
+
+    @Override
+    public void onCodeChanged(String oldCode, String newCode) {
+        publish(ChangeEvent.Type.CODE_CHANGED, oldCode, newCode, null, null, null);
+    }
+
+    @Override
+    public void onBookLent(long visitorId, String code) {
+        publish(ChangeEvent.Type.BOOK_LENT, code, null, null, null, visitorId);
+    }
+
+    @Override
+    public void onBookReturned(String code) {
+        publish(ChangeEvent.Type.BOOK_RETURNED, code, null, null, null, null);
+    }
+
+    @Override
+    public void onVisitorAdded(Visitor visitor) {
+        publish(ChangeEvent.Type.VISITOR_ADDED, null, null, null,
+                visitor.getName() + " " + visitor.getSurname(), visitor.getId());
+    }
+
+    // not a change, but something a client showing loans wants to hear of as well
+    public void onBookOverdue(Loan loan) {
+        publish(ChangeEvent.Type.BOOK_OVERDUE, loan.getCode(), null, null, null, loan.getVisitorId());
+    }
+
+    private void publish(ChangeEvent.Type type, String code, String newCode, String author, String name, Long visitorId) {
+        long seq = next.getAndIncrement();
+        slots.set((int) seq & mask, new ChangeEvent(seq, type, code, newCode, author, name, visitorId));
+    }
+
+    public static final class Page {
+        private final List<ChangeEvent> events;
+        private final long skipped;
+        private final long cursor;
+
+        private Page(List<ChangeEvent> events, long skipped, long cursor) {
+            this.events = events;
+            this.skipped = skipped;
+            this.cursor = cursor;
+        }
+
+        public List<ChangeEvent> getEvents() {
+            return events;
+        }
+
+        // overwritten before they could be read
+        public long getSkipped() {
+            return skipped;
+        }
+
+        // what to pass as since for the next page
+        public long getCursor() {
+            return cursor;
+        }
+    }
+}
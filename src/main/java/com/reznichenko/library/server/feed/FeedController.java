@@ -0,0 +1,153 @@
+package com.reznichenko.library.server.feed;
+
+import com.reznichenko.library.server.loans.LoanTracker;
+import com.reznichenko.library.server.service.ListeningDataBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams the {@link ChangeFeed} as server-sent events, the id of each being its sequence
+ * number. A client resumes with the usual Last-Event-ID header or {@code ?since=}, and starts
+ * from the next change otherwise. The senders poll the feed, so writers never wait for a
+ * client; a client that falls a whole ring behind gets a {@code reset} event saying how many
+ * changes it missed, and should reload whatever it shows.
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@ConditionalOnProperty(value = "library.feed.enabled", havingValue = "true", matchIfMissing = true)
+public class FeedController implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FeedController.class);
+    private static final int PAGE_SIZE = 256;
+
+    private final ChangeFeed feed;
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService senders;
+    private final long heartbeatNanos;
+
+    public FeedController(ListeningDataBase db,
+                          ObjectProvider<LoanTracker> loans,
+                          @Value("${library.feed.capacity:65536}") int capacity,
+                          @Value("${library.feed.senders:4}") int senders,
+                          @Value("${library.feed.poll-ms:20}") long pollMillis,
+                          @Value("${library.feed.heartbeat-ms:15000}") long heartbeatMillis) {
+        this.feed = new ChangeFeed(capacity);
+        this.heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+        AtomicInteger count = new AtomicInteger();
+        this.senders = Executors.newScheduledThreadPool(senders, task -> {
+            Thread thread = new Thread(task, "library-feed-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.senders.scheduleWithFixedDelay(this::sendAll, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+        db.addListener(feed);
+        loans.ifAvailable(tracker -> tracker.addOverdueListener(feed::onBookOverdue));
+    }
+
+    @GetMapping(value = "events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter events(@RequestParam(value = "since", required = false) Long since,
+                             @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+        long latest = feed.latest();
+        Long requested = lastEventId != null ? lastEventId : since;
+        // no timeout, a dead client is found by the heartbeat failing
+        SseEmitter emitter = new SseEmitter(0L);
+        Subscriber subscriber = new Subscriber(emitter, requested == null ? latest : Math.min(requested, latest));
+        if (requested != null && requested > latest) {
+            // numbers from before a restart, whatever happened since is unknown
+            subscriber.send(SseEmitter.event().name("reset").data(Map.of("restarted", true), MediaType.APPLICATION_JSON));
+        }
+        emitter.onCompletion(() -> subscribers.remove(subscriber));
+        emitter.onTimeout(() -> subscribers.remove(subscriber));
+        emitter.onError(e -> subscribers.remove(subscriber));
+        subscribers.add(subscriber);
+        return emitter;
+    }
+
+    @Override
+    public void destroy() {
+        senders.shutdownNow();
+        subscribers.forEach(subscriber -> subscriber.emitter.complete());
+    }
+
+    private void sendAll() {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.busy.compareAndSet(false, true)) {
+                senders.execute(subscriber::sendPage);
+            }
+        }
+    }
+
+    private final class Subscriber {
+        private final SseEmitter emitter;
+        private final AtomicBoolean busy = new AtomicBoolean();
+        // touched by one sender at a time, busy hands it over
+        private long cursor;
+        private long lastSent = System.nanoTime();
+
+        private Subscriber(SseEmitter emitter, long cursor) {
+            this.emitter = emitter;
+            this.cursor = cursor;
+        }
+
+        // one page per turn, so that a client that reads slowly holds up a sender only that long
+        private void sendPage() {
+            try {
+                ChangeFeed.Page page = feed.read(cursor, PAGE_SIZE);
+                if (page.getSkipped() > 0 && !send(SseEmitter.event().name("reset")
+                        .data(Map.of("skipped", page.getSkipped()), MediaType.APPLICATION_JSON))) {
+                    return;
+                }
+                for (ChangeEvent event : page.getEvents()) {
+                    boolean sent = send(SseEmitter.event()
+                            .id(Long.toString(event.getSeq()))
+                            .name(event.getType().name())
+                            .data(event, MediaType.APPLICATION_JSON));
+                    if (!sent) {
+                        return;
+                    }
+                }
+                cursor = page.getCursor();
+                if (System.nanoTime() - lastSent > heartbeatNanos) {
+                    send(SseEmitter.event().comment(""));
+                }
+            } finally {
+                busy.set(false);
+            }
+        }
+
+        // false once the client is gone
+        private boolean send(SseEmitter.SseEventBuilder event) {
+            try {
+                emitter.send(event);
+                lastSent = System.nanoTime();
+                return true;
+            } catch (IOException | IllegalStateException e) {
+                LOG.debug("dropping a feed subscriber", e);
+                subscribers.remove(this);
+                emitter.completeWithError(e);
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.reznichenko.library.server.id;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out increasing ids from a shared counter in blocks, so that each thread takes from its
+ * own block and only touches the counter once per {@code blockSize} ids. Ids of one thread
+ * increase, ids of different threads interleave block by block.
+ * <p>
+ * With a file, the allocator writes down a high-water mark ahead of the ids it hands out
+ * (a few blocks at a time) and starts above it after a restart, so no id is reused even
+ * if the visitors holding them weren't persisted.
+ */
+public class BlockIdAllocator implements IdAllocator {
+
+    // blocks reserved in the file at once
+    private static final int LEASE_BLOCKS = 64;
+
+    private final int blockSize;
+    private final Path file;
+    // first id of the next block
+    private final AtomicLong next;
+    private volatile long persistedLimit;
+    // the next id of the thread's block and the end of the block
+    private final ThreadLocal<long[]> blocks = ThreadLocal.withInitial(() -> new long[2]);
+
+    public BlockIdAllocator() {
+        this(1024, null);
+    }
+
+    /**
+     * @param file where the high-water mark is kept, null to keep nothing
+     */
+    public BlockIdAllocator(int blockSize, Path file) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("block size must be positive: " + blockSize);
+        }
+        this.blockSize = blockSize;
+        this.file = file;
+        long start = 1;
+        if (file != null && Files.exists(file)) {
+            try {
+                start = Math.max(start, Long.parseLong(Files.readString(file, StandardCharsets.UTF_8).trim()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        this.next = new AtomicLong(start);
+        this.persistedLimit = start;
+    }
+
+    @Override
+    public long nextId() {
+        long[] block = blocks.get();
+        if (block[0] == block[1]) {
+            long start = next.getAndAdd(blockSize);
+            persistUpTo(start + blockSize);
+            block[0] = start;
+            block[1] = start + blockSize;
+        }
+        return block[0]++;
+    }
+
+    @Override
+    public void observe(long id) {
+        next.accumulateAndGet(id + 1, Math::max);
+    }
+
+    private void persistUpTo(long end) {
+        if (file == null || end <= persistedLimit) {
+            return;
+        }
+        synchronized (this) {
+            if (end <= persistedLimit) {
+                return;
+            }
+            long limit = end + (long) blockSize * LEASE_BLOCKS;
+            try {
+                write(limit);
+            } catch (IOException e) {
+                throw new UncheckedIOException("couldn't persist the id high-water mark", e);
+            }
+            persistedLimit = limit;
+        }
+    }
+
+    private void write(long limit) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(Long.toString(limit).getBytes(StandardCharsets.UTF_8)));
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,14 @@
+package com.reznichenko.library.server.id;
+
+/**
+ * Source of visitor ids. Ids are non-negative and unique within the allocator; the database
+ * still checks them against the visitors it already has.
+ */
+public interface IdAllocator {
+
+    long nextId();
+
+    // an id that was handed out earlier, e.g. one read back from the log, that should not be handed out again
+    default void observe(long id) {
+    }
+}
@@ -0,0 +1,49 @@
+package com.reznichenko.library.server.id;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Ids for several instances sharing a visitor space: milliseconds since {@link #EPOCH}
+ * (41 bits), node id ({@value #NODE_BITS} bits) and a sequence within the millisecond
+ * ({@value #SEQUENCE_BITS} bits). Ids of one node always increase: once a millisecond's
+ * sequence runs out, or if the clock goes back, the allocator runs ahead of the clock.
+ */
+public class SnowflakeIdAllocator implements IdAllocator {
+
+    // 2021-01-01T00:00:00Z
+    public static final long EPOCH = 1609459200000L;
+    static final int NODE_BITS = 10;
+    static final int SEQUENCE_BITS = 12;
+    public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+
+    private final long node;
+    private final LongSupplier clock;
+    // timestamp and sequence of the last id, as one number
+    private final AtomicLong last = new AtomicLong();
+
+    public SnowflakeIdAllocator(int node) {
+        this(node, System::currentTimeMillis);
+    }
+
+    public SnowflakeIdAllocator(int node, LongSupplier clock) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("node must be between 0 and " + MAX_NODE + ": " + node);
+        }
+        this.node = node;
+        this.clock = clock;
+    }
+
+    @Override
+    public long nextId() {
+        long now = (clock.getAsLong() - EPOCH) << SEQUENCE_BITS;
+        long state = last.updateAndGet(previous -> Math.max(previous + 1, now));
+        long timestamp = state >>> SEQUENCE_BITS;
+        long sequence = state & ((1 << SEQUENCE_BITS) - 1);
+        return timestamp << (NODE_BITS + SEQUENCE_BITS) | node << SEQUENCE_BITS | sequence;
+    }
+
+    public static long nodeOf(long id) {
+        return (id >>> SEQUENCE_BITS) & MAX_NODE;
+    }
+}
@@ -0,0 +1,50 @@
+package com.reznichenko.library.server.loans;
+
+import java.time.Instant;
+import java.util.Objects;
+
+/**
+ * A book out with a visitor, as of the moment it was asked for.
+ */
+public class Loan {
+
+    private final String code;
+    private final long visitorId;
+    private final Instant due;
+
+    public Loan(String code, long visitorId, Instant due) {
+        this.code = code;
+        this.visitorId = visitorId;
+        this.due = due;
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    public long getVisitorId() {
+        return visitorId;
+    }
+
+    public Instant getDue() {
+        return due;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Loan loan = (Loan) o;
+        return visitorId == loan.visitorId && code.equals(loan.code) && due.equals(loan.due);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(code, visitorId, due);
+    }
+
+    @Override
+    public String toString() {
+        return code + " to " + visitorId + " until " + due;
+    }
+}
@@ -0,0 +1,38 @@
+package com.reznichenko.library.server.loans;
+
+import com.reznichenko.library.server.persistence.DurableDataBase;
+import com.reznichenko.library.server.service.ListeningDataBase;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+@ConditionalOnProperty(value = "library.loans.enabled", havingValue = "true", matchIfMissing = true)
+public class LoanConfiguration {
+
+    @Value("${library.loans.period-days:14}")
+    private long periodDays;
+
+    @Value("${library.loans.tick-ms:1000}")
+    private long tickMillis;
+
+    // with the log enabled due dates are counted from the logged lend times and renewals are logged
+    @Bean(destroyMethod = "close")
+    public LoanTracker loanTracker(ListeningDataBase db) {
+        LoanTracker tracker = new LoanTracker(TimeUnit.DAYS.toMillis(periodDays), tickMillis);
+        DurableDataBase durable = db.find(DurableDataBase.class);
+        if (durable == null) {
+            tracker.addAll(db.view());
+        } else {
+            tracker.addAll(db.view(), durable.getLendTimes());
+            tracker.addRenewalListener(loan -> durable.renewBook(loan.getVisitorId(), loan.getCode(),
+                    tracker.lentAt(loan).toEpochMilli()));
+        }
+        db.addListener(tracker);
+        tracker.start();
+        return tracker;
+    }
+}
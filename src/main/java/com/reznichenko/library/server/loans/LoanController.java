@@ -0,0 +1,54 @@
+package com.reznichenko.library.server.loans;
+
+import com.reznichenko.library.server.exception.IllegalRequestException;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@ConditionalOnProperty(value = "library.loans.enabled", havingValue = "true", matchIfMissing = true)
+public class LoanController {
+
+    private static final int MAX_LIMIT = 1000;
+
+    private final LoanTracker loans;
+
+    public LoanController(LoanTracker loans) {
+        this.loans = loans;
+    }
+
+    // the longest overdue first
+    @GetMapping("overdue")
+    public ResponseEntity<List<Loan>> overdue(@RequestParam(value = "limit", defaultValue = "100") int limit) {
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new IllegalRequestException(new IllegalArgumentException(
+                    "limit must be between 1 and " + MAX_LIMIT));
+        }
+        return ResponseEntity.ok(loans.getOverdue(limit));
+    }
+
+    @GetMapping(params = "code", value = "loan")
+    public ResponseEntity<?> loan(@RequestParam("code") String code) {
+        Loan loan = loans.getLoan(code);
+        return loan == null ? notLent(code) : ResponseEntity.ok(loan);
+    }
+
+    @PostMapping(params = "code", value = "renew")
+    public ResponseEntity<?> renew(@RequestParam("code") String code) {
+        Loan loan = loans.renew(code);
+        return loan == null ? notLent(code) : ResponseEntity.ok(loan);
+    }
+
+    private static ResponseEntity<String> notLent(String code) {
+        return ResponseEntity.badRequest().contentType(MediaType.TEXT_PLAIN)
+                .body("bad request: book with code " + code + " isn't lent");
+    }
+}
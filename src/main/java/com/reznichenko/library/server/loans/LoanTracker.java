@@ -0,0 +1,359 @@
+package com.reznichenko.library.server.loans;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.service.DataBaseListener;
+import com.reznichenko.library.server.service.LibraryView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Due dates of the loans, kept up to date as a {@link DataBaseListener}: a book lent is due a
+ * loan period later, and lending it again, or renewing it, starts the period over. Every loan
+ * is a timer on a {@link TimingWheel}; when it fires the loan moves to the overdue loans, kept in
+ * the order they fell due, and the overdue listeners are told. Nothing ever scans the loans.
+ * <p>
+ * The due dates themselves live in memory: on startup they are counted from the lend times the
+ * log kept (see {@code DurableDataBase#getLendTimes}), and renewals are handed to the renewal
+ * listeners to be logged. A loan without a lend time, e.g. with the log disabled, is due a whole
+ * period after the startup.
+ * <p>
+ * The listener calls come from the writers, under the locks of the store, so they don't take
+ * the tracker's lock: each change is put on a lock-free queue with its time, and whoever takes
+ * the lock next, a read or the tick, applies the queue in order first. The ticker also drains it
+ * between ticks once it holds {@link #DRAIN_AT} changes.
+ */
+public class LoanTracker implements DataBaseListener, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoanTracker.class);
+    // changes queued before the ticker is asked to apply them without waiting for the tick
+    private static final int DRAIN_AT = 4096;
+
+    private final long periodMillis;
+    private final long tickMillis;
+    private final LongSupplier clock;
+    private final List<Consumer<Loan>> overdueListeners = new CopyOnWriteArrayList<>();
+    private final List<Consumer<Loan>> renewalListeners = new CopyOnWriteArrayList<>();
+    // changes the writers made, applied under the lock in the order they were queued
+    private final Queue<Change> changes = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    // all guarded by this
+    private final TimingWheel<Entry> wheel;
+    private final Map<String, Entry> loans = new HashMap<>();
+    // entries don't override equals, so by identity, and a code change doesn't move them
+    private final Set<Entry> overdue = new LinkedHashSet<>();
+
+    private volatile ScheduledExecutorService ticker;
+
+    public LoanTracker(long periodMillis, long tickMillis) {
+        this(periodMillis, tickMillis, System::currentTimeMillis);
+    }
+
+    public LoanTracker(long periodMillis, long tickMillis, LongSupplier clock) {
+        if (periodMillis <= 0 || tickMillis <= 0) {
+            throw new IllegalArgumentException("the loan period and the tick must be positive");
+        }
+        this.periodMillis = periodMillis;
+        this.tickMillis = tickMillis;
+        this.clock = clock;
+        // a loan never has to move down the wheel, unless the period is beyond the widest level 0
+        this.wheel = new TimingWheel<>(clock.getAsLong() / tickMillis, periodMillis / tickMillis + 1);
+    }
+
+    // the loans already out, each due a period after now
+    public void addAll(LibraryView view) {
+        addAll(view, Collections.emptyMap());
+    }
+
+    /**
+     * Adds the loans already out, each due a period after the time it was lent, or after now if
+     * that isn't known; those already overdue fire on the next tick, the longest overdue first.
+     * Nothing writes before the application has started, so no change slips in between.
+     *
+     * @param lendTimes epoch milliseconds by code
+     */
+    public synchronized void addAll(LibraryView view, Map<String, Long> lendTimes) {
+        drain();
+        long now = clock.getAsLong();
+        List<Entry> entries = new ArrayList<>();
+        view.forEachVisitor((visitor, books) -> {
+            for (Book book : books) {
+                Entry entry = new Entry(book.getCode());
+                entry.visitorId = visitor.getId();
+                entry.due = lendTimes.getOrDefault(book.getCode(), now) + periodMillis;
+                entries.add(entry);
+            }
+        });
+        // a timer past its tick fires in the order it was scheduled
+        entries.sort(Comparator.comparingLong(entry -> entry.due));
+        for (Entry entry : entries) {
+            Entry lent = loans.remove(entry.code);
+            if (lent != null && !wheel.cancel(lent)) {
+                overdue.remove(lent);
+            }
+            loans.put(entry.code, entry);
+            schedule(entry);
+        }
+    }
+
+    public void addOverdueListener(Consumer<Loan> listener) {
+        overdueListeners.add(listener);
+    }
+
+    // told about every renewal after it is made, outside of the tracker's lock, e.g. to log it
+    public void addRenewalListener(Consumer<Loan> listener) {
+        renewalListeners.add(listener);
+    }
+
+    // ticks on a thread of its own until closed
+    public synchronized void start() {
+        if (ticker != null) {
+            return;
+        }
+        ticker = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "library-loans");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(() -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                LOG.error("loan tick failed", e);
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fires the loans that have fallen due by the clock's time and tells the overdue listeners,
+     * outside of the tracker's lock.
+     */
+    public void tick() {
+        List<Loan> fired = new ArrayList<>();
+        synchronized (this) {
+            drain();
+            wheel.advance(clock.getAsLong() / tickMillis, entry -> {
+                overdue.add(entry);
+                fired.add(entry.toLoan());
+            });
+        }
+        for (Loan loan : fired) {
+            for (Consumer<Loan> listener : overdueListeners) {
+                listener.accept(loan);
+            }
+        }
+    }
+
+    // null if the book isn't lent
+    public synchronized Loan getLoan(String code) {
+        drain();
+        Entry entry = loans.get(code);
+        return entry == null ? null : entry.toLoan();
+    }
+
+    /**
+     * Starts the loan period of the book over, overdue or not, and tells the renewal listeners.
+     *
+     * @return the renewed loan, null if the book isn't lent
+     */
+    public Loan renew(String code) {
+        Loan loan;
+        synchronized (this) {
+            drain();
+            Entry entry = loans.get(code);
+            if (entry == null) {
+                return null;
+            }
+            loan = lend(entry.visitorId, code, clock.getAsLong()).toLoan();
+        }
+        for (Consumer<Loan> listener : renewalListeners) {
+            listener.accept(loan);
+        }
+        return loan;
+    }
+
+    // when the loan was lent or last renewed
+    public Instant lentAt(Loan loan) {
+        return loan.getDue().minusMillis(periodMillis);
+    }
+
+    // the first of the overdue loans, the longest overdue first
+    public synchronized List<Loan> getOverdue(int limit) {
+        drain();
+        if (overdue.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Loan> page = new ArrayList<>(Math.min(limit, overdue.size()));
+        for (Entry entry : overdue) {
+            if (page.size() == limit) {
+                break;
+            }
+            page.add(entry.toLoan());
+        }
+        return page;
+    }
+
+    public synchronized int overdueCount() {
+        drain();
+        return overdue.size();
+    }
+
+    public synchronized int size() {
+        drain();
+        return loans.size();
+    }
+
+    @Override
+    public void onBookLent(long visitorId, String code) {
+        queue(new Change(Change.LENT, code, null, visitorId, clock.getAsLong()));
+    }
+
+    @Override
+    public void onBookReturned(String code) {
+        queue(new Change(Change.REMOVED, code, null, -1, 0));
+    }
+
+    @Override
+    public void onBookDeleted(String code) {
+        queue(new Change(Change.REMOVED, code, null, -1, 0));
+    }
+
+    @Override
+    public void onCodeChanged(String oldCode, String newCode) {
+        queue(new Change(Change.MOVED, oldCode, newCode, -1, 0));
+    }
+
+    @Override
+    public synchronized void close() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+        }
+    }
+
+    private void queue(Change change) {
+        changes.add(change);
+        ScheduledExecutorService ticker = this.ticker;
+        if (queued.incrementAndGet() == DRAIN_AT && ticker != null) {
+            try {
+                ticker.execute(() -> {
+                    synchronized (this) {
+                        drain();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // closed, the reads still drain
+            }
+        }
+    }
+
+    // under the lock
+    private void drain() {
+        Change change;
+        while ((change = changes.poll()) != null) {
+            queued.decrementAndGet();
+            switch (change.type) {
+                case Change.LENT:
+                    lend(change.visitorId, change.code, change.time);
+                    break;
+                case Change.REMOVED:
+                    remove(change.code);
+                    break;
+                case Change.MOVED:
+                    Entry entry = loans.remove(change.code);
+                    if (entry != null) {
+                        entry.code = change.newCode;
+                        loans.put(change.newCode, entry);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("unknown change " + change.type);
+            }
+        }
+    }
+
+    private Entry lend(long visitorId, String code, long time) {
+        Entry entry = loans.get(code);
+        if (entry == null) {
+            entry = new Entry(code);
+            loans.put(code, entry);
+        } else if (!wheel.cancel(entry)) {
+            overdue.remove(entry);
+        }
+        // a renewal reuses the entry, tens of millions of loans make enough garbage as it is
+        entry.visitorId = visitorId;
+        entry.due = time + periodMillis;
+        schedule(entry);
+        return entry;
+    }
+
+    private void schedule(Entry entry) {
+        // the first tick at or after the due time
+        wheel.schedule(entry, Math.floorDiv(entry.due + tickMillis - 1, tickMillis));
+    }
+
+    private void remove(String code) {
+        Entry entry = loans.remove(code);
+        if (entry != null && !wheel.cancel(entry)) {
+            overdue.remove(entry);
+        }
+    }
+
+    // a change of the library as the listener was told, with the time of a lend
+    private static final class Change {
+        private static final int LENT = 0;
+        private static final int REMOVED = 1;
+        private static final int MOVED = 2;
+
+        private final int type;
+        private final String code;
+        // MOVED only
+        private final String newCode;
+        // LENT only
+        private final long visitorId;
+        private final long time;
+
+        private Change(int type, String code, String newCode, long visitorId, long time) {
+            this.type = type;
+            this.code = code;
+            this.newCode = newCode;
+            this.visitorId = visitorId;
+            this.time = time;
+        }
+    }
+
+    private static final class Entry extends TimingWheel.Timer {
+        private String code;
+        private long visitorId;
+        // in milliseconds, the wheel only knows the tick
+        private long due;
+
+        private Entry(String code) {
+            this.code = code;
+        }
+
+        private Loan toLoan() {
+            return new Loan(code, visitorId, Instant.ofEpochMilli(due));
+        }
+    }
+}
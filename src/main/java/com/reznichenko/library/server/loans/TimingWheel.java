@@ -0,0 +1,249 @@
+package com.reznichenko.library.server.loans;
+
+import java.util.function.Consumer;
+
+/**
+ * Timers on a hierarchical timing wheel, in ticks of whatever length the caller counts in.
+ * Level 0 has a slot for each tick of the span it is built for, every level above it
+ * {@value #SLOTS} slots, each covering a whole turn of the level below. A timer goes by its
+ * distance from the current tick: to level 0 if it is due within the span, otherwise to the
+ * lowest level whose slots reach its deadline, and it moves down when the wheel turns onto its
+ * slot, until it fires from level 0 on its very tick.
+ * <p>
+ * Scheduling and cancelling are O(1): slots are doubly linked lists of the timers themselves,
+ * which are the caller's objects extending {@link Timer}, so a timer costs no allocation of its
+ * own. A tick looks at one slot of level 0 and, once per turn of a level, one slot of the
+ * level above. Moving a slot down takes as long as the slot has timers, so level 0 should
+ * span the usual timeout: timers due within a span of the tick they are scheduled on are never
+ * moved, wherever the span falls against the turns of the levels, and a tick only touches the
+ * ones it fires. Not thread safe.
+ */
+public class TimingWheel<T extends TimingWheel.Timer> {
+
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    // 4M slots, 16 MB of references
+    private static final int MAX_DIRECT_BITS = 22;
+    private static final byte LATE = Byte.MAX_VALUE;
+
+    // first timer of each slot, null if none; the levels above 0 as many as it takes to reach 2^63 ticks
+    private final Timer[][] wheels;
+    private final int directBits;
+    private final long directMask;
+    // deadlines that had passed when they were scheduled, fired by the next advance
+    private Timer late;
+    private long now;
+    private int size;
+
+    /**
+     * @param span ticks level 0 should cover, rounded up to a power of two, at most 2^22
+     */
+    public TimingWheel(long now, long span) {
+        if (span < 1) {
+            throw new IllegalArgumentException("span must be positive, got " + span);
+        }
+        this.now = now;
+        int bits = 64 - Long.numberOfLeadingZeros(span - 1);
+        directBits = Math.max(BITS, Math.min(MAX_DIRECT_BITS, bits));
+        directMask = (1L << directBits) - 1;
+        int levels = 1 + (63 - directBits + BITS - 1) / BITS;
+        wheels = new Timer[levels][];
+        wheels[0] = new Timer[1 << directBits];
+        for (int level = 1; level < levels; level++) {
+            wheels[level] = new Timer[SLOTS];
+        }
+    }
+
+    // the last tick advanced to
+    public long now() {
+        return now;
+    }
+
+    // timers scheduled and not yet fired or cancelled
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @throws IllegalStateException if the timer is scheduled already
+     */
+    public void schedule(T timer, long deadline) {
+        // the private fields of a Timer can't be reached through a T
+        Timer t = timer;
+        if (t.isScheduled()) {
+            throw new IllegalStateException("already scheduled");
+        }
+        t.deadline = deadline;
+        insert(t);
+        size++;
+    }
+
+    /**
+     * @return false if the timer has already fired or been cancelled
+     */
+    public boolean cancel(T timer) {
+        Timer t = timer;
+        if (!t.isScheduled()) {
+            return false;
+        }
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else if (t.level == LATE) {
+            late = t.next;
+        } else {
+            wheels[t.level][slot(t.level, t.deadline)] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.clear();
+        size--;
+        return true;
+    }
+
+    /**
+     * Turns the wheel tick by tick up to the given one, handing each timer whose deadline has
+     * come to {@code expired}, those of one tick in the order they were scheduled. It may
+     * schedule new timers but not cancel any.
+     */
+    public void advance(long tick, Consumer<? super T> expired) {
+        Timer passed = late;
+        late = null;
+        fireAll(passed, expired);
+        while (now < tick) {
+            if (size == 0) {
+                now = tick;
+                return;
+            }
+            long t = ++now;
+            if ((t & directMask) == 0) {
+                // level 0 turned over, and maybe the levels above it
+                for (int level = wheels.length - 1; level > 0; level--) {
+                    int shift = shift(level);
+                    if ((t & ((1L << shift) - 1)) == 0) {
+                        cascade(level, (int) (t >>> shift) & MASK, expired);
+                    }
+                }
+            }
+            int slot = (int) (t & directMask);
+            Timer due = wheels[0][slot];
+            wheels[0][slot] = null;
+            fireAll(due, expired);
+        }
+    }
+
+    private int shift(int level) {
+        return directBits + BITS * (level - 1);
+    }
+
+    private int slot(int level, long deadline) {
+        return level == 0 ? (int) (deadline & directMask) : (int) (deadline >>> shift(level)) & MASK;
+    }
+
+    private void insert(Timer timer) {
+        long deadline = timer.deadline;
+        if (deadline <= now) {
+            push(timer, LATE);
+            return;
+        }
+        if (deadline - now <= directMask) {
+            // level 0 is a ring of the span's ticks, its slot comes round on the very tick
+            push(timer, 0);
+            return;
+        }
+        // the wheel turns onto a slot of a level when the bits below it are all 0: the first level
+        // whose turn can't come round again before the deadline's slot does
+        int level = 1;
+        while (level < wheels.length - 1 && (deadline >>> shift(level)) - (now >>> shift(level)) >= SLOTS) {
+            level++;
+        }
+        push(timer, level);
+    }
+
+    private void push(Timer timer, int level) {
+        timer.level = (byte) level;
+        timer.prev = null;
+        if (level == LATE) {
+            timer.next = late;
+            late = timer;
+        } else {
+            Timer[] wheel = wheels[level];
+            int slot = slot(level, timer.deadline);
+            timer.next = wheel[slot];
+            wheel[slot] = timer;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+    }
+
+    // the wheel has turned onto the slot, its timers go down to the levels now closest to their deadlines
+    private void cascade(int level, int slot, Consumer<? super T> expired) {
+        Timer timer = inOrder(wheels[level][slot]);
+        wheels[level][slot] = null;
+        while (timer != null) {
+            Timer next = timer.next;
+            timer.clear();
+            if (timer.deadline <= now) {
+                size--;
+                expired.accept(cast(timer));
+            } else {
+                insert(timer);
+            }
+            timer = next;
+        }
+    }
+
+    private void fireAll(Timer first, Consumer<? super T> expired) {
+        Timer timer = inOrder(first);
+        while (timer != null) {
+            Timer next = timer.next;
+            timer.clear();
+            size--;
+            expired.accept(cast(timer));
+            timer = next;
+        }
+    }
+
+    // slots push at the front, this turns a detached slot around into the order of scheduling
+    private static Timer inOrder(Timer first) {
+        Timer reversed = null;
+        while (first != null) {
+            Timer next = first.next;
+            first.next = reversed;
+            reversed = first;
+            first = next;
+        }
+        return reversed;
+    }
+
+    // only timers scheduled as Ts are ever in the wheel
+    @SuppressWarnings("unchecked")
+    private T cast(Timer timer) {
+        return (T) timer;
+    }
+
+    public static class Timer {
+        private long deadline;
+        private Timer prev;
+        private Timer next;
+        // of the slot it is in, -1 while not scheduled
+        private byte level = -1;
+
+        // in ticks, of the last time it was scheduled
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public boolean isScheduled() {
+            return level >= 0;
+        }
+
+        private void clear() {
+            prev = null;
+            next = null;
+            level = -1;
+        }
+    }
+}
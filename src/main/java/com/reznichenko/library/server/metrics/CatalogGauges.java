@@ -0,0 +1,74 @@
+package com.reznichenko.library.server.metrics;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.service.DataBaseListener;
+import com.reznichenko.library.server.service.LibraryView;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Number of books, visitors and loans, counted from the changes instead of asking the store.
+ * Lent codes are remembered, because a return or a deletion doesn't say whether the book was
+ * lent.
+ */
+public class CatalogGauges implements DataBaseListener {
+
+    private final LongAdder books = new LongAdder();
+    private final LongAdder visitors = new LongAdder();
+    private final Set<String> lent = ConcurrentHashMap.newKeySet();
+
+    public CatalogGauges(MetricsRegistry registry) {
+        registry.gauge("library_books", "Books in the catalog", books::sum);
+        registry.gauge("library_visitors", "Registered visitors", visitors::sum);
+        registry.gauge("library_loans", "Books currently lent", () -> lent.size());
+    }
+
+    public void addAll(LibraryView view) {
+        books.add(view.bookCount());
+        visitors.add(view.visitorCount());
+        view.forEachVisitor((visitor, borrowed) -> addLoans(borrowed));
+    }
+
+    @Override
+    public void onBookAdded(Book book) {
+        books.increment();
+    }
+
+    @Override
+    public void onBookDeleted(String code) {
+        books.decrement();
+        lent.remove(code);
+    }
+
+    @Override
+    public void onCodeChanged(String oldCode, String newCode) {
+        if (lent.remove(oldCode)) {
+            lent.add(newCode);
+        }
+    }
+
+    @Override
+    public void onBookLent(long visitorId, String code) {
+        lent.add(code);
+    }
+
+    @Override
+    public void onBookReturned(String code) {
+        lent.remove(code);
+    }
+
+    @Override
+    public void onVisitorAdded(Visitor visitor) {
+        visitors.increment();
+    }
+
+    private void addLoans(List<Book> borrowed) {
+        for (Book book : borrowed) {
+            lent.add(book.getCode());
+        }
+    }
+}
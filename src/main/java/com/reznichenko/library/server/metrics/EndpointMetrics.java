@@ -0,0 +1,76 @@
+package com.reznichenko.library.server.metrics;
+
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latency and failed responses per controller method. The start time is kept in a per-thread
+ * slot rather than a request attribute, so that timing a request doesn't box a long; requests
+ * handed over to another thread (streamed responses) are timed until the handler returns.
+ */
+public class EndpointMetrics implements AsyncHandlerInterceptor {
+
+    private static final ThreadLocal<long[]> START = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final MetricsRegistry registry;
+    private final Map<Method, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    public EndpointMetrics(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        START.get()[0] = System.nanoTime();
+        return true;
+    }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        record(handler, response.getStatus());
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        // the second dispatch of a streamed response is already recorded when it was handed over,
+        // an error page is already recorded as a failure of the request that led to it
+        if (request.getDispatcherType() != DispatcherType.REQUEST) {
+            return;
+        }
+        record(handler, ex == null ? response.getStatus() : HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+
+    private void record(Object handler, int status) {
+        if (!(handler instanceof HandlerMethod)) {
+            return;
+        }
+        long elapsed = System.nanoTime() - START.get()[0];
+        Method method = ((HandlerMethod) handler).getMethod();
+        Endpoint endpoint = endpoints.get(method);
+        if (endpoint == null) {
+            endpoint = endpoints.computeIfAbsent(method, m -> new Endpoint(registry,
+                    MetricsRegistry.labels("endpoint", m.getDeclaringClass().getSimpleName() + "." + m.getName())));
+        }
+        endpoint.latency.record(elapsed);
+        if (status >= 400) {
+            endpoint.errors.increment();
+        }
+    }
+
+    private static final class Endpoint {
+        private final Histogram latency;
+        private final Counter errors;
+
+        private Endpoint(MetricsRegistry registry, String labels) {
+            latency = registry.histogram("library_http_request_seconds", "Latency of requests", labels);
+            errors = registry.counter("library_http_errors_total", "Responses with a 4xx or 5xx status", labels);
+        }
+    }
+}
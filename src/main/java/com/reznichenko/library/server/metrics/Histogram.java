@@ -0,0 +1,109 @@
+package com.reznichenko.library.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non-negative values (nanoseconds, as a rule) since the start. Every power of
+ * two is split into 2^subBits buckets, so a reported quantile is at most 1/2^subBits above the
+ * true one: 1/8 by default, finer for a load test that reports p99.9. {@link #record} only
+ * increments counters and never allocates.
+ */
+public class Histogram {
+
+    private static final int DEFAULT_SUB_BITS = 3;
+
+    private final int subBits;
+    private final int subBuckets;
+    private final int buckets;
+    private final AtomicLongArray counts;
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram() {
+        this(DEFAULT_SUB_BITS);
+    }
+
+    public Histogram(int subBits) {
+        if (subBits < 1 || subBits > 10) {
+            throw new IllegalArgumentException("subBits must be between 1 and 10");
+        }
+        this.subBits = subBits;
+        this.subBuckets = 1 << subBits;
+        this.buckets = (63 - subBits + 1) * subBuckets;
+        this.counts = new AtomicLongArray(buckets);
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < buckets; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @return the largest value of the bucket holding the quantile, 0 if nothing was recorded
+     */
+    public long quantile(double quantile) {
+        long[] snapshot = new long[buckets];
+        long count = 0;
+        for (int i = 0; i < buckets; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < buckets; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max());
+            }
+        }
+        return max();
+    }
+
+    // values below subBuckets get a bucket each, above that every power of two is split evenly
+    int bucket(long value) {
+        if (value < subBuckets) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - subBits)) & (subBuckets - 1);
+        return (exponent - subBits + 1) * subBuckets + sub;
+    }
+
+    long upperBound(int bucket) {
+        if (bucket < subBuckets) {
+            return bucket;
+        }
+        int exponent = bucket / subBuckets + subBits - 1;
+        long sub = bucket % subBuckets;
+        long lower = (subBuckets + sub) << (exponent - subBits);
+        return lower + (1L << (exponent - subBits)) - 1;
+    }
+}
@@ -0,0 +1,438 @@
+package com.reznichenko.library.server.metrics;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.service.BookPage;
+import com.reznichenko.library.server.service.Change;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.LibraryView;
+import com.reznichenko.library.server.service.Outcome;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Records the latency of every call to the delegate and counts the exceptions it throws by
+ * operation and type, and tells a {@link TimedLock} below which operation it is timing.
+ */
+public class InstrumentedDataBase implements DataBase, Closeable {
+
+    private final DataBase delegate;
+    private final MetricsRegistry registry;
+    private final Histogram[] latencies = new Histogram[Operation.values().length];
+    private final List<Map<Class<?>, Counter>> errors = new ArrayList<>();
+
+    public InstrumentedDataBase(DataBase delegate, MetricsRegistry registry) {
+        this.delegate = delegate;
+        this.registry = registry;
+        for (Operation operation : Operation.values()) {
+            latencies[operation.ordinal()] = registry.histogram("library_db_operation_seconds",
+                    "Latency of store operations", MetricsRegistry.labels("op", operation.label()));
+            errors.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    public DataBase getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public List<Book> getBorrowedBooks(long id) throws NoSuchVisitorException {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.GET_BORROWED_BOOKS);
+        try {
+            return delegate.getBorrowedBooks(id);
+        } catch (RuntimeException | NoSuchVisitorException e) {
+            failed(Operation.GET_BORROWED_BOOKS, e);
+            throw e;
+        } finally {
+            done(Operation.GET_BORROWED_BOOKS, previous, start);
+        }
+    }
+
+    @Override
+    public String getBookName(String code) throws NoSuchBookException {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.GET_BOOK_NAME);
+        try {
+            return delegate.getBookName(code);
+        } catch (RuntimeException | NoSuchBookException e) {
+            failed(Operation.GET_BOOK_NAME, e);
+            throw e;
+        } finally {
+            done(Operation.GET_BOOK_NAME, previous, start);
+        }
+    }
+
+    @Override
+    public String getBookAuthor(String code) throws NoSuchBookException {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.GET_BOOK_AUTHOR);
+        try {
+            return delegate.getBookAuthor(code);
+        } catch (RuntimeException | NoSuchBookException e) {
+            failed(Operation.GET_BOOK_AUTHOR, e);
+            throw e;
+        } finally {
+            done(Operation.GET_BOOK_AUTHOR, previous, start);
+        }
+    }
+
+    @Override
+    public long addVisitor(String name, String surname) {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.ADD_VISITOR);
+        try {
+            return delegate.addVisitor(name, surname);
+        } catch (RuntimeException e) {
+            failed(Operation.ADD_VISITOR, e);
+            throw e;
+        } finally {
+            done(Operation.ADD_VISITOR, previous, start);
+        }
+    }
+
+    @Override
+    public void restoreVisitor(Visitor visitor) {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.RESTORE_VISITOR);
+        try {
+            delegate.restoreVisitor(visitor);
+        } catch (RuntimeException e) {
+            failed(Operation.RESTORE_VISITOR, e);
+            throw e;
+        } finally {
+            done(Operation.RESTORE_VISITOR, previous, start);
+        }
+    }
+
+    @Override
+    public long[] addVisitors(List<String> names, List<String> surnames) {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.ADD_VISITORS);
+        try {
+            return delegate.addVisitors(names, surnames);
+        } catch (RuntimeException e) {
+            failed(Operation.ADD_VISITORS, e);
+            throw e;
+        } finally {
+            done(Operation.ADD_VISITORS, previous, start);
+        }
+    }
+
+    @Override
+    public void restoreVisitors(List<Visitor> visitors) {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.RESTORE_VISITORS);
+        try {
+            delegate.restoreVisitors(visitors);
+        } catch (RuntimeException e) {
+            failed(Operation.RESTORE_VISITORS, e);
+            throw e;
+        } finally {
+            done(Operation.RESTORE_VISITORS, previous, start);
+        }
+    }
+
+    @Override
+    public void addBook(Book book) throws BookAlreadyExistsException {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.ADD_BOOK);
+        try {
+            delegate.addBook(book);
+        } catch (RuntimeException | BookAlreadyExistsException e) {
+            failed(Operation.ADD_BOOK, e);
+            throw e;
+        } finally {
+            done(Operation.ADD_BOOK, previous, start);
+        }
+    }
+
+    // the books that fail are counted as errors of addBooks, not of the batch as a whole
+    @Override
+    public void addBooks(List<Book> books, BiConsumer<Integer, Exception> onFailure) {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.ADD_BOOKS);
+        try {
+            delegate.addBooks(books, (i, e) -> {
+                failed(Operation.ADD_BOOKS, e);
+                onFailure.accept(i, e);
+            });
+        } catch (RuntimeException e) {
+            failed(Operation.ADD_BOOKS, e);
+            throw e;
+        } finally {
+            done(Operation.ADD_BOOKS, previous, start);
+        }
+    }
+
+    @Override
+    public void deleteBook(String code) throws NoSuchBookException {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.DELETE_BOOK);
+        try {
+            delegate.deleteBook(code);
+        } catch (RuntimeException | NoSuchBookException e) {
+            failed(Operation.DELETE_BOOK, e);
+            throw e;
+        } finally {
+            done(Operation.DELETE_BOOK, previous, start);
+        }
+    }
+
+    @Override
+    public void changeCode(String oldCode, String newCode) throws NoSuchBookException, BookAlreadyExistsException {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.CHANGE_CODE);
+        try {
+            delegate.changeCode(oldCode, newCode);
+        } catch (RuntimeException | NoSuchBookException | BookAlreadyExistsException e) {
+            failed(Operation.CHANGE_CODE, e);
+            throw e;
+        } finally {
+            done(Operation.CHANGE_CODE, previous, start);
+        }
+    }
+
+    @Override
+    public void lendBook(long visitorId, String code) throws NoSuchBookException, BookAlreadyBorrowedException, NoSuchVisitorException {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.LEND_BOOK);
+        try {
+            delegate.lendBook(visitorId, code);
+        } catch (RuntimeException | NoSuchBookException | BookAlreadyBorrowedException | NoSuchVisitorException e) {
+            failed(Operation.LEND_BOOK, e);
+            throw e;
+        } finally {
+            done(Operation.LEND_BOOK, previous, start);
+        }
+    }
+
+    @Override
+    public void receiveReturnedBook(String code) throws NoSuchBookException {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.RECEIVE_RETURNED_BOOK);
+        try {
+            delegate.receiveReturnedBook(code);
+        } catch (RuntimeException | NoSuchBookException e) {
+            failed(Operation.RECEIVE_RETURNED_BOOK, e);
+            throw e;
+        } finally {
+            done(Operation.RECEIVE_RETURNED_BOOK, previous, start);
+        }
+    }
+
+    // only asked for while moving books between shards, not timed
+    @Override
+    public Outcome<Long> tryGetOwner(String code) {
+        return delegate.tryGetOwner(code);
+    }
+
+    // only asked for while a router starts or a shard joins, not timed
+    @Override
+    public List<Visitor> getVisitors() {
+        return delegate.getVisitors();
+    }
+
+    @Override
+    public LibraryView view() {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.VIEW);
+        try {
+            return delegate.view();
+        } catch (RuntimeException e) {
+            failed(Operation.VIEW, e);
+            throw e;
+        } finally {
+            done(Operation.VIEW, previous, start);
+        }
+    }
+
+    @Override
+    public Outcome<List<Book>> tryGetBorrowedBooks(long id) {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.GET_BORROWED_BOOKS);
+        try {
+            Outcome<List<Book>> outcome = delegate.tryGetBorrowedBooks(id);
+            if (!outcome.isOk()) {
+                failed(Operation.GET_BORROWED_BOOKS, outcome.getStatus().getException());
+            }
+            return outcome;
+        } finally {
+            done(Operation.GET_BORROWED_BOOKS, previous, start);
+        }
+    }
+
+    @Override
+    public Outcome<BookPage> tryGetBorrowedPage(long id, BookPage.Cursor after, int limit) {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.GET_BORROWED_PAGE);
+        try {
+            Outcome<BookPage> outcome = delegate.tryGetBorrowedPage(id, after, limit);
+            if (!outcome.isOk()) {
+                failed(Operation.GET_BORROWED_PAGE, outcome.getStatus().getException());
+            }
+            return outcome;
+        } finally {
+            done(Operation.GET_BORROWED_PAGE, previous, start);
+        }
+    }
+
+    @Override
+    public Outcome<String> tryGetBookName(String code) {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.GET_BOOK_NAME);
+        try {
+            Outcome<String> outcome = delegate.tryGetBookName(code);
+            if (!outcome.isOk()) {
+                failed(Operation.GET_BOOK_NAME, outcome.getStatus().getException());
+            }
+            return outcome;
+        } finally {
+            done(Operation.GET_BOOK_NAME, previous, start);
+        }
+    }
+
+    @Override
+    public Outcome<String> tryGetBookAuthor(String code) {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.GET_BOOK_AUTHOR);
+        try {
+            Outcome<String> outcome = delegate.tryGetBookAuthor(code);
+            if (!outcome.isOk()) {
+                failed(Operation.GET_BOOK_AUTHOR, outcome.getStatus().getException());
+            }
+            return outcome;
+        } finally {
+            done(Operation.GET_BOOK_AUTHOR, previous, start);
+        }
+    }
+
+    @Override
+    public Outcome<Void> tryAddBook(Book book) {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.ADD_BOOK);
+        try {
+            Outcome<Void> outcome = delegate.tryAddBook(book);
+            if (!outcome.isOk()) {
+                failed(Operation.ADD_BOOK, outcome.getStatus().getException());
+            }
+            return outcome;
+        } finally {
+            done(Operation.ADD_BOOK, previous, start);
+        }
+    }
+
+    @Override
+    public Outcome<Void> tryDeleteBook(String code) {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.DELETE_BOOK);
+        try {
+            Outcome<Void> outcome = delegate.tryDeleteBook(code);
+            if (!outcome.isOk()) {
+                failed(Operation.DELETE_BOOK, outcome.getStatus().getException());
+            }
+            return outcome;
+        } finally {
+            done(Operation.DELETE_BOOK, previous, start);
+        }
+    }
+
+    @Override
+    public Outcome<Void> tryChangeCode(String oldCode, String newCode) {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.CHANGE_CODE);
+        try {
+            Outcome<Void> outcome = delegate.tryChangeCode(oldCode, newCode);
+            if (!outcome.isOk()) {
+                failed(Operation.CHANGE_CODE, outcome.getStatus().getException());
+            }
+            return outcome;
+        } finally {
+            done(Operation.CHANGE_CODE, previous, start);
+        }
+    }
+
+    @Override
+    public Outcome<Void> tryLendBook(long visitorId, String code) {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.LEND_BOOK);
+        try {
+            Outcome<Void> outcome = delegate.tryLendBook(visitorId, code);
+            if (!outcome.isOk()) {
+                failed(Operation.LEND_BOOK, outcome.getStatus().getException());
+            }
+            return outcome;
+        } finally {
+            done(Operation.LEND_BOOK, previous, start);
+        }
+    }
+
+    @Override
+    public Outcome<Void> tryReceiveReturnedBook(String code) {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.RECEIVE_RETURNED_BOOK);
+        try {
+            Outcome<Void> outcome = delegate.tryReceiveReturnedBook(code);
+            if (!outcome.isOk()) {
+                failed(Operation.RECEIVE_RETURNED_BOOK, outcome.getStatus().getException());
+            }
+            return outcome;
+        } finally {
+            done(Operation.RECEIVE_RETURNED_BOOK, previous, start);
+        }
+    }
+
+    @Override
+    public Outcome<Void> tryTransaction(List<Change> changes) {
+        long start = System.nanoTime();
+        Operation previous = Operation.enter(Operation.TRANSACTION);
+        try {
+            Outcome<Void> outcome = delegate.tryTransaction(changes);
+            if (!outcome.isOk()) {
+                failed(Operation.TRANSACTION, outcome.getStatus().getException());
+            }
+            return outcome;
+        } finally {
+            done(Operation.TRANSACTION, previous, start);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (delegate instanceof Closeable) {
+            ((Closeable) delegate).close();
+        }
+    }
+
+    private void done(Operation operation, Operation previous, long start) {
+        latencies[operation.ordinal()].record(System.nanoTime() - start);
+        Operation.exit(previous);
+    }
+
+    private void failed(Operation operation, Exception e) {
+        failed(operation, e.getClass());
+    }
+
+    // only the first failure of a type allocates, for its counter; an Outcome is counted
+    // as the exception it stands for, so that both kinds of calls add up
+    private void failed(Operation operation, Class<?> type) {
+        Map<Class<?>, Counter> byType = errors.get(operation.ordinal());
+        Counter counter = byType.get(type);
+        if (counter == null) {
+            counter = byType.computeIfAbsent(type, t -> registry.counter("library_db_errors_total",
+                    "Failed store operations, by the exception thrown or stood for",
+                    MetricsRegistry.labels("op", operation.label(), "type", t.getSimpleName())));
+        }
+        counter.increment();
+    }
+}
@@ -0,0 +1,35 @@
+package com.reznichenko.library.server.metrics;
+
+import com.reznichenko.library.server.service.ListeningDataBase;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+@ConditionalOnProperty(value = "library.metrics.enabled", havingValue = "true", matchIfMissing = true)
+public class MetricsConfiguration implements WebMvcConfigurer {
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+
+    @Bean
+    public MetricsRegistry metricsRegistry() {
+        return registry;
+    }
+
+    // nothing writes before the application has started, so no change slips in between
+    @Bean
+    public CatalogGauges catalogGauges(ListeningDataBase db) {
+        CatalogGauges gauges = new CatalogGauges(registry);
+        gauges.addAll(db.view());
+        db.addListener(gauges);
+        return gauges;
+    }
+
+    // only called by the servlet stack, the reactive one has no per-endpoint metrics
+    @Override
+    public void addInterceptors(InterceptorRegistry interceptors) {
+        interceptors.addInterceptor(new EndpointMetrics(registry));
+    }
+}
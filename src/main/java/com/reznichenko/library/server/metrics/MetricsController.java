@@ -0,0 +1,41 @@
+package com.reznichenko.library.server.metrics;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.net.InetAddress;
+
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@ConditionalOnProperty(value = "library.metrics.enabled", havingValue = "true", matchIfMissing = true)
+public class MetricsController {
+
+    private static final MediaType PROMETHEUS = MediaType.parseMediaType("text/plain;version=0.0.4;charset=utf-8");
+
+    private final MetricsRegistry registry;
+    private final boolean localOnly;
+
+    public MetricsController(MetricsRegistry registry,
+                             @Value("${library.metrics.local-only:true}") boolean localOnly) {
+        this.registry = registry;
+        this.localOnly = localOnly;
+    }
+
+    @GetMapping("metrics")
+    public ResponseEntity<String> metrics(HttpServletRequest request) throws IOException {
+        if (localOnly && !InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress()) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+        StringBuilder out = new StringBuilder();
+        registry.writeTo(out);
+        return ResponseEntity.ok().contentType(PROMETHEUS).body(out.toString());
+    }
+}
@@ -0,0 +1,120 @@
+package com.reznichenko.library.server.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Named counters, histograms and gauges, written out in the Prometheus text format. A metric
+ * is looked up once, when its owner is created, and then updated through the reference; the
+ * registry itself is only touched on registration and when the metrics are written.
+ * <p>
+ * Labels are passed already formatted, see {@link #labels}. Histograms are written as
+ * summaries in seconds: a few quantiles, the count, the sum and the maximum since the start.
+ */
+public class MetricsRegistry {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    public Counter counter(String name, String help, String labels) {
+        return (Counter) family(name, help, "counter").metrics.computeIfAbsent(labels, l -> new Counter());
+    }
+
+    public Histogram histogram(String name, String help, String labels) {
+        return (Histogram) family(name, help, "summary").metrics.computeIfAbsent(labels, l -> new Histogram());
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        family(name, help, "gauge").metrics.put("", value);
+    }
+
+    /**
+     * @param pairs label names and values, one after another
+     * @return the labels in the form the other methods take them
+     */
+    public static String labels(String... pairs) {
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (i > 0) {
+                labels.append(',');
+            }
+            labels.append(pairs[i]).append("=\"");
+            String value = pairs[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    labels.append('\\').append(c);
+                } else if (c == '\n') {
+                    labels.append("\\n");
+                } else {
+                    labels.append(c);
+                }
+            }
+            labels.append('"');
+        }
+        return labels.toString();
+    }
+
+    public void writeTo(Appendable out) throws IOException {
+        for (Map.Entry<String, Family> entry : families.entrySet()) {
+            String name = entry.getKey();
+            Family family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> metric : new ConcurrentSkipListMap<>(family.metrics).entrySet()) {
+                String labels = metric.getKey();
+                Object value = metric.getValue();
+                if (value instanceof Counter) {
+                    line(out, name, labels, Long.toString(((Counter) value).get()));
+                } else if (value instanceof LongSupplier) {
+                    line(out, name, labels, Long.toString(((LongSupplier) value).getAsLong()));
+                } else {
+                    Histogram histogram = (Histogram) value;
+                    String separator = labels.isEmpty() ? "" : ",";
+                    for (double quantile : QUANTILES) {
+                        line(out, name, labels + separator + "quantile=\"" + quantile + "\"",
+                                seconds(histogram.quantile(quantile)));
+                    }
+                    line(out, name + "_max", labels, seconds(histogram.max()));
+                    line(out, name + "_sum", labels, seconds(histogram.sum()));
+                    line(out, name + "_count", labels, Long.toString(histogram.count()));
+                }
+            }
+        }
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already a " + family.type);
+        }
+        return family;
+    }
+
+    private static void line(Appendable out, String name, String labels, String value) throws IOException {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static final class Family {
+        private final String help;
+        private final String type;
+        private final Map<String, Object> metrics = new ConcurrentHashMap<>();
+
+        private Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
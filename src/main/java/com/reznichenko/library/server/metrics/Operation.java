@@ -0,0 +1,56 @@
+package com.reznichenko.library.server.metrics;
+
+/**
+ * {@link com.reznichenko.library.server.service.DataBase} methods, as metric labels. The one
+ * the current thread is in is set by {@link InstrumentedDataBase}, so that a {@link TimedLock}
+ * deeper down knows whom to charge the waiting to.
+ */
+public enum Operation {
+    GET_BORROWED_BOOKS("getBorrowedBooks"),
+    GET_BORROWED_PAGE("getBorrowedPage"),
+    GET_BOOK_NAME("getBookName"),
+    GET_BOOK_AUTHOR("getBookAuthor"),
+    ADD_VISITOR("addVisitor"),
+    ADD_VISITORS("addVisitors"),
+    RESTORE_VISITOR("restoreVisitor"),
+    RESTORE_VISITORS("restoreVisitors"),
+    ADD_BOOK("addBook"),
+    ADD_BOOKS("addBooks"),
+    DELETE_BOOK("deleteBook"),
+    CHANGE_CODE("changeCode"),
+    LEND_BOOK("lendBook"),
+    RECEIVE_RETURNED_BOOK("receiveReturnedBook"),
+    TRANSACTION("transaction"),
+    VIEW("view"),
+    // not called through an InstrumentedDataBase, e.g. checkpoints
+    OTHER("other");
+
+    private static final ThreadLocal<Operation> CURRENT = ThreadLocal.withInitial(() -> OTHER);
+
+    private final String label;
+
+    Operation(String label) {
+        this.label = label;
+    }
+
+    public String label() {
+        return label;
+    }
+
+    public static Operation current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return the operation to give back to {@link #exit} when this one is over
+     */
+    static Operation enter(Operation operation) {
+        Operation previous = CURRENT.get();
+        CURRENT.set(operation);
+        return previous;
+    }
+
+    static void exit(Operation previous) {
+        CURRENT.set(previous);
+    }
+}
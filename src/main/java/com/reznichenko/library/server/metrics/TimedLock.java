@@ -0,0 +1,88 @@
+package com.reznichenko.library.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link ReentrantLock} that records, for the {@link Operation} of the calling thread, how long
+ * the lock was waited for and how long it was then held. A reentrant acquisition counts
+ * neither. Time spent waiting on a {@link Condition} is counted as held.
+ */
+public class TimedLock implements Lock {
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Histogram[] waits = new Histogram[OPERATIONS.length];
+    private final Histogram[] holds = new Histogram[OPERATIONS.length];
+    // written and read only by the holder
+    private long acquiredAt;
+    private Operation holder;
+
+    public TimedLock(MetricsRegistry registry) {
+        for (Operation operation : OPERATIONS) {
+            String labels = MetricsRegistry.labels("op", operation.label());
+            waits[operation.ordinal()] = registry.histogram("library_db_lock_wait_seconds",
+                    "Time spent waiting for the store lock", labels);
+            holds[operation.ordinal()] = registry.histogram("library_db_lock_hold_seconds",
+                    "Time the store lock was held", labels);
+        }
+    }
+
+    @Override
+    public void lock() {
+        long start = System.nanoTime();
+        lock.lock();
+        acquired(start);
+    }
+
+    @Override
+    public void lockInterruptibly() throws InterruptedException {
+        long start = System.nanoTime();
+        lock.lockInterruptibly();
+        acquired(start);
+    }
+
+    @Override
+    public boolean tryLock() {
+        long start = System.nanoTime();
+        if (!lock.tryLock()) {
+            return false;
+        }
+        acquired(start);
+        return true;
+    }
+
+    @Override
+    public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+        long start = System.nanoTime();
+        if (!lock.tryLock(time, unit)) {
+            return false;
+        }
+        acquired(start);
+        return true;
+    }
+
+    @Override
+    public void unlock() {
+        if (lock.getHoldCount() == 1) {
+            holds[holder.ordinal()].record(System.nanoTime() - acquiredAt);
+        }
+        lock.unlock();
+    }
+
+    @Override
+    public Condition newCondition() {
+        return lock.newCondition();
+    }
+
+    private void acquired(long start) {
+        if (lock.getHoldCount() == 1) {
+            acquiredAt = System.nanoTime();
+            holder = Operation.current();
+            waits[holder.ordinal()].record(acquiredAt - start);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.reznichenko.library.server.offheap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Arena of direct byte buffers addressed by {@code long}s: the high bits pick a chunk, the
+ * low ones an offset inside it. Freed blocks are kept in per-size free lists threaded through
+ * the blocks themselves, so nothing about them lives on the heap. Address 0 is never handed out.
+ */
+final class Memory {
+
+    private static final int ALIGNMENT = 8;
+    private static final int SIZE_CLASSES = 256;
+
+    private final int chunkBits;
+    private final int chunkSize;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    // heads of free lists by size / ALIGNMENT, larger blocks are not reused
+    private final long[] freeLists = new long[SIZE_CLASSES];
+    private int used;
+    private long allocatedBytes;
+
+    Memory(int chunkSize) {
+        if (Integer.bitCount(chunkSize) != 1 || chunkSize < 1024) {
+            throw new IllegalArgumentException("chunk size must be a power of two, at least 1024: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        this.chunkBits = Integer.numberOfTrailingZeros(chunkSize);
+        chunks.add(ByteBuffer.allocateDirect(chunkSize));
+        used = ALIGNMENT;
+    }
+
+    private Memory(Memory other) {
+        chunkSize = other.chunkSize;
+        chunkBits = other.chunkBits;
+        for (ByteBuffer chunk : other.chunks) {
+            ByteBuffer copy = ByteBuffer.allocateDirect(chunkSize);
+            copy.put(chunk.duplicate().clear());
+            chunks.add(copy);
+        }
+        System.arraycopy(other.freeLists, 0, freeLists, 0, SIZE_CLASSES);
+        used = other.used;
+        allocatedBytes = other.allocatedBytes;
+    }
+
+    static int align(int size) {
+        return (size + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    long allocate(int size) {
+        size = align(size);
+        if (size > chunkSize) {
+            throw new IllegalArgumentException("record of " + size + " bytes doesn't fit into a chunk of " + chunkSize);
+        }
+        allocatedBytes += size;
+        int sizeClass = size / ALIGNMENT;
+        if (sizeClass < SIZE_CLASSES && freeLists[sizeClass] != 0) {
+            long address = freeLists[sizeClass];
+            freeLists[sizeClass] = getLong(address);
+            return address;
+        }
+        if (used + size > chunkSize) {
+            chunks.add(ByteBuffer.allocateDirect(chunkSize));
+            used = 0;
+        }
+        long address = ((long) (chunks.size() - 1) << chunkBits) | used;
+        used += size;
+        return address;
+    }
+
+    void free(long address, int size) {
+        size = align(size);
+        allocatedBytes -= size;
+        int sizeClass = size / ALIGNMENT;
+        if (sizeClass < SIZE_CLASSES) {
+            putLong(address, freeLists[sizeClass]);
+            freeLists[sizeClass] = address;
+        }
+    }
+
+    /**
+     * Deep copy of the whole arena, the same addresses stay valid in it.
+     */
+    Memory copy() {
+        return new Memory(this);
+    }
+
+    long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    private ByteBuffer chunk(long address) {
+        return chunks.get((int) (address >>> chunkBits));
+    }
+
+    private int offset(long address) {
+        return (int) address & (chunkSize - 1);
+    }
+
+    int getInt(long address) {
+        return chunk(address).getInt(offset(address));
+    }
+
+    long getLong(long address) {
+        return chunk(address).getLong(offset(address));
+    }
+
+    void putInt(long address, int value) {
+        chunk(address).putInt(offset(address), value);
+    }
+
+    void putLong(long address, long value) {
+        chunk(address).putLong(offset(address), value);
+    }
+
+    void putBytes(long address, byte[] bytes) {
+        ByteBuffer chunk = chunk(address);
+        int offset = offset(address);
+        for (int i = 0; i < bytes.length; i++) {
+            chunk.put(offset + i, bytes[i]);
+        }
+    }
+
+    byte[] getBytes(long address, int length) {
+        ByteBuffer chunk = chunk(address);
+        int offset = offset(address);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = chunk.get(offset + i);
+        }
+        return bytes;
+    }
+
+    boolean bytesEqual(long address, byte[] bytes) {
+        ByteBuffer chunk = chunk(address);
+        int offset = offset(address);
+        for (int i = 0; i < bytes.length; i++) {
+            if (chunk.get(offset + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    void copy(long from, long to, int length) {
+        for (int i = 0; i < length; i++) {
+            chunk(to).put(offset(to + i), chunk(from).get(offset(from + i)));
+        }
+    }
+}
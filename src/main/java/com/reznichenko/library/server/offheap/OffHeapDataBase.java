@@ -0,0 +1,687 @@
+package com.reznichenko.library.server.offheap;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.id.BlockIdAllocator;
+import com.reznichenko.library.server.id.IdAllocator;
+import com.reznichenko.library.server.service.BookPage;
+import com.reznichenko.library.server.service.Change;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.LibraryView;
+import com.reznichenko.library.server.service.Outcome;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Keeps books, visitors and loans outside of the Java heap, so that the heap (and GC pauses)
+ * doesn't grow with the catalog. Everything lives in a {@link Memory} arena: books are found
+ * through an open-addressing table of record addresses keyed by the code, visitors through
+ * one keyed by the id, and the books a visitor holds are chained into a list through the book
+ * records. {@link Book} and {@link Visitor} objects are only created for the caller.
+ * <p>
+ * Reads share a read lock, writes take the write lock. Books are copied on the way in, so
+ * {@link #changeCode} doesn't touch the caller's instance.
+ */
+public class OffHeapDataBase implements DataBase {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 24;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Catalog catalog;
+    private final IdAllocator ids;
+
+    public OffHeapDataBase() {
+        this(DEFAULT_CHUNK_SIZE, new BlockIdAllocator());
+    }
+
+    public OffHeapDataBase(int chunkSize, IdAllocator ids) {
+        this.catalog = new Catalog(new Memory(chunkSize));
+        this.ids = ids;
+    }
+
+    @Override
+    public List<Book> getBorrowedBooks(long id) throws NoSuchVisitorException {
+        lock.readLock().lock();
+        try {
+            return Collections.unmodifiableList(catalog.getBorrowedBooks(catalog.getVisitorSafely(id)));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String getBookName(String code) throws NoSuchBookException {
+        lock.readLock().lock();
+        try {
+            return catalog.getName(catalog.getBookSafely(code));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String getBookAuthor(String code) throws NoSuchBookException {
+        lock.readLock().lock();
+        try {
+            return catalog.getAuthor(catalog.getBookSafely(code));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long addVisitor(String name, String surname) {
+        lock.writeLock().lock();
+        try {
+            long id;
+            do {
+                id = ids.nextId();
+            } while (catalog.findVisitor(id) != 0);
+            catalog.putVisitor(id, name, surname);
+            return id;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void restoreVisitor(Visitor visitor) {
+        ids.observe(visitor.getId());
+        lock.writeLock().lock();
+        try {
+            catalog.putVisitor(visitor.getId(), visitor.getName(), visitor.getSurname());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void addBook(Book book) throws BookAlreadyExistsException {
+        byte[] code = bytes(book.getCode());
+        lock.writeLock().lock();
+        try {
+            if (catalog.findBook(code) != 0) {
+                throw new BookAlreadyExistsException("book with code: " + book.getCode() + " already exists");
+            }
+            catalog.insertBook(code, bytes(book.getAuthor()), bytes(book.getName()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void addBooks(List<Book> books, BiConsumer<Integer, Exception> onFailure) {
+        lock.writeLock().lock();
+        try {
+            DataBase.super.addBooks(books, onFailure);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public long[] addVisitors(List<String> names, List<String> surnames) {
+        lock.writeLock().lock();
+        try {
+            return DataBase.super.addVisitors(names, surnames);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void restoreVisitors(List<Visitor> visitors) {
+        lock.writeLock().lock();
+        try {
+            DataBase.super.restoreVisitors(visitors);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteBook(String code) throws NoSuchBookException {
+        lock.writeLock().lock();
+        try {
+            long book = catalog.getBookSafely(code);
+            catalog.unlend(book);
+            catalog.removeBook(book);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void changeCode(String oldCode, String newCode) throws NoSuchBookException, BookAlreadyExistsException {
+        byte[] code = bytes(newCode);
+        lock.writeLock().lock();
+        try {
+            if (catalog.findBook(code) != 0) {
+                throw new BookAlreadyExistsException("couldn't change code to " + newCode + ", book with this code already exists");
+            }
+            catalog.recode(catalog.getBookSafely(oldCode), code);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void lendBook(long visitorId, String code) throws NoSuchBookException, BookAlreadyBorrowedException, NoSuchVisitorException {
+        lock.writeLock().lock();
+        try {
+            long book = catalog.getBookSafely(code);
+            long owner = catalog.getOwner(book);
+            if (owner >= 0) {
+                throw new BookAlreadyBorrowedException("book with code " + code + " is already borrowed by id " + owner);
+            }
+            catalog.lend(catalog.getVisitorSafely(visitorId), book);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void receiveReturnedBook(String code) throws NoSuchBookException {
+        lock.writeLock().lock();
+        try {
+            catalog.unlend(catalog.getBookSafely(code));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // under the write lock the changes can be undone without failing, so a failed transaction leaves no trace
+    @Override
+    public Outcome<Void> tryTransaction(List<Change> changes) {
+        lock.writeLock().lock();
+        try {
+            return Change.applyInOrder(this, changes);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Outcome<BookPage> tryGetBorrowedPage(long id, BookPage.Cursor after, int limit) {
+        lock.readLock().lock();
+        try {
+            return Outcome.ok(catalog.getBorrowedPage(catalog.getVisitorSafely(id), after, limit));
+        } catch (NoSuchVisitorException e) {
+            return Outcome.of(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Outcome<Long> tryGetOwner(String code) {
+        lock.readLock().lock();
+        try {
+            return Outcome.ok(catalog.getOwner(catalog.getBookSafely(code)));
+        } catch (NoSuchBookException e) {
+            return Outcome.of(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return copy of the arena, made with a few bulk copies under the read lock and read off-heap later
+     */
+    @Override
+    public LibraryView view() {
+        lock.readLock().lock();
+        try {
+            return catalog.copy();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes of the arena taken by live records
+     */
+    public long usedMemory() {
+        lock.readLock().lock();
+        try {
+            return catalog.memory.allocatedBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static byte[] bytes(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The records and both indexes. Not thread safe, {@link OffHeapDataBase} locks around it.
+     */
+    private static final class Catalog implements LibraryView {
+
+        // book record: size, hash of the code, owner id (-1 if none), previous and next book of the
+        // owner, number of the lending, lengths of code, author and name, then their UTF-8 bytes
+        private static final int BOOK_SIZE = 0;
+        private static final int BOOK_HASH = 4;
+        private static final int BOOK_OWNER = 8;
+        private static final int BOOK_PREV = 16;
+        private static final int BOOK_NEXT = 24;
+        private static final int BOOK_LENT = 32;
+        private static final int BOOK_CODE_LENGTH = 40;
+        private static final int BOOK_AUTHOR_LENGTH = 44;
+        private static final int BOOK_NAME_LENGTH = 48;
+        private static final int BOOK_DATA = 52;
+
+        // visitor record: size, number of borrowed books, id, first and last borrowed book,
+        // lengths of name and surname, then their UTF-8 bytes
+        private static final int VISITOR_SIZE = 0;
+        private static final int VISITOR_LOANS = 4;
+        private static final int VISITOR_ID = 8;
+        private static final int VISITOR_FIRST = 16;
+        private static final int VISITOR_LAST = 24;
+        private static final int VISITOR_NAME_LENGTH = 32;
+        private static final int VISITOR_SURNAME_LENGTH = 36;
+        private static final int VISITOR_DATA = 40;
+
+        // book slot of a deleted book, a probe has to go on past it
+        private static final long TOMBSTONE = -1;
+        private static final int MIN_CAPACITY = 16;
+        private static final int MAX_CAPACITY = 1 << 27;
+
+        private final Memory memory;
+        // addresses of book records
+        private ByteBuffer books;
+        private int bookCount;
+        private int bookSlotsUsed;
+        // pairs of visitor id and record address
+        private ByteBuffer visitors;
+        private int visitorCount;
+        // lendings so far, numbering each visitor's books in the order they were lent
+        private long lendings;
+
+        private Catalog(Memory memory) {
+            this.memory = memory;
+            books = ByteBuffer.allocateDirect(MIN_CAPACITY * Long.BYTES);
+            visitors = ByteBuffer.allocateDirect(MIN_CAPACITY * 2 * Long.BYTES);
+        }
+
+        private Catalog(Catalog other) {
+            memory = other.memory.copy();
+            books = copy(other.books);
+            bookCount = other.bookCount;
+            bookSlotsUsed = other.bookSlotsUsed;
+            visitors = copy(other.visitors);
+            visitorCount = other.visitorCount;
+            lendings = other.lendings;
+        }
+
+        private Catalog copy() {
+            return new Catalog(this);
+        }
+
+        private static ByteBuffer copy(ByteBuffer buffer) {
+            ByteBuffer copy = ByteBuffer.allocateDirect(buffer.capacity());
+            copy.put(buffer.duplicate().clear());
+            return copy;
+        }
+
+        // books
+
+        private long getBookSafely(String code) throws NoSuchBookException {
+            long book = findBook(bytes(code));
+            if (book == 0) {
+                throw new NoSuchBookException("no book found with code: " + code);
+            }
+            return book;
+        }
+
+        private long findBook(byte[] code) {
+            int hash = hash(code);
+            int mask = bookCapacity() - 1;
+            for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+                long book = books.getLong(slot * Long.BYTES);
+                if (book == 0) {
+                    return 0;
+                }
+                if (book != TOMBSTONE && memory.getInt(book + BOOK_HASH) == hash
+                        && memory.getInt(book + BOOK_CODE_LENGTH) == code.length
+                        && memory.bytesEqual(book + BOOK_DATA, code)) {
+                    return book;
+                }
+            }
+        }
+
+        private long insertBook(byte[] code, byte[] author, byte[] name) {
+            int size = BOOK_DATA + code.length + author.length + name.length;
+            long book = memory.allocate(size);
+            memory.putInt(book + BOOK_SIZE, size);
+            memory.putInt(book + BOOK_HASH, hash(code));
+            memory.putLong(book + BOOK_OWNER, -1);
+            memory.putLong(book + BOOK_PREV, 0);
+            memory.putLong(book + BOOK_NEXT, 0);
+            memory.putInt(book + BOOK_CODE_LENGTH, code.length);
+            memory.putInt(book + BOOK_AUTHOR_LENGTH, author.length);
+            memory.putInt(book + BOOK_NAME_LENGTH, name.length);
+            memory.putBytes(book + BOOK_DATA, code);
+            memory.putBytes(book + BOOK_DATA + code.length, author);
+            memory.putBytes(book + BOOK_DATA + code.length + author.length, name);
+            index(book);
+            return book;
+        }
+
+        private void index(long book) {
+            if ((bookSlotsUsed + 1) * 4L > bookCapacity() * 3L) {
+                rehashBooks();
+            }
+            int mask = bookCapacity() - 1;
+            int slot = spread(memory.getInt(book + BOOK_HASH)) & mask;
+            while (true) {
+                long current = books.getLong(slot * Long.BYTES);
+                if (current == 0 || current == TOMBSTONE) {
+                    if (current == 0) {
+                        bookSlotsUsed++;
+                    }
+                    books.putLong(slot * Long.BYTES, book);
+                    bookCount++;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private void removeBook(long book) {
+            int mask = bookCapacity() - 1;
+            int slot = spread(memory.getInt(book + BOOK_HASH)) & mask;
+            while (books.getLong(slot * Long.BYTES) != book) {
+                slot = (slot + 1) & mask;
+            }
+            books.putLong(slot * Long.BYTES, TOMBSTONE);
+            bookCount--;
+            memory.free(book, memory.getInt(book + BOOK_SIZE));
+        }
+
+        // drops the tombstones and keeps the table at most half full
+        private void rehashBooks() {
+            int capacity = MIN_CAPACITY;
+            while (capacity < (bookCount + 1) * 2L) {
+                capacity <<= 1;
+            }
+            if (capacity > MAX_CAPACITY) {
+                throw new IllegalStateException("too many books: " + bookCount);
+            }
+            ByteBuffer old = books;
+            books = ByteBuffer.allocateDirect(capacity * Long.BYTES);
+            bookCount = 0;
+            bookSlotsUsed = 0;
+            for (int i = 0; i < old.capacity(); i += Long.BYTES) {
+                long book = old.getLong(i);
+                if (book != 0 && book != TOMBSTONE) {
+                    int mask = capacity - 1;
+                    int slot = spread(memory.getInt(book + BOOK_HASH)) & mask;
+                    while (books.getLong(slot * Long.BYTES) != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    books.putLong(slot * Long.BYTES, book);
+                    bookCount++;
+                    bookSlotsUsed++;
+                }
+            }
+        }
+
+        // moves the book into a record with the new code, keeping its place in the owner's list
+        private void recode(long book, byte[] code) {
+            int codeLength = memory.getInt(book + BOOK_CODE_LENGTH);
+            int rest = memory.getInt(book + BOOK_AUTHOR_LENGTH) + memory.getInt(book + BOOK_NAME_LENGTH);
+            int size = BOOK_DATA + code.length + rest;
+            long moved = memory.allocate(size);
+            memory.putInt(moved + BOOK_SIZE, size);
+            memory.putInt(moved + BOOK_HASH, hash(code));
+            memory.copy(book + BOOK_OWNER, moved + BOOK_OWNER, BOOK_CODE_LENGTH - BOOK_OWNER);
+            memory.putInt(moved + BOOK_CODE_LENGTH, code.length);
+            memory.copy(book + BOOK_AUTHOR_LENGTH, moved + BOOK_AUTHOR_LENGTH, BOOK_DATA - BOOK_AUTHOR_LENGTH);
+            memory.putBytes(moved + BOOK_DATA, code);
+            memory.copy(book + BOOK_DATA + codeLength, moved + BOOK_DATA + code.length, rest);
+            long owner = getOwner(book);
+            if (owner >= 0) {
+                long visitor = findVisitor(owner);
+                long prev = memory.getLong(book + BOOK_PREV);
+                long next = memory.getLong(book + BOOK_NEXT);
+                memory.putLong(prev == 0 ? visitor + VISITOR_FIRST : prev + BOOK_NEXT, moved);
+                memory.putLong(next == 0 ? visitor + VISITOR_LAST : next + BOOK_PREV, moved);
+            }
+            removeBook(book);
+            index(moved);
+        }
+
+        private long getOwner(long book) {
+            return memory.getLong(book + BOOK_OWNER);
+        }
+
+        private String getAuthor(long book) {
+            int offset = BOOK_DATA + memory.getInt(book + BOOK_CODE_LENGTH);
+            return string(memory.getBytes(book + offset, memory.getInt(book + BOOK_AUTHOR_LENGTH)));
+        }
+
+        private String getName(long book) {
+            int offset = BOOK_DATA + memory.getInt(book + BOOK_CODE_LENGTH) + memory.getInt(book + BOOK_AUTHOR_LENGTH);
+            return string(memory.getBytes(book + offset, memory.getInt(book + BOOK_NAME_LENGTH)));
+        }
+
+        private Book toBook(long book) {
+            String code = string(memory.getBytes(book + BOOK_DATA, memory.getInt(book + BOOK_CODE_LENGTH)));
+            return new Book(code, getAuthor(book), getName(book));
+        }
+
+        private int bookCapacity() {
+            return books.capacity() / Long.BYTES;
+        }
+
+        // loans
+
+        private void lend(long visitor, long book) {
+            long last = memory.getLong(visitor + VISITOR_LAST);
+            memory.putLong(book + BOOK_OWNER, memory.getLong(visitor + VISITOR_ID));
+            memory.putLong(book + BOOK_PREV, last);
+            memory.putLong(book + BOOK_NEXT, 0);
+            memory.putLong(book + BOOK_LENT, ++lendings);
+            memory.putLong(last == 0 ? visitor + VISITOR_FIRST : last + BOOK_NEXT, book);
+            memory.putLong(visitor + VISITOR_LAST, book);
+            memory.putInt(visitor + VISITOR_LOANS, memory.getInt(visitor + VISITOR_LOANS) + 1);
+        }
+
+        private void unlend(long book) {
+            long owner = getOwner(book);
+            if (owner < 0) {
+                return;
+            }
+            long visitor = findVisitor(owner);
+            long prev = memory.getLong(book + BOOK_PREV);
+            long next = memory.getLong(book + BOOK_NEXT);
+            memory.putLong(prev == 0 ? visitor + VISITOR_FIRST : prev + BOOK_NEXT, next);
+            memory.putLong(next == 0 ? visitor + VISITOR_LAST : next + BOOK_PREV, prev);
+            memory.putInt(visitor + VISITOR_LOANS, memory.getInt(visitor + VISITOR_LOANS) - 1);
+            memory.putLong(book + BOOK_OWNER, -1);
+            memory.putLong(book + BOOK_PREV, 0);
+            memory.putLong(book + BOOK_NEXT, 0);
+        }
+
+        private List<Book> getBorrowedBooks(long visitor) {
+            List<Book> result = new ArrayList<>(memory.getInt(visitor + VISITOR_LOANS));
+            for (long book = memory.getLong(visitor + VISITOR_FIRST); book != 0; book = memory.getLong(book + BOOK_NEXT)) {
+                result.add(toBook(book));
+            }
+            return result;
+        }
+
+        // positions are the numbers of the lendings: a cursor whose book the visitor still has resumes
+        // right after it, found by its code, one whose book was returned meanwhile after the books lent before it
+        private BookPage getBorrowedPage(long visitor, BookPage.Cursor after, int limit) {
+            long book = memory.getLong(visitor + VISITOR_FIRST);
+            if (after != null) {
+                long last = findBook(bytes(after.getCode()));
+                if (last != 0 && getOwner(last) == memory.getLong(visitor + VISITOR_ID)
+                        && memory.getLong(last + BOOK_LENT) == after.getPosition()) {
+                    book = memory.getLong(last + BOOK_NEXT);
+                } else {
+                    while (book != 0 && memory.getLong(book + BOOK_LENT) <= after.getPosition()) {
+                        book = memory.getLong(book + BOOK_NEXT);
+                    }
+                }
+            }
+            List<Book> page = new ArrayList<>(Math.min(limit, memory.getInt(visitor + VISITOR_LOANS)));
+            long position = 0;
+            for (; page.size() < limit && book != 0; book = memory.getLong(book + BOOK_NEXT)) {
+                page.add(toBook(book));
+                position = memory.getLong(book + BOOK_LENT);
+            }
+            return new BookPage(page, book == 0 ? null : new BookPage.Cursor(position, page.get(page.size() - 1).getCode()));
+        }
+
+        // visitors
+
+        private long getVisitorSafely(long id) throws NoSuchVisitorException {
+            long visitor = id < 0 ? 0 : findVisitor(id);
+            if (visitor == 0) {
+                throw new NoSuchVisitorException("no visitor found with id: " + id);
+            }
+            return visitor;
+        }
+
+        private long findVisitor(long id) {
+            int slot = visitorSlot(id);
+            long visitor = visitors.getLong(slot + Long.BYTES);
+            return visitor != 0 && visitors.getLong(slot) == id ? visitor : 0;
+        }
+
+        // slot offset holding the id, or the empty one where it would go
+        private int visitorSlot(long id) {
+            int mask = visitorCapacity() - 1;
+            for (int slot = spread(Long.hashCode(id)) & mask; ; slot = (slot + 1) & mask) {
+                int offset = slot * 2 * Long.BYTES;
+                if (visitors.getLong(offset + Long.BYTES) == 0 || visitors.getLong(offset) == id) {
+                    return offset;
+                }
+            }
+        }
+
+        // adds the visitor or replaces its name, keeping the books it holds
+        private void putVisitor(long id, String name, String surname) {
+            byte[] nameBytes = bytes(name);
+            byte[] surnameBytes = bytes(surname);
+            int size = VISITOR_DATA + nameBytes.length + surnameBytes.length;
+            long visitor = memory.allocate(size);
+            memory.putInt(visitor + VISITOR_SIZE, size);
+            memory.putLong(visitor + VISITOR_ID, id);
+            memory.putInt(visitor + VISITOR_NAME_LENGTH, nameBytes.length);
+            memory.putInt(visitor + VISITOR_SURNAME_LENGTH, surnameBytes.length);
+            memory.putBytes(visitor + VISITOR_DATA, nameBytes);
+            memory.putBytes(visitor + VISITOR_DATA + nameBytes.length, surnameBytes);
+            long old = findVisitor(id);
+            if (old != 0) {
+                memory.copy(old + VISITOR_LOANS, visitor + VISITOR_LOANS, Integer.BYTES);
+                memory.copy(old + VISITOR_FIRST, visitor + VISITOR_FIRST, 2 * Long.BYTES);
+                memory.free(old, memory.getInt(old + VISITOR_SIZE));
+            } else {
+                memory.putInt(visitor + VISITOR_LOANS, 0);
+                memory.putLong(visitor + VISITOR_FIRST, 0);
+                memory.putLong(visitor + VISITOR_LAST, 0);
+                if ((visitorCount + 1) * 2L > visitorCapacity()) {
+                    rehashVisitors();
+                }
+                visitorCount++;
+            }
+            int slot = visitorSlot(id);
+            visitors.putLong(slot, id);
+            visitors.putLong(slot + Long.BYTES, visitor);
+        }
+
+        private void rehashVisitors() {
+            if (visitorCapacity() > MAX_CAPACITY / 2) {
+                throw new IllegalStateException("too many visitors: " + visitorCount);
+            }
+            ByteBuffer old = visitors;
+            visitors = ByteBuffer.allocateDirect(old.capacity() * 2);
+            for (int i = 0; i < old.capacity(); i += 2 * Long.BYTES) {
+                long visitor = old.getLong(i + Long.BYTES);
+                if (visitor != 0) {
+                    int slot = visitorSlot(old.getLong(i));
+                    visitors.putLong(slot, old.getLong(i));
+                    visitors.putLong(slot + Long.BYTES, visitor);
+                }
+            }
+        }
+
+        private Visitor toVisitor(long visitor) {
+            int nameLength = memory.getInt(visitor + VISITOR_NAME_LENGTH);
+            String name = string(memory.getBytes(visitor + VISITOR_DATA, nameLength));
+            String surname = string(memory.getBytes(visitor + VISITOR_DATA + nameLength,
+                    memory.getInt(visitor + VISITOR_SURNAME_LENGTH)));
+            return new Visitor(memory.getLong(visitor + VISITOR_ID), name, surname);
+        }
+
+        private int visitorCapacity() {
+            return visitors.capacity() / (2 * Long.BYTES);
+        }
+
+        // view
+
+        @Override
+        public int bookCount() {
+            return bookCount;
+        }
+
+        @Override
+        public int visitorCount() {
+            return visitorCount;
+        }
+
+        @Override
+        public void forEachBook(Consumer<Book> action) {
+            for (int i = 0; i < books.capacity(); i += Long.BYTES) {
+                long book = books.getLong(i);
+                if (book != 0 && book != TOMBSTONE) {
+                    action.accept(toBook(book));
+                }
+            }
+        }
+
+        @Override
+        public void forEachVisitor(BiConsumer<Visitor, List<Book>> action) {
+            for (int i = 0; i < visitors.capacity(); i += 2 * Long.BYTES) {
+                long visitor = visitors.getLong(i + Long.BYTES);
+                if (visitor != 0) {
+                    action.accept(toVisitor(visitor), getBorrowedBooks(visitor));
+                }
+            }
+        }
+
+        private static int hash(byte[] code) {
+            int hash = 1;
+            for (byte b : code) {
+                hash = 31 * hash + b;
+            }
+            return hash;
+        }
+
+        private static int spread(int hash) {
+            hash *= 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
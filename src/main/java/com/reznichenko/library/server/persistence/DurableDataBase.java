@@ -0,0 +1,562 @@
+package com.reznichenko.library.server.persistence;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.exception.StoreFailedException;
+import com.reznichenko.library.server.exception.TransactionUndoException;
+import com.reznichenko.library.server.service.BookPage;
+import com.reznichenko.library.server.service.Change;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.LibraryView;
+import com.reznichenko.library.server.service.Outcome;
+import com.reznichenko.library.server.service.SnapshotDataBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Writes every successful mutation of the delegate to a {@link WriteAheadLog}. Applying a
+ * mutation and appending its record happen under one lock, so the log order is the order
+ * in which the delegate saw them; waiting for the disk happens outside of it, which lets
+ * concurrent writers share an fsync. Reads go straight to the delegate.
+ * <p>
+ * With a {@link SnapshotStore} the state is also checkpointed: a snapshot is written in the
+ * background, after which the log segments it covers are dropped, and the startup only has to
+ * load the snapshot and replay the log tail. The snapshot isn't copied from the delegate, which
+ * would hold writers off for as long as the copy takes with most stores: it is put together from
+ * the previous snapshot and the log after it in a {@link SnapshotDataBase} of its own, so that
+ * writers only wait while the LSN it goes up to is read.
+ * <p>
+ * A transaction the delegate couldn't undo leaves it with changes the log doesn't have, and so
+ * does a change the log couldn't take or get to the disk after the delegate applied it: from then
+ * on every change fails with {@link StoreFailedException}, and a restart recovers the state of
+ * the log.
+ * <p>
+ * A lend is logged with its time, which is kept by code, along with renewals, in {@link LendTimes}
+ * and in the snapshots, so that the due dates of the loans outlast a restart.
+ */
+public class DurableDataBase implements DataBase, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DurableDataBase.class);
+
+    private final DataBase delegate;
+    private final WriteAheadLog log;
+    private final SnapshotStore snapshots;
+    private final RecoveryStats recoveryStats;
+    private final Lock writeLock = new ReentrantLock();
+    // guarded by writeLock, follows the records as they are appended
+    private final LendTimes lendTimes;
+    // what lends are logged with, in epoch milliseconds
+    private final LongSupplier clock;
+    // set once the delegate may hold a change the log doesn't, after which no change is taken
+    private volatile RuntimeException failure;
+    private final Object checkpointLock = new Object();
+    private ScheduledExecutorService checkpointer;
+    private volatile long checkpointLsn;
+
+    private DurableDataBase(DataBase delegate, WriteAheadLog log, SnapshotStore snapshots, RecoveryStats recoveryStats,
+                            LendTimes lendTimes, LongSupplier clock) {
+        this.delegate = delegate;
+        this.log = log;
+        this.snapshots = snapshots;
+        this.recoveryStats = recoveryStats;
+        this.lendTimes = lendTimes;
+        this.clock = clock;
+        this.checkpointLsn = recoveryStats.getSnapshotLsn();
+    }
+
+    /**
+     * Replays the log into the (empty) delegate and returns a database that keeps logging to it.
+     */
+    public static DurableDataBase recover(DataBase delegate, WriteAheadLog log) throws IOException {
+        return recover(delegate, log, null);
+    }
+
+    /**
+     * Loads the latest snapshot into the (empty) delegate, replays the log records written after it
+     * and returns a database that keeps logging.
+     */
+    public static DurableDataBase recover(DataBase delegate, WriteAheadLog log, SnapshotStore snapshots) throws IOException {
+        return recover(delegate, log, snapshots, System::currentTimeMillis);
+    }
+
+    /**
+     * The same, logging lends with the time of the clock given.
+     */
+    public static DurableDataBase recover(DataBase delegate, WriteAheadLog log, SnapshotStore snapshots,
+                                          LongSupplier clock) throws IOException {
+        long start = System.nanoTime();
+        LendTimes lendTimes = new LendTimes();
+        RecoveryStats stats = snapshots == null ? new RecoveryStats(0, 0, 0, 0) : snapshots.loadLatest(delegate, lendTimes);
+        long[] replayed = new long[1];
+        log.recover(stats.getSnapshotLsn(), (lsn, record) -> {
+            apply(delegate, lsn, record);
+            record.applyTo(lendTimes);
+            replayed[0]++;
+        });
+        stats.finish(replayed[0], TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        LOG.info("recovered the library: {}", stats);
+        return new DurableDataBase(delegate, log, snapshots, stats, lendTimes, clock);
+    }
+
+    static void apply(DataBase db, long lsn, LogRecord record) throws IOException {
+        try {
+            record.applyTo(db);
+        } catch (NoSuchBookException | BookAlreadyExistsException | BookAlreadyBorrowedException | NoSuchVisitorException e) {
+            throw new IOException("log record " + lsn + " (" + record + ") doesn't apply: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public List<Book> getBorrowedBooks(long id) throws NoSuchVisitorException {
+        return delegate.getBorrowedBooks(id);
+    }
+
+    @Override
+    public String getBookName(String code) throws NoSuchBookException {
+        return delegate.getBookName(code);
+    }
+
+    @Override
+    public String getBookAuthor(String code) throws NoSuchBookException {
+        return delegate.getBookAuthor(code);
+    }
+
+    @Override
+    public long addVisitor(String name, String surname) {
+        long id;
+        long lsn;
+        writeLock.lock();
+        try {
+            checkWritable();
+            id = delegate.addVisitor(name, surname);
+            lsn = append(LogRecord.addVisitor(new Visitor(id, name, surname)));
+        } finally {
+            writeLock.unlock();
+        }
+        sync(lsn);
+        return id;
+    }
+
+    @Override
+    public void restoreVisitor(Visitor visitor) {
+        long lsn;
+        writeLock.lock();
+        try {
+            checkWritable();
+            delegate.restoreVisitor(visitor);
+            lsn = append(LogRecord.addVisitor(visitor));
+        } finally {
+            writeLock.unlock();
+        }
+        sync(lsn);
+    }
+
+    @Override
+    public void addBook(Book book) throws BookAlreadyExistsException {
+        long lsn;
+        writeLock.lock();
+        try {
+            checkWritable();
+            delegate.addBook(book);
+            lsn = append(LogRecord.addBook(book));
+        } finally {
+            writeLock.unlock();
+        }
+        sync(lsn);
+    }
+
+    // the whole batch is applied and logged under one lock and waits for a single fsync
+    @Override
+    public void addBooks(List<Book> books, BiConsumer<Integer, Exception> onFailure) {
+        boolean[] failed = new boolean[books.size()];
+        long lsn;
+        writeLock.lock();
+        try {
+            checkWritable();
+            delegate.addBooks(books, (i, e) -> {
+                failed[i] = true;
+                onFailure.accept(i, e);
+            });
+            lsn = log.getLastLsn();
+            for (int i = 0; i < books.size(); i++) {
+                if (!failed[i]) {
+                    lsn = append(LogRecord.addBook(books.get(i)));
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        sync(lsn);
+    }
+
+    // like addBooks, one lock and a single fsync for the batch
+    @Override
+    public long[] addVisitors(List<String> names, List<String> surnames) {
+        long[] ids;
+        long lsn;
+        writeLock.lock();
+        try {
+            checkWritable();
+            ids = delegate.addVisitors(names, surnames);
+            lsn = log.getLastLsn();
+            for (int i = 0; i < ids.length; i++) {
+                lsn = append(LogRecord.addVisitor(new Visitor(ids[i], names.get(i), surnames.get(i))));
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        sync(lsn);
+        return ids;
+    }
+
+    @Override
+    public void restoreVisitors(List<Visitor> visitors) {
+        long lsn;
+        writeLock.lock();
+        try {
+            checkWritable();
+            delegate.restoreVisitors(visitors);
+            lsn = log.getLastLsn();
+            for (Visitor visitor : visitors) {
+                lsn = append(LogRecord.addVisitor(visitor));
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        sync(lsn);
+    }
+
+    @Override
+    public void deleteBook(String code) throws NoSuchBookException {
+        long lsn;
+        writeLock.lock();
+        try {
+            checkWritable();
+            delegate.deleteBook(code);
+            lsn = append(LogRecord.deleteBook(code));
+        } finally {
+            writeLock.unlock();
+        }
+        sync(lsn);
+    }
+
+    @Override
+    public void changeCode(String oldCode, String newCode) throws NoSuchBookException, BookAlreadyExistsException {
+        long lsn;
+        writeLock.lock();
+        try {
+            checkWritable();
+            delegate.changeCode(oldCode, newCode);
+            lsn = append(LogRecord.changeCode(oldCode, newCode));
+        } finally {
+            writeLock.unlock();
+        }
+        sync(lsn);
+    }
+
+    @Override
+    public void lendBook(long visitorId, String code) throws NoSuchBookException, BookAlreadyBorrowedException, NoSuchVisitorException {
+        long lsn;
+        writeLock.lock();
+        try {
+            checkWritable();
+            delegate.lendBook(visitorId, code);
+            lsn = append(LogRecord.lendBook(visitorId, code, clock.getAsLong()));
+        } finally {
+            writeLock.unlock();
+        }
+        sync(lsn);
+    }
+
+    @Override
+    public void receiveReturnedBook(String code) throws NoSuchBookException {
+        long lsn;
+        writeLock.lock();
+        try {
+            checkWritable();
+            delegate.receiveReturnedBook(code);
+            lsn = append(LogRecord.receiveBook(code));
+        } finally {
+            writeLock.unlock();
+        }
+        sync(lsn);
+    }
+
+    @Override
+    public Outcome<List<Book>> tryGetBorrowedBooks(long id) {
+        return delegate.tryGetBorrowedBooks(id);
+    }
+
+    @Override
+    public Outcome<BookPage> tryGetBorrowedPage(long id, BookPage.Cursor after, int limit) {
+        return delegate.tryGetBorrowedPage(id, after, limit);
+    }
+
+    @Override
+    public Outcome<String> tryGetBookName(String code) {
+        return delegate.tryGetBookName(code);
+    }
+
+    @Override
+    public Outcome<String> tryGetBookAuthor(String code) {
+        return delegate.tryGetBookAuthor(code);
+    }
+
+    @Override
+    public Outcome<Void> tryAddBook(Book book) {
+        return logIfDone(() -> delegate.tryAddBook(book), LogRecord.addBook(book));
+    }
+
+    @Override
+    public Outcome<Void> tryDeleteBook(String code) {
+        return logIfDone(() -> delegate.tryDeleteBook(code), LogRecord.deleteBook(code));
+    }
+
+    @Override
+    public Outcome<Void> tryChangeCode(String oldCode, String newCode) {
+        return logIfDone(() -> delegate.tryChangeCode(oldCode, newCode), LogRecord.changeCode(oldCode, newCode));
+    }
+
+    @Override
+    public Outcome<Void> tryLendBook(long visitorId, String code) {
+        return logIfDone(() -> delegate.tryLendBook(visitorId, code), LogRecord.lendBook(visitorId, code, clock.getAsLong()));
+    }
+
+    @Override
+    public Outcome<Void> tryReceiveReturnedBook(String code) {
+        return logIfDone(() -> delegate.tryReceiveReturnedBook(code), LogRecord.receiveBook(code));
+    }
+
+    // one record for the whole transaction, so that a crash can't leave half of it in the log
+    @Override
+    public Outcome<Void> tryTransaction(List<Change> changes) {
+        return logIfDone(() -> delegate.tryTransaction(changes), LogRecord.transaction(changes, clock.getAsLong()));
+    }
+
+    /**
+     * Logs that the loan of the book to the visitor starts over at the given time.
+     *
+     * @return false, logging nothing, if the visitor doesn't have the book
+     */
+    public boolean renewBook(long visitorId, String code, long time) {
+        long lsn;
+        writeLock.lock();
+        try {
+            checkWritable();
+            Outcome<Long> owner = delegate.tryGetOwner(code);
+            if (!owner.isOk() || owner.getValue() != visitorId) {
+                return false;
+            }
+            lsn = append(LogRecord.renewBook(visitorId, code, time));
+        } finally {
+            writeLock.unlock();
+        }
+        sync(lsn);
+        return true;
+    }
+
+    // when each book out was lent or last renewed, epoch milliseconds by code
+    public Map<String, Long> getLendTimes() {
+        writeLock.lock();
+        try {
+            return lendTimes.toMap();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public List<Visitor> getVisitors() {
+        return delegate.getVisitors();
+    }
+
+    @Override
+    public Outcome<Long> tryGetOwner(String code) {
+        return delegate.tryGetOwner(code);
+    }
+
+    @Override
+    public LibraryView view() {
+        return delegate.view();
+    }
+
+    /**
+     * Writes a snapshot of the current state and drops the log segments and snapshots it makes
+     * unnecessary. Writers aren't held off.
+     */
+    public void checkpoint() throws IOException {
+        if (snapshots == null) {
+            throw new IllegalStateException("no snapshot directory configured");
+        }
+        synchronized (checkpointLock) {
+            long start = System.nanoTime();
+            long lsn = log.getLastLsn();
+            LendTimes times = new LendTimes();
+            snapshots.write(replayUpTo(lsn, times), times, lsn);
+            log.deleteSegmentsUpTo(lsn);
+            snapshots.deleteOlderThan(lsn);
+            checkpointLsn = lsn;
+            LOG.info("wrote snapshot at lsn {} in {} ms", lsn, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Writes the current state to the stream in the {@link SnapshotStore} format, e.g. to start a
+     * replica. Writers aren't held off.
+     *
+     * @return the LSN of the last record the snapshot includes
+     */
+    public long writeSnapshot(OutputStream out) throws IOException {
+        LibraryView view;
+        LendTimes times = new LendTimes();
+        long lsn;
+        synchronized (checkpointLock) {
+            lsn = log.getLastLsn();
+            view = replayUpTo(lsn, times);
+        }
+        SnapshotStore.writeTo(view, times, lsn, out);
+        return lsn;
+    }
+
+    /**
+     * Checks every {@code intervalMillis} whether at least {@code minRecords} were logged since
+     * the last snapshot and writes a new one if so.
+     */
+    public synchronized void scheduleCheckpoints(long intervalMillis, long minRecords) {
+        if (checkpointer != null) {
+            throw new IllegalStateException("checkpoints are already scheduled");
+        }
+        checkpointer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(() -> {
+            if (log.getLastLsn() - checkpointLsn < minRecords) {
+                return;
+            }
+            try {
+                checkpoint();
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("couldn't write a snapshot", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public WriteAheadLog getLog() {
+        return log;
+    }
+
+    public RecoveryStats getRecoveryStats() {
+        return recoveryStats;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (checkpointer != null) {
+                checkpointer.shutdown();
+            }
+        }
+        synchronized (checkpointLock) {
+            log.close();
+        }
+    }
+
+    // the state as of the lsn, from the latest snapshot and the log after it, and the lend times into the
+    // empty ones given; under checkpointLock, so that neither is deleted meanwhile. Flushing first also
+    // keeps a snapshot from getting ahead of the log, which would reuse its lsns after a crash
+    private LibraryView replayUpTo(long lsn, LendTimes times) throws IOException {
+        log.flush();
+        DataBase state = new SnapshotDataBase();
+        long from = snapshots == null ? 0 : snapshots.loadLatest(state, times).getSnapshotLsn();
+        log.read(from, lsn, (recordLsn, record) -> {
+            apply(state, recordLsn, record);
+            record.applyTo(times);
+        });
+        return state.view();
+    }
+
+    // a failed change leaves nothing to log
+    private Outcome<Void> logIfDone(Supplier<Outcome<Void>> change, LogRecord record) {
+        long lsn;
+        writeLock.lock();
+        try {
+            checkWritable();
+            Outcome<Void> outcome;
+            try {
+                outcome = change.get();
+            } catch (TransactionUndoException e) {
+                // what is left of it is neither in the log nor known
+                fail(e);
+                throw e;
+            }
+            if (!outcome.isOk()) {
+                return outcome;
+            }
+            lsn = append(record);
+        } finally {
+            writeLock.unlock();
+        }
+        sync(lsn);
+        return Outcome.done();
+    }
+
+    // under writeLock
+    private void checkWritable() {
+        if (failure != null) {
+            throw new StoreFailedException(failure);
+        }
+    }
+
+    private void fail(RuntimeException e) {
+        LOG.error("the store takes no more changes, restart it to recover from the log", e);
+        failure = e;
+    }
+
+    // under writeLock, after the delegate applied the change
+    private long append(LogRecord record) {
+        long lsn;
+        try {
+            lsn = log.append(record);
+        } catch (IOException e) {
+            throw failed(e);
+        }
+        record.applyTo(lendTimes);
+        return lsn;
+    }
+
+    private void sync(long lsn) {
+        try {
+            log.sync(lsn);
+        } catch (IOException e) {
+            throw failed(e);
+        }
+    }
+
+    // the delegate holds a change the log may not have on disk
+    private UncheckedIOException failed(IOException e) {
+        UncheckedIOException failure = new UncheckedIOException(e);
+        fail(failure);
+        return failure;
+    }
+}
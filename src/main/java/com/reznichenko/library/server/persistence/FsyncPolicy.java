@@ -0,0 +1,8 @@
+package com.reznichenko.library.server.persistence;
+
+public enum FsyncPolicy {
+    // a mutation is acknowledged only after its record is on disk, concurrent writers share one fsync
+    COMMIT,
+    // records are flushed by a background thread every few milliseconds, a crash may lose the last ones
+    INTERVAL
+}
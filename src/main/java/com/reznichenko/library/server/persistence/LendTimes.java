@@ -0,0 +1,47 @@
+package com.reznichenko.library.server.persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * When each book out was lent or last renewed, in epoch milliseconds, by code: what the log and
+ * the snapshots keep for the due dates of the loans, which the library itself doesn't know.
+ * Follows the log records in their order, see {@link LogRecord#applyTo(LendTimes)}. Not thread safe.
+ */
+public class LendTimes {
+
+    private final Map<String, Long> times = new HashMap<>();
+
+    // null if the book isn't lent or was lent before lends were logged with their time
+    public Long get(String code) {
+        return times.get(code);
+    }
+
+    public int size() {
+        return times.size();
+    }
+
+    public Map<String, Long> toMap() {
+        return new HashMap<>(times);
+    }
+
+    void put(String code, long time) {
+        times.put(code, time);
+    }
+
+    // the loan tracker logs renewals outside of its lock, so two of one loan may be logged out of order: the later wins
+    void renew(String code, long time) {
+        times.merge(code, time, Math::max);
+    }
+
+    void remove(String code) {
+        times.remove(code);
+    }
+
+    void move(String oldCode, String newCode) {
+        Long time = times.remove(oldCode);
+        if (time != null) {
+            times.put(newCode, time);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.reznichenko.library.server.persistence;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.service.Change;
+import com.reznichenko.library.server.service.DataBase;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One successful mutation of a {@link DataBase}, in the form it is written to the log. A
+ * transaction is one record holding the records of its changes, so that it is recovered (and
+ * replicated) whole or not at all.
+ * <p>
+ * A lend also carries its time, which the library itself doesn't keep but the due dates of the
+ * loans are counted from; a renewal is a record of its own that only moves that time.
+ */
+public final class LogRecord {
+
+    public enum Type {
+        ADD_BOOK, ADD_VISITOR, LEND_BOOK, RECEIVE_BOOK, CHANGE_CODE, DELETE_BOOK, TRANSACTION, RENEW_BOOK
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    private final Type type;
+    private final long visitorId;
+    private final String[] strings;
+    // the changes of a TRANSACTION, as records of their own
+    private final LogRecord[] parts;
+
+    private LogRecord(Type type, long visitorId, String... strings) {
+        this(type, visitorId, strings, new LogRecord[0]);
+    }
+
+    private LogRecord(Type type, long visitorId, String[] strings, LogRecord[] parts) {
+        this.type = type;
+        this.visitorId = visitorId;
+        this.strings = strings;
+        this.parts = parts;
+    }
+
+    public static LogRecord addBook(Book book) {
+        return new LogRecord(Type.ADD_BOOK, -1, book.getCode(), book.getAuthor(), book.getName());
+    }
+
+    public static LogRecord addVisitor(Visitor visitor) {
+        return new LogRecord(Type.ADD_VISITOR, visitor.getId(), visitor.getName(), visitor.getSurname());
+    }
+
+    // the time goes as a second string, so that the records written before it was logged still decode
+    public static LogRecord lendBook(long visitorId, String code, long time) {
+        return new LogRecord(Type.LEND_BOOK, visitorId, code, Long.toString(time));
+    }
+
+    public static LogRecord renewBook(long visitorId, String code, long time) {
+        return new LogRecord(Type.RENEW_BOOK, visitorId, code, Long.toString(time));
+    }
+
+    public static LogRecord receiveBook(String code) {
+        return new LogRecord(Type.RECEIVE_BOOK, -1, code);
+    }
+
+    public static LogRecord changeCode(String oldCode, String newCode) {
+        return new LogRecord(Type.CHANGE_CODE, -1, oldCode, newCode);
+    }
+
+    public static LogRecord deleteBook(String code) {
+        return new LogRecord(Type.DELETE_BOOK, -1, code);
+    }
+
+    // the books the transaction lends are all lent at the time given
+    public static LogRecord transaction(List<Change> changes, long time) {
+        LogRecord[] parts = new LogRecord[changes.size()];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = of(changes.get(i), time);
+        }
+        return new LogRecord(Type.TRANSACTION, -1, new String[0], parts);
+    }
+
+    private static LogRecord of(Change change, long time) {
+        switch (change.getType()) {
+            case ADD_BOOK:
+                return addBook(change.getBook());
+            case DELETE_BOOK:
+                return deleteBook(change.getCode());
+            case CHANGE_CODE:
+                return changeCode(change.getCode(), change.getNewCode());
+            case LEND_BOOK:
+                return lendBook(change.getVisitorId(), change.getCode(), time);
+            case RECEIVE_BOOK:
+                return receiveBook(change.getCode());
+            default:
+                throw new IllegalArgumentException("unknown change " + change);
+        }
+    }
+
+    private Change toChange() {
+        switch (type) {
+            case ADD_BOOK:
+                return Change.addBook(new Book(strings[0], strings[1], strings[2]));
+            case DELETE_BOOK:
+                return Change.deleteBook(strings[0]);
+            case CHANGE_CODE:
+                return Change.changeCode(strings[0], strings[1]);
+            case LEND_BOOK:
+                return Change.lendBook(visitorId, strings[0]);
+            case RECEIVE_BOOK:
+                return Change.receiveBook(strings[0]);
+            default:
+                throw new IllegalStateException(type + " can't be a part of a transaction");
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public void applyTo(DataBase db) throws NoSuchBookException, BookAlreadyExistsException,
+            BookAlreadyBorrowedException, NoSuchVisitorException {
+        switch (type) {
+            case ADD_BOOK:
+                db.addBook(new Book(strings[0], strings[1], strings[2]));
+                break;
+            case ADD_VISITOR:
+                db.restoreVisitor(new Visitor(visitorId, strings[0], strings[1]));
+                break;
+            case LEND_BOOK:
+                db.lendBook(visitorId, strings[0]);
+                break;
+            case RECEIVE_BOOK:
+                db.receiveReturnedBook(strings[0]);
+                break;
+            case CHANGE_CODE:
+                db.changeCode(strings[0], strings[1]);
+                break;
+            case DELETE_BOOK:
+                db.deleteBook(strings[0]);
+                break;
+            case RENEW_BOOK:
+                // nothing the library keeps
+                break;
+            case TRANSACTION: {
+                List<Change> changes = new ArrayList<>(parts.length);
+                for (LogRecord part : parts) {
+                    changes.add(part.toChange());
+                }
+                db.tryTransaction(changes).throwIfNoSuchBook().throwIfAlreadyExists()
+                        .throwIfAlreadyBorrowed().throwIfNoSuchVisitor();
+                break;
+            }
+            default:
+                throw new IllegalStateException("unknown record type " + type);
+        }
+    }
+
+    /**
+     * Keeps the lend times up to date with this record; a lend logged before lends carried
+     * their time leaves the book without one.
+     */
+    void applyTo(LendTimes times) {
+        switch (type) {
+            case LEND_BOOK:
+                if (strings.length > 1) {
+                    times.put(strings[0], Long.parseLong(strings[1]));
+                } else {
+                    times.remove(strings[0]);
+                }
+                break;
+            case RENEW_BOOK:
+                times.renew(strings[0], Long.parseLong(strings[1]));
+                break;
+            case RECEIVE_BOOK:
+            case DELETE_BOOK:
+                times.remove(strings[0]);
+                break;
+            case CHANGE_CODE:
+                times.move(strings[0], strings[1]);
+                break;
+            case TRANSACTION:
+                for (LogRecord part : parts) {
+                    part.applyTo(times);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    // an upper bound: strings are counted at 3 bytes per char
+    public int encodedSize() {
+        int size = 1 + 8 + 1;
+        for (String string : strings) {
+            size += 4 + 3 * string.length();
+        }
+        if (type == Type.TRANSACTION) {
+            size += 4;
+            for (LogRecord part : parts) {
+                size += part.encodedSize();
+            }
+        }
+        return size;
+    }
+
+    public void encode(ByteBuffer buffer) {
+        buffer.put((byte) type.ordinal());
+        buffer.putLong(visitorId);
+        buffer.put((byte) strings.length);
+        for (String string : strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+        if (type == Type.TRANSACTION) {
+            buffer.putInt(parts.length);
+            for (LogRecord part : parts) {
+                part.encode(buffer);
+            }
+        }
+    }
+
+    public static LogRecord decode(ByteBuffer buffer) {
+        Type type = TYPES[buffer.get()];
+        long visitorId = buffer.getLong();
+        String[] strings = new String[buffer.get()];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        LogRecord[] parts = new LogRecord[type == Type.TRANSACTION ? buffer.getInt() : 0];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = decode(buffer);
+        }
+        return new LogRecord(type, visitorId, strings, parts);
+    }
+
+    @Override
+    public String toString() {
+        if (type == Type.TRANSACTION) {
+            return type + " " + Arrays.toString(parts);
+        }
+        return type + " " + visitorId + " " + String.join(" ", strings);
+    }
+}
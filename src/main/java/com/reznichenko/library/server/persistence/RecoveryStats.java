@@ -0,0 +1,47 @@
+package com.reznichenko.library.server.persistence;
+
+/**
+ * What a startup recovery has loaded: the snapshot part of it, and the log tail once it is replayed.
+ */
+public class RecoveryStats {
+    private final long snapshotLsn;
+    private final long books;
+    private final long visitors;
+    private final long loans;
+    private long logRecords;
+    private long millis;
+
+    RecoveryStats(long snapshotLsn, long books, long visitors, long loans) {
+        this.snapshotLsn = snapshotLsn;
+        this.books = books;
+        this.visitors = visitors;
+        this.loans = loans;
+    }
+
+    public long getSnapshotLsn() {
+        return snapshotLsn;
+    }
+
+    public long getSnapshotRecords() {
+        return books + visitors + loans;
+    }
+
+    public long getLogRecords() {
+        return logRecords;
+    }
+
+    public long getMillis() {
+        return millis;
+    }
+
+    void finish(long logRecords, long millis) {
+        this.logRecords = logRecords;
+        this.millis = millis;
+    }
+
+    @Override
+    public String toString() {
+        return "loaded " + books + " books, " + visitors + " visitors and " + loans + " loans from snapshot " +
+                snapshotLsn + ", replayed " + logRecords + " log records, took " + millis + " ms";
+    }
+}
@@ -0,0 +1,286 @@
+package com.reznichenko.library.server.persistence;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.LibraryView;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Directory of compact binary snapshots, each named after the LSN of the last log record it includes.
+ * <p>
+ * Layout: {@code magic, format, lsn, books (code, author, name)..., visitors (id, name, surname,
+ * borrowed books (code, lend time or -1))..., crc32c of everything before it}. Format 1, without
+ * the lend times, is still read.
+ */
+public class SnapshotStore {
+
+    private static final int MAGIC = 0x4C494253;
+    private static final int FORMAT = 2;
+    private static final int FORMAT_WITHOUT_LEND_TIMES = 1;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".bin";
+
+    /**
+     * Gets what a snapshot read by {@link #read(InputStream, Handler)} holds, in its order: every
+     * book, then every visitor with the codes of its borrowed books in the order they were lent.
+     */
+    public interface Handler {
+
+        void onBook(Book book);
+
+        void onVisitor(Visitor visitor, List<String> codes);
+    }
+
+    private final Path directory;
+
+    public SnapshotStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public Path write(LibraryView view, LendTimes times, long lsn) throws IOException {
+        Files.createDirectories(directory);
+        Path target = directory.resolve(String.format("%s%020d%s", PREFIX, lsn, SUFFIX));
+        Path temporary = directory.resolve(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            BufferedOutputStream buffered = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+            writeTo(view, times, lsn, buffered);
+            channel.force(true);
+        }
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // before the log segments it covers are deleted
+        WriteAheadLog.forceDirectory(directory);
+        return target;
+    }
+
+    /**
+     * Writes the snapshot format, checksum included, to any stream, e.g. to a replica. Flushes
+     * the stream but doesn't close it.
+     *
+     * @param times when the borrowed books were lent, null if that isn't known
+     */
+    public static void writeTo(LibraryView view, LendTimes times, long lsn, OutputStream stream) throws IOException {
+        CheckedOutputStream checked = new CheckedOutputStream(stream, new CRC32C());
+        DataOutputStream out = new DataOutputStream(checked);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.writeLong(lsn);
+        out.writeInt(view.bookCount());
+        IOException[] failure = new IOException[1];
+        view.forEachBook(book -> {
+            try {
+                writeString(out, book.getCode());
+                writeString(out, book.getAuthor());
+                writeString(out, book.getName());
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        out.writeInt(view.visitorCount());
+        view.forEachVisitor((visitor, books) -> {
+            try {
+                out.writeLong(visitor.getId());
+                writeString(out, visitor.getName());
+                writeString(out, visitor.getSurname());
+                out.writeInt(books.size());
+                for (Book book : books) {
+                    writeString(out, book.getCode());
+                    Long time = times == null ? null : times.get(book.getCode());
+                    out.writeLong(time == null ? -1 : time);
+                }
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        out.flush();
+        new DataOutputStream(stream).writeInt((int) checked.getChecksum().getValue());
+        stream.flush();
+    }
+
+    /**
+     * Reads a snapshot written by {@link #writeTo} from the stream as it arrives, without holding
+     * it in memory. The checksum comes last, so the handler has seen everything by the time a
+     * truncated or corrupt snapshot fails with an {@link IOException}.
+     */
+    public static RecoveryStats read(InputStream stream, Handler handler) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(stream, 1 << 16);
+        CheckedInputStream checked = new CheckedInputStream(buffered, new CRC32C());
+        DataInputStream in = new DataInputStream(checked);
+        int format = in.readInt() == MAGIC ? in.readInt() : -1;
+        if (format != FORMAT && format != FORMAT_WITHOUT_LEND_TIMES) {
+            throw new IOException("unknown snapshot format");
+        }
+        long lsn = in.readLong();
+        int bookCount = in.readInt();
+        for (int i = 0; i < bookCount; i++) {
+            handler.onBook(new Book(readString(in), readString(in), readString(in)));
+        }
+        int visitorCount = in.readInt();
+        long loanCount = 0;
+        for (int i = 0; i < visitorCount; i++) {
+            Visitor visitor = new Visitor(in.readLong(), readString(in), readString(in));
+            int borrowed = in.readInt();
+            List<String> codes = new ArrayList<>(borrowed);
+            for (int j = 0; j < borrowed; j++) {
+                codes.add(readString(in));
+                if (format == FORMAT) {
+                    in.readLong();
+                }
+            }
+            handler.onVisitor(visitor, codes);
+            loanCount += borrowed;
+        }
+        int checksum = (int) checked.getChecksum().getValue();
+        if (new DataInputStream(buffered).readInt() != checksum) {
+            throw new IOException("snapshot is corrupt");
+        }
+        return new RecoveryStats(lsn, bookCount, visitorCount, loanCount);
+    }
+
+    /**
+     * Loads the newest readable snapshot into an empty database and the lend times it has into
+     * empty ones. A snapshot that fails its checksum is skipped in favour of an older one.
+     */
+    public RecoveryStats loadLatest(DataBase db, LendTimes times) throws IOException {
+        List<Path> snapshots = list();
+        Collections.reverse(snapshots);
+        for (Path path : snapshots) {
+            RecoveryStats stats = load(path, db, times);
+            if (stats != null) {
+                return stats;
+            }
+        }
+        return new RecoveryStats(0, 0, 0, 0);
+    }
+
+    /**
+     * Deletes all the snapshots older than the one for {@code lsn}.
+     */
+    public void deleteOlderThan(long lsn) throws IOException {
+        for (Path path : list()) {
+            if (lsn(path) < lsn) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private RecoveryStats load(Path path, DataBase db, LendTimes times) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < 4 || !checksumMatches(buffer)) {
+                return null;
+            }
+            return readChecked(buffer, db, times, path.toString());
+        }
+    }
+
+    private static RecoveryStats readChecked(ByteBuffer buffer, DataBase db, LendTimes times, String source) throws IOException {
+        try {
+            int format = buffer.getInt() == MAGIC ? buffer.getInt() : -1;
+            if (format != FORMAT && format != FORMAT_WITHOUT_LEND_TIMES) {
+                throw new IOException("unknown snapshot format in " + source);
+            }
+            long lsn = buffer.getLong();
+            int bookCount = buffer.getInt();
+            for (int i = 0; i < bookCount; i++) {
+                db.addBook(new Book(readString(buffer), readString(buffer), readString(buffer)));
+            }
+            int visitorCount = buffer.getInt();
+            long loanCount = 0;
+            for (int i = 0; i < visitorCount; i++) {
+                long id = buffer.getLong();
+                db.restoreVisitor(new Visitor(id, readString(buffer), readString(buffer)));
+                int borrowed = buffer.getInt();
+                for (int j = 0; j < borrowed; j++) {
+                    String code = readString(buffer);
+                    db.lendBook(id, code);
+                    long time = format == FORMAT ? buffer.getLong() : -1;
+                    if (time >= 0) {
+                        times.put(code, time);
+                    }
+                }
+                loanCount += borrowed;
+            }
+            return new RecoveryStats(lsn, bookCount, visitorCount, loanCount);
+        } catch (BookAlreadyExistsException | NoSuchBookException | BookAlreadyBorrowedException | NoSuchVisitorException e) {
+            throw new IOException(source + " is inconsistent: " + e.getMessage(), e);
+        }
+    }
+
+    private static boolean checksumMatches(ByteBuffer buffer) {
+        int end = buffer.limit() - 4;
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().limit(end));
+        return (int) crc.getValue() == buffer.getInt(end);
+    }
+
+    private List<Path> list() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }).sorted().collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    private static long lsn(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
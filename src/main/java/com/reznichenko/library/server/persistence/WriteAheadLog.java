@@ -0,0 +1,434 @@
+package com.reznichenko.library.server.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only binary log split into segment files named after the sequence number (LSN) of
+ * their first record. Each record is framed as {@code [length][crc32c][lsn][body]}.
+ * <p>
+ * Appends only copy the record into memory. Durability is requested with {@link #sync}:
+ * the first waiting thread becomes the leader, writes everything appended so far and calls
+ * fsync once for the whole batch while the others wait for it (group commit).
+ * <p>
+ * Creating and deleting a segment fsyncs the directory too, otherwise a crash could lose a new
+ * segment with records already reported durable, or bring back one a snapshot had replaced.
+ */
+public class WriteAheadLog implements Closeable {
+
+    public interface RecordHandler {
+        void handle(long lsn, LogRecord record) throws IOException;
+    }
+
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+    private static final String PREFIX = "wal-";
+    private static final String SUFFIX = ".log";
+
+    private final Path directory;
+    private final FsyncPolicy policy;
+    private final long segmentSize;
+    private final ScheduledExecutorService flusher;
+
+    // guarded by this
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private long nextLsn = 1;
+    private boolean flushing;
+    private boolean recovered;
+    private long syncCount;
+    private IOException failure;
+    private RecordHandler tap;
+
+    private volatile long durableLsn;
+
+    // owned by the thread that is flushing
+    private FileChannel segment;
+    private long segmentBytes;
+
+    // guarded by this
+    private final CRC32C crc = new CRC32C();
+
+    public WriteAheadLog(Path directory, FsyncPolicy policy, long fsyncIntervalMillis, long segmentSize) {
+        this.directory = directory;
+        this.policy = policy;
+        this.segmentSize = segmentSize;
+        if (policy == FsyncPolicy.INTERVAL) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Reads all the segments, handing records with LSN greater than {@code afterLsn} to the handler,
+     * cuts off a torn tail left by a crash and opens the log for appending. Must be called once,
+     * before anything is appended.
+     *
+     * @return the LSN of the last record in the log, 0 if it is empty
+     */
+    public synchronized long recover(long afterLsn, RecordHandler handler) throws IOException {
+        if (recovered) {
+            throw new IllegalStateException("log is already recovered");
+        }
+        Files.createDirectories(directory);
+        List<Path> segments = listSegments();
+        long expectedLsn = segments.isEmpty() ? afterLsn + 1 : firstLsn(segments.get(0));
+        if (expectedLsn > afterLsn + 1) {
+            throw new IOException("log starts with lsn " + expectedLsn + ", records after " + afterLsn + " are missing");
+        }
+        long validEnd = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Path path = segments.get(i);
+            if (firstLsn(path) != expectedLsn) {
+                throw new IOException("log segment " + path + " doesn't start with lsn " + expectedLsn);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            validEnd = 0;
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length < 0 || length > buffer.remaining() - 8 || checksum != checksum(buffer, start + 8, length + 8)) {
+                    break;
+                }
+                long lsn = buffer.getLong();
+                if (lsn != expectedLsn) {
+                    throw new IOException("log segment " + path + " has lsn " + lsn + " where " + expectedLsn + " was expected");
+                }
+                LogRecord record = LogRecord.decode(buffer.slice().limit(length));
+                buffer.position(buffer.position() + length);
+                if (lsn > afterLsn) {
+                    handler.handle(lsn, record);
+                }
+                expectedLsn = lsn + 1;
+                validEnd = buffer.position();
+            }
+            if (validEnd < buffer.limit() && i != segments.size() - 1) {
+                throw new IOException("log segment " + path + " is corrupted at byte " + validEnd);
+            }
+        }
+        if (expectedLsn <= afterLsn) {
+            throw new IOException("log ends with lsn " + (expectedLsn - 1) + ", before the snapshot lsn " + afterLsn);
+        }
+        nextLsn = expectedLsn;
+        durableLsn = expectedLsn - 1;
+        if (segments.isEmpty()) {
+            openSegment(nextLsn);
+        } else {
+            segment = FileChannel.open(segments.get(segments.size() - 1), StandardOpenOption.WRITE);
+            segment.truncate(validEnd);
+            segment.position(validEnd);
+            segmentBytes = validEnd;
+        }
+        recovered = true;
+        return expectedLsn - 1;
+    }
+
+    /**
+     * Reads the records with LSN greater than {@code afterLsn} and up to {@code upToLsn} back from
+     * the disk while the log keeps being appended to. They must have been flushed, and the segments
+     * holding them must not be deleted meanwhile.
+     */
+    public void read(long afterLsn, long upToLsn, RecordHandler handler) throws IOException {
+        CRC32C crc = new CRC32C();
+        long expectedLsn = afterLsn + 1;
+        List<Path> segments = listSegments();
+        for (int i = 0; i < segments.size() && expectedLsn <= upToLsn; i++) {
+            if (i + 1 < segments.size() && firstLsn(segments.get(i + 1)) <= expectedLsn) {
+                continue;
+            }
+            Path path = segments.get(i);
+            if (firstLsn(path) > expectedLsn) {
+                throw new IOException("log segment " + path + " starts after lsn " + expectedLsn);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            while (buffer.remaining() >= HEADER_SIZE && expectedLsn <= upToLsn) {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length < 0 || length > buffer.remaining() - 8 || checksum != checksum(crc, buffer, start + 8, length + 8)) {
+                    throw new IOException("log segment " + path + " is corrupted at byte " + start);
+                }
+                long lsn = buffer.getLong();
+                if (lsn > expectedLsn) {
+                    throw new IOException("log segment " + path + " has lsn " + lsn + " where " + expectedLsn + " was expected");
+                }
+                LogRecord record = LogRecord.decode(buffer.slice().limit(length));
+                buffer.position(buffer.position() + length);
+                if (lsn == expectedLsn) {
+                    handler.handle(lsn, record);
+                    expectedLsn++;
+                }
+            }
+        }
+        if (expectedLsn <= upToLsn) {
+            throw new IOException("log ends before lsn " + expectedLsn + ", " + upToLsn + " was expected");
+        }
+    }
+
+    /**
+     * Adds the record to the log in memory.
+     *
+     * @return LSN of the record, pass it to {@link #sync} to wait until it is on disk
+     */
+    public synchronized long append(LogRecord record) throws IOException {
+        checkFailure();
+        if (!recovered) {
+            throw new IllegalStateException("log must be recovered before appending");
+        }
+        int maxSize = HEADER_SIZE + record.encodedSize();
+        if (pending.remaining() < maxSize) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + maxSize));
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        long lsn = nextLsn++;
+        int start = pending.position();
+        pending.position(start + 8);
+        pending.putLong(lsn);
+        record.encode(pending);
+        int length = pending.position() - start - HEADER_SIZE;
+        pending.putInt(start, length);
+        pending.putInt(start + 4, checksum(pending, start + 8, length + 8));
+        if (tap != null) {
+            tap.handle(lsn, record);
+        }
+        return lsn;
+    }
+
+    /**
+     * Hands every record appended from now on to the handler as well, in LSN order and under the
+     * lock of the log, so the handler must be quick.
+     *
+     * @return the LSN of the last record appended before
+     */
+    public synchronized long setTap(RecordHandler tap) {
+        this.tap = tap;
+        return nextLsn - 1;
+    }
+
+    /**
+     * Makes the record durable according to the fsync policy: with {@link FsyncPolicy#COMMIT} waits
+     * until it is on disk, with {@link FsyncPolicy#INTERVAL} returns at once and leaves it to the
+     * background flusher.
+     */
+    public void sync(long lsn) throws IOException {
+        if (policy == FsyncPolicy.COMMIT) {
+            flushUpTo(lsn);
+        } else {
+            checkFailure();
+        }
+    }
+
+    /**
+     * Writes and fsyncs everything appended so far, regardless of the policy.
+     */
+    public void flush() throws IOException {
+        long lastLsn;
+        synchronized (this) {
+            lastLsn = nextLsn - 1;
+        }
+        flushUpTo(lastLsn);
+    }
+
+    public synchronized long getLastLsn() {
+        return nextLsn - 1;
+    }
+
+    public long getDurableLsn() {
+        return durableLsn;
+    }
+
+    public synchronized long getSyncCount() {
+        return syncCount;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            // interrupting the flusher would close the channel under it
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            if (recovered) {
+                flush();
+            }
+        } finally {
+            synchronized (this) {
+                while (flushing) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                if (segment != null) {
+                    segment.close();
+                }
+            }
+        }
+    }
+
+    private void flushUpTo(long lsn) throws IOException {
+        ByteBuffer batch;
+        long upTo;
+        synchronized (this) {
+            while (true) {
+                checkFailure();
+                if (durableLsn >= lsn) {
+                    return;
+                }
+                if (!flushing) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for the log to be flushed");
+                }
+            }
+            flushing = true;
+            batch = pending;
+            pending = spare;
+            upTo = nextLsn - 1;
+        }
+        boolean succeeded = false;
+        try {
+            batch.flip();
+            segmentBytes += batch.remaining();
+            while (batch.hasRemaining()) {
+                segment.write(batch);
+            }
+            segment.force(false);
+            if (segmentBytes >= segmentSize) {
+                segment.close();
+                openSegment(upTo + 1);
+            }
+            succeeded = true;
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+            }
+            throw e;
+        } finally {
+            batch.clear();
+            synchronized (this) {
+                spare = batch;
+                flushing = false;
+                if (succeeded) {
+                    durableLsn = upTo;
+                    syncCount++;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException ignored) {
+            // remembered in failure and reported to the next writer
+        }
+    }
+
+    private void openSegment(long firstLsn) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", PREFIX, firstLsn, SUFFIX));
+        segment = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segmentBytes = 0;
+        forceDirectory(directory);
+    }
+
+    /**
+     * Deletes the segments whose records all have LSN not greater than {@code lsn}. The segment being
+     * written to is always kept.
+     */
+    public void deleteSegmentsUpTo(long lsn) throws IOException {
+        List<Path> segments = listSegments();
+        boolean deleted = false;
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (firstLsn(segments.get(i + 1)) - 1 <= lsn) {
+                deleted |= Files.deleteIfExists(segments.get(i));
+            }
+        }
+        if (deleted) {
+            forceDirectory(directory);
+        }
+    }
+
+    // makes the files created, renamed or deleted in the directory so far survive a crash
+    static void forceDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    public int getSegmentCount() throws IOException {
+        return listSegments().size();
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }).sorted().collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    private static long firstLsn(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private int checksum(ByteBuffer buffer, int offset, int length) {
+        return checksum(crc, buffer, offset, length);
+    }
+
+    private static int checksum(CRC32C crc, ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length).position(offset);
+        crc.reset();
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    private void checkFailure() throws IOException {
+        synchronized (this) {
+            if (failure != null) {
+                throw new IOException("write-ahead log is broken", failure);
+            }
+        }
+    }
+}
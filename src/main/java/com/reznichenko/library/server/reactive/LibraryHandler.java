@@ -0,0 +1,194 @@
+package com.reznichenko.library.server.reactive;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.service.BookPage;
+import com.reznichenko.library.server.service.Change;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.Outcome;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.ServerRequest;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static org.springframework.web.reactive.function.server.RouterFunctions.route;
+
+/**
+ * The routes of {@link com.reznichenko.library.server.service.LibraryController}, with the same
+ * parameters and responses, for the reactive server. The event loop only parses requests and
+ * writes responses; every {@link DataBase} call, which may wait for a lock or an fsync, runs
+ * on the given scheduler.
+ * <p>
+ * Parameters are taken from the query and, for POST, from a form body, like
+ * {@code @RequestParam} does.
+ */
+public class LibraryHandler {
+
+    private static final int DEFAULT_PAGE = 100;
+    private static final int MAX_PAGE = 1000;
+    // a whole list is read in pages of this many books, like the servlet controller does
+    private static final int STREAMED_PAGE = 256;
+
+    private final DataBase db;
+    private final Scheduler scheduler;
+
+    public LibraryHandler(DataBase db, Scheduler scheduler) {
+        this.db = db;
+        this.scheduler = scheduler;
+    }
+
+    public RouterFunction<ServerResponse> routes() {
+        return route()
+                .POST("/add-visitor", request -> withParams(request, params ->
+                        call(() -> Outcome.ok(db.addVisitor(params.getFirst("name"), params.getFirst("surname"))),
+                                String::valueOf), "name", "surname"))
+                .POST("/add-book", request -> withParams(request, params ->
+                        call(() -> db.tryAddBook(new Book(params.getFirst("code"), params.getFirst("author"),
+                                params.getFirst("name"))), done -> "book added"), "name", "author", "code"))
+                .POST("/lend-book", request -> withParams(request, params ->
+                        withId(params, id -> call(() -> db.tryLendBook(id, params.getFirst("code")),
+                                done -> "book lent")), "id", "code"))
+                .POST("/receive", request -> withParams(request, params ->
+                        call(() -> db.tryReceiveReturnedBook(params.getFirst("code")), done -> "book returned"),
+                        "code"))
+                .POST("/change-code", request -> withParams(request, params ->
+                        call(() -> db.tryChangeCode(params.getFirst("old"), params.getFirst("new")),
+                                done -> "code changed"), "old", "new"))
+                .POST("/delete-book", request -> withParams(request, params ->
+                        call(() -> db.tryDeleteBook(params.getFirst("code")), done -> "book deleted"), "code"))
+                .POST("/transaction", this::transaction)
+                .GET("/author", request -> withParams(request, params ->
+                        call(() -> db.tryGetBookAuthor(params.getFirst("code")), author -> author), "code"))
+                .GET("/book-name", request -> withParams(request, params ->
+                        call(() -> db.tryGetBookName(params.getFirst("code")), name -> name), "code"))
+                .GET("/borrowed-books", request -> withParams(request, params ->
+                        withId(params, id -> borrowedBooks(id, params)), "id"))
+                .build();
+    }
+
+    private Mono<ServerResponse> transaction(ServerRequest request) {
+        return request.bodyToMono(JsonNode.class)
+                .flatMap(body -> {
+                    List<Change> changes;
+                    try {
+                        changes = Change.listFromJson(body);
+                    } catch (IllegalArgumentException e) {
+                        return badRequest(e.getMessage());
+                    }
+                    return call(() -> db.tryTransaction(changes), done -> "transaction committed");
+                })
+                .switchIfEmpty(Mono.defer(() -> badRequest("a transaction is a JSON array of changes")));
+    }
+
+    // a page of books as objects once there is a limit or a cursor, like the servlet controller
+    private Mono<ServerResponse> borrowedBooks(long id, MultiValueMap<String, String> params) {
+        String limit = params.getFirst("limit");
+        String cursor = params.getFirst("cursor");
+        if (limit == null && cursor == null) {
+            return allBorrowedBooks(id);
+        }
+        int size;
+        try {
+            size = limit == null ? DEFAULT_PAGE : Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            return badRequest("limit must be a number: " + limit);
+        }
+        BookPage.Cursor after;
+        try {
+            after = cursor == null ? null : BookPage.Cursor.parse(cursor);
+        } catch (IllegalArgumentException e) {
+            return badRequest(e.getMessage());
+        }
+        if (size < 1 || size > MAX_PAGE) {
+            return badRequest("limit must be between 1 and " + MAX_PAGE);
+        }
+        return call(() -> db.tryGetBorrowedPage(id, after, size), page -> {
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("books", page.getBooks());
+            body.put("next", page.getNext() == null ? null : page.getNext().toString());
+            return body;
+        });
+    }
+
+    // the pages are read on the scheduler as the response is written, never the whole list at once
+    private Mono<ServerResponse> allBorrowedBooks(long id) {
+        return Mono.fromSupplier(() -> db.tryGetBorrowedPage(id, null, STREAMED_PAGE))
+                .subscribeOn(scheduler)
+                .flatMap(first -> {
+                    if (!first.isOk()) {
+                        return badRequest(first.getMessage());
+                    }
+                    // visitors are never deleted, the next page can't fail
+                    Flux<Object> books = Flux.just(first.getValue())
+                            .expand(page -> page.getNext() == null ? Mono.empty()
+                                    : Mono.fromSupplier(() -> db.tryGetBorrowedPage(id, page.getNext(), STREAMED_PAGE).getValue())
+                                    .subscribeOn(scheduler))
+                            .concatMapIterable(BookPage::getBooks)
+                            .map(Book::toString);
+                    return ServerResponse.ok().contentType(MediaType.APPLICATION_JSON).body(books, Object.class);
+                });
+    }
+
+    private Mono<ServerResponse> withParams(ServerRequest request,
+                                            Function<MultiValueMap<String, String>, Mono<ServerResponse>> handler,
+                                            String... names) {
+        Mono<MultiValueMap<String, String>> params = request.method() == HttpMethod.POST
+                ? request.formData().map(form -> merge(request.queryParams(), form))
+                : Mono.just(request.queryParams());
+        return params.flatMap(values -> {
+            for (String name : names) {
+                if (values.getFirst(name) == null) {
+                    return badRequest("missing parameter " + name);
+                }
+            }
+            return handler.apply(values);
+        });
+    }
+
+    private static Mono<ServerResponse> withId(MultiValueMap<String, String> params, Function<Long, Mono<ServerResponse>> handler) {
+        long id;
+        try {
+            id = Long.parseLong(params.getFirst("id"));
+        } catch (NumberFormatException e) {
+            return badRequest("id must be a number: " + params.getFirst("id"));
+        }
+        return handler.apply(id);
+    }
+
+    // off the event loop; strings are answered as text, anything else as JSON
+    private <T> Mono<ServerResponse> call(Supplier<Outcome<T>> operation, Function<T, Object> body) {
+        return Mono.fromSupplier(operation)
+                .subscribeOn(scheduler)
+                .flatMap(outcome -> {
+                    if (!outcome.isOk()) {
+                        return badRequest(outcome.getMessage());
+                    }
+                    Object value = body.apply(outcome.getValue());
+                    MediaType type = value instanceof String ? MediaType.TEXT_PLAIN : MediaType.APPLICATION_JSON;
+                    return ServerResponse.ok().contentType(type).bodyValue(value);
+                });
+    }
+
+    private static Mono<ServerResponse> badRequest(String message) {
+        return ServerResponse.badRequest().contentType(MediaType.TEXT_PLAIN).bodyValue("bad request: " + message);
+    }
+
+    private static MultiValueMap<String, String> merge(MultiValueMap<String, String> query, MultiValueMap<String, String> form) {
+        MultiValueMap<String, String> merged = new LinkedMultiValueMap<>();
+        query.forEach(merged::addAll);
+        form.forEach(merged::addAll);
+        return merged;
+    }
+}
@@ -0,0 +1,86 @@
+package com.reznichenko.library.server.reactive;
+
+import com.reznichenko.library.server.metrics.MetricsRegistry;
+import com.reznichenko.library.server.service.DataBase;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import static org.springframework.web.reactive.function.server.RouterFunctions.route;
+
+/**
+ * Routes of the reactive server, see the reactive profile. Connections are held by Netty's
+ * event loops; the store is called from a fixed pool of {@code library.reactive.db-threads}
+ * threads, and calls beyond what the pool can take wait in a queue of bounded size.
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveConfiguration {
+
+    private static final MediaType PROMETHEUS = MediaType.parseMediaType("text/plain;version=0.0.4;charset=utf-8");
+
+    @Value("${library.reactive.db-threads:8}")
+    private int dbThreads;
+
+    @Value("${library.reactive.db-queue:100000}")
+    private int dbQueue;
+
+    @Value("${library.metrics.local-only:true}")
+    private boolean metricsLocalOnly;
+
+    // Tomcat is on the classpath for the servlet mode and would otherwise be picked
+    @Bean
+    public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+        return new NettyReactiveWebServerFactory();
+    }
+
+    @Bean(destroyMethod = "dispose")
+    public Scheduler dataBaseScheduler() {
+        return Schedulers.newBoundedElastic(dbThreads, dbQueue, "library-db");
+    }
+
+    @Bean
+    public RouterFunction<ServerResponse> libraryRoutes(DataBase db, Scheduler dataBaseScheduler,
+                                                        ObjectProvider<MetricsRegistry> metrics) {
+        RouterFunction<ServerResponse> routes = new LibraryHandler(db, dataBaseScheduler).routes();
+        MetricsRegistry registry = metrics.getIfAvailable();
+        if (registry == null) {
+            return routes;
+        }
+        return routes.and(route().GET("/metrics", request -> {
+            boolean local = request.remoteAddress().map(InetSocketAddress::getAddress)
+                    .map(InetAddress::isLoopbackAddress).orElse(false);
+            if (metricsLocalOnly && !local) {
+                return ServerResponse.status(HttpStatus.FORBIDDEN).build();
+            }
+            return Mono.fromCallable(() -> write(registry))
+                    .subscribeOn(dataBaseScheduler)
+                    .flatMap(text -> ServerResponse.ok().contentType(PROMETHEUS).bodyValue(text));
+        }).build());
+    }
+
+    private static String write(MetricsRegistry registry) {
+        StringBuilder out = new StringBuilder();
+        try {
+            registry.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString();
+    }
+}
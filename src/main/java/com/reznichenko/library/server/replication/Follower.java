@@ -0,0 +1,339 @@
+package com.reznichenko.library.server.replication;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.persistence.LogRecord;
+import com.reznichenko.library.server.persistence.RecoveryStats;
+import com.reznichenko.library.server.persistence.SnapshotStore;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.LibraryView;
+import com.reznichenko.library.server.service.Outcome;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The follower's side of replication. Loads a snapshot from the leader, then polls the leader's
+ * log and applies the records in LSN order from a single thread, the only one its
+ * {@link ReplicaDataBase} lets write. The records go through the whole chain, so the listeners
+ * (search, feed, ETags) follow the leader too.
+ * <p>
+ * After a restart, when it falls behind what the leader keeps in memory, or when a record
+ * doesn't apply, the follower reads a fresh snapshot as it arrives and applies the differences
+ * to what it has, again as ordinary changes.
+ */
+public class Follower implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Follower.class);
+    private static final long RETRY_MILLIS = 1000;
+
+    private final DataBase db;
+    private final ReplicaDataBase replica;
+    private final HttpUrl leader;
+    private final String name;
+    private final int batchSize;
+    private final long pollMillis;
+    private final OkHttpClient http;
+    private final Thread thread;
+    private final Object progress = new Object();
+    private volatile boolean running = true;
+    // leader LSN of the last change applied, -1 before the first snapshot
+    private volatile long applied = -1;
+    private volatile long leaderLsn;
+    // System.nanoTime() of the last request after which nothing the leader had was missing
+    private volatile long freshAsOf;
+    private volatile long snapshots;
+
+    /**
+     * @param db      the top of the chain, its bottom being {@code replica}
+     * @param leader  base URL of the leader's HTTP API
+     * @param name    how the leader lists this follower
+     */
+    public Follower(DataBase db, ReplicaDataBase replica, HttpUrl leader, String name, int batchSize, long pollMillis) {
+        this.db = db;
+        this.replica = replica;
+        this.leader = leader;
+        this.name = name;
+        this.batchSize = batchSize;
+        this.pollMillis = pollMillis;
+        this.http = new OkHttpClient.Builder().readTimeout(1, TimeUnit.MINUTES).build();
+        this.thread = new Thread(this::run, "replication-follower");
+        this.thread.setDaemon(true);
+        replica.allowWritesFrom(thread);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public long getAppliedLsn() {
+        return applied;
+    }
+
+    public long getLeaderLsn() {
+        return leaderLsn;
+    }
+
+    public long getLagRecords() {
+        return applied < 0 ? leaderLsn : Math.max(0, leaderLsn - applied);
+    }
+
+    // at most how old the reads are, -1 until the first snapshot
+    public long getLagMillis() {
+        return applied < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - freshAsOf);
+    }
+
+    public long getSnapshotCount() {
+        return snapshots;
+    }
+
+    public HttpUrl getLeader() {
+        return leader;
+    }
+
+    /**
+     * Waits until the changes up to {@code lsn} are applied.
+     *
+     * @return whether they were within the timeout
+     */
+    public boolean awaitLsn(long lsn, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (progress) {
+            while (applied < lsn) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(progress, left);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+        http.dispatcher().executorService().shutdown();
+        http.connectionPool().evictAll();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                if (applied < 0) {
+                    loadSnapshot();
+                    continue;
+                }
+                long sentAt = System.nanoTime();
+                List<LogRecord> records = new ArrayList<>();
+                long first = fetch(applied, records);
+                if (first < 0) {
+                    LOG.info("fell behind what the leader keeps at lsn {}, loading a new snapshot", applied);
+                    loadSnapshot();
+                    continue;
+                }
+                if (!apply(first, records)) {
+                    loadSnapshot();
+                    continue;
+                }
+                if (applied >= leaderLsn) {
+                    freshAsOf = sentAt;
+                }
+                if (records.isEmpty()) {
+                    Thread.sleep(pollMillis);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (!running) {
+                    return;
+                }
+                LOG.warn("replication from {} failed, retrying in {} ms: {}", leader, RETRY_MILLIS, e.toString());
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // the LSN of the first record fetched, -1 if the leader no longer has them
+    private long fetch(long after, List<LogRecord> records) throws IOException {
+        HttpUrl url = leader.newBuilder().addPathSegments("replication/log")
+                .addQueryParameter("after", Long.toString(after))
+                .addQueryParameter("max", Integer.toString(batchSize))
+                .addQueryParameter("follower", name)
+                .build();
+        try (Response response = http.newCall(new Request.Builder().url(url).build()).execute()) {
+            if (response.code() == 410) {
+                return -1;
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException("leader answered " + response.code() + " to " + url);
+            }
+            leaderLsn = Long.parseLong(response.header(ReplicationLog.LSN_HEADER, "0"));
+            ByteBuffer buffer = ByteBuffer.wrap(response.body().bytes());
+            long first = after + 1;
+            while (buffer.hasRemaining()) {
+                long lsn = buffer.getLong();
+                if (lsn != after + 1 + records.size()) {
+                    throw new IOException("expected lsn " + (after + 1 + records.size()) + ", got " + lsn);
+                }
+                records.add(LogRecord.decode(buffer));
+            }
+            return first;
+        }
+    }
+
+    private boolean apply(long first, List<LogRecord> records) {
+        for (int i = 0; i < records.size(); i++) {
+            try {
+                records.get(i).applyTo(db);
+            } catch (NoSuchBookException | BookAlreadyExistsException | BookAlreadyBorrowedException | NoSuchVisitorException e) {
+                LOG.warn("record {} ({}) doesn't apply, loading a new snapshot: {}", first + i, records.get(i), e.getMessage());
+                return false;
+            }
+            advance(first + i);
+        }
+        return true;
+    }
+
+    private void loadSnapshot() throws IOException {
+        long sentAt = System.nanoTime();
+        HttpUrl url = leader.newBuilder().addPathSegments("replication/snapshot").build();
+        Reconciler reconciler = new Reconciler();
+        RecoveryStats stats;
+        try (Response response = http.newCall(new Request.Builder().url(url).build()).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException("leader answered " + response.code() + " to " + url);
+            }
+            // a snapshot cut short leaves the changes made so far, the next one picks up from there
+            stats = SnapshotStore.read(response.body().byteStream(), reconciler);
+        }
+        reconciler.finish();
+        snapshots++;
+        leaderLsn = Math.max(leaderLsn, stats.getSnapshotLsn());
+        freshAsOf = sentAt;
+        advance(stats.getSnapshotLsn());
+        LOG.info("loaded the leader's snapshot at lsn {} ({} books, {} visitors), {} changes to catch up with it",
+                stats.getSnapshotLsn(), reconciler.codes.size(), reconciler.visitors.size(), reconciler.changes);
+    }
+
+    /**
+     * Turns the current state into the one of the snapshot with ordinary changes as the snapshot is
+     * read: a book is added, or deleted and added again if it differs; a visitor's borrowed books
+     * are received from the first one that differs on and the ones of the snapshot lent in its
+     * order, so that the list comes out the same as on the leader. What the snapshot doesn't have
+     * is dropped at the end.
+     */
+    private class Reconciler implements SnapshotStore.Handler {
+
+        final Set<String> codes = new HashSet<>();
+        final Set<Long> visitors = new HashSet<>();
+        int changes;
+
+        @Override
+        public void onBook(Book book) {
+            String code = book.getCode();
+            codes.add(code);
+            Outcome<String> name = db.tryGetBookName(code);
+            if (name.isOk()) {
+                if (name.getValue().equals(book.getName()) && db.tryGetBookAuthor(code).getValue().equals(book.getAuthor())) {
+                    return;
+                }
+                check(db.tryDeleteBook(code));
+                changes++;
+            }
+            check(db.tryAddBook(book));
+            changes++;
+        }
+
+        @Override
+        public void onVisitor(Visitor visitor, List<String> wanted) {
+            long id = visitor.getId();
+            visitors.add(id);
+            List<String> had = new ArrayList<>();
+            Outcome<List<Book>> borrowed = db.tryGetBorrowedBooks(id);
+            if (borrowed.isOk()) {
+                borrowed.getValue().forEach(book -> had.add(book.getCode()));
+            } else {
+                db.restoreVisitor(visitor);
+                changes++;
+            }
+            int same = 0;
+            while (same < had.size() && same < wanted.size() && had.get(same).equals(wanted.get(same))) {
+                same++;
+            }
+            for (String code : had.subList(same, had.size())) {
+                check(db.tryReceiveReturnedBook(code));
+                changes++;
+            }
+            for (String code : wanted.subList(same, wanted.size())) {
+                // still lent to a visitor the snapshot has further on
+                if (check(db.tryGetOwner(code)) >= 0) {
+                    check(db.tryReceiveReturnedBook(code));
+                    changes++;
+                }
+                check(db.tryLendBook(id, code));
+                changes++;
+            }
+        }
+
+        void finish() {
+            List<String> lentToOthers = new ArrayList<>();
+            List<String> deleted = new ArrayList<>();
+            LibraryView current = db.view();
+            current.forEachVisitor((visitor, books) -> {
+                if (!visitors.contains(visitor.getId())) {
+                    books.forEach(book -> lentToOthers.add(book.getCode()));
+                }
+            });
+            current.forEachBook(book -> {
+                if (!codes.contains(book.getCode())) {
+                    deleted.add(book.getCode());
+                }
+            });
+            for (String code : lentToOthers) {
+                check(db.tryReceiveReturnedBook(code));
+                changes++;
+            }
+            for (String code : deleted) {
+                check(db.tryDeleteBook(code));
+                changes++;
+            }
+        }
+    }
+
+    private void advance(long lsn) {
+        synchronized (progress) {
+            applied = lsn;
+            progress.notifyAll();
+        }
+    }
+
+    // only this thread changes the replica, so there is nothing to fail
+    private static <T> T check(Outcome<T> outcome) {
+        if (!outcome.isOk()) {
+            throw new IllegalStateException("couldn't catch up with the snapshot: " + outcome.getMessage());
+        }
+        return outcome.getValue();
+    }
+}
@@ -0,0 +1,34 @@
+package com.reznichenko.library.server.replication;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@ConditionalOnProperty(value = "library.replication.role", havingValue = "follower")
+public class FollowerController {
+
+    private final Follower follower;
+
+    public FollowerController(Follower follower) {
+        this.follower = follower;
+    }
+
+    @GetMapping("replication")
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("role", "follower");
+        status.put("leader", follower.getLeader().toString());
+        status.put("lsn", follower.getAppliedLsn());
+        status.put("leaderLsn", follower.getLeaderLsn());
+        status.put("lagRecords", follower.getLagRecords());
+        status.put("lagMs", follower.getLagMillis());
+        status.put("snapshots", follower.getSnapshotCount());
+        return status;
+    }
+}
@@ -0,0 +1,57 @@
+package com.reznichenko.library.server.replication;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Holds a read that carries a position in the leader's log (the {@link ReplicationLog#LSN_HEADER}
+ * of a response the client got earlier) until the follower has applied that much, and answers
+ * 503 if it doesn't within the wait, so that the client can ask the leader instead.
+ */
+class ReadYourWritesInterceptor implements HandlerInterceptor {
+
+    private final Follower follower;
+    private final long waitMillis;
+
+    ReadYourWritesInterceptor(Follower follower, long waitMillis) {
+        this.follower = follower;
+        this.waitMillis = waitMillis;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws IOException {
+        String header = request.getHeader(ReplicationLog.LSN_HEADER);
+        if (header == null) {
+            return true;
+        }
+        long lsn;
+        try {
+            lsn = Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return reject(response, HttpStatus.BAD_REQUEST, "bad request: " + ReplicationLog.LSN_HEADER + " is not a number");
+        }
+        try {
+            if (follower.awaitLsn(lsn, waitMillis)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+        return reject(response, HttpStatus.SERVICE_UNAVAILABLE,
+                "this follower is at lsn " + follower.getAppliedLsn() + ", behind " + lsn);
+    }
+
+    private static boolean reject(HttpServletResponse response, HttpStatus status, String message) throws IOException {
+        response.setStatus(status.value());
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+        response.getWriter().write(message);
+        return false;
+    }
+}
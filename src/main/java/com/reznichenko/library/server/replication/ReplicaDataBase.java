@@ -0,0 +1,190 @@
+package com.reznichenko.library.server.replication;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.exception.ReadOnlyReplicaException;
+import com.reznichenko.library.server.service.BookPage;
+import com.reznichenko.library.server.service.Change;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.LibraryView;
+import com.reznichenko.library.server.service.Outcome;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * The store of a follower: reads go straight through, changes are only taken from the thread
+ * of the {@link Follower} applying the leader's log and refused with
+ * {@link ReadOnlyReplicaException} to everyone else. Sitting at the bottom of the chain, it lets
+ * the follower apply its changes through the listeners and metrics like any other.
+ */
+public class ReplicaDataBase implements DataBase {
+
+    private final DataBase delegate;
+    private final String leader;
+    private volatile Thread writer;
+
+    public ReplicaDataBase(DataBase delegate, String leader) {
+        this.delegate = delegate;
+        this.leader = leader;
+    }
+
+    void allowWritesFrom(Thread thread) {
+        writer = thread;
+    }
+
+    @Override
+    public List<Book> getBorrowedBooks(long id) throws NoSuchVisitorException {
+        return delegate.getBorrowedBooks(id);
+    }
+
+    @Override
+    public String getBookName(String code) throws NoSuchBookException {
+        return delegate.getBookName(code);
+    }
+
+    @Override
+    public String getBookAuthor(String code) throws NoSuchBookException {
+        return delegate.getBookAuthor(code);
+    }
+
+    @Override
+    public long addVisitor(String name, String surname) {
+        // ids are the leader's to hand out
+        throw new ReadOnlyReplicaException(leader);
+    }
+
+    @Override
+    public void restoreVisitor(Visitor visitor) {
+        checkWriter();
+        delegate.restoreVisitor(visitor);
+    }
+
+    @Override
+    public void addBook(Book book) throws BookAlreadyExistsException {
+        checkWriter();
+        delegate.addBook(book);
+    }
+
+    @Override
+    public void addBooks(List<Book> books, BiConsumer<Integer, Exception> onFailure) {
+        checkWriter();
+        delegate.addBooks(books, onFailure);
+    }
+
+    @Override
+    public long[] addVisitors(List<String> names, List<String> surnames) {
+        throw new ReadOnlyReplicaException(leader);
+    }
+
+    @Override
+    public void restoreVisitors(List<Visitor> visitors) {
+        checkWriter();
+        delegate.restoreVisitors(visitors);
+    }
+
+    @Override
+    public void deleteBook(String code) throws NoSuchBookException {
+        checkWriter();
+        delegate.deleteBook(code);
+    }
+
+    @Override
+    public void changeCode(String oldCode, String newCode) throws NoSuchBookException, BookAlreadyExistsException {
+        checkWriter();
+        delegate.changeCode(oldCode, newCode);
+    }
+
+    @Override
+    public void lendBook(long visitorId, String code) throws NoSuchBookException, BookAlreadyBorrowedException, NoSuchVisitorException {
+        checkWriter();
+        delegate.lendBook(visitorId, code);
+    }
+
+    @Override
+    public void receiveReturnedBook(String code) throws NoSuchBookException {
+        checkWriter();
+        delegate.receiveReturnedBook(code);
+    }
+
+    @Override
+    public LibraryView view() {
+        return delegate.view();
+    }
+
+    @Override
+    public Outcome<List<Book>> tryGetBorrowedBooks(long id) {
+        return delegate.tryGetBorrowedBooks(id);
+    }
+
+    @Override
+    public Outcome<BookPage> tryGetBorrowedPage(long id, BookPage.Cursor after, int limit) {
+        return delegate.tryGetBorrowedPage(id, after, limit);
+    }
+
+    @Override
+    public Outcome<String> tryGetBookName(String code) {
+        return delegate.tryGetBookName(code);
+    }
+
+    @Override
+    public Outcome<String> tryGetBookAuthor(String code) {
+        return delegate.tryGetBookAuthor(code);
+    }
+
+    @Override
+    public Outcome<Void> tryAddBook(Book book) {
+        checkWriter();
+        return delegate.tryAddBook(book);
+    }
+
+    @Override
+    public Outcome<Void> tryDeleteBook(String code) {
+        checkWriter();
+        return delegate.tryDeleteBook(code);
+    }
+
+    @Override
+    public Outcome<Void> tryChangeCode(String oldCode, String newCode) {
+        checkWriter();
+        return delegate.tryChangeCode(oldCode, newCode);
+    }
+
+    @Override
+    public Outcome<Void> tryLendBook(long visitorId, String code) {
+        checkWriter();
+        return delegate.tryLendBook(visitorId, code);
+    }
+
+    @Override
+    public Outcome<Void> tryReceiveReturnedBook(String code) {
+        checkWriter();
+        return delegate.tryReceiveReturnedBook(code);
+    }
+
+    @Override
+    public Outcome<Void> tryTransaction(List<Change> changes) {
+        checkWriter();
+        return delegate.tryTransaction(changes);
+    }
+
+    @Override
+    public List<Visitor> getVisitors() {
+        return delegate.getVisitors();
+    }
+
+    @Override
+    public Outcome<Long> tryGetOwner(String code) {
+        return delegate.tryGetOwner(code);
+    }
+
+    private void checkWriter() {
+        if (Thread.currentThread() != writer) {
+            throw new ReadOnlyReplicaException(leader);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.reznichenko.library.server.replication;
+
+import com.reznichenko.library.server.metrics.MetricsRegistry;
+import com.reznichenko.library.server.persistence.DurableDataBase;
+import com.reznichenko.library.server.service.ListeningDataBase;
+import okhttp3.HttpUrl;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+@Configuration
+public class ReplicationConfiguration {
+
+    @Value("${library.replication.capacity:65536}")
+    private int capacity;
+
+    @Value("${library.replication.leader:http://localhost:8080}")
+    private String leader;
+
+    @Value("${library.replication.name:}")
+    private String name;
+
+    @Value("${server.port:8080}")
+    private int port;
+
+    @Value("${library.replication.batch-size:4096}")
+    private int batchSize;
+
+    @Value("${library.replication.poll-ms:20}")
+    private long pollMillis;
+
+    @Value("${library.replication.wait-ms:1000}")
+    private long waitMillis;
+
+    @Bean
+    @ConditionalOnProperty(value = "library.replication.role", havingValue = "leader")
+    public ReplicationLog replicationLog(ListeningDataBase db) {
+        DurableDataBase durable = db.find(DurableDataBase.class);
+        if (durable == null) {
+            throw new IllegalStateException("a leader replicates its write-ahead log, set library.wal.enabled=true");
+        }
+        return new ReplicationLog(durable, capacity);
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(value = "library.replication.role", havingValue = "follower")
+    public Follower follower(ListeningDataBase db, ObjectProvider<MetricsRegistry> metrics) throws UnknownHostException {
+        ReplicaDataBase replica = db.find(ReplicaDataBase.class);
+        String followerName = name.isEmpty() ? InetAddress.getLocalHost().getHostName() + ":" + port : name;
+        Follower follower = new Follower(db, replica, HttpUrl.get(leader), followerName, batchSize, pollMillis);
+        MetricsRegistry registry = metrics.getIfAvailable();
+        if (registry != null) {
+            registry.gauge("library_replication_lag_records", "Changes of the leader not applied yet", follower::getLagRecords);
+            registry.gauge("library_replication_lag_milliseconds", "How old the data served may be", follower::getLagMillis);
+        }
+        follower.start();
+        return follower;
+    }
+
+    // reads carrying a position wait for the follower to get there
+    @Bean
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+    @ConditionalOnProperty(value = "library.replication.role", havingValue = "follower")
+    public WebMvcConfigurer readYourWrites(Follower follower) {
+        return new WebMvcConfigurer() {
+            @Override
+            public void addInterceptors(InterceptorRegistry registry) {
+                registry.addInterceptor(new ReadYourWritesInterceptor(follower, waitMillis));
+            }
+        };
+    }
+}
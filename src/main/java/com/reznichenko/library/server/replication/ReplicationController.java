@@ -0,0 +1,89 @@
+package com.reznichenko.library.server.replication;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a leader serves its followers: a snapshot to start from, the log records after a given
+ * LSN, and the state of the replication.
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@ConditionalOnProperty(value = "library.replication.role", havingValue = "leader")
+public class ReplicationController {
+
+    private final ReplicationLog log;
+
+    public ReplicationController(ReplicationLog log) {
+        this.log = log;
+    }
+
+    @GetMapping("replication/snapshot")
+    public void snapshot(HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        OutputStream out = new BufferedOutputStream(response.getOutputStream(), 1 << 16);
+        log.writeSnapshot(out);
+    }
+
+    // [lsn][record] one after another; 410 Gone if the follower needs a snapshot
+    @GetMapping("replication/log")
+    public ResponseEntity<byte[]> log(@RequestParam("after") long after,
+                                      @RequestParam(value = "max", defaultValue = "4096") int max,
+                                      @RequestParam(value = "follower", required = false) String follower,
+                                      HttpServletRequest request) {
+        log.acknowledge(follower == null || follower.isEmpty() ? request.getRemoteAddr() : follower, after);
+        long durableLsn = log.getDurableLsn();
+        List<ReplicationLog.Entry> entries = log.read(after, Math.max(1, max));
+        if (entries == null) {
+            return ResponseEntity.status(HttpStatus.GONE).build();
+        }
+        int size = 0;
+        for (ReplicationLog.Entry entry : entries) {
+            size += 8 + entry.getRecord().encodedSize();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (ReplicationLog.Entry entry : entries) {
+            buffer.putLong(entry.getLsn());
+            entry.getRecord().encode(buffer);
+        }
+        byte[] body = new byte[buffer.position()];
+        buffer.flip().get(body);
+        return ResponseEntity.ok()
+                .header(ReplicationLog.LSN_HEADER, Long.toString(durableLsn))
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .body(body);
+    }
+
+    @GetMapping("replication")
+    public Map<String, Object> status() {
+        long durableLsn = log.getDurableLsn();
+        long now = System.currentTimeMillis();
+        Map<String, Object> followers = new LinkedHashMap<>();
+        log.getFollowers().forEach((name, position) -> followers.put(name, Map.of(
+                "lsn", position.getLsn(),
+                "lagRecords", Math.max(0, durableLsn - position.getLsn()),
+                "lastSeenMs", now - position.getSeenAt())));
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("role", "leader");
+        status.put("lsn", log.getLastLsn());
+        status.put("durableLsn", durableLsn);
+        status.put("followers", followers);
+        return status;
+    }
+}
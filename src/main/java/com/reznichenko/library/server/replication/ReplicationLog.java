@@ -0,0 +1,143 @@
+package com.reznichenko.library.server.replication;
+
+import com.reznichenko.library.server.persistence.DurableDataBase;
+import com.reznichenko.library.server.persistence.LogRecord;
+import com.reznichenko.library.server.persistence.WriteAheadLog;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The leader's side of replication. Keeps the last {@code capacity} records appended to the
+ * write-ahead log in a ring, so that followers are served from memory, and remembers how far
+ * each follower got. Only records already durable on the leader are handed out: a follower
+ * never shows a change that a crash of the leader could still take back.
+ */
+public class ReplicationLog implements WriteAheadLog.RecordHandler {
+
+    // a position in the leader's log: sent with every response, and with a read that must see it
+    public static final String LSN_HEADER = "Library-Lsn";
+
+    private final DurableDataBase durable;
+    private final WriteAheadLog log;
+    private final int mask;
+    private final AtomicReferenceArray<Entry> ring;
+    // records before it were appended before the ring was attached, they only come with a snapshot
+    private final long first;
+    private volatile long last;
+    private final ConcurrentMap<String, FollowerPosition> followers = new ConcurrentHashMap<>();
+
+    public ReplicationLog(DurableDataBase durable, int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        }
+        this.durable = durable;
+        this.log = durable.getLog();
+        this.mask = capacity - 1;
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.last = log.setTap(this);
+        this.first = last + 1;
+    }
+
+    // called by the log under its lock, so one at a time and in LSN order
+    @Override
+    public void handle(long lsn, LogRecord record) {
+        ring.set((int) lsn & mask, new Entry(lsn, record));
+        last = lsn;
+    }
+
+    /**
+     * @return up to {@code max} durable records after {@code after}, none if there are no new
+     * ones yet, null if they are no longer kept or {@code after} is from another history; the
+     * follower has to start over from a snapshot then
+     */
+    public List<Entry> read(long after, int max) {
+        long newest = last;
+        if (after > newest || after + 1 < Math.max(first, newest - mask)) {
+            return null;
+        }
+        long upTo = Math.min(log.getDurableLsn(), Math.min(newest, after + max));
+        List<Entry> entries = new ArrayList<>((int) Math.max(0, upTo - after));
+        for (long lsn = after + 1; lsn <= upTo; lsn++) {
+            Entry entry = ring.get((int) lsn & mask);
+            // overwritten while reading
+            if (entry == null || entry.lsn != lsn) {
+                return null;
+            }
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Writes a snapshot for a follower to start from, followed by {@link #read} after its LSN.
+     *
+     * @return the LSN of the snapshot
+     */
+    public long writeSnapshot(OutputStream out) throws IOException {
+        return durable.writeSnapshot(out);
+    }
+
+    // the position a follower asked from is the one it has applied
+    public void acknowledge(String follower, long lsn) {
+        followers.put(follower, new FollowerPosition(lsn, System.currentTimeMillis()));
+    }
+
+    // the position readers of the leader have seen, durable or about to be
+    public long getLastLsn() {
+        return last;
+    }
+
+    public long getDurableLsn() {
+        return log.getDurableLsn();
+    }
+
+    public Map<String, FollowerPosition> getFollowers() {
+        return Collections.unmodifiableMap(new TreeMap<>(followers));
+    }
+
+    public static final class Entry {
+        private final long lsn;
+        private final LogRecord record;
+
+        private Entry(long lsn, LogRecord record) {
+            this.lsn = lsn;
+            this.record = record;
+        }
+
+        public long getLsn() {
+            return lsn;
+        }
+
+        public LogRecord getRecord() {
+            return record;
+        }
+    }
+
+    public static final class FollowerPosition {
+        private final long lsn;
+        private final long seenAt;
+
+        private FollowerPosition(long lsn, long seenAt) {
+            this.lsn = lsn;
+            this.seenAt = seenAt;
+        }
+
+        public long getLsn() {
+            return lsn;
+        }
+
+        // wall clock millis of its last request
+        public long getSeenAt() {
+            return seenAt;
+        }
+    }
+}
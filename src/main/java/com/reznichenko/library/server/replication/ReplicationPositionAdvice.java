@@ -0,0 +1,45 @@
+package com.reznichenko.library.server.replication;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+/**
+ * Tells every client how far in the leader's log the answer it gets is: on the leader, past
+ * every change made so far, on a follower, what it has applied. A client that passes the highest
+ * position it has seen along with its reads never reads older data than it wrote or saw.
+ */
+@ControllerAdvice
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class ReplicationPositionAdvice implements ResponseBodyAdvice<Object> {
+
+    private final ReplicationLog log;
+    private final Follower follower;
+
+    public ReplicationPositionAdvice(ObjectProvider<ReplicationLog> log, ObjectProvider<Follower> follower) {
+        this.log = log.getIfAvailable();
+        this.follower = follower.getIfAvailable();
+    }
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return log != null || follower != null;
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        if (!response.getHeaders().containsKey(ReplicationLog.LSN_HEADER)) {
+            long lsn = log != null ? log.getLastLsn() : follower.getAppliedLsn();
+            response.getHeaders().set(ReplicationLog.LSN_HEADER, Long.toString(lsn));
+        }
+        return body;
+    }
+}
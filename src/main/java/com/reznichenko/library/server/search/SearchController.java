@@ -0,0 +1,44 @@
+package com.reznichenko.library.server.search;
+
+import com.reznichenko.library.server.exception.IllegalRequestException;
+import com.reznichenko.library.server.service.ListeningDataBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+@ConditionalOnProperty(value = "library.search.enabled", havingValue = "true", matchIfMissing = true)
+public class SearchController {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchController.class);
+    private static final int MAX_PAGE_SIZE = 100;
+
+    private final SearchIndex index = new SearchIndex();
+
+    // nothing writes before the application has started, so no change slips in between
+    public SearchController(ListeningDataBase db) {
+        long start = System.nanoTime();
+        index.addAll(db.view());
+        db.addListener(index);
+        LOG.info("indexed {} books in {} ms", index.size(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    @GetMapping(params = "q", value = "search")
+    public ResponseEntity<SearchResult> search(@RequestParam("q") String query,
+                                               @RequestParam(value = "page", defaultValue = "0") int page,
+                                               @RequestParam(value = "size", defaultValue = "20") int size) {
+        if (page < 0 || size < 1 || size > MAX_PAGE_SIZE) {
+            throw new IllegalRequestException(new IllegalArgumentException(
+                    "page must not be negative and size must be between 1 and " + MAX_PAGE_SIZE));
+        }
+        if ((long) page * size + size > SearchIndex.MAX_RESULTS) {
+            throw new IllegalRequestException(new IllegalArgumentException(
+                    "only the first " + SearchIndex.MAX_RESULTS + " hits can be paged through"));
+        }
+        return ResponseEntity.ok(index.search(query, page, size));
+    }
+}
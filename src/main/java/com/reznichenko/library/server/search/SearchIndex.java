@@ -0,0 +1,554 @@
+package com.reznichenko.library.server.search;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.service.DataBaseListener;
+import com.reznichenko.library.server.service.LibraryView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over the words of book names and authors, kept up to date as a
+ * {@link DataBaseListener}. Every book gets a document number, increasing in the order the
+ * books were added, and each word maps to the sorted numbers of the books it appears in.
+ * <p>
+ * A query matches the books that contain all of its words, the last one taken as a prefix, so
+ * that results show up while the user is still typing. A word found in the name scores
+ * {@value NAME_WEIGHT}, one in the author {@value AUTHOR_WEIGHT}; ties go to the older book.
+ * The posting lists are walked in place, those of the words a prefix expands to merged through
+ * a heap, and the walk stops once the page is filled with books nothing later can outrank.
+ * <p>
+ * Deleted books are only marked as such, a posting list is compacted once half of it is dead.
+ * Once half of the documents are, a background thread renumbers a copy of the index and swaps
+ * it in, replaying the changes made meanwhile.
+ */
+public class SearchIndex implements DataBaseListener {
+
+    static final int NAME_WEIGHT = 2;
+    static final int AUTHOR_WEIGHT = 1;
+    // the deepest a page may go: the search keeps every hit up to the end of the page in a heap
+    static final int MAX_RESULTS = 10_000;
+    private static final int NONE = Integer.MAX_VALUE;
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchIndex.class);
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // guarded by lock
+    private Generation current = new Generation(1024);
+    // documents of current deleted or given another code while it is being renumbered, null otherwise
+    private List<Integer> touched;
+
+    public void addAll(LibraryView view) {
+        lock.writeLock().lock();
+        try {
+            view.forEachBook(book -> current.add(book.getCode(), book.getName(), book.getAuthor()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void onBookAdded(Book book) {
+        lock.writeLock().lock();
+        try {
+            current.add(book.getCode(), book.getName(), book.getAuthor());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void onBookDeleted(String code) {
+        lock.writeLock().lock();
+        try {
+            Integer document = current.codeToDocument.get(code);
+            if (document == null) {
+                return;
+            }
+            current.delete(document);
+            if (touched != null) {
+                touched.add(document);
+            } else if (current.documents > 1024 && current.codeToDocument.size() * 2 < current.documents) {
+                startRenumbering();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void onCodeChanged(String oldCode, String newCode) {
+        lock.writeLock().lock();
+        try {
+            Integer document = current.codeToDocument.get(oldCode);
+            if (document != null) {
+                current.recode(document, newCode);
+                if (touched != null) {
+                    touched.add(document);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return current.codeToDocument.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param page 0-based
+     */
+    public SearchResult search(String query, int page, int size) {
+        if ((long) page * size + size > MAX_RESULTS) {
+            throw new IllegalArgumentException("only the first " + MAX_RESULTS + " hits can be paged through");
+        }
+        List<String> words = new ArrayList<>(tokenize(query));
+        if (words.isEmpty()) {
+            return new SearchResult(0, true, page, size, List.of());
+        }
+        lock.readLock().lock();
+        try {
+            return current.search(words, page, size);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // under the write lock; only the codes are copied, names and authors of the documents there are stay put
+    private void startRenumbering() {
+        Generation from = current;
+        int upTo = from.documents;
+        String[] codes = Arrays.copyOf(from.codes, upTo);
+        String[] names = from.names;
+        String[] authors = from.authors;
+        touched = new ArrayList<>();
+        Thread thread = new Thread(() -> {
+            try {
+                renumber(from, upTo, codes, names, authors);
+            } catch (RuntimeException | Error e) {
+                LOG.error("couldn't renumber the search index", e);
+                lock.writeLock().lock();
+                try {
+                    touched = null;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }, "search-renumber");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void renumber(Generation from, int upTo, String[] codes, String[] names, String[] authors) {
+        Generation next = new Generation(Math.max(1024, upTo));
+        // by document number in from, -1 if it was already deleted
+        int[] numbers = new int[upTo];
+        for (int i = 0; i < upTo; i++) {
+            numbers[i] = codes[i] == null ? -1 : next.add(codes[i], names[i], authors[i]);
+        }
+        lock.writeLock().lock();
+        try {
+            for (int document : touched) {
+                if (document >= upTo || numbers[document] < 0) {
+                    continue;
+                }
+                String code = from.codes[document];
+                if (code == null) {
+                    next.delete(numbers[document]);
+                } else {
+                    next.recode(numbers[document], code);
+                }
+            }
+            for (int i = upTo; i < from.documents; i++) {
+                if (from.codes[i] != null) {
+                    next.add(from.codes[i], from.names[i], from.authors[i]);
+                }
+            }
+            current = next;
+            touched = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    static Set<String> tokenize(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean part = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (part && start < 0) {
+                start = i;
+            } else if (!part && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    // the count largest keys in descending order, out of a min-heap of that size
+    private static long[] sorted(long[] heap, int count) {
+        Arrays.sort(heap, 0, count);
+        long[] result = new long[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = heap[count - 1 - i];
+        }
+        return result;
+    }
+
+    private static void siftUp(long[] heap, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heap[parent] <= heap[i]) {
+                return;
+            }
+            long swap = heap[parent];
+            heap[parent] = heap[i];
+            heap[i] = swap;
+            i = parent;
+        }
+    }
+
+    private static void siftDown(long[] heap, int size) {
+        int i = 0;
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && heap[left] < heap[smallest]) {
+                smallest = left;
+            }
+            if (right < size && heap[right] < heap[smallest]) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            long swap = heap[smallest];
+            heap[smallest] = heap[i];
+            heap[i] = swap;
+            i = smallest;
+        }
+    }
+
+    // the documents and their postings, numbered from 0 with no gaps when built
+    private static final class Generation {
+        private final Map<String, Integer> codeToDocument = new HashMap<>();
+        private final NavigableMap<String, Posting> nameTerms = new TreeMap<>();
+        private final NavigableMap<String, Posting> authorTerms = new TreeMap<>();
+        // by document number, the code is null once the book is deleted; names and authors stay until renumbered
+        private String[] codes;
+        private String[] names;
+        private String[] authors;
+        private int documents;
+
+        private Generation(int capacity) {
+            codes = new String[capacity];
+            names = new String[capacity];
+            authors = new String[capacity];
+        }
+
+        // the number of the document, -1 if the code is already in
+        private int add(String code, String name, String author) {
+            if (codeToDocument.containsKey(code)) {
+                return -1;
+            }
+            if (documents == codes.length) {
+                codes = Arrays.copyOf(codes, documents * 2);
+                names = Arrays.copyOf(names, documents * 2);
+                authors = Arrays.copyOf(authors, documents * 2);
+            }
+            int document = documents++;
+            codes[document] = code;
+            names[document] = name;
+            authors[document] = author;
+            codeToDocument.put(code, document);
+            for (String word : tokenize(name)) {
+                nameTerms.computeIfAbsent(word, w -> new Posting()).add(document);
+            }
+            for (String word : tokenize(author)) {
+                authorTerms.computeIfAbsent(word, w -> new Posting()).add(document);
+            }
+            return document;
+        }
+
+        private void delete(int document) {
+            if (codes[document] == null) {
+                return;
+            }
+            codeToDocument.remove(codes[document], document);
+            codes[document] = null;
+            for (String word : tokenize(names[document])) {
+                nameTerms.get(word).onDeleted(nameTerms, word, codes);
+            }
+            for (String word : tokenize(authors[document])) {
+                authorTerms.get(word).onDeleted(authorTerms, word, codes);
+            }
+        }
+
+        private void recode(int document, String code) {
+            if (codes[document] == null || codes[document].equals(code)) {
+                return;
+            }
+            // while changes are replayed two documents may have the same code for a moment
+            codeToDocument.remove(codes[document], document);
+            codes[document] = code;
+            codeToDocument.put(code, document);
+        }
+
+        private SearchResult search(List<String> words, int page, int size) {
+            Union[] unions = new Union[words.size()];
+            int maxScore = 0;
+            for (int i = 0; i < unions.length; i++) {
+                unions[i] = lookup(words.get(i), i == unions.length - 1);
+                if (unions[i].document() == NONE) {
+                    return new SearchResult(0, true, page, size, List.of());
+                }
+                maxScore += unions[i].weights;
+            }
+            long from = (long) page * size;
+            // score in the high half, the reversed document number in the low one: larger is better
+            long[] heap = new long[(int) Math.min(from + size, codeToDocument.size())];
+            int kept = 0;
+            int total = 0;
+            boolean exact = true;
+            int candidate = unions[0].document();
+            while (candidate != NONE) {
+                // every word on the same document, each skipping ahead to the one the others are on
+                int agreed = 0;
+                for (int i = 0; agreed < unions.length; i = (i + 1) % unions.length) {
+                    unions[i].advance(candidate);
+                    if (unions[i].document() == candidate) {
+                        agreed++;
+                    } else {
+                        candidate = unions[i].document();
+                        agreed = candidate == NONE ? unions.length : 1;
+                    }
+                }
+                if (candidate == NONE) {
+                    break;
+                }
+                total++;
+                long score = 0;
+                for (Union union : unions) {
+                    score += union.consume();
+                }
+                long key = score << 32 | (Integer.MAX_VALUE - candidate);
+                if (kept < heap.length) {
+                    heap[kept] = key;
+                    siftUp(heap, kept++);
+                } else if (key > heap[0]) {
+                    heap[0] = key;
+                    siftDown(heap, kept);
+                }
+                // later documents lose the ties, so none can get in any more
+                if (kept == heap.length && heap[0] >>> 32 == maxScore) {
+                    exact = unions[0].document() == NONE;
+                    break;
+                }
+                candidate = unions[0].document();
+            }
+            long[] best = sorted(heap, kept);
+            List<SearchResult.Hit> hits = new ArrayList<>();
+            for (long i = from; i < best.length; i++) {
+                int document = Integer.MAX_VALUE - (int) best[(int) i];
+                hits.add(new SearchResult.Hit(codes[document], names[document], authors[document],
+                        (int) (best[(int) i] >>> 32)));
+            }
+            return new SearchResult(total, exact, page, size, hits);
+        }
+
+        // live documents containing the word, or any word starting with it
+        private Union lookup(String word, boolean prefix) {
+            List<Cursor> cursors = new ArrayList<>();
+            if (prefix) {
+                String to = word + Character.MAX_VALUE;
+                for (Posting posting : nameTerms.subMap(word, true, to, false).values()) {
+                    cursors.add(new Cursor(posting, NAME_WEIGHT, codes));
+                }
+                for (Posting posting : authorTerms.subMap(word, true, to, false).values()) {
+                    cursors.add(new Cursor(posting, AUTHOR_WEIGHT, codes));
+                }
+            } else {
+                Posting inName = nameTerms.get(word);
+                if (inName != null) {
+                    cursors.add(new Cursor(inName, NAME_WEIGHT, codes));
+                }
+                Posting inAuthor = authorTerms.get(word);
+                if (inAuthor != null) {
+                    cursors.add(new Cursor(inAuthor, AUTHOR_WEIGHT, codes));
+                }
+            }
+            return new Union(cursors);
+        }
+    }
+
+    // sorted document numbers, some of which may belong to deleted books
+    private static final class Posting {
+        private int[] documents = new int[2];
+        private int size;
+        private int dead;
+
+        // documents are numbered in increasing order, so appending keeps it sorted
+        private void add(int document) {
+            if (size == documents.length) {
+                documents = Arrays.copyOf(documents, size * 2);
+            }
+            documents[size++] = document;
+        }
+
+        // called once the document is marked deleted in codes
+        private void onDeleted(Map<String, Posting> terms, String word, String[] codes) {
+            dead++;
+            if (dead == size) {
+                terms.remove(word);
+            } else if (dead * 2 > size) {
+                int k = 0;
+                for (int i = 0; i < size; i++) {
+                    if (codes[documents[i]] != null) {
+                        documents[k++] = documents[i];
+                    }
+                }
+                size = k;
+                dead = 0;
+            }
+        }
+    }
+
+    // the live documents of a posting, read where they are
+    private static final class Cursor {
+        private final int[] documents;
+        private final int size;
+        private final int weight;
+        private final String[] codes;
+        private int position = -1;
+        private int document;
+
+        private Cursor(Posting posting, int weight, String[] codes) {
+            this.documents = posting.documents;
+            this.size = posting.size;
+            this.weight = weight;
+            this.codes = codes;
+            next();
+        }
+
+        // to the next live document, NONE past the last one
+        private void next() {
+            position++;
+            settle();
+        }
+
+        // to the first live document at or after the target, galloping then bisecting
+        private void seek(int target) {
+            int bound = 1;
+            while (position + bound < size && documents[position + bound] < target) {
+                bound <<= 1;
+            }
+            int found = Arrays.binarySearch(documents, position + (bound >> 1), Math.min(position + bound, size), target);
+            position = found >= 0 ? found : -found - 1;
+            settle();
+        }
+
+        private void settle() {
+            while (position < size && codes[documents[position]] == null) {
+                position++;
+            }
+            document = position < size ? documents[position] : NONE;
+        }
+    }
+
+    // the cursors of a word's postings merged through a min-heap by their document
+    private static final class Union {
+        private final Cursor[] heap;
+        private int size;
+        // what a document found through all of them would score
+        private final int weights;
+
+        private Union(List<Cursor> cursors) {
+            heap = new Cursor[cursors.size()];
+            int weights = 0;
+            for (Cursor cursor : cursors) {
+                weights |= cursor.weight;
+                if (cursor.document != NONE) {
+                    heap[size++] = cursor;
+                }
+            }
+            this.weights = weights;
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        private int document() {
+            return size == 0 ? NONE : heap[0].document;
+        }
+
+        private void advance(int target) {
+            while (size > 0 && heap[0].document < target) {
+                heap[0].seek(target);
+                settleTop();
+            }
+        }
+
+        // the score of the current document, found in a name, an author or both; moves past it
+        private int consume() {
+            int document = document();
+            int score = 0;
+            while (size > 0 && heap[0].document == document) {
+                score |= heap[0].weight;
+                heap[0].next();
+                settleTop();
+            }
+            return score;
+        }
+
+        private void settleTop() {
+            if (heap[0].document == NONE) {
+                heap[0] = heap[--size];
+                heap[size] = null;
+            }
+            if (size > 0) {
+                siftDown(0);
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < size && heap[left].document < heap[smallest].document) {
+                    smallest = left;
+                }
+                if (right < size && heap[right].document < heap[smallest].document) {
+                    smallest = right;
+                }
+                if (smallest == i) {
+                    return;
+                }
+                Cursor swap = heap[smallest];
+                heap[smallest] = heap[i];
+                heap[i] = swap;
+                i = smallest;
+            }
+        }
+    }
+}
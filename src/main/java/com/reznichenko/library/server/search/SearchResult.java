@@ -0,0 +1,72 @@
+package com.reznichenko.library.server.search;
+
+import java.util.List;
+
+public class SearchResult {
+
+    private final int total;
+    private final boolean totalExact;
+    private final int page;
+    private final int size;
+    private final List<Hit> hits;
+
+    SearchResult(int total, boolean totalExact, int page, int size, List<Hit> hits) {
+        this.total = total;
+        this.totalExact = totalExact;
+        this.page = page;
+        this.size = size;
+        this.hits = hits;
+    }
+
+    // number of matching books, on all the pages
+    public int getTotal() {
+        return total;
+    }
+
+    // false if the search stopped as soon as the page was certain, the total then counting the books found up to there
+    public boolean isTotalExact() {
+        return totalExact;
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public List<Hit> getHits() {
+        return hits;
+    }
+
+    public static class Hit {
+        private final String code;
+        private final String name;
+        private final String author;
+        private final int score;
+
+        Hit(String code, String name, String author, int score) {
+            this.code = code;
+            this.name = name;
+            this.author = author;
+            this.score = score;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public int getScore() {
+            return score;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.reznichenko.library.server.service;
+
+import com.reznichenko.library.server.collection.LinkedIdentitySet;
+import com.reznichenko.library.server.entity.Book;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A page of a visitor's borrowed books, in the order they were lent, and the cursor the next
+ * page starts after. The cursor names the last book of the page and its position in the
+ * visitor's list, as the store numbers it: the store resumes right after the book while the
+ * visitor still has it, and at the position when the book has been returned in between.
+ * Books lent after the first page was taken show up on the last one.
+ */
+public final class BookPage {
+
+    private final List<Book> books;
+    private final Cursor next;
+
+    public BookPage(List<Book> books, Cursor next) {
+        this.books = books;
+        this.next = next;
+    }
+
+    public List<Book> getBooks() {
+        return books;
+    }
+
+    // null on the last page
+    public Cursor getNext() {
+        return next;
+    }
+
+    // the page after the cursor of the whole list, positions being 1-based indices into it
+    static BookPage of(List<Book> borrowed, Cursor after, int limit) {
+        int from = 0;
+        if (after != null) {
+            long position = after.getPosition();
+            if (position > 0 && position <= borrowed.size()
+                    && borrowed.get((int) position - 1).getCode().equals(after.getCode())) {
+                from = (int) position;
+            } else {
+                from = (int) Math.min(Math.max(position, 0), borrowed.size());
+                for (int i = 0; i < borrowed.size(); i++) {
+                    if (borrowed.get(i).getCode().equals(after.getCode())) {
+                        from = i + 1;
+                        break;
+                    }
+                }
+            }
+        }
+        int to = (int) Math.min((long) from + limit, borrowed.size());
+        List<Book> books = new ArrayList<>(borrowed.subList(from, to));
+        return new BookPage(books, to == borrowed.size() ? null : new Cursor(to, borrowed.get(to - 1).getCode()));
+    }
+
+    // the page after the cursor of the set, positions being the numbers the set gives its elements;
+    // last is the book the cursor names, if it is still in the catalog
+    static BookPage of(LinkedIdentitySet<Book> borrowed, Book last, Cursor after, int limit) {
+        List<Book> books = new ArrayList<>(Math.min(limit, borrowed.size()));
+        long next = borrowed.forEachAfter(after == null ? 0 : after.getPosition(), last, limit, books::add);
+        return new BookPage(books, next == 0 ? null : new Cursor(next, books.get(books.size() - 1).getCode()));
+    }
+
+    /**
+     * Opaque to clients, written as {@code position:code}.
+     */
+    public static final class Cursor {
+
+        private final long position;
+        private final String code;
+
+        public Cursor(long position, String code) {
+            this.position = position;
+            this.code = Objects.requireNonNull(code);
+        }
+
+        /**
+         * @throws IllegalArgumentException if the text isn't a cursor
+         */
+        public static Cursor parse(String text) {
+            int colon = text.indexOf(':');
+            if (colon > 0) {
+                try {
+                    return new Cursor(Long.parseLong(text.substring(0, colon)), text.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    // reported below
+                }
+            }
+            throw new IllegalArgumentException("malformed cursor: " + text);
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Cursor cursor = (Cursor) o;
+            return position == cursor.position && code.equals(cursor.code);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(position, code);
+        }
+
+        @Override
+        public String toString() {
+            return position + ":" + code;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.reznichenko.library.server.service;
+
+import com.reznichenko.library.server.entity.Book;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Versions behind the ETags of a book's name and author. Codes are hashed onto a fixed number of
+ * stripes, and adding, deleting or renaming a book moves its stripe to a version never used
+ * before, so the memory doesn't grow with deleted codes; a change only costs the other codes of
+ * its stripe a refetch. Lending and returning don't touch the versions.
+ */
+public class CatalogVersions implements DataBaseListener {
+
+    private static final int STRIPES = 1 << 16;
+
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+    private final AtomicLong clock = new AtomicLong();
+    // tags handed out before a restart mean nothing afterwards
+    private final String epoch = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+
+    /**
+     * Read it before the value it tags: a change in between then costs a refetch instead of
+     * leaving an old value under a current tag.
+     */
+    public String tag(String code) {
+        return '"' + epoch + '-' + Long.toString(versions.get(stripe(code)), 36) + '"';
+    }
+
+    // whether an If-None-Match header lists the tag; weak tags compare equal to strong ones
+    public static boolean matches(String ifNoneMatch, String tag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(tag) || candidate.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void onBookAdded(Book book) {
+        bump(book.getCode());
+    }
+
+    @Override
+    public void onBookDeleted(String code) {
+        bump(code);
+    }
+
+    @Override
+    public void onCodeChanged(String oldCode, String newCode) {
+        bump(oldCode);
+        bump(newCode);
+    }
+
+    // every version comes from the clock once, so racing bumps can't bring back an old tag
+    private void bump(String code) {
+        versions.set(stripe(code), clock.incrementAndGet());
+    }
+
+    private static int stripe(String code) {
+        int hash = code.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+}
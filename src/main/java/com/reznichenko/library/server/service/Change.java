@@ -0,0 +1,353 @@
+package com.reznichenko.library.server.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.exception.TransactionUndoException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * One change of a transaction, see {@link DataBase#tryTransaction}. Visitors can't be added
+ * in a transaction: their ids are handed out by the store, so there would be nothing to refer
+ * to them by in the later changes.
+ */
+public final class Change {
+
+    public enum Type {
+        ADD_BOOK("add-book"),
+        DELETE_BOOK("delete-book"),
+        CHANGE_CODE("change-code"),
+        LEND_BOOK("lend-book"),
+        RECEIVE_BOOK("receive");
+
+        private final String name;
+
+        Type(String name) {
+            this.name = name;
+        }
+
+        // the same as the path of the single request
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final Type type;
+    private final String code;
+    // the new code of CHANGE_CODE
+    private final String newCode;
+    private final String author;
+    private final String name;
+    private final long visitorId;
+
+    private Change(Type type, String code, String newCode, String author, String name, long visitorId) {
+        this.type = type;
+        this.code = Objects.requireNonNull(code, "code");
+        this.newCode = newCode;
+        this.author = author;
+        this.name = name;
+        this.visitorId = visitorId;
+    }
+
+    public static Change addBook(Book book) {
+        return new Change(Type.ADD_BOOK, book.getCode(), null, book.getAuthor(), book.getName(), -1);
+    }
+
+    public static Change deleteBook(String code) {
+        return new Change(Type.DELETE_BOOK, code, null, null, null, -1);
+    }
+
+    public static Change changeCode(String oldCode, String newCode) {
+        return new Change(Type.CHANGE_CODE, oldCode, Objects.requireNonNull(newCode, "new code"), null, null, -1);
+    }
+
+    public static Change lendBook(long visitorId, String code) {
+        return new Change(Type.LEND_BOOK, code, null, null, null, visitorId);
+    }
+
+    public static Change receiveBook(String code) {
+        return new Change(Type.RECEIVE_BOOK, code, null, null, null, -1);
+    }
+
+    /**
+     * Reads a change from the body of {@code POST /transaction}: {@code op} is the path of the
+     * single request and the other fields are its parameters, e.g.
+     * {@code {"op": "lend-book", "id": 7, "code": "A-1"}}.
+     *
+     * @throws IllegalArgumentException if the change is unknown or misses a parameter
+     */
+    public static Change fromJson(JsonNode node) {
+        String op = text(node, "op");
+        switch (op) {
+            case "add-book":
+                return addBook(new Book(text(node, "code"), text(node, "author"), text(node, "name")));
+            case "delete-book":
+                return deleteBook(text(node, "code"));
+            case "change-code":
+                return changeCode(text(node, "old"), text(node, "new"));
+            case "lend-book":
+                return lendBook(id(node), text(node, "code"));
+            case "receive":
+                return receiveBook(text(node, "code"));
+            default:
+                throw new IllegalArgumentException("unknown op: " + op);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the body isn't an array of changes
+     */
+    public static List<Change> listFromJson(JsonNode body) {
+        if (body == null || !body.isArray()) {
+            throw new IllegalArgumentException("a transaction is a JSON array of changes");
+        }
+        List<Change> changes = new ArrayList<>(body.size());
+        for (JsonNode node : body) {
+            changes.add(fromJson(node));
+        }
+        return changes;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    // the book the change is about; the old code of CHANGE_CODE
+    public String getCode() {
+        return code;
+    }
+
+    // null unless CHANGE_CODE
+    public String getNewCode() {
+        return newCode;
+    }
+
+    // null unless ADD_BOOK
+    public Book getBook() {
+        return type == Type.ADD_BOOK ? new Book(code, author, name) : null;
+    }
+
+    // -1 unless LEND_BOOK
+    public long getVisitorId() {
+        return visitorId;
+    }
+
+    // the same as the single call
+    public Outcome<Void> applyTo(DataBase db) {
+        switch (type) {
+            case ADD_BOOK:
+                return db.tryAddBook(getBook());
+            case DELETE_BOOK:
+                return db.tryDeleteBook(code);
+            case CHANGE_CODE:
+                return db.tryChangeCode(code, newCode);
+            case LEND_BOOK:
+                return db.tryLendBook(visitorId, code);
+            case RECEIVE_BOOK:
+                return db.tryReceiveReturnedBook(code);
+            default:
+                throw new IllegalStateException("unknown change " + type);
+        }
+    }
+
+    /**
+     * Applies the changes one by one and, when one fails or throws, undoes the ones before it in
+     * reverse order. All or nothing only if no one else changes the same books meanwhile, so a
+     * store calls it holding the lock that keeps everyone else out. A change that throws, e.g.
+     * because a shard is unreachable, may or may not have been made; its exception is rethrown
+     * once the others are undone. A book lent back by an undo is put back where it was in its
+     * visitor's list, so that the list reads as before, cursors into it included.
+     *
+     * @return the failure of the first change that couldn't be applied, see {@link #failed}
+     * @throws TransactionUndoException if some of the changes couldn't be undone
+     */
+    public static Outcome<Void> applyInOrder(DataBase db, List<Change> changes) {
+        // read before each change is applied, so that it can be undone without a closure per change
+        Overwritten[] overwritten = new Overwritten[changes.size()];
+        for (int i = 0; i < changes.size(); i++) {
+            Change change = changes.get(i);
+            Outcome<Void> outcome;
+            try {
+                overwritten[i] = change.overwritten(db);
+                outcome = change.applyTo(db);
+                if (outcome.isOk()) {
+                    continue;
+                }
+            } catch (RuntimeException e) {
+                String failures = undo(db, changes, overwritten, i);
+                if (failures.isEmpty()) {
+                    throw e;
+                }
+                throw new TransactionUndoException("change " + i + " failed: " + e.getMessage()
+                        + ", and the changes before it couldn't all be undone: " + failures, e);
+            }
+            String failures = undo(db, changes, overwritten, i);
+            if (!failures.isEmpty()) {
+                throw new TransactionUndoException("change " + i + ": " + outcome.getMessage()
+                        + ", and the changes before it couldn't all be undone: " + failures, null);
+            }
+            return failed(i, outcome);
+        }
+        return Outcome.done();
+    }
+
+    // undoes the first count changes in reverse order; the failures of the undo, an empty string if there were none
+    private static String undo(DataBase db, List<Change> changes, Overwritten[] overwritten, int count) {
+        StringBuilder failures = new StringBuilder();
+        for (int j = count - 1; j >= 0; j--) {
+            String failure;
+            try {
+                Outcome<Void> outcome = changes.get(j).undo(db, overwritten[j]);
+                failure = outcome.isOk() ? null : outcome.getMessage();
+            } catch (RuntimeException e) {
+                failure = String.valueOf(e.getMessage());
+            }
+            if (failure != null) {
+                failures.append(failures.length() == 0 ? "" : "; ").append("change ").append(j).append(": ").append(failure);
+            }
+        }
+        return failures.toString();
+    }
+
+    // tells which change of the transaction failed, keeping the status of its own failure
+    public static <T> Outcome<T> failed(int index, Outcome<?> outcome) {
+        return Outcome.failure(outcome.getStatus(), "change " + index + ": " + outcome.getMessage());
+    }
+
+    // the state this change is about to overwrite, null if undoing it needs nothing but the change
+    private Overwritten overwritten(DataBase db) {
+        switch (type) {
+            case DELETE_BOOK: {
+                Outcome<String> author = db.tryGetBookAuthor(code);
+                Outcome<String> name = db.tryGetBookName(code);
+                Outcome<Long> owner = db.tryGetOwner(code);
+                if (!author.isOk() || !name.isOk() || !owner.isOk()) {
+                    // the deletion is going to fail
+                    return null;
+                }
+                return new Overwritten(new Book(code, author.getValue(), name.getValue()), owner.getValue(),
+                        booksAfter(db, owner.getValue(), code));
+            }
+            case RECEIVE_BOOK: {
+                Outcome<Long> owner = db.tryGetOwner(code);
+                return owner.isOk() && owner.getValue() >= 0
+                        ? new Overwritten(null, owner.getValue(), booksAfter(db, owner.getValue(), code))
+                        : null;
+            }
+            default:
+                return null;
+        }
+    }
+
+    private Outcome<Void> undo(DataBase db, Overwritten overwritten) {
+        switch (type) {
+            case ADD_BOOK:
+                return db.tryDeleteBook(code);
+            case DELETE_BOOK: {
+                if (overwritten == null) {
+                    return Outcome.done();
+                }
+                Outcome<Void> added = db.tryAddBook(overwritten.book);
+                return added.isOk() && overwritten.owner >= 0 ? lendBack(db, overwritten) : added;
+            }
+            case CHANGE_CODE:
+                return db.tryChangeCode(newCode, code);
+            case LEND_BOOK:
+                return db.tryReceiveReturnedBook(code);
+            case RECEIVE_BOOK:
+                return overwritten == null ? Outcome.done() : lendBack(db, overwritten);
+            default:
+                throw new IllegalStateException("unknown change " + type);
+        }
+    }
+
+    // the codes of the books that come after this one in its owner's list
+    private static List<String> booksAfter(DataBase db, long owner, String code) {
+        Outcome<List<Book>> books = db.tryGetBorrowedBooks(owner);
+        List<String> after = new ArrayList<>();
+        boolean found = false;
+        for (Book book : books.isOk() ? books.getValue() : List.<Book>of()) {
+            if (found) {
+                after.add(book.getCode());
+            } else {
+                found = book.getCode().equals(code);
+            }
+        }
+        return after;
+    }
+
+    // a lend puts the book at the end of the list, so the books that came after it are lent again after it
+    private Outcome<Void> lendBack(DataBase db, Overwritten overwritten) {
+        Outcome<Void> outcome = db.tryLendBook(overwritten.owner, code);
+        for (int i = 0; outcome.isOk() && i < overwritten.after.size(); i++) {
+            String next = overwritten.after.get(i);
+            outcome = db.tryReceiveReturnedBook(next);
+            if (outcome.isOk()) {
+                outcome = db.tryLendBook(overwritten.owner, next);
+            }
+        }
+        return outcome;
+    }
+
+    private static String text(JsonNode node, String field) {
+        JsonNode value = node.get(field);
+        if (value == null || value.isNull() || value.isContainerNode()) {
+            throw new IllegalArgumentException("change " + node + " misses " + field);
+        }
+        return value.asText();
+    }
+
+    private static long id(JsonNode node) {
+        String id = text(node, "id");
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("id must be a number: " + id);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Change change = (Change) o;
+        return visitorId == change.visitorId && type == change.type && code.equals(change.code)
+                && Objects.equals(newCode, change.newCode) && Objects.equals(author, change.author)
+                && Objects.equals(name, change.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, code, newCode, visitorId);
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case ADD_BOOK:
+                return type.name + " " + getBook();
+            case CHANGE_CODE:
+                return type.name + " " + code + " -> " + newCode;
+            case LEND_BOOK:
+                return type.name + " " + code + " to " + visitorId;
+            default:
+                return type.name + " " + code;
+        }
+    }
+
+    // a deleted book and its owner, or the owner of a returned book; -1 for a book in the library
+    private static final class Overwritten {
+        private final Book book;
+        private final long owner;
+        // the codes of the books after it in the owner's list
+        private final List<String> after;
+
+        private Overwritten(Book book, long owner, List<String> after) {
+            this.book = book;
+            this.owner = owner;
+            this.after = after;
+        }
+    }
+}
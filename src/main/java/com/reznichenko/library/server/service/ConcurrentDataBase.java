@@ -0,0 +1,702 @@
+package com.reznichenko.library.server.service;
+
+import com.reznichenko.library.server.collection.ConcurrentLongObjectHashMap;
+import com.reznichenko.library.server.collection.LinkedIdentitySet;
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.StringDictionary;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.id.BlockIdAllocator;
+import com.reznichenko.library.server.id.IdAllocator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Same contract as {@link MapDataBase}, but without the global monitor: reads never block,
+ * ownership of a book is switched by compare-and-set on its own entry and a visitor's
+ * list of borrowed books is guarded by that visitor only.
+ * <p>
+ * Deleting a book, changing its code and committing a transaction go through a {@link Transaction}:
+ * it works out its result from the values it reads, then locks what it read by swapping each
+ * owner for a {@link Locked} that holds the owner both before and after, checks that what it
+ * read is still the same and commits with one volatile write, or starts over; a code it needs to
+ * stay free is held by a placeholder entry. Readers never wait on a lock: a locked entry reads as
+ * it was before the commit or as it is after it, so a transaction is seen whole or not at all.
+ * Writers that meet one wait for it to be given back, spinning briefly and then parking. The
+ * lists of borrowed books follow the owners right after the commit, each under its visitor.
+ */
+public class ConcurrentDataBase implements DataBase {
+
+    // marks an entry that was deleted from the catalog, so that a racing lend can't resurrect it
+    private static final Visitor DELETED = new Visitor(-1, "", "");
+    // the most changes tryLending looks through for a book changed twice
+    private static final int SMALL_TRANSACTION = 16;
+    // how long a writer spins, then yields, before it parks waiting for another writer's lock
+    private static final int SPINS = 100;
+    private static final int YIELDS = 10;
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final ConcurrentMap<String, BookEntry> codeToEntry = new ConcurrentHashMap<>();
+    private final ConcurrentLongObjectHashMap<LinkedIdentitySet<Book>> borrowedBooks = new ConcurrentLongObjectHashMap<>();
+    private final ConcurrentLongObjectHashMap<Visitor> visitors = new ConcurrentLongObjectHashMap<>();
+    private final IdAllocator ids;
+    private final StringDictionary authors = new StringDictionary();
+    private final StringDictionary names = new StringDictionary();
+
+    public ConcurrentDataBase() {
+        this(new BlockIdAllocator());
+    }
+
+    public ConcurrentDataBase(IdAllocator ids) {
+        this.ids = ids;
+    }
+
+    @Override
+    public List<Book> getBorrowedBooks(long id) throws NoSuchVisitorException {
+        return tryGetBorrowedBooks(id).throwIfNoSuchVisitor().getValue();
+    }
+
+    @Override
+    public String getBookName(String code) throws NoSuchBookException {
+        return tryGetBookName(code).throwIfNoSuchBook().getValue();
+    }
+
+    @Override
+    public String getBookAuthor(String code) throws NoSuchBookException {
+        return tryGetBookAuthor(code).throwIfNoSuchBook().getValue();
+    }
+
+    @Override
+    public long addVisitor(String name, String surname) {
+        long id;
+        do {
+            id = ids.nextId();
+        } while (borrowedBooks.putIfAbsent(id, new LinkedIdentitySet<>()) != null);
+        Visitor visitor = new Visitor(id, name, surname);
+        visitor.shareNames(names);
+        visitors.put(id, visitor);
+        return id;
+    }
+
+    @Override
+    public void restoreVisitor(Visitor visitor) {
+        ids.observe(visitor.getId());
+        borrowedBooks.putIfAbsent(visitor.getId(), new LinkedIdentitySet<>());
+        visitor.shareNames(names);
+        visitors.put(visitor.getId(), visitor);
+    }
+
+    @Override
+    public void addBook(Book book) throws BookAlreadyExistsException {
+        tryAddBook(book).throwIfAlreadyExists();
+    }
+
+    @Override
+    public void deleteBook(String code) throws NoSuchBookException {
+        tryDeleteBook(code).throwIfNoSuchBook();
+    }
+
+    @Override
+    public void changeCode(String oldCode, String newCode) throws NoSuchBookException, BookAlreadyExistsException {
+        tryChangeCode(oldCode, newCode).throwIfAlreadyExists().throwIfNoSuchBook();
+    }
+
+    @Override
+    public void lendBook(long visitorId, String code) throws NoSuchBookException, BookAlreadyBorrowedException, NoSuchVisitorException {
+        tryLendBook(visitorId, code).throwIfNoSuchBook().throwIfAlreadyBorrowed().throwIfNoSuchVisitor();
+    }
+
+    @Override
+    public void receiveReturnedBook(String code) throws NoSuchBookException {
+        tryReceiveReturnedBook(code).throwIfNoSuchBook();
+    }
+
+    @Override
+    public Outcome<List<Book>> tryGetBorrowedBooks(long id) {
+        if (!hasVisitor(id)) {
+            return Outcome.noSuchVisitor(id);
+        }
+        LinkedIdentitySet<Book> books = borrowedBooks.get(id);
+        synchronized (books) {
+            return Outcome.ok(books.snapshot());
+        }
+    }
+
+    @Override
+    public Outcome<BookPage> tryGetBorrowedPage(long id, BookPage.Cursor after, int limit) {
+        if (!hasVisitor(id)) {
+            return Outcome.noSuchVisitor(id);
+        }
+        BookEntry last = after == null ? null : find(after.getCode());
+        LinkedIdentitySet<Book> books = borrowedBooks.get(id);
+        synchronized (books) {
+            return Outcome.ok(BookPage.of(books, last == null ? null : last.book, after, limit));
+        }
+    }
+
+    @Override
+    public Outcome<String> tryGetBookName(String code) {
+        BookEntry entry = find(code);
+        return entry == null ? Outcome.noSuchBook(code) : Outcome.ok(entry.book.getName());
+    }
+
+    @Override
+    public Outcome<String> tryGetBookAuthor(String code) {
+        BookEntry entry = find(code);
+        return entry == null ? Outcome.noSuchBook(code) : Outcome.ok(entry.book.getAuthor());
+    }
+
+    @Override
+    public Outcome<Void> tryAddBook(Book book) {
+        BookEntry entry = new BookEntry(book, null);
+        BookEntry present;
+        for (int attempt = 0; (present = codeToEntry.putIfAbsent(book.getCode(), entry)) != null; attempt++) {
+            if (!present.isPlaceholder()) {
+                return alreadyExists(book.getCode());
+            }
+            backOff(attempt);
+        }
+        book.shareAuthor(authors);
+        return Outcome.done();
+    }
+
+    @Override
+    public Outcome<Void> tryDeleteBook(String code) {
+        return transact(Change.deleteBook(code));
+    }
+
+    @Override
+    public Outcome<Void> tryChangeCode(String oldCode, String newCode) {
+        return transact(Change.changeCode(oldCode, newCode));
+    }
+
+    @Override
+    public Outcome<Void> tryLendBook(long visitorId, String code) {
+        BookEntry entry = find(code);
+        if (entry == null) {
+            return Outcome.noSuchBook(code);
+        }
+        while (true) {
+            Visitor owner = awaitOwner(entry);
+            if (owner == DELETED) {
+                return Outcome.noSuchBook(code);
+            }
+            if (owner != null) {
+                return Outcome.alreadyBorrowed(code, owner.getId());
+            }
+            if (!hasVisitor(visitorId)) {
+                return Outcome.noSuchVisitor(visitorId);
+            }
+            LinkedIdentitySet<Book> books = borrowedBooks.get(visitorId);
+            synchronized (books) {
+                if (entry.owner.compareAndSet(null, visitors.get(visitorId))) {
+                    books.add(entry.book);
+                    return Outcome.done();
+                }
+            }
+        }
+    }
+
+    @Override
+    public Outcome<Void> tryReceiveReturnedBook(String code) {
+        BookEntry entry = find(code);
+        if (entry == null) {
+            return Outcome.noSuchBook(code);
+        }
+        release(entry);
+        return Outcome.done();
+    }
+
+    @Override
+    public Outcome<Void> tryTransaction(List<Change> changes) {
+        Outcome<Void> lending = changes.size() <= SMALL_TRANSACTION ? tryLending(changes) : null;
+        if (lending != null) {
+            return lending;
+        }
+        for (int attempt = 0; ; attempt++) {
+            Transaction transaction = new Transaction();
+            for (int i = 0; i < changes.size(); i++) {
+                Outcome<Void> outcome = transaction.plan(changes.get(i));
+                if (!outcome.isOk()) {
+                    return Change.failed(i, outcome);
+                }
+            }
+            if (transaction.commit()) {
+                return Outcome.done();
+            }
+            backOff(attempt);
+        }
+    }
+
+    @Override
+    public Outcome<Long> tryGetOwner(String code) {
+        BookEntry entry = find(code);
+        if (entry == null) {
+            return Outcome.noSuchBook(code);
+        }
+        Visitor owner = ownerOf(entry);
+        if (owner == DELETED) {
+            return Outcome.noSuchBook(code);
+        }
+        return Outcome.ok(owner == null ? -1 : owner.getId());
+    }
+
+    // consistent only while no one writes; DurableDataBase checkpoints from its log rather than from this
+    @Override
+    public LibraryView view() {
+        CopiedLibraryView view = new CopiedLibraryView();
+        for (BookEntry entry : codeToEntry.values()) {
+            if (!entry.isPlaceholder()) {
+                view.addBook(entry.book);
+            }
+        }
+        visitors.forEach((id, visitor) -> {
+            LinkedIdentitySet<Book> books = borrowedBooks.get(id);
+            synchronized (books) {
+                view.addVisitor(visitor, books.snapshot());
+            }
+        });
+        return view;
+    }
+
+    /**
+     * A small transaction that only lends and returns books, each at most once: the usual
+     * checkout. Reads, locks and writes the same way as {@link Transaction}, but keeps what it
+     * read in arrays instead of maps and holds no codes, since no code is taken or freed.
+     *
+     * @return null if the transaction is not one of these
+     */
+    private Outcome<Void> tryLending(List<Change> changes) {
+        int size = changes.size();
+        for (Change change : changes) {
+            if (change.getType() != Change.Type.LEND_BOOK && change.getType() != Change.Type.RECEIVE_BOOK) {
+                return null;
+            }
+        }
+        BookEntry[] entries = new BookEntry[size];
+        Visitor[] read = new Visitor[size];
+        Visitor[] owners = new Visitor[size];
+        for (int attempt = 0; ; attempt++) {
+            for (int i = 0; i < size; i++) {
+                Change change = changes.get(i);
+                BookEntry entry;
+                Visitor owner;
+                do {
+                    entry = find(change.getCode());
+                    owner = entry == null ? null : awaitOwner(entry);
+                    // deleted after it was found, the code may be taken again by now
+                } while (owner == DELETED);
+                if (entry == null) {
+                    return Change.failed(i, Outcome.noSuchBook(change.getCode()));
+                }
+                for (int j = 0; j < i; j++) {
+                    if (entries[j] == entry) {
+                        // a book changed twice, the later change has to see the earlier one
+                        return null;
+                    }
+                }
+                if (change.getType() == Change.Type.LEND_BOOK) {
+                    if (owner != null) {
+                        return Change.failed(i, Outcome.alreadyBorrowed(change.getCode(), owner.getId()));
+                    }
+                    if (!hasVisitor(change.getVisitorId())) {
+                        return Change.failed(i, Outcome.noSuchVisitor(change.getVisitorId()));
+                    }
+                    owners[i] = visitors.get(change.getVisitorId());
+                } else {
+                    owners[i] = null;
+                }
+                entries[i] = entry;
+                read[i] = owner;
+            }
+            Commit commit = new Commit();
+            int locked = 0;
+            while (locked < size
+                    && entries[locked].owner.compareAndSet(read[locked], new Locked(commit, read[locked], owners[locked]))) {
+                locked++;
+            }
+            // an entry is moved while locked and its book takes the new code then, so once it is
+            // locked here its book's code tells whether it is still under the code it was found by
+            boolean same = locked == size;
+            for (int i = 0; same && i < size; i++) {
+                same = entries[i].book.getCode().equals(changes.get(i).getCode());
+            }
+            if (same) {
+                commit.done = true;
+                for (int i = 0; i < size; i++) {
+                    if (owners[i] != read[i]) {
+                        if (read[i] != null) {
+                            LinkedIdentitySet<Book> books = borrowedBooks.get(read[i].getId());
+                            synchronized (books) {
+                                books.remove(entries[i].book);
+                            }
+                        }
+                        if (owners[i] != null) {
+                            LinkedIdentitySet<Book> books = borrowedBooks.get(owners[i].getId());
+                            synchronized (books) {
+                                books.add(entries[i].book);
+                            }
+                        }
+                    }
+                    entries[i].owner.set(owners[i]);
+                }
+                return Outcome.done();
+            }
+            for (int i = 0; i < locked; i++) {
+                entries[i].owner.set(read[i]);
+            }
+            backOff(attempt);
+        }
+    }
+
+    // a delete or a change of code: a transaction of one change, so that readers see it whole too
+    private Outcome<Void> transact(Change change) {
+        for (int attempt = 0; ; attempt++) {
+            Transaction transaction = new Transaction();
+            Outcome<Void> outcome = transaction.plan(change);
+            if (!outcome.isOk()) {
+                return outcome;
+            }
+            if (transaction.commit()) {
+                return Outcome.done();
+            }
+            backOff(attempt);
+        }
+    }
+
+    private void release(BookEntry entry) {
+        while (true) {
+            Visitor owner = awaitOwner(entry);
+            if (owner == DELETED || owner == null) {
+                return;
+            }
+            LinkedIdentitySet<Book> books = borrowedBooks.get(owner.getId());
+            synchronized (books) {
+                if (entry.owner.compareAndSet(owner, null)) {
+                    books.remove(entry.book);
+                    return;
+                }
+            }
+        }
+    }
+
+    // the entry under the code as of the last commit: a placeholder reads as the code still free
+    private BookEntry find(String code) {
+        BookEntry entry = codeToEntry.get(code);
+        if (entry == null) {
+            return null;
+        }
+        Object owner = entry.owner.get();
+        if (owner instanceof Locked && ((Locked) owner).commit.done) {
+            // committed, but the codes may not be moved yet
+            return ((Locked) owner).commit.entryAfter(code, entry);
+        }
+        return entry.isPlaceholder() ? null : entry;
+    }
+
+    // the owner as of the last commit, for readers
+    private static Visitor ownerOf(BookEntry entry) {
+        Object owner = entry.owner.get();
+        return owner instanceof Locked ? ((Locked) owner).owner() : (Visitor) owner;
+    }
+
+    // the owner once no one is changing the entry, for writers: they can only swap an owner that is there
+    private static Visitor awaitOwner(BookEntry entry) {
+        Object owner;
+        for (int attempt = 0; (owner = entry.owner.get()) instanceof Locked; attempt++) {
+            backOff(attempt);
+        }
+        return (Visitor) owner;
+    }
+
+    /**
+     * Waits before a writer looks again at what another writer holds. A lock is held only for the
+     * few updates of one change, so the wait starts as a spin, but the holder may be descheduled,
+     * so it goes on with yielding and then parking rather than have the waiters burn a processor.
+     */
+    private static void backOff(int attempt) {
+        if (attempt < SPINS) {
+            Thread.onSpinWait();
+        } else if (attempt < SPINS + YIELDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    private static Outcome<Void> alreadyExists(String code) {
+        return Outcome.failure(Outcome.Status.BOOK_ALREADY_EXISTS, "book with code: " + code + " already exists");
+    }
+
+    private static Outcome<Void> codeTaken(String code) {
+        return Outcome.failure(Outcome.Status.BOOK_ALREADY_EXISTS,
+                "couldn't change code to " + code + ", book with this code already exists");
+    }
+
+    private boolean hasVisitor(long id) {
+        return id >= 0 && visitors.containsKey(id);
+    }
+
+    private static class BookEntry {
+        // null in a placeholder
+        private final Book book;
+        // the visitor who has the book, null if it's free, DELETED, or a Locked while a change is written
+        private final AtomicReference<Object> owner;
+
+        private BookEntry(Book book, Object owner) {
+            this.book = book;
+            this.owner = new AtomicReference<>(owner);
+        }
+
+        private boolean isPlaceholder() {
+            return book == null;
+        }
+    }
+
+    /**
+     * The moment a change of locked entries takes effect for readers.
+     */
+    private static class Commit {
+        volatile boolean done;
+
+        // the entry under the code once done, given the one found there
+        BookEntry entryAfter(String code, BookEntry found) {
+            return found;
+        }
+    }
+
+    // the owner of an entry while a change is written: readers take the one before or after the commit
+    private static final class Locked {
+        private final Commit commit;
+        private final Visitor before;
+        private final Visitor after;
+
+        private Locked(Commit commit, Visitor before, Visitor after) {
+            this.commit = commit;
+            this.before = before;
+            this.after = after;
+        }
+
+        private Visitor owner() {
+            return commit.done ? after : before;
+        }
+    }
+
+    /**
+     * One attempt at a transaction. Planning reads the entries under the codes it touches and
+     * their owners, and works out where each entry ends up; nothing is written until
+     * {@link #lock} has made sure that what was read is still there. Once locked, nothing here
+     * changes, so readers that meet its locks take the codes and owners after the commit from it.
+     */
+    private class Transaction extends Commit {
+        // what was read: the entry under each code touched, null if the code was free
+        private final Map<String, BookEntry> read = new HashMap<>();
+        private final Map<BookEntry, Visitor> readOwners = new IdentityHashMap<>();
+        // what is to be written; owners in the order they were last changed, which is the order the
+        // books join their visitors' lists (entries don't override equals, so this is by identity too)
+        private final Map<String, BookEntry> mapping = new HashMap<>();
+        private final Map<BookEntry, Visitor> owners = new LinkedHashMap<>();
+        // taken by lock(), given back by apply() or unlock()
+        private final List<BookEntry> locked = new ArrayList<>();
+        private final Map<String, BookEntry> placeholders = new HashMap<>();
+
+        private Outcome<Void> plan(Change change) {
+            String code = change.getCode();
+            switch (change.getType()) {
+                case ADD_BOOK: {
+                    if (entryAt(code) != null) {
+                        return alreadyExists(code);
+                    }
+                    // locked with the rest, readers can't get to it before the commit
+                    BookEntry entry = new BookEntry(change.getBook(), null);
+                    mapping.put(code, entry);
+                    owners.put(entry, null);
+                    return Outcome.done();
+                }
+                case DELETE_BOOK: {
+                    BookEntry entry = entryAt(code);
+                    if (entry == null) {
+                        return Outcome.noSuchBook(code);
+                    }
+                    mapping.put(code, null);
+                    setOwner(entry, DELETED);
+                    return Outcome.done();
+                }
+                case CHANGE_CODE: {
+                    if (entryAt(change.getNewCode()) != null) {
+                        return codeTaken(change.getNewCode());
+                    }
+                    BookEntry entry = entryAt(code);
+                    if (entry == null) {
+                        return Outcome.noSuchBook(code);
+                    }
+                    mapping.put(code, null);
+                    mapping.put(change.getNewCode(), entry);
+                    return Outcome.done();
+                }
+                case LEND_BOOK: {
+                    BookEntry entry = entryAt(code);
+                    if (entry == null) {
+                        return Outcome.noSuchBook(code);
+                    }
+                    Visitor owner = owners.get(entry);
+                    if (owner != null) {
+                        return Outcome.alreadyBorrowed(code, owner.getId());
+                    }
+                    if (!hasVisitor(change.getVisitorId())) {
+                        return Outcome.noSuchVisitor(change.getVisitorId());
+                    }
+                    setOwner(entry, visitors.get(change.getVisitorId()));
+                    return Outcome.done();
+                }
+                case RECEIVE_BOOK: {
+                    BookEntry entry = entryAt(code);
+                    if (entry == null) {
+                        return Outcome.noSuchBook(code);
+                    }
+                    setOwner(entry, null);
+                    return Outcome.done();
+                }
+                default:
+                    throw new IllegalStateException("unknown change " + change);
+            }
+        }
+
+        private void setOwner(BookEntry entry, Visitor owner) {
+            owners.remove(entry);
+            owners.put(entry, owner);
+        }
+
+        // the entry under the code as of the changes planned so far
+        private BookEntry entryAt(String code) {
+            if (mapping.containsKey(code)) {
+                return mapping.get(code);
+            }
+            while (true) {
+                BookEntry entry = find(code);
+                Visitor owner = entry == null ? null : awaitOwner(entry);
+                if (owner == DELETED) {
+                    // deleted after it was found, the code may be free or taken again by now
+                    continue;
+                }
+                read.put(code, entry);
+                mapping.put(code, entry);
+                if (entry != null) {
+                    readOwners.put(entry, owner);
+                    owners.putIfAbsent(entry, owner);
+                }
+                return entry;
+            }
+        }
+
+        @Override
+        BookEntry entryAfter(String code, BookEntry found) {
+            return mapping.containsKey(code) ? mapping.get(code) : found;
+        }
+
+        private boolean commit() {
+            if (!lock()) {
+                unlock();
+                return false;
+            }
+            apply();
+            return true;
+        }
+
+        /**
+         * Locks every entry read, if its owner is still the one read, and holds every code read
+         * as free with a placeholder.
+         *
+         * @return false on the first difference, leaving what was taken to {@link #unlock}
+         */
+        private boolean lock() {
+            for (Map.Entry<BookEntry, Visitor> read : readOwners.entrySet()) {
+                BookEntry entry = read.getKey();
+                if (!entry.owner.compareAndSet(read.getValue(), new Locked(this, read.getValue(), owners.get(entry)))) {
+                    return false;
+                }
+                locked.add(entry);
+            }
+            // a locked entry can't be moved or deleted, so its code stays as checked here
+            for (Map.Entry<String, BookEntry> read : this.read.entrySet()) {
+                if (read.getValue() == null) {
+                    BookEntry placeholder = new BookEntry(null, new Locked(this, null, null));
+                    if (codeToEntry.putIfAbsent(read.getKey(), placeholder) != null) {
+                        return false;
+                    }
+                    placeholders.put(read.getKey(), placeholder);
+                } else if (codeToEntry.get(read.getKey()) != read.getValue()) {
+                    return false;
+                }
+            }
+            owners.forEach((entry, owner) -> {
+                if (!readOwners.containsKey(entry)) {
+                    entry.owner.set(new Locked(this, null, owner));
+                }
+            });
+            return true;
+        }
+
+        private void unlock() {
+            placeholders.forEach(codeToEntry::remove);
+            for (BookEntry entry : locked) {
+                entry.owner.set(readOwners.get(entry));
+            }
+        }
+
+        private void apply() {
+            // readers see the whole transaction from here; codes first, new entries stay locked
+            // until their owners are settled below
+            done = true;
+            mapping.forEach((code, entry) -> {
+                BookEntry present = read.get(code) != null ? read.get(code) : placeholders.get(code);
+                if (entry == present) {
+                    return;
+                }
+                if (entry == null) {
+                    codeToEntry.remove(code, present);
+                } else {
+                    codeToEntry.replace(code, present, entry);
+                    if (!entry.book.getCode().equals(code)) {
+                        entry.book.setCode(code);
+                    }
+                }
+            });
+            owners.forEach((entry, owner) -> {
+                Visitor before = readOwners.get(entry);
+                if (!readOwners.containsKey(entry) && owner != DELETED) {
+                    // added
+                    entry.book.shareAuthor(authors);
+                }
+                if (owner != before) {
+                    if (before != null) {
+                        LinkedIdentitySet<Book> books = borrowedBooks.get(before.getId());
+                        synchronized (books) {
+                            books.remove(entry.book);
+                        }
+                    }
+                    if (owner != null && owner != DELETED) {
+                        LinkedIdentitySet<Book> books = borrowedBooks.get(owner.getId());
+                        synchronized (books) {
+                            books.add(entry.book);
+                        }
+                    }
+                }
+                entry.owner.set(owner);
+            });
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.reznichenko.library.server.service;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * View made of copies, for stores whose own objects keep changing. Books are copied too,
+ * since {@link Book#setCode} would otherwise reach into the view.
+ */
+class CopiedLibraryView implements LibraryView {
+
+    private final List<Book> books = new ArrayList<>();
+    private final Map<Visitor, List<Book>> visitors = new LinkedHashMap<>();
+
+    void addBook(Book book) {
+        books.add(copy(book));
+    }
+
+    void addVisitor(Visitor visitor, List<Book> borrowed) {
+        List<Book> copies = new ArrayList<>(borrowed.size());
+        for (Book book : borrowed) {
+            copies.add(copy(book));
+        }
+        visitors.put(new Visitor(visitor.getId(), visitor.getName(), visitor.getSurname()), copies);
+    }
+
+    @Override
+    public int bookCount() {
+        return books.size();
+    }
+
+    @Override
+    public int visitorCount() {
+        return visitors.size();
+    }
+
+    @Override
+    public void forEachBook(Consumer<Book> action) {
+        books.forEach(action);
+    }
+
+    @Override
+    public void forEachVisitor(BiConsumer<Visitor, List<Book>> action) {
+        visitors.forEach(action);
+    }
+
+    private static Book copy(Book book) {
+        return new Book(book.getCode(), book.getAuthor(), book.getName());
+    }
+}
@@ -7,7 +7,9 @@ import com.reznichenko.library.server.exception.BookAlreadyExistsException;
 import com.reznichenko.library.server.exception.NoSuchBookException;
 import com.reznichenko.library.server.exception.NoSuchVisitorException;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.function.BiConsumer;
 
 public interface DataBase {
 
@@ -19,8 +21,35 @@ public interface DataBase {
 
     long addVisitor(String name, String surname);
 
+    // puts back a visitor with a known id, e.g. while recovering from a log
+    void restoreVisitor(Visitor visitor);
+
     void addBook(Book book) throws BookAlreadyExistsException;
 
+    // adds a batch of books, each one that can't be added is reported with its index in the batch
+    default void addBooks(List<Book> books, BiConsumer<Integer, Exception> onFailure) {
+        for (int i = 0; i < books.size(); i++) {
+            try {
+                addBook(books.get(i));
+            } catch (BookAlreadyExistsException e) {
+                onFailure.accept(i, e);
+            }
+        }
+    }
+
+    // adds a batch of new visitors, the name and surname at the same index being one visitor; their ids in that order
+    default long[] addVisitors(List<String> names, List<String> surnames) {
+        long[] ids = new long[names.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = addVisitor(names.get(i), surnames.get(i));
+        }
+        return ids;
+    }
+
+    default void restoreVisitors(List<Visitor> visitors) {
+        visitors.forEach(this::restoreVisitor);
+    }
+
     void deleteBook(String code) throws NoSuchBookException;
 
     void changeCode(String oldCode, String newCode) throws NoSuchBookException, BookAlreadyExistsException;
@@ -28,4 +57,120 @@ public interface DataBase {
     void lendBook(long visitorId, String code) throws NoSuchBookException, BookAlreadyBorrowedException, NoSuchVisitorException;
 
     void receiveReturnedBook(String code) throws NoSuchBookException;
+
+    LibraryView view();
+
+    // the same operations, reporting the expected failures as an Outcome instead of throwing;
+    // the defaults catch the exceptions, a store overrides them to never create one
+
+    default Outcome<List<Book>> tryGetBorrowedBooks(long id) {
+        try {
+            return Outcome.ok(getBorrowedBooks(id));
+        } catch (NoSuchVisitorException e) {
+            return Outcome.of(e);
+        }
+    }
+
+    // up to limit of the visitor's books after the cursor, from the first if it is null; the default
+    // pages through the whole list, a store overrides it to copy no more than the page
+    default Outcome<BookPage> tryGetBorrowedPage(long id, BookPage.Cursor after, int limit) {
+        Outcome<List<Book>> books = tryGetBorrowedBooks(id);
+        if (!books.isOk()) {
+            return Outcome.failure(books.getStatus(), books.getMessage());
+        }
+        return Outcome.ok(BookPage.of(books.getValue(), after, limit));
+    }
+
+    default Outcome<String> tryGetBookName(String code) {
+        try {
+            return Outcome.ok(getBookName(code));
+        } catch (NoSuchBookException e) {
+            return Outcome.of(e);
+        }
+    }
+
+    default Outcome<String> tryGetBookAuthor(String code) {
+        try {
+            return Outcome.ok(getBookAuthor(code));
+        } catch (NoSuchBookException e) {
+            return Outcome.of(e);
+        }
+    }
+
+    default Outcome<Void> tryAddBook(Book book) {
+        try {
+            addBook(book);
+            return Outcome.done();
+        } catch (BookAlreadyExistsException e) {
+            return Outcome.of(e);
+        }
+    }
+
+    default Outcome<Void> tryDeleteBook(String code) {
+        try {
+            deleteBook(code);
+            return Outcome.done();
+        } catch (NoSuchBookException e) {
+            return Outcome.of(e);
+        }
+    }
+
+    default Outcome<Void> tryChangeCode(String oldCode, String newCode) {
+        try {
+            changeCode(oldCode, newCode);
+            return Outcome.done();
+        } catch (NoSuchBookException | BookAlreadyExistsException e) {
+            return Outcome.of(e);
+        }
+    }
+
+    default Outcome<Void> tryLendBook(long visitorId, String code) {
+        try {
+            lendBook(visitorId, code);
+            return Outcome.done();
+        } catch (NoSuchBookException | BookAlreadyBorrowedException | NoSuchVisitorException e) {
+            return Outcome.of(e);
+        }
+    }
+
+    default Outcome<Void> tryReceiveReturnedBook(String code) {
+        try {
+            receiveReturnedBook(code);
+            return Outcome.done();
+        } catch (NoSuchBookException e) {
+            return Outcome.of(e);
+        }
+    }
+
+    // applies all of the changes or none; a failure names the index of the change that failed. The default
+    // undoes the applied changes when one fails, which is all or nothing only if no one else writes meanwhile
+    default Outcome<Void> tryTransaction(List<Change> changes) {
+        return Change.applyInOrder(this, changes);
+    }
+
+    // every visitor without their books, e.g. for a shard to copy; the default takes a whole view
+    default List<Visitor> getVisitors() {
+        List<Visitor> visitors = new ArrayList<>();
+        view().forEachVisitor((visitor, books) -> visitors.add(visitor));
+        return visitors;
+    }
+
+    // id of the visitor holding the book, -1 if it is in the library; the default looks through a whole view
+    default Outcome<Long> tryGetOwner(String code) {
+        LibraryView view = view();
+        boolean[] found = {false};
+        view.forEachBook(book -> found[0] |= book.getCode().equals(code));
+        if (!found[0]) {
+            return Outcome.noSuchBook(code);
+        }
+        long[] owner = {-1};
+        view.forEachVisitor((visitor, books) -> {
+            for (Book book : books) {
+                if (book.getCode().equals(code)) {
+                    owner[0] = visitor.getId();
+                }
+            }
+        });
+        return Outcome.ok(owner[0]);
+    }
 }
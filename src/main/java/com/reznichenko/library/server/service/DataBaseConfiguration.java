@@ -0,0 +1,182 @@
+package com.reznichenko.library.server.service;
+
+import com.reznichenko.library.server.id.BlockIdAllocator;
+import com.reznichenko.library.server.id.IdAllocator;
+import com.reznichenko.library.server.id.SnowflakeIdAllocator;
+import com.reznichenko.library.server.metrics.InstrumentedDataBase;
+import com.reznichenko.library.server.metrics.MetricsRegistry;
+import com.reznichenko.library.server.metrics.TimedLock;
+import com.reznichenko.library.server.offheap.OffHeapDataBase;
+import com.reznichenko.library.server.persistence.DurableDataBase;
+import com.reznichenko.library.server.persistence.FsyncPolicy;
+import com.reznichenko.library.server.persistence.SnapshotStore;
+import com.reznichenko.library.server.persistence.WriteAheadLog;
+import com.reznichenko.library.server.replication.ReplicaDataBase;
+import com.reznichenko.library.server.shard.RemoteDataBase;
+import com.reznichenko.library.server.shard.RingFile;
+import com.reznichenko.library.server.shard.ShardedDataBase;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+@Configuration
+public class DataBaseConfiguration {
+
+    @Value("${library.database:map}")
+    private String type;
+
+    @Value("${library.offheap.chunk-size:16777216}")
+    private int offHeapChunkSize;
+
+    @Value("${library.id.allocator:block}")
+    private String idAllocator;
+
+    @Value("${library.id.block-size:1024}")
+    private int idBlockSize;
+
+    @Value("${library.id.file:}")
+    private String idFile;
+
+    @Value("${library.id.node:0}")
+    private int idNode;
+
+    @Value("${library.wal.enabled:false}")
+    private boolean walEnabled;
+
+    @Value("${library.wal.directory:data/wal}")
+    private Path walDirectory;
+
+    @Value("${library.wal.fsync:commit}")
+    private String fsyncPolicy;
+
+    @Value("${library.wal.fsync-interval-ms:10}")
+    private long fsyncIntervalMillis;
+
+    @Value("${library.wal.segment-size:67108864}")
+    private long segmentSize;
+
+    @Value("${library.snapshot.enabled:true}")
+    private boolean snapshotsEnabled;
+
+    @Value("${library.snapshot.directory:data/snapshots}")
+    private Path snapshotDirectory;
+
+    @Value("${library.snapshot.interval-ms:60000}")
+    private long snapshotIntervalMillis;
+
+    @Value("${library.snapshot.min-records:10000}")
+    private long snapshotMinRecords;
+
+    // host:port of the binary protocol of each shard
+    @Value("${library.shard.nodes:}")
+    private List<String> shardNodes;
+
+    @Value("${library.shard.virtual-nodes:128}")
+    private int virtualNodes;
+
+    // the shards added online and a join to finish; empty keeps the ring in memory only
+    @Value("${library.shard.ring-file:data/shard-ring}")
+    private String ringFile;
+
+    @Value("${library.replication.role:none}")
+    private String replicationRole;
+
+    @Value("${library.replication.leader:http://localhost:8080}")
+    private String leader;
+
+    // listeners are told about the changes only once they are logged; primary over the sharded router it may wrap
+    @Bean
+    @Primary
+    public ListeningDataBase dataBase(ObjectProvider<MetricsRegistry> metrics,
+                                      ObjectProvider<ShardedDataBase> shards) throws IOException {
+        MetricsRegistry registry = metrics.getIfAvailable();
+        DataBase db = createDurableStore(registry, shards);
+        return new ListeningDataBase(registry == null ? db : new InstrumentedDataBase(db, registry));
+    }
+
+    @Bean
+    public CatalogVersions catalogVersions(ListeningDataBase db) {
+        CatalogVersions versions = new CatalogVersions();
+        db.addListener(versions);
+        return versions;
+    }
+
+    // a router in front of other servers, each with the binary protocol enabled
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(value = "library.database", havingValue = "sharded")
+    public ShardedDataBase shardedDataBase() throws IOException {
+        if (shardNodes.isEmpty()) {
+            throw new IllegalArgumentException("library.shard.nodes is empty");
+        }
+        if (!ringFile.isEmpty()) {
+            return ShardedDataBase.open(new RingFile(Paths.get(ringFile)), shardNodes, RemoteDataBase::connect,
+                    createIdAllocator(), virtualNodes);
+        }
+        Map<String, DataBase> shards = new LinkedHashMap<>();
+        for (String node : shardNodes) {
+            shards.put(node, RemoteDataBase.connect(node));
+        }
+        return new ShardedDataBase(shards, createIdAllocator(), virtualNodes);
+    }
+
+    private DataBase createDurableStore(MetricsRegistry registry, ObjectProvider<ShardedDataBase> shards) throws IOException {
+        DataBase db = createStore(registry, shards);
+        if (replicationRole.equals("follower")) {
+            // its state comes from the leader, a log of its own would only disagree with it after a restart
+            if (walEnabled) {
+                throw new IllegalArgumentException("a follower keeps no log, set library.wal.enabled=false");
+            }
+            return new ReplicaDataBase(db, leader);
+        }
+        if (!walEnabled) {
+            return db;
+        }
+        WriteAheadLog log = new WriteAheadLog(walDirectory, FsyncPolicy.valueOf(fsyncPolicy.toUpperCase()),
+                fsyncIntervalMillis, segmentSize);
+        if (!snapshotsEnabled) {
+            return DurableDataBase.recover(db, log);
+        }
+        DurableDataBase durable = DurableDataBase.recover(db, log, new SnapshotStore(snapshotDirectory));
+        durable.scheduleCheckpoints(snapshotIntervalMillis, snapshotMinRecords);
+        return durable;
+    }
+
+    private DataBase createStore(MetricsRegistry registry, ObjectProvider<ShardedDataBase> shards) {
+        switch (type) {
+            case "map":
+                return new MapDataBase(createIdAllocator(), registry == null ? new ReentrantLock() : new TimedLock(registry));
+            case "concurrent":
+                return new ConcurrentDataBase(createIdAllocator());
+            case "snapshot":
+                return new SnapshotDataBase(createIdAllocator());
+            case "offheap":
+                return new OffHeapDataBase(offHeapChunkSize, createIdAllocator());
+            case "sharded":
+                return shards.getObject();
+            default:
+                throw new IllegalArgumentException("unknown library.database: " + type);
+        }
+    }
+
+    private IdAllocator createIdAllocator() {
+        switch (idAllocator) {
+            case "block":
+                return new BlockIdAllocator(idBlockSize, idFile.isEmpty() ? null : Path.of(idFile));
+            case "snowflake":
+                return new SnowflakeIdAllocator(idNode);
+            default:
+                throw new IllegalArgumentException("unknown library.id.allocator: " + idAllocator);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.reznichenko.library.server.service;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+
+/**
+ * Gets told about every successful change made through a {@link ListeningDataBase}, after
+ * the change is made. Changes of one book are reported in the order they were made.
+ */
+public interface DataBaseListener {
+
+    // a copy, the listener may keep it
+    default void onBookAdded(Book book) {
+    }
+
+    default void onBookDeleted(String code) {
+    }
+
+    default void onCodeChanged(String oldCode, String newCode) {
+    }
+
+    default void onBookLent(long visitorId, String code) {
+    }
+
+    // also called when the book wasn't lent to anyone
+    default void onBookReturned(String code) {
+    }
+
+    default void onVisitorAdded(Visitor visitor) {
+    }
+}
@@ -1,21 +1,48 @@
 package com.reznichenko.library.server.service;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.reznichenko.library.server.entity.Book;
-import com.reznichenko.library.server.exception.*;
-import org.junit.jupiter.api.function.Executable;
+import com.reznichenko.library.server.exception.IllegalRequestException;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
-import java.util.stream.Collectors;
 
 @RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class LibraryController {
 
-    private final DataBase db = new MapDataBase();
+    private static final int DEFAULT_PAGE = 100;
+    private static final int MAX_PAGE = 1000;
+    // a whole list is read in pages of this many books, each copied under the store's lock and written outside of it
+    private static final int STREAMED_PAGE = 256;
+
+    private final DataBase db;
+    private final CatalogVersions versions;
+    private final ObjectMapper mapper;
+
+    public LibraryController(DataBase db, CatalogVersions versions, ObjectMapper mapper) {
+        this.db = db;
+        this.versions = versions;
+        this.mapper = mapper;
+    }
 
     @PostMapping(params = {"name", "surname"}, value = "add-visitor")
     public ResponseEntity<String> addVisitor(@RequestParam("name") String name,
@@ -29,76 +56,177 @@ public class LibraryController {
                                           @RequestParam("author") String author,
                                           @RequestParam("code") String code) {
         Book book = new Book(code, author, name);
-        return executePost(() -> db.addBook(book), "book added");
+        return respond(db.tryAddBook(book), "book added");
     }
 
     @PostMapping(params = {"id", "code"}, value = "lend-book")
     public ResponseEntity<String> lendBook(@RequestParam("id") long id,
                                            @RequestParam("code") String code) {
-        return executePost(() -> db.lendBook(id, code), "book lent");
+        return respond(db.tryLendBook(id, code), "book lent");
     }
 
     @PostMapping(params = {"code"}, value = "receive")
     public ResponseEntity<String> receiveBook(@RequestParam("code") String code) {
-        return executePost(() -> db.receiveReturnedBook(code), "book returned");
+        return respond(db.tryReceiveReturnedBook(code), "book returned");
     }
 
     @PostMapping(params = {"old", "new"}, value = "change-code")
     public ResponseEntity<String> changeCode(@RequestParam("old") String oldCode,
                                              @RequestParam("new") String newCode) {
-        return executePost(() -> db.changeCode(oldCode, newCode), "code changed");
+        return respond(db.tryChangeCode(oldCode, newCode), "code changed");
     }
 
     @PostMapping(params = "code", value = "delete-book")
     public ResponseEntity<String> deleteBook(@RequestParam("code") String code) {
-        return executePost(() -> db.deleteBook(code), "book deleted");
+        return respond(db.tryDeleteBook(code), "book deleted");
     }
 
-    @GetMapping(params = "code", value = "author")
-    public ResponseEntity<String> getAuthor(@RequestParam("code") String code) {
+    // a JSON array of changes, see Change#fromJson; applied all or none
+    @PostMapping(value = "transaction", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> transaction(@RequestBody JsonNode body) {
+        List<Change> changes;
         try {
-            return positiveResponse(db.getBookAuthor(code));
-        } catch (NoSuchBookException e) {
-            throw new IllegalRequestException(e);
+            changes = Change.listFromJson(body);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().contentType(MediaType.TEXT_PLAIN).body("bad request: " + e.getMessage());
+        }
+        return respond(db.tryTransaction(changes), "transaction committed");
+    }
+
+    @GetMapping(params = "code", value = "author")
+    public ResponseEntity<String> getAuthor(@RequestParam("code") String code,
+                                            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        String tag = versions.tag(code);
+        if (CatalogVersions.matches(ifNoneMatch, tag)) {
+            return notModified(tag);
         }
+        return respondTagged(db.tryGetBookAuthor(code), tag);
     }
 
     @GetMapping(params = "code", value = "book-name")
-    public ResponseEntity<String> getBookName(@RequestParam("code") String code) {
-        try {
-            return positiveResponse(db.getBookName(code));
-        } catch (NoSuchBookException e) {
-            throw new IllegalRequestException(e);
+    public ResponseEntity<String> getBookName(@RequestParam("code") String code,
+                                              @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        String tag = versions.tag(code);
+        if (CatalogVersions.matches(ifNoneMatch, tag)) {
+            return notModified(tag);
         }
+        return respondTagged(db.tryGetBookName(code), tag);
     }
 
+    /**
+     * Without a limit or a cursor, all of the visitor's books as strings; with either, a page of
+     * them as objects and the cursor of the next page, null after the last one. A page, and a whole
+     * list that fits in one, is written right away on the request's thread. A longer list is
+     * streamed from an async thread as it comes out of the store a page at a time, so the memory a
+     * request takes doesn't grow with the list; its pages are read one after another, so a book
+     * lent or returned meanwhile may or may not be on it.
+     * <p>
+     * Spring only streams a body declared as one, so what is written right away goes to the
+     * response, and the null returned tells Spring the request is handled.
+     */
     @GetMapping(params = "id", value = "borrowed-books")
-    public ResponseEntity<List<String>> getBorrowedBooks(@RequestParam("id") long id) {
+    public ResponseEntity<StreamingResponseBody> getBorrowedBooks(@RequestParam("id") long id,
+                                                                  @RequestParam(value = "limit", required = false) Integer limit,
+                                                                  @RequestParam(value = "cursor", required = false) String cursor,
+                                                                  HttpServletResponse response) throws IOException {
+        if (limit == null && cursor == null) {
+            return allBorrowedBooks(id, response);
+        }
+        int size = limit == null ? DEFAULT_PAGE : limit;
+        if (size < 1 || size > MAX_PAGE) {
+            throw new IllegalRequestException(new IllegalArgumentException("limit must be between 1 and " + MAX_PAGE));
+        }
+        BookPage.Cursor after;
         try {
-            List<Book> books = db.getBorrowedBooks(id);
-            return ResponseEntity.ok(books.stream().map(Object::toString).collect(Collectors.toList()));
-        } catch (NoSuchVisitorException e) {
+            after = cursor == null ? null : BookPage.Cursor.parse(cursor);
+        } catch (IllegalArgumentException e) {
             throw new IllegalRequestException(e);
         }
+        Outcome<BookPage> page = db.tryGetBorrowedPage(id, after, size);
+        if (!page.isOk()) {
+            return streamedBadRequest(page);
+        }
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        JsonGenerator json = mapper.getFactory().createGenerator(response.getOutputStream());
+        json.writeStartObject();
+        json.writeArrayFieldStart("books");
+        for (Book book : page.getValue().getBooks()) {
+            json.writeStartObject();
+            json.writeStringField("code", book.getCode());
+            json.writeStringField("author", book.getAuthor());
+            json.writeStringField("name", book.getName());
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+        BookPage.Cursor next = page.getValue().getNext();
+        json.writeStringField("next", next == null ? null : next.toString());
+        json.writeEndObject();
+        json.flush();
+        return null;
     }
 
-    private ResponseEntity<String> executePost(Executable executable, String ifSucceeds) {
-        try {
-            executable.execute();
-        } catch (Throwable cause) {
-            throw new IllegalRequestException(cause);
+    // the first page is read here, so that an unknown visitor is still answered with a 400
+    private ResponseEntity<StreamingResponseBody> allBorrowedBooks(long id, HttpServletResponse response) throws IOException {
+        Outcome<BookPage> first = db.tryGetBorrowedPage(id, null, STREAMED_PAGE);
+        if (!first.isOk()) {
+            return streamedBadRequest(first);
         }
-        return positiveResponse(ifSucceeds);
+        if (first.getValue().getNext() == null) {
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            writeBorrowedBooks(id, first.getValue(), response.getOutputStream());
+            return null;
+        }
+        StreamingResponseBody body = out -> writeBorrowedBooks(id, first.getValue(), out);
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
     }
 
+    private void writeBorrowedBooks(long id, BookPage first, OutputStream out) throws IOException {
+        JsonGenerator json = mapper.getFactory().createGenerator(out);
+        json.writeStartArray();
+        BookPage page = first;
+        while (true) {
+            for (Book book : page.getBooks()) {
+                json.writeString(book.toString());
+            }
+            if (page.getNext() == null) {
+                break;
+            }
+            // visitors are never deleted, the next page can't fail
+            page = db.tryGetBorrowedPage(id, page.getNext(), STREAMED_PAGE).getValue();
+        }
+        json.writeEndArray();
+        json.flush();
+    }
 
-    private ResponseEntity<String> positiveResponse(String msg) {
-        return ResponseEntity.ok(msg);
+    // expected failures are answered right here, without an exception and its stack trace
+    private ResponseEntity<String> respond(Outcome<?> outcome, String ifSucceeds) {
+        return outcome.isOk() ? positiveResponse(ifSucceeds) : badRequest(outcome);
+    }
+
+    // clients may keep the value, but have to revalidate it before showing it again
+    private ResponseEntity<String> respondTagged(Outcome<String> outcome, String tag) {
+        if (!outcome.isOk()) {
+            return badRequest(outcome);
+        }
+        return ResponseEntity.ok().eTag(tag).cacheControl(CacheControl.noCache()).body(outcome.getValue());
     }
 
-    //debug
-    private void print() {
-        ((MapDataBase) db).printWholeLibrary();
+    private ResponseEntity<String> notModified(String tag) {
+        return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(tag).cacheControl(CacheControl.noCache()).build();
     }
 
+    private ResponseEntity<String> badRequest(Outcome<?> outcome) {
+        return ResponseEntity.badRequest().contentType(MediaType.TEXT_PLAIN).body("bad request: " + outcome.getMessage());
+    }
+
+    // Spring only streams a body declared as one, so the failures of a streamed response are bodies too
+    private ResponseEntity<StreamingResponseBody> streamedBadRequest(Outcome<?> outcome) {
+        byte[] text = ("bad request: " + outcome.getMessage()).getBytes(StandardCharsets.UTF_8);
+        return ResponseEntity.badRequest().contentType(new MediaType(MediaType.TEXT_PLAIN, StandardCharsets.UTF_8))
+                .body(out -> out.write(text));
+    }
+
+    private ResponseEntity<String> positiveResponse(String msg) {
+        return ResponseEntity.ok(msg);
+    }
 }
@@ -0,0 +1,23 @@
+package com.reznichenko.library.server.service;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Point-in-time state of a whole {@link DataBase}, unaffected by the writes made after it was taken.
+ */
+public interface LibraryView {
+
+    int bookCount();
+
+    int visitorCount();
+
+    void forEachBook(Consumer<Book> action);
+
+    // every visitor together with the books they hold, in the order they were lent
+    void forEachVisitor(BiConsumer<Visitor, List<Book>> action);
+}
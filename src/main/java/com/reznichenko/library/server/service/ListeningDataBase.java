@@ -0,0 +1,458 @@
+package com.reznichenko.library.server.service;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.metrics.InstrumentedDataBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Reports the changes made to the delegate to {@link DataBaseListener}s. A change is made and
+ * its events queued under a lock striped by book code, so two changes of the same book are
+ * queued in the order the delegate applied them; changes of different books don't wait for
+ * each other. The listeners run after the stripe is released, from one queue, one event at a
+ * time: whichever writer gets to the queue first delivers everything queued so far, and a
+ * change returns once its own events are delivered, so that what it changed is already found
+ * by search and by the tags when the caller gets the answer. A slow listener thus holds back
+ * the answers of the writers, not their changes. A failing listener is logged and doesn't
+ * fail the change.
+ */
+public class ListeningDataBase implements DataBase, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ListeningDataBase.class);
+    private static final int STRIPES = 64;
+
+    private final DataBase delegate;
+    private final List<DataBaseListener> listeners = new CopyOnWriteArrayList<>();
+    private final Lock[] stripes = new Lock[STRIPES];
+    private final Queue<Consumer<DataBaseListener>> events = new ConcurrentLinkedQueue<>();
+    private final Lock delivery = new ReentrantLock();
+
+    public ListeningDataBase(DataBase delegate) {
+        this.delegate = delegate;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public void addListener(DataBaseListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(DataBaseListener listener) {
+        listeners.remove(listener);
+    }
+
+    public DataBase getDelegate() {
+        return delegate;
+    }
+
+    // the decorator or store of the type under this one, looking through the instrumentation; null if there is none
+    public <T extends DataBase> T find(Class<T> type) {
+        DataBase db = delegate;
+        while (!type.isInstance(db)) {
+            if (db instanceof InstrumentedDataBase) {
+                db = ((InstrumentedDataBase) db).getDelegate();
+            } else {
+                return null;
+            }
+        }
+        return type.cast(db);
+    }
+
+    @Override
+    public List<Book> getBorrowedBooks(long id) throws NoSuchVisitorException {
+        return delegate.getBorrowedBooks(id);
+    }
+
+    @Override
+    public String getBookName(String code) throws NoSuchBookException {
+        return delegate.getBookName(code);
+    }
+
+    @Override
+    public String getBookAuthor(String code) throws NoSuchBookException {
+        return delegate.getBookAuthor(code);
+    }
+
+    @Override
+    public long addVisitor(String name, String surname) {
+        long id = delegate.addVisitor(name, surname);
+        Visitor visitor = new Visitor(id, name, surname);
+        publish(listener -> listener.onVisitorAdded(visitor));
+        deliver();
+        return id;
+    }
+
+    @Override
+    public void restoreVisitor(Visitor visitor) {
+        delegate.restoreVisitor(visitor);
+        publish(listener -> listener.onVisitorAdded(visitor));
+        deliver();
+    }
+
+    @Override
+    public long[] addVisitors(List<String> names, List<String> surnames) {
+        long[] ids = delegate.addVisitors(names, surnames);
+        for (int i = 0; i < ids.length; i++) {
+            Visitor visitor = new Visitor(ids[i], names.get(i), surnames.get(i));
+            publish(listener -> listener.onVisitorAdded(visitor));
+        }
+        deliver();
+        return ids;
+    }
+
+    @Override
+    public void restoreVisitors(List<Visitor> visitors) {
+        delegate.restoreVisitors(visitors);
+        for (Visitor visitor : visitors) {
+            publish(listener -> listener.onVisitorAdded(visitor));
+        }
+        deliver();
+    }
+
+    @Override
+    public void addBook(Book book) throws BookAlreadyExistsException {
+        Book copy = copy(book);
+        Lock lock = stripe(copy.getCode());
+        lock.lock();
+        try {
+            delegate.addBook(book);
+            publish(listener -> listener.onBookAdded(copy));
+        } finally {
+            lock.unlock();
+        }
+        deliver();
+    }
+
+    // takes every stripe, a batch is large enough to touch most of them anyway; only to apply and queue, not to deliver
+    @Override
+    public void addBooks(List<Book> books, BiConsumer<Integer, Exception> onFailure) {
+        boolean[] failed = new boolean[books.size()];
+        for (Lock lock : stripes) {
+            lock.lock();
+        }
+        try {
+            delegate.addBooks(books, (i, e) -> {
+                failed[i] = true;
+                onFailure.accept(i, e);
+            });
+            for (int i = 0; i < books.size(); i++) {
+                if (!failed[i]) {
+                    Book copy = copy(books.get(i));
+                    publish(listener -> listener.onBookAdded(copy));
+                }
+            }
+        } finally {
+            for (Lock lock : stripes) {
+                lock.unlock();
+            }
+        }
+        deliver();
+    }
+
+    @Override
+    public void deleteBook(String code) throws NoSuchBookException {
+        Lock lock = stripe(code);
+        lock.lock();
+        try {
+            delegate.deleteBook(code);
+            publish(listener -> listener.onBookDeleted(code));
+        } finally {
+            lock.unlock();
+        }
+        deliver();
+    }
+
+    @Override
+    public void changeCode(String oldCode, String newCode) throws NoSuchBookException, BookAlreadyExistsException {
+        int first = stripeIndex(oldCode);
+        int second = stripeIndex(newCode);
+        // always in the same order, so that two opposite renames don't deadlock
+        Lock outer = stripes[Math.min(first, second)];
+        Lock inner = stripes[Math.max(first, second)];
+        outer.lock();
+        inner.lock();
+        try {
+            delegate.changeCode(oldCode, newCode);
+            publish(listener -> listener.onCodeChanged(oldCode, newCode));
+        } finally {
+            inner.unlock();
+            outer.unlock();
+        }
+        deliver();
+    }
+
+    @Override
+    public void lendBook(long visitorId, String code) throws NoSuchBookException, BookAlreadyBorrowedException, NoSuchVisitorException {
+        Lock lock = stripe(code);
+        lock.lock();
+        try {
+            delegate.lendBook(visitorId, code);
+            publish(listener -> listener.onBookLent(visitorId, code));
+        } finally {
+            lock.unlock();
+        }
+        deliver();
+    }
+
+    @Override
+    public void receiveReturnedBook(String code) throws NoSuchBookException {
+        Lock lock = stripe(code);
+        lock.lock();
+        try {
+            delegate.receiveReturnedBook(code);
+            publish(listener -> listener.onBookReturned(code));
+        } finally {
+            lock.unlock();
+        }
+        deliver();
+    }
+
+    @Override
+    public Outcome<List<Book>> tryGetBorrowedBooks(long id) {
+        return delegate.tryGetBorrowedBooks(id);
+    }
+
+    @Override
+    public Outcome<BookPage> tryGetBorrowedPage(long id, BookPage.Cursor after, int limit) {
+        return delegate.tryGetBorrowedPage(id, after, limit);
+    }
+
+    @Override
+    public Outcome<String> tryGetBookName(String code) {
+        return delegate.tryGetBookName(code);
+    }
+
+    @Override
+    public Outcome<String> tryGetBookAuthor(String code) {
+        return delegate.tryGetBookAuthor(code);
+    }
+
+    @Override
+    public Outcome<Void> tryAddBook(Book book) {
+        Book copy = copy(book);
+        Lock lock = stripe(copy.getCode());
+        Outcome<Void> outcome;
+        lock.lock();
+        try {
+            outcome = delegate.tryAddBook(book);
+            if (outcome.isOk()) {
+                publish(listener -> listener.onBookAdded(copy));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return delivered(outcome);
+    }
+
+    @Override
+    public Outcome<Void> tryDeleteBook(String code) {
+        Lock lock = stripe(code);
+        Outcome<Void> outcome;
+        lock.lock();
+        try {
+            outcome = delegate.tryDeleteBook(code);
+            if (outcome.isOk()) {
+                publish(listener -> listener.onBookDeleted(code));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return delivered(outcome);
+    }
+
+    @Override
+    public Outcome<Void> tryChangeCode(String oldCode, String newCode) {
+        int first = stripeIndex(oldCode);
+        int second = stripeIndex(newCode);
+        Lock outer = stripes[Math.min(first, second)];
+        Lock inner = stripes[Math.max(first, second)];
+        Outcome<Void> outcome;
+        outer.lock();
+        inner.lock();
+        try {
+            outcome = delegate.tryChangeCode(oldCode, newCode);
+            if (outcome.isOk()) {
+                publish(listener -> listener.onCodeChanged(oldCode, newCode));
+            }
+        } finally {
+            inner.unlock();
+            outer.unlock();
+        }
+        return delivered(outcome);
+    }
+
+    @Override
+    public Outcome<Void> tryLendBook(long visitorId, String code) {
+        Lock lock = stripe(code);
+        Outcome<Void> outcome;
+        lock.lock();
+        try {
+            outcome = delegate.tryLendBook(visitorId, code);
+            if (outcome.isOk()) {
+                publish(listener -> listener.onBookLent(visitorId, code));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return delivered(outcome);
+    }
+
+    @Override
+    public Outcome<Void> tryReceiveReturnedBook(String code) {
+        Lock lock = stripe(code);
+        Outcome<Void> outcome;
+        lock.lock();
+        try {
+            outcome = delegate.tryReceiveReturnedBook(code);
+            if (outcome.isOk()) {
+                publish(listener -> listener.onBookReturned(code));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return delivered(outcome);
+    }
+
+    // the stripes of every book involved, taken in index order like tryChangeCode does
+    @Override
+    public Outcome<Void> tryTransaction(List<Change> changes) {
+        BitSet indices = new BitSet(STRIPES);
+        for (Change change : changes) {
+            indices.set(stripeIndex(change.getCode()));
+            if (change.getNewCode() != null) {
+                indices.set(stripeIndex(change.getNewCode()));
+            }
+        }
+        Outcome<Void> outcome;
+        for (int i = indices.nextSetBit(0); i >= 0; i = indices.nextSetBit(i + 1)) {
+            stripes[i].lock();
+        }
+        try {
+            outcome = delegate.tryTransaction(changes);
+            if (outcome.isOk()) {
+                changes.forEach(this::publish);
+            }
+        } finally {
+            for (int i = indices.nextSetBit(0); i >= 0; i = indices.nextSetBit(i + 1)) {
+                stripes[i].unlock();
+            }
+        }
+        return delivered(outcome);
+    }
+
+    @Override
+    public List<Visitor> getVisitors() {
+        return delegate.getVisitors();
+    }
+
+    @Override
+    public Outcome<Long> tryGetOwner(String code) {
+        return delegate.tryGetOwner(code);
+    }
+
+    @Override
+    public LibraryView view() {
+        return delegate.view();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (delegate instanceof Closeable) {
+            ((Closeable) delegate).close();
+        }
+    }
+
+    // under the stripes of the change, so that the queue holds the changes of a book in their order
+    private void publish(Consumer<DataBaseListener> event) {
+        events.add(event);
+    }
+
+    /**
+     * Delivers the queue until it is empty, which includes the caller's own events: either they
+     * are still queued, or the writer that took them out holds the lock until it has delivered them.
+     */
+    private void deliver() {
+        delivery.lock();
+        try {
+            for (Consumer<DataBaseListener> event = events.poll(); event != null; event = events.poll()) {
+                notify(event);
+            }
+        } finally {
+            delivery.unlock();
+        }
+    }
+
+    // a failed change published nothing to wait for
+    private <T> Outcome<T> delivered(Outcome<T> outcome) {
+        if (outcome.isOk()) {
+            deliver();
+        }
+        return outcome;
+    }
+
+    private void notify(Consumer<DataBaseListener> event) {
+        for (DataBaseListener listener : listeners) {
+            try {
+                event.accept(listener);
+            } catch (RuntimeException e) {
+                LOG.warn("listener {} failed", listener, e);
+            }
+        }
+    }
+
+    // the same events as the single call of the change
+    private void publish(Change change) {
+        switch (change.getType()) {
+            case ADD_BOOK: {
+                Book book = change.getBook();
+                publish(listener -> listener.onBookAdded(book));
+                break;
+            }
+            case DELETE_BOOK:
+                publish(listener -> listener.onBookDeleted(change.getCode()));
+                break;
+            case CHANGE_CODE:
+                publish(listener -> listener.onCodeChanged(change.getCode(), change.getNewCode()));
+                break;
+            case LEND_BOOK:
+                publish(listener -> listener.onBookLent(change.getVisitorId(), change.getCode()));
+                break;
+            case RECEIVE_BOOK:
+                publish(listener -> listener.onBookReturned(change.getCode()));
+                break;
+            default:
+                throw new IllegalStateException("unknown change " + change);
+        }
+    }
+
+    private Lock stripe(String code) {
+        return stripes[stripeIndex(code)];
+    }
+
+    private static int stripeIndex(String code) {
+        int hash = code.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    private static Book copy(Book book) {
+        return new Book(book.getCode(), book.getAuthor(), book.getName());
+    }
+}
@@ -1,148 +1,395 @@
 package com.reznichenko.library.server.service;
 
+import com.reznichenko.library.server.collection.LinkedIdentitySet;
+import com.reznichenko.library.server.collection.LongObjectHashMap;
 import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.StringDictionary;
 import com.reznichenko.library.server.entity.Visitor;
 import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
 import com.reznichenko.library.server.exception.BookAlreadyExistsException;
 import com.reznichenko.library.server.exception.NoSuchBookException;
 import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.id.BlockIdAllocator;
+import com.reznichenko.library.server.id.IdAllocator;
 
 import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
 public class MapDataBase implements DataBase {
 
+    // the most changes tryLending looks through for a book changed twice
+    private static final int SMALL_TRANSACTION = 16;
+
     private final Map<String, Visitor> codeToOwner = new HashMap<>();
     private final Map<String, Book> codeToBook = new HashMap<>();
-    private final Map<Long, List<Book>> borrowedBooks = new HashMap<>();
-    private final Map<Long, Visitor> visitors = new HashMap<>();
+    private final LongObjectHashMap<LinkedIdentitySet<Book>> borrowedBooks = new LongObjectHashMap<>();
+    private final LongObjectHashMap<Visitor> visitors = new LongObjectHashMap<>();
+    private final IdAllocator ids;
+    private final StringDictionary authors = new StringDictionary();
+    private final StringDictionary names = new StringDictionary();
+    // one lock over everything, given from outside so that it can be timed
+    private final Lock lock;
+
+    public MapDataBase() {
+        this(new BlockIdAllocator());
+    }
+
+    public MapDataBase(IdAllocator ids) {
+        this(ids, new ReentrantLock());
+    }
+
+    public MapDataBase(IdAllocator ids, Lock lock) {
+        this.ids = ids;
+        this.lock = lock;
+    }
 
     @Override
-    public synchronized List<Book> getBorrowedBooks(long id) throws NoSuchVisitorException {
-        checkVisitor(id);
-        return borrowedBooks.get(id);
+    public List<Book> getBorrowedBooks(long id) throws NoSuchVisitorException {
+        return tryGetBorrowedBooks(id).throwIfNoSuchVisitor().getValue();
     }
 
     @Override
-    public synchronized String getBookName(String code) throws NoSuchBookException {
-        return getBookSafely(code).getName();
+    public String getBookName(String code) throws NoSuchBookException {
+        return tryGetBookName(code).throwIfNoSuchBook().getValue();
     }
 
     @Override
-    public synchronized String getBookAuthor(String code) throws NoSuchBookException {
-        return getBookSafely(code).getAuthor();
+    public String getBookAuthor(String code) throws NoSuchBookException {
+        return tryGetBookAuthor(code).throwIfNoSuchBook().getValue();
     }
 
     @Override
-    public synchronized long addVisitor(String name, String surname) {
-        long id = getNextId();
-        Visitor newVisitor = new Visitor(id, name, surname);
-        borrowedBooks.put(id, new ArrayList<>());
-        visitors.put(id, newVisitor);
-        return id;
+    public long addVisitor(String name, String surname) {
+        lock.lock();
+        try {
+            long id;
+            do {
+                id = ids.nextId();
+            } while (visitors.containsKey(id));
+            Visitor newVisitor = new Visitor(id, name, surname);
+            newVisitor.shareNames(names);
+            borrowedBooks.put(id, new LinkedIdentitySet<>());
+            visitors.put(id, newVisitor);
+            return id;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
-    public synchronized void addBook(Book book) throws BookAlreadyExistsException {
-        if (codeToBook.containsKey(book.getCode())) {
-            throw new BookAlreadyExistsException("book with code: " + book.getCode() + " already exists");
+    public void restoreVisitor(Visitor visitor) {
+        lock.lock();
+        try {
+            ids.observe(visitor.getId());
+            borrowedBooks.putIfAbsent(visitor.getId(), new LinkedIdentitySet<>());
+            visitor.shareNames(names);
+            visitors.put(visitor.getId(), visitor);
+        } finally {
+            lock.unlock();
         }
-        codeToBook.put(book.getCode(), book);
     }
 
     @Override
-    public synchronized void deleteBook(String code) throws NoSuchBookException {
-        Book book = getBookSafely(code);
-        Visitor owner = codeToOwner.get(code);
-        deleteFromOwner(owner, book);
-        codeToOwner.remove(code);
-        codeToBook.remove(code);
+    public void addBook(Book book) throws BookAlreadyExistsException {
+        tryAddBook(book).throwIfAlreadyExists();
     }
 
     @Override
-    public synchronized void changeCode(String oldCode, String newCode) throws NoSuchBookException, BookAlreadyExistsException {
-        if (codeToBook.containsKey(newCode)) {
-            throw new BookAlreadyExistsException("couldn't change code to " + newCode + ", book with this code already exists");
+    public void addBooks(List<Book> books, BiConsumer<Integer, Exception> onFailure) {
+        lock.lock();
+        try {
+            DataBase.super.addBooks(books, onFailure);
+        } finally {
+            lock.unlock();
         }
-        Book book = getBookSafely(oldCode);
-        book.setCode(newCode);
-        codeToBook.remove(oldCode);
-        codeToBook.put(newCode, book);
-        Visitor owner = codeToOwner.remove(oldCode);
-        codeToOwner.put(newCode, owner);
     }
 
     @Override
-    public synchronized void lendBook(long visitorId, String code) throws NoSuchBookException, BookAlreadyBorrowedException, NoSuchVisitorException {
-        Book book = getBookSafely(code);
-        if (codeToOwner.containsKey(code)) {
-            throw new BookAlreadyBorrowedException("book with code " + code + " is already borrowed by id " +
-                    codeToOwner.get(code).getId());
+    public long[] addVisitors(List<String> names, List<String> surnames) {
+        lock.lock();
+        try {
+            return DataBase.super.addVisitors(names, surnames);
+        } finally {
+            lock.unlock();
         }
-        Visitor visitor = getVisitorSafely(visitorId);
-        codeToOwner.put(code, visitor);
-        borrowedBooks.get(visitorId).add(book);
     }
 
     @Override
-    public synchronized void receiveReturnedBook(String code) throws NoSuchBookException {
-        Book book = getBookSafely(code);
-        Visitor owner = codeToOwner.get(code);
-        deleteFromOwner(owner, book);
-        codeToOwner.remove(code);
+    public void restoreVisitors(List<Visitor> visitors) {
+        lock.lock();
+        try {
+            DataBase.super.restoreVisitors(visitors);
+        } finally {
+            lock.unlock();
+        }
     }
 
+    @Override
+    public void deleteBook(String code) throws NoSuchBookException {
+        tryDeleteBook(code).throwIfNoSuchBook();
+    }
 
+    @Override
+    public void changeCode(String oldCode, String newCode) throws NoSuchBookException, BookAlreadyExistsException {
+        tryChangeCode(oldCode, newCode).throwIfAlreadyExists().throwIfNoSuchBook();
+    }
 
-    private long getNextId() {
-        return UUID.randomUUID().getMostSignificantBits() & Long.MAX_VALUE;
+    @Override
+    public void lendBook(long visitorId, String code) throws NoSuchBookException, BookAlreadyBorrowedException, NoSuchVisitorException {
+        tryLendBook(visitorId, code).throwIfNoSuchBook().throwIfAlreadyBorrowed().throwIfNoSuchVisitor();
     }
 
-    private Book getBookSafely(String code) throws NoSuchBookException {
-        checkBook(code);
-        return codeToBook.get(code);
+    @Override
+    public void receiveReturnedBook(String code) throws NoSuchBookException {
+        tryReceiveReturnedBook(code).throwIfNoSuchBook();
     }
 
-    private Visitor getVisitorSafely(long id) throws NoSuchVisitorException {
-        checkVisitor(id);
-        return visitors.get(id);
+    @Override
+    public Outcome<List<Book>> tryGetBorrowedBooks(long id) {
+        lock.lock();
+        try {
+            if (!hasVisitor(id)) {
+                return Outcome.noSuchVisitor(id);
+            }
+            return Outcome.ok(borrowedBooks.get(id).snapshot());
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private void checkVisitor(long id) throws NoSuchVisitorException {
-        if (!visitors.containsKey(id) || id < 0) {
-            throw new NoSuchVisitorException("no visitor found with id: " + id);
+    @Override
+    public Outcome<BookPage> tryGetBorrowedPage(long id, BookPage.Cursor after, int limit) {
+        lock.lock();
+        try {
+            if (!hasVisitor(id)) {
+                return Outcome.noSuchVisitor(id);
+            }
+            Book last = after == null ? null : codeToBook.get(after.getCode());
+            return Outcome.ok(BookPage.of(borrowedBooks.get(id), last, after, limit));
+        } finally {
+            lock.unlock();
         }
     }
 
-    private void checkBook(String code) throws NoSuchBookException {
-        if (!codeToBook.containsKey(code)) {
-            throw new NoSuchBookException("no book found with code: " + code);
+    @Override
+    public Outcome<String> tryGetBookName(String code) {
+        lock.lock();
+        try {
+            Book book = codeToBook.get(code);
+            return book == null ? Outcome.noSuchBook(code) : Outcome.ok(book.getName());
+        } finally {
+            lock.unlock();
         }
     }
 
+    @Override
+    public Outcome<String> tryGetBookAuthor(String code) {
+        lock.lock();
+        try {
+            Book book = codeToBook.get(code);
+            return book == null ? Outcome.noSuchBook(code) : Outcome.ok(book.getAuthor());
+        } finally {
+            lock.unlock();
+        }
+    }
 
-    private void deleteFromOwner(Visitor owner, Book book) {
-        if (owner == null) return;
-        borrowedBooks.get(owner.getId()).remove(book);
+    @Override
+    public Outcome<Void> tryAddBook(Book book) {
+        lock.lock();
+        try {
+            if (codeToBook.containsKey(book.getCode())) {
+                return Outcome.failure(Outcome.Status.BOOK_ALREADY_EXISTS,
+                        "book with code: " + book.getCode() + " already exists");
+            }
+            codeToBook.put(book.getCode(), book);
+            book.shareAuthor(authors);
+            return Outcome.done();
+        } finally {
+            lock.unlock();
+        }
     }
 
-    //debug
-    public void printBooks() {
-        for (Book book : codeToBook.values()) {
-            System.out.println(book);
+    @Override
+    public Outcome<Void> tryDeleteBook(String code) {
+        lock.lock();
+        try {
+            Book book = codeToBook.get(code);
+            if (book == null) {
+                return Outcome.noSuchBook(code);
+            }
+            Visitor owner = codeToOwner.get(code);
+            deleteFromOwner(owner, book);
+            codeToOwner.remove(code);
+            codeToBook.remove(code);
+            return Outcome.done();
+        } finally {
+            lock.unlock();
         }
     }
 
-    //debug
-    public void printWholeLibrary() {
-        System.out.println("===========");
-        printBooks();
-        System.out.println("-----------");
-        for (Map.Entry<Long, List<Book>> entry : borrowedBooks.entrySet()) {
-            Visitor v = visitors.get(entry.getKey());
-            List<Book> books = entry.getValue();
-            System.out.println(v + ":");
-            books.forEach(System.out::println);
+    @Override
+    public Outcome<Void> tryChangeCode(String oldCode, String newCode) {
+        lock.lock();
+        try {
+            if (codeToBook.containsKey(newCode)) {
+                return Outcome.failure(Outcome.Status.BOOK_ALREADY_EXISTS,
+                        "couldn't change code to " + newCode + ", book with this code already exists");
+            }
+            Book book = codeToBook.get(oldCode);
+            if (book == null) {
+                return Outcome.noSuchBook(oldCode);
+            }
+            book.setCode(newCode);
+            codeToBook.remove(oldCode);
+            codeToBook.put(newCode, book);
+            Visitor owner = codeToOwner.remove(oldCode);
+            if (owner != null) {
+                codeToOwner.put(newCode, owner);
+            }
+            return Outcome.done();
+        } finally {
+            lock.unlock();
         }
     }
 
+    @Override
+    public Outcome<Void> tryLendBook(long visitorId, String code) {
+        lock.lock();
+        try {
+            Book book = codeToBook.get(code);
+            if (book == null) {
+                return Outcome.noSuchBook(code);
+            }
+            Visitor owner = codeToOwner.get(code);
+            if (owner != null) {
+                return Outcome.alreadyBorrowed(code, owner.getId());
+            }
+            if (!hasVisitor(visitorId)) {
+                return Outcome.noSuchVisitor(visitorId);
+            }
+            codeToOwner.put(code, visitors.get(visitorId));
+            borrowedBooks.get(visitorId).add(book);
+            return Outcome.done();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Outcome<Void> tryReceiveReturnedBook(String code) {
+        lock.lock();
+        try {
+            Book book = codeToBook.get(code);
+            if (book == null) {
+                return Outcome.noSuchBook(code);
+            }
+            Visitor owner = codeToOwner.get(code);
+            deleteFromOwner(owner, book);
+            codeToOwner.remove(code);
+            return Outcome.done();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // one lock for the whole transaction: no one sees it half done and undoing a failed one can't fail
+    @Override
+    public Outcome<Void> tryTransaction(List<Change> changes) {
+        lock.lock();
+        try {
+            Outcome<Void> lending = tryLending(changes);
+            return lending != null ? lending : Change.applyInOrder(this, changes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A small transaction that only lends and returns books, each at most once: the usual
+     * checkout. Checked whole before anything is changed, so it has nothing to undo.
+     *
+     * @return null if the transaction is not one of these
+     */
+    private Outcome<Void> tryLending(List<Change> changes) {
+        if (changes.size() > SMALL_TRANSACTION) {
+            return null;
+        }
+        for (Change change : changes) {
+            if (change.getType() != Change.Type.LEND_BOOK && change.getType() != Change.Type.RECEIVE_BOOK) {
+                return null;
+            }
+        }
+        Book[] books = new Book[changes.size()];
+        for (int i = 0; i < books.length; i++) {
+            Change change = changes.get(i);
+            Book book = codeToBook.get(change.getCode());
+            if (book == null) {
+                return Change.failed(i, Outcome.noSuchBook(change.getCode()));
+            }
+            for (int j = 0; j < i; j++) {
+                if (books[j] == book) {
+                    // a book changed twice, the later change has to see the earlier one
+                    return null;
+                }
+            }
+            if (change.getType() == Change.Type.LEND_BOOK) {
+                Visitor owner = codeToOwner.get(change.getCode());
+                if (owner != null) {
+                    return Change.failed(i, Outcome.alreadyBorrowed(change.getCode(), owner.getId()));
+                }
+                if (!hasVisitor(change.getVisitorId())) {
+                    return Change.failed(i, Outcome.noSuchVisitor(change.getVisitorId()));
+                }
+            }
+            books[i] = book;
+        }
+        for (int i = 0; i < books.length; i++) {
+            Change change = changes.get(i);
+            if (change.getType() == Change.Type.LEND_BOOK) {
+                codeToOwner.put(change.getCode(), visitors.get(change.getVisitorId()));
+                borrowedBooks.get(change.getVisitorId()).add(books[i]);
+            } else {
+                deleteFromOwner(codeToOwner.remove(change.getCode()), books[i]);
+            }
+        }
+        return Outcome.done();
+    }
+
+    @Override
+    public Outcome<Long> tryGetOwner(String code) {
+        lock.lock();
+        try {
+            if (!codeToBook.containsKey(code)) {
+                return Outcome.noSuchBook(code);
+            }
+            Visitor owner = codeToOwner.get(code);
+            return Outcome.ok(owner == null ? -1 : owner.getId());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public LibraryView view() {
+        lock.lock();
+        try {
+            CopiedLibraryView view = new CopiedLibraryView();
+            codeToBook.values().forEach(view::addBook);
+            visitors.forEach((id, visitor) -> view.addVisitor(visitor, borrowedBooks.get(id).snapshot()));
+            return view;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean hasVisitor(long id) {
+        return id >= 0 && visitors.containsKey(id);
+    }
+
+    private void deleteFromOwner(Visitor owner, Book book) {
+        if (owner == null) return;
+        borrowedBooks.get(owner.getId()).remove(book);
+    }
 }
@@ -0,0 +1,140 @@
+package com.reznichenko.library.server.service;
+
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+
+/**
+ * Result of a {@code try} method of {@link DataBase}: the value, or which of the expected
+ * failures happened and its message. Unlike the exceptions the other methods throw, a failure
+ * doesn't capture a stack trace, which matters when many requests fail as a matter of course.
+ * <p>
+ * The {@code throwIf} methods turn a failure back into the matching exception, so that the
+ * exception-based methods can be written on top of the {@code try} ones.
+ */
+public final class Outcome<T> {
+
+    public enum Status {
+        OK(null),
+        NO_SUCH_BOOK(NoSuchBookException.class),
+        NO_SUCH_VISITOR(NoSuchVisitorException.class),
+        BOOK_ALREADY_EXISTS(BookAlreadyExistsException.class),
+        BOOK_ALREADY_BORROWED(BookAlreadyBorrowedException.class);
+
+        private final Class<? extends Exception> exception;
+
+        Status(Class<? extends Exception> exception) {
+            this.exception = exception;
+        }
+
+        // the exception the exception-based methods throw instead
+        public Class<? extends Exception> getException() {
+            return exception;
+        }
+    }
+
+    private static final Outcome<?> DONE = new Outcome<>(Status.OK, null, null);
+
+    private final Status status;
+    private final T value;
+    private final String message;
+
+    private Outcome(Status status, T value, String message) {
+        this.status = status;
+        this.value = value;
+        this.message = message;
+    }
+
+    public static <T> Outcome<T> ok(T value) {
+        return new Outcome<>(Status.OK, value, null);
+    }
+
+    // success of a method with nothing to return
+    @SuppressWarnings("unchecked")
+    public static <T> Outcome<T> done() {
+        return (Outcome<T>) DONE;
+    }
+
+    public static <T> Outcome<T> failure(Status status, String message) {
+        if (status == Status.OK) {
+            throw new IllegalArgumentException("a failure needs a failing status");
+        }
+        return new Outcome<>(status, null, message);
+    }
+
+    public static <T> Outcome<T> noSuchBook(String code) {
+        return failure(Status.NO_SUCH_BOOK, "no book found with code: " + code);
+    }
+
+    public static <T> Outcome<T> noSuchVisitor(long id) {
+        return failure(Status.NO_SUCH_VISITOR, "no visitor found with id: " + id);
+    }
+
+    public static <T> Outcome<T> alreadyBorrowed(String code, long ownerId) {
+        return failure(Status.BOOK_ALREADY_BORROWED, "book with code " + code + " is already borrowed by id " + ownerId);
+    }
+
+    /**
+     * @param e thrown by one of the exception-based methods
+     */
+    public static <T> Outcome<T> of(Exception e) {
+        for (Status status : Status.values()) {
+            if (status.exception != null && status.exception.isInstance(e)) {
+                return failure(status, e.getMessage());
+            }
+        }
+        throw new IllegalArgumentException("not an expected failure", e);
+    }
+
+    public boolean isOk() {
+        return status == Status.OK;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    // null unless ok
+    public T getValue() {
+        return value;
+    }
+
+    // null if ok
+    public String getMessage() {
+        return message;
+    }
+
+    public Outcome<T> throwIfNoSuchBook() throws NoSuchBookException {
+        if (status == Status.NO_SUCH_BOOK) {
+            throw new NoSuchBookException(message);
+        }
+        return this;
+    }
+
+    public Outcome<T> throwIfNoSuchVisitor() throws NoSuchVisitorException {
+        if (status == Status.NO_SUCH_VISITOR) {
+            throw new NoSuchVisitorException(message);
+        }
+        return this;
+    }
+
+    public Outcome<T> throwIfAlreadyExists() throws BookAlreadyExistsException {
+        if (status == Status.BOOK_ALREADY_EXISTS) {
+            throw new BookAlreadyExistsException(message);
+        }
+        return this;
+    }
+
+    public Outcome<T> throwIfAlreadyBorrowed() throws BookAlreadyBorrowedException {
+        if (status == Status.BOOK_ALREADY_BORROWED) {
+            throw new BookAlreadyBorrowedException(message);
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return isOk() ? "ok " + value : status + ": " + message;
+    }
+}
@@ -0,0 +1,480 @@
+package com.reznichenko.library.server.service;
+
+import com.reznichenko.library.server.collection.PersistentHashMap;
+import com.reznichenko.library.server.collection.PersistentLongTreeMap;
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.StringDictionary;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.id.BlockIdAllocator;
+import com.reznichenko.library.server.id.IdAllocator;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the whole library in one immutable {@link Snapshot}. Writers build the next snapshot
+ * from the current one and publish it with a single compare-and-set (retrying on conflict),
+ * readers never lock and never copy.
+ * <p>
+ * Books are copied on the way in and treated as immutable afterwards: {@link #changeCode}
+ * stores a new book instead of calling {@link Book#setCode} on the old one. The one exception is
+ * the author, swapped for the store's shared copy once the snapshot with the book is published.
+ */
+public class SnapshotDataBase implements DataBase {
+
+    private final AtomicReference<Snapshot> current = new AtomicReference<>(Snapshot.EMPTY);
+    private final IdAllocator ids;
+    private final StringDictionary authors = new StringDictionary();
+    private final StringDictionary names = new StringDictionary();
+
+    public SnapshotDataBase() {
+        this(new BlockIdAllocator());
+    }
+
+    public SnapshotDataBase(IdAllocator ids) {
+        this.ids = ids;
+    }
+
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    @Override
+    public List<Book> getBorrowedBooks(long id) throws NoSuchVisitorException {
+        return snapshot().getBorrowedBooks(id);
+    }
+
+    @Override
+    public Outcome<BookPage> tryGetBorrowedPage(long id, BookPage.Cursor after, int limit) {
+        try {
+            return Outcome.ok(snapshot().getBorrowedPage(id, after, limit));
+        } catch (NoSuchVisitorException e) {
+            return Outcome.of(e);
+        }
+    }
+
+    @Override
+    public String getBookName(String code) throws NoSuchBookException {
+        return snapshot().getBook(code).getName();
+    }
+
+    @Override
+    public String getBookAuthor(String code) throws NoSuchBookException {
+        return snapshot().getBook(code).getAuthor();
+    }
+
+    @Override
+    public long addVisitor(String name, String surname) {
+        Snapshot snapshot, next;
+        long id;
+        do {
+            snapshot = current.get();
+            do {
+                id = ids.nextId();
+            } while (snapshot.visitors.containsKey(id));
+            Visitor visitor = new Visitor(id, name, surname);
+            visitor.shareNames(names);
+            VisitorState state = new VisitorState(visitor, PersistentLongTreeMap.empty());
+            next = snapshot.withVisitors(snapshot.visitors.plus(id, state));
+        } while (!current.compareAndSet(snapshot, next));
+        return id;
+    }
+
+    @Override
+    public void restoreVisitor(Visitor visitor) {
+        ids.observe(visitor.getId());
+        visitor.shareNames(names);
+        Snapshot snapshot, next;
+        do {
+            snapshot = current.get();
+            VisitorState old = snapshot.visitors.get(visitor.getId());
+            VisitorState state = new VisitorState(visitor, old == null ? PersistentLongTreeMap.empty() : old.books);
+            next = snapshot.withVisitors(snapshot.visitors.plus(visitor.getId(), state));
+        } while (!current.compareAndSet(snapshot, next));
+    }
+
+    @Override
+    public void addBook(Book book) throws BookAlreadyExistsException {
+        Book copy = new Book(book.getCode(), book.getAuthor(), book.getName());
+        Snapshot snapshot, next;
+        do {
+            snapshot = current.get();
+            next = snapshot.withBookAdded(copy);
+        } while (!current.compareAndSet(snapshot, next));
+        copy.shareAuthor(authors);
+    }
+
+    @Override
+    public void addBooks(List<Book> books, BiConsumer<Integer, Exception> onFailure) {
+        List<Integer> failed = new ArrayList<>();
+        Snapshot snapshot, next;
+        do {
+            snapshot = current.get();
+            failed.clear();
+            PersistentHashMap<String, Book> added = snapshot.books;
+            for (int i = 0; i < books.size(); i++) {
+                Book book = books.get(i);
+                if (added.containsKey(book.getCode())) {
+                    failed.add(i);
+                } else {
+                    added = added.plus(book.getCode(), new Book(book.getCode(), book.getAuthor(), book.getName()));
+                }
+            }
+            next = snapshot.withBooks(added);
+        } while (!current.compareAndSet(snapshot, next));
+        for (Book book : books) {
+            // the book that failed is there from before, sharing its author again changes nothing
+            next.books.get(book.getCode()).shareAuthor(authors);
+        }
+        for (int i : failed) {
+            onFailure.accept(i, new BookAlreadyExistsException("book with code: " + books.get(i).getCode() + " already exists"));
+        }
+    }
+
+    // one snapshot for the batch; ids taken by a lost race are skipped, like in addVisitor
+    @Override
+    public long[] addVisitors(List<String> names, List<String> surnames) {
+        long[] ids = new long[names.size()];
+        Snapshot snapshot, next;
+        do {
+            snapshot = current.get();
+            PersistentHashMap<Long, VisitorState> added = snapshot.visitors;
+            for (int i = 0; i < ids.length; i++) {
+                long id;
+                do {
+                    id = this.ids.nextId();
+                } while (added.containsKey(id));
+                ids[i] = id;
+                Visitor visitor = new Visitor(id, names.get(i), surnames.get(i));
+                visitor.shareNames(this.names);
+                added = added.plus(id, new VisitorState(visitor, PersistentLongTreeMap.empty()));
+            }
+            next = snapshot.withVisitors(added);
+        } while (!current.compareAndSet(snapshot, next));
+        return ids;
+    }
+
+    @Override
+    public void restoreVisitors(List<Visitor> visitors) {
+        visitors.forEach(visitor -> {
+            ids.observe(visitor.getId());
+            visitor.shareNames(names);
+        });
+        Snapshot snapshot, next;
+        do {
+            snapshot = current.get();
+            PersistentHashMap<Long, VisitorState> restored = snapshot.visitors;
+            for (Visitor visitor : visitors) {
+                VisitorState old = restored.get(visitor.getId());
+                restored = restored.plus(visitor.getId(),
+                        new VisitorState(visitor, old == null ? PersistentLongTreeMap.empty() : old.books));
+            }
+            next = snapshot.withVisitors(restored);
+        } while (!current.compareAndSet(snapshot, next));
+    }
+
+    @Override
+    public void deleteBook(String code) throws NoSuchBookException {
+        Snapshot snapshot, next;
+        do {
+            snapshot = current.get();
+            next = snapshot.withBookDeleted(code);
+        } while (!current.compareAndSet(snapshot, next));
+    }
+
+    @Override
+    public void changeCode(String oldCode, String newCode) throws NoSuchBookException, BookAlreadyExistsException {
+        Snapshot snapshot, next;
+        do {
+            snapshot = current.get();
+            next = snapshot.withCodeChanged(oldCode, newCode);
+        } while (!current.compareAndSet(snapshot, next));
+    }
+
+    @Override
+    public void lendBook(long visitorId, String code) throws NoSuchBookException, BookAlreadyBorrowedException, NoSuchVisitorException {
+        Snapshot snapshot, next;
+        do {
+            snapshot = current.get();
+            next = snapshot.withBookLent(visitorId, code);
+        } while (!current.compareAndSet(snapshot, next));
+    }
+
+    @Override
+    public void receiveReturnedBook(String code) throws NoSuchBookException {
+        Snapshot snapshot, next;
+        do {
+            snapshot = current.get();
+            next = snapshot.withBookReturned(code);
+        } while (!current.compareAndSet(snapshot, next));
+    }
+
+    // the whole transaction becomes one snapshot, published by one compare-and-set or not at all
+    @Override
+    public Outcome<Void> tryTransaction(List<Change> changes) {
+        Snapshot snapshot, next;
+        do {
+            snapshot = current.get();
+            next = snapshot;
+            for (int i = 0; i < changes.size(); i++) {
+                try {
+                    next = next.with(changes.get(i));
+                } catch (NoSuchBookException | BookAlreadyExistsException | BookAlreadyBorrowedException | NoSuchVisitorException e) {
+                    return Change.failed(i, Outcome.of(e));
+                }
+            }
+        } while (!current.compareAndSet(snapshot, next));
+        for (Change change : changes) {
+            // an added book may have been moved by a later change, and a moved one copied
+            String code = change.getType() == Change.Type.CHANGE_CODE ? change.getNewCode() : change.getCode();
+            Book book = change.getType() == Change.Type.ADD_BOOK || change.getType() == Change.Type.CHANGE_CODE
+                    ? next.books.get(code) : null;
+            if (book != null) {
+                book.shareAuthor(authors);
+            }
+        }
+        return Outcome.done();
+    }
+
+    @Override
+    public Outcome<Long> tryGetOwner(String code) {
+        try {
+            return Outcome.ok(snapshot().getOwner(code));
+        } catch (NoSuchBookException e) {
+            return Outcome.of(e);
+        }
+    }
+
+    @Override
+    public LibraryView view() {
+        return snapshot();
+    }
+
+    /**
+     * An immutable, consistent version of the library. Any number of reads against one
+     * snapshot see the same state, whatever writers do meanwhile.
+     */
+    public static final class Snapshot implements LibraryView {
+
+        private static final Snapshot EMPTY = new Snapshot(PersistentHashMap.empty(), PersistentHashMap.empty(),
+                PersistentHashMap.empty(), 0);
+
+        private final PersistentHashMap<String, Book> books;
+        private final PersistentHashMap<String, Loan> loans;
+        private final PersistentHashMap<Long, VisitorState> visitors;
+        private final long nextSequence;
+
+        private Snapshot(PersistentHashMap<String, Book> books, PersistentHashMap<String, Loan> loans,
+                         PersistentHashMap<Long, VisitorState> visitors, long nextSequence) {
+            this.books = books;
+            this.loans = loans;
+            this.visitors = visitors;
+            this.nextSequence = nextSequence;
+        }
+
+        public Book getBook(String code) throws NoSuchBookException {
+            Book book = books.get(code);
+            if (book == null) {
+                throw new NoSuchBookException("no book found with code: " + code);
+            }
+            return book;
+        }
+
+        public Visitor getVisitor(long id) throws NoSuchVisitorException {
+            return getVisitorState(id).visitor;
+        }
+
+        /**
+         * @return immutable list of the books in the order they were lent, shared with the snapshot
+         */
+        public List<Book> getBorrowedBooks(long id) throws NoSuchVisitorException {
+            return getVisitorState(id).books.values();
+        }
+
+        /**
+         * Positions are the sequence numbers the books were lent under, which books returned
+         * meanwhile don't change, so the cursor alone says where the page starts.
+         */
+        public BookPage getBorrowedPage(long id, BookPage.Cursor after, int limit) throws NoSuchVisitorException {
+            PersistentLongTreeMap<Book> borrowed = getVisitorState(id).books;
+            Iterator<Book> books = borrowed.valuesAfter(after == null ? -1 : after.getPosition());
+            List<Book> page = new ArrayList<>(Math.min(limit, borrowed.size()));
+            while (page.size() < limit && books.hasNext()) {
+                page.add(books.next());
+            }
+            if (!books.hasNext()) {
+                return new BookPage(page, null);
+            }
+            String code = page.get(page.size() - 1).getCode();
+            return new BookPage(page, new BookPage.Cursor(loans.get(code).sequence, code));
+        }
+
+        /**
+         * @return id of the visitor holding the book, or -1 if it is in the library
+         */
+        public long getOwner(String code) throws NoSuchBookException {
+            getBook(code);
+            Loan loan = loans.get(code);
+            return loan == null ? -1 : loan.visitorId;
+        }
+
+        @Override
+        public int bookCount() {
+            return books.size();
+        }
+
+        @Override
+        public int visitorCount() {
+            return visitors.size();
+        }
+
+        @Override
+        public void forEachBook(Consumer<Book> action) {
+            books.forEach((code, book) -> action.accept(book));
+        }
+
+        @Override
+        public void forEachVisitor(BiConsumer<Visitor, List<Book>> action) {
+            visitors.forEach((id, state) -> action.accept(state.visitor, state.books.values()));
+        }
+
+        public int loanCount() {
+            return loans.size();
+        }
+
+        private VisitorState getVisitorState(long id) throws NoSuchVisitorException {
+            VisitorState state = id < 0 ? null : visitors.get(id);
+            if (state == null) {
+                throw new NoSuchVisitorException("no visitor found with id: " + id);
+            }
+            return state;
+        }
+
+        private Snapshot withBooks(PersistentHashMap<String, Book> books) {
+            return new Snapshot(books, loans, visitors, nextSequence);
+        }
+
+        private Snapshot withLoans(PersistentHashMap<String, Loan> loans) {
+            return new Snapshot(books, loans, visitors, nextSequence);
+        }
+
+        private Snapshot withVisitors(PersistentHashMap<Long, VisitorState> visitors) {
+            return new Snapshot(books, loans, visitors, nextSequence);
+        }
+
+        private Snapshot with(Change change) throws NoSuchBookException, BookAlreadyExistsException,
+                BookAlreadyBorrowedException, NoSuchVisitorException {
+            switch (change.getType()) {
+                case ADD_BOOK:
+                    return withBookAdded(change.getBook());
+                case DELETE_BOOK:
+                    return withBookDeleted(change.getCode());
+                case CHANGE_CODE:
+                    return withCodeChanged(change.getCode(), change.getNewCode());
+                case LEND_BOOK:
+                    return withBookLent(change.getVisitorId(), change.getCode());
+                case RECEIVE_BOOK:
+                    return withBookReturned(change.getCode());
+                default:
+                    throw new IllegalStateException("unknown change " + change);
+            }
+        }
+
+        // the book must be a copy no one else holds
+        private Snapshot withBookAdded(Book book) throws BookAlreadyExistsException {
+            if (books.containsKey(book.getCode())) {
+                throw new BookAlreadyExistsException("book with code: " + book.getCode() + " already exists");
+            }
+            return withBooks(books.plus(book.getCode(), book));
+        }
+
+        private Snapshot withBookDeleted(String code) throws NoSuchBookException {
+            getBook(code);
+            Snapshot next = withoutLoan(code);
+            return next.withBooks(next.books.minus(code));
+        }
+
+        private Snapshot withCodeChanged(String oldCode, String newCode) throws NoSuchBookException, BookAlreadyExistsException {
+            if (books.containsKey(newCode)) {
+                throw new BookAlreadyExistsException("couldn't change code to " + newCode + ", book with this code already exists");
+            }
+            Book book = getBook(oldCode);
+            Book moved = new Book(newCode, book.getAuthor(), book.getName());
+            Snapshot next = withBooks(books.minus(oldCode).plus(newCode, moved));
+            Loan loan = loans.get(oldCode);
+            if (loan != null) {
+                VisitorState owner = visitors.get(loan.visitorId);
+                next = next.withLoans(loans.minus(oldCode).plus(newCode, loan))
+                        .withVisitors(visitors.plus(loan.visitorId, owner.withBook(loan.sequence, moved)));
+            }
+            return next;
+        }
+
+        private Snapshot withBookLent(long visitorId, String code) throws NoSuchBookException,
+                BookAlreadyBorrowedException, NoSuchVisitorException {
+            Book book = getBook(code);
+            Loan loan = loans.get(code);
+            if (loan != null) {
+                throw new BookAlreadyBorrowedException("book with code " + code + " is already borrowed by id " +
+                        loan.visitorId);
+            }
+            VisitorState visitor = getVisitorState(visitorId);
+            return new Snapshot(books,
+                    loans.plus(code, new Loan(visitorId, nextSequence)),
+                    visitors.plus(visitorId, visitor.withBook(nextSequence, book)),
+                    nextSequence + 1);
+        }
+
+        private Snapshot withBookReturned(String code) throws NoSuchBookException {
+            getBook(code);
+            return withoutLoan(code);
+        }
+
+        private Snapshot withoutLoan(String code) {
+            Loan loan = loans.get(code);
+            if (loan == null) {
+                return this;
+            }
+            VisitorState owner = visitors.get(loan.visitorId);
+            return new Snapshot(books, loans.minus(code),
+                    visitors.plus(loan.visitorId, owner.withoutBook(loan.sequence)), nextSequence);
+        }
+    }
+
+    private static final class Loan {
+        private final long visitorId;
+        // position of the book in the visitor's list
+        private final long sequence;
+
+        private Loan(long visitorId, long sequence) {
+            this.visitorId = visitorId;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final class VisitorState {
+        private final Visitor visitor;
+        private final PersistentLongTreeMap<Book> books;
+
+        private VisitorState(Visitor visitor, PersistentLongTreeMap<Book> books) {
+            this.visitor = visitor;
+            this.books = books;
+        }
+
+        private VisitorState withBook(long sequence, Book book) {
+            return new VisitorState(visitor, books.plus(sequence, book));
+        }
+
+        private VisitorState withoutBook(long sequence) {
+            return new VisitorState(visitor, books.minus(sequence));
+        }
+    }
+}
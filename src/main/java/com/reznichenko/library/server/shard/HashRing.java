@@ -0,0 +1,67 @@
+package com.reznichenko.library.server.shard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of book codes onto named shards. Every shard takes {@code virtualNodes}
+ * points of a 64-bit ring and a code belongs to the first point at or after its own hash, so a
+ * new shard takes about 1/n of the codes, all of them from the others and none moving between
+ * the old ones.
+ */
+public final class HashRing {
+
+    private final List<String> shards;
+    private final int virtualNodes;
+    private final NavigableMap<Long, String> points = new TreeMap<>();
+
+    public HashRing(List<String> shards, int virtualNodes) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("a ring needs at least one shard");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.virtualNodes = virtualNodes;
+        for (String shard : shards) {
+            for (int i = 0; i < virtualNodes; i++) {
+                points.put(hash(shard + "#" + i), shard);
+            }
+        }
+    }
+
+    public HashRing withShard(String shard) {
+        if (shards.contains(shard)) {
+            throw new IllegalArgumentException("shard " + shard + " is already on the ring");
+        }
+        List<String> more = new ArrayList<>(shards);
+        more.add(shard);
+        return new HashRing(more, virtualNodes);
+    }
+
+    public String owner(String code) {
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(code));
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    public List<String> getShards() {
+        return shards;
+    }
+
+    // FNV-1a over the chars, then the MurmurHash3 finalizer to spread nearby strings apart
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
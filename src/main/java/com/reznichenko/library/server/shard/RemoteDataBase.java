@@ -0,0 +1,247 @@
+package com.reznichenko.library.server.shard;
+
+import com.reznichenko.library.client.BinaryClient;
+import com.reznichenko.library.protocol.BookData;
+import com.reznichenko.library.protocol.LibraryData;
+import com.reznichenko.library.protocol.Reply;
+import com.reznichenko.library.protocol.Status;
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.LibraryView;
+import com.reznichenko.library.server.service.Outcome;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A {@link DataBase} living in another process, reached over the binary protocol. Each call
+ * waits for its response, but calls from different threads share the connection and are in
+ * flight together. A lost connection surfaces as {@link UncheckedIOException}. Transactions are
+ * the default, change by change with an undo, so they are not atomic over the wire.
+ */
+public class RemoteDataBase implements DataBase, Closeable {
+
+    private final String address;
+    private final BinaryClient client;
+
+    private RemoteDataBase(String address, BinaryClient client) {
+        this.address = address;
+        this.client = client;
+    }
+
+    /**
+     * @param address host:port of a server with the binary protocol enabled
+     */
+    public static RemoteDataBase connect(String address) throws IOException {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("expected host:port, got " + address);
+        }
+        String host = address.substring(0, colon);
+        int port = Integer.parseInt(address.substring(colon + 1));
+        return new RemoteDataBase(address, BinaryClient.connect(host, port));
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    @Override
+    public List<Book> getBorrowedBooks(long id) throws NoSuchVisitorException {
+        return tryGetBorrowedBooks(id).throwIfNoSuchVisitor().getValue();
+    }
+
+    @Override
+    public String getBookName(String code) throws NoSuchBookException {
+        return tryGetBookName(code).throwIfNoSuchBook().getValue();
+    }
+
+    @Override
+    public String getBookAuthor(String code) throws NoSuchBookException {
+        return tryGetBookAuthor(code).throwIfNoSuchBook().getValue();
+    }
+
+    // the id is chosen by the server, so this is not what a router uses
+    @Override
+    public long addVisitor(String name, String surname) {
+        return outcome(client.addVisitor(name, surname)).getValue();
+    }
+
+    @Override
+    public void restoreVisitor(Visitor visitor) {
+        outcome(client.restoreVisitor(visitor.getId(), visitor.getName(), visitor.getSurname()));
+    }
+
+    // pipelined, like restoreVisitors
+    @Override
+    public long[] addVisitors(List<String> names, List<String> surnames) {
+        List<CompletableFuture<Reply<Long>>> replies = new ArrayList<>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            replies.add(client.addVisitor(names.get(i), surnames.get(i)));
+        }
+        long[] ids = new long[replies.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = outcome(replies.get(i)).getValue();
+        }
+        return ids;
+    }
+
+    // pipelined: all of them are sent before waiting for the first response
+    @Override
+    public void restoreVisitors(List<Visitor> visitors) {
+        List<CompletableFuture<Reply<Void>>> replies = new ArrayList<>(visitors.size());
+        for (Visitor visitor : visitors) {
+            replies.add(client.restoreVisitor(visitor.getId(), visitor.getName(), visitor.getSurname()));
+        }
+        replies.forEach(this::outcome);
+    }
+
+    @Override
+    public void addBook(Book book) throws BookAlreadyExistsException {
+        tryAddBook(book).throwIfAlreadyExists();
+    }
+
+    @Override
+    public void deleteBook(String code) throws NoSuchBookException {
+        tryDeleteBook(code).throwIfNoSuchBook();
+    }
+
+    @Override
+    public void changeCode(String oldCode, String newCode) throws NoSuchBookException, BookAlreadyExistsException {
+        tryChangeCode(oldCode, newCode).throwIfAlreadyExists().throwIfNoSuchBook();
+    }
+
+    @Override
+    public void lendBook(long visitorId, String code) throws NoSuchBookException, BookAlreadyBorrowedException, NoSuchVisitorException {
+        tryLendBook(visitorId, code).throwIfNoSuchBook().throwIfAlreadyBorrowed().throwIfNoSuchVisitor();
+    }
+
+    @Override
+    public void receiveReturnedBook(String code) throws NoSuchBookException {
+        tryReceiveReturnedBook(code).throwIfNoSuchBook();
+    }
+
+    @Override
+    public Outcome<List<Book>> tryGetBorrowedBooks(long id) {
+        Outcome<List<BookData>> books = outcome(client.getBorrowedBooks(id));
+        if (!books.isOk()) {
+            return Outcome.failure(books.getStatus(), books.getMessage());
+        }
+        List<Book> result = new ArrayList<>(books.getValue().size());
+        for (BookData book : books.getValue()) {
+            result.add(new Book(book.getCode(), book.getAuthor(), book.getName()));
+        }
+        return Outcome.ok(result);
+    }
+
+    @Override
+    public Outcome<String> tryGetBookName(String code) {
+        return outcome(client.getBookName(code));
+    }
+
+    @Override
+    public Outcome<String> tryGetBookAuthor(String code) {
+        return outcome(client.getBookAuthor(code));
+    }
+
+    @Override
+    public Outcome<Void> tryAddBook(Book book) {
+        return outcome(client.addBook(book.getCode(), book.getAuthor(), book.getName()));
+    }
+
+    @Override
+    public Outcome<Void> tryDeleteBook(String code) {
+        return outcome(client.deleteBook(code));
+    }
+
+    @Override
+    public Outcome<Void> tryChangeCode(String oldCode, String newCode) {
+        return outcome(client.changeCode(oldCode, newCode));
+    }
+
+    @Override
+    public Outcome<Void> tryLendBook(long visitorId, String code) {
+        return outcome(client.lendBook(visitorId, code));
+    }
+
+    @Override
+    public Outcome<Void> tryReceiveReturnedBook(String code) {
+        return outcome(client.receiveReturnedBook(code));
+    }
+
+    @Override
+    public Outcome<Long> tryGetOwner(String code) {
+        return outcome(client.getOwner(code));
+    }
+
+    @Override
+    public List<Visitor> getVisitors() {
+        List<Visitor> visitors = new ArrayList<>();
+        for (LibraryData.VisitorData visitor : outcome(client.exportVisitors()).getValue().getVisitors()) {
+            visitors.add(new Visitor(visitor.getId(), visitor.getName(), visitor.getSurname()));
+        }
+        return visitors;
+    }
+
+    // one EXPORT, so the view is as consistent as the one the server takes
+    @Override
+    public LibraryView view() {
+        LibraryData data = outcome(client.export()).getValue();
+        ShardView view = new ShardView();
+        Map<String, Book> books = new HashMap<>();
+        for (BookData book : data.getBooks()) {
+            Book copy = new Book(book.getCode(), book.getAuthor(), book.getName());
+            books.put(copy.getCode(), copy);
+            view.addBook(copy);
+        }
+        for (LibraryData.VisitorData visitor : data.getVisitors()) {
+            List<Book> borrowed = new ArrayList<>(visitor.getBorrowed().size());
+            for (String code : visitor.getBorrowed()) {
+                borrowed.add(books.get(code));
+            }
+            view.addVisitor(new Visitor(visitor.getId(), visitor.getName(), visitor.getSurname()), borrowed);
+        }
+        return view;
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteDataBase{" + address + '}';
+    }
+
+    private <T> Outcome<T> outcome(CompletableFuture<Reply<T>> future) {
+        Reply<T> reply;
+        try {
+            reply = future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw new UncheckedIOException(address + " is unreachable", (IOException) e.getCause());
+            }
+            throw e;
+        }
+        if (reply.isOk()) {
+            return Outcome.ok(reply.getValue());
+        }
+        if (reply.getStatus() == Status.BAD_REQUEST) {
+            throw new IllegalStateException(address + " refused a request: " + reply.getMessage());
+        }
+        return Outcome.failure(Outcome.Status.valueOf(reply.getStatus().name()), reply.getMessage());
+    }
+}
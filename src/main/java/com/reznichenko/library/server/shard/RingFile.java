@@ -0,0 +1,96 @@
+package com.reznichenko.library.server.shard;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The shards on a router's ring, kept next to the router so that a restart finds the ones added
+ * online and the one that was joining when it stopped. One line per shard in the order they
+ * joined; the line of a shard whose books are still being moved starts with {@code joining}.
+ * Written to a temporary file, forced and moved over the old one, so a crash leaves either.
+ */
+public class RingFile {
+
+    private static final String JOINING = "joining ";
+
+    private final Path file;
+
+    public RingFile(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return null if nothing has been written yet
+     */
+    public State read() throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        List<String> shards = new ArrayList<>();
+        String joining = null;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.startsWith(JOINING)) {
+                joining = line.substring(JOINING.length()).trim();
+            } else {
+                shards.add(line);
+            }
+        }
+        return new State(shards, joining);
+    }
+
+    /**
+     * @param joining the shard whose books are about to be moved, null once none is
+     */
+    public void write(List<String> shards, String joining) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (String shard : shards) {
+            text.append(shard).append('\n');
+        }
+        if (joining != null) {
+            text.append(JOINING).append(joining).append('\n');
+        }
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)));
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public static final class State {
+        private final List<String> shards;
+        private final String joining;
+
+        private State(List<String> shards, String joining) {
+            this.shards = Collections.unmodifiableList(shards);
+            this.joining = joining;
+        }
+
+        // on the ring, without the joining one
+        public List<String> getShards() {
+            return shards;
+        }
+
+        // null if no join was under way
+        public String getJoining() {
+            return joining;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.reznichenko.library.server.shard;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@ConditionalOnProperty(value = "library.database", havingValue = "sharded")
+public class ShardController {
+
+    private final ShardedDataBase db;
+    private final boolean localOnly;
+
+    public ShardController(ShardedDataBase db,
+                           @Value("${library.shard.admin-local-only:true}") boolean localOnly) {
+        this.db = db;
+        this.localOnly = localOnly;
+    }
+
+    @GetMapping("shards")
+    public List<String> shards() {
+        return db.getShards();
+    }
+
+    // answers once all the books the new shard owns are on it
+    @PostMapping("shards")
+    public ResponseEntity<String> addShard(@RequestParam String node, HttpServletRequest request) throws IOException {
+        if (localOnly && !InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress()) {
+            return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+        }
+        if (db.getShards().contains(node)) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body("shard " + node + " is already on the ring");
+        }
+        RemoteDataBase shard = RemoteDataBase.connect(node);
+        int moved;
+        try {
+            moved = db.addShard(node, shard);
+        } catch (IllegalArgumentException e) {
+            shard.close();
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
+        }
+        return ResponseEntity.ok("moved " + moved + " books to " + node);
+    }
+}
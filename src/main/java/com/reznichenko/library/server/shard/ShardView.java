@@ -0,0 +1,47 @@
+package com.reznichenko.library.server.shard;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.service.LibraryView;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// a view put together from what the shards sent, nobody else holds its objects
+class ShardView implements LibraryView {
+
+    private final List<Book> books = new ArrayList<>();
+    private final Map<Visitor, List<Book>> visitors = new LinkedHashMap<>();
+
+    void addBook(Book book) {
+        books.add(book);
+    }
+
+    void addVisitor(Visitor visitor, List<Book> borrowed) {
+        visitors.put(visitor, borrowed);
+    }
+
+    @Override
+    public int bookCount() {
+        return books.size();
+    }
+
+    @Override
+    public int visitorCount() {
+        return visitors.size();
+    }
+
+    @Override
+    public void forEachBook(Consumer<Book> action) {
+        books.forEach(action);
+    }
+
+    @Override
+    public void forEachVisitor(BiConsumer<Visitor, List<Book>> action) {
+        visitors.forEach(action);
+    }
+}
@@ -0,0 +1,602 @@
+package com.reznichenko.library.server.shard;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.id.IdAllocator;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.LibraryView;
+import com.reznichenko.library.server.service.Outcome;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Spreads the catalog over several stores by book code, on a {@link HashRing}. Each book lives
+ * on exactly one shard, together with its loan; visitors are few and small, so every shard has
+ * all of them, which lets a shard lend a book on its own. The ids of new visitors come from the
+ * router, so this must be the only router in front of the shards.
+ * <p>
+ * A visitor goes to every shard that takes it and fails only if none does. The shards that
+ * didn't are owed it: it is put on such a shard again before anything else is asked of it,
+ * until that works, so that no shard answers "no such visitor" for a visitor the others have.
+ * <p>
+ * Operations on one book go to its shard under the read lock of the code's stripe. Those that
+ * touch two shards, changing a code into one owned by another shard and moving books while a
+ * shard joins, take the write lock of every stripe involved and then copy the book over: add it
+ * to the new shard, lend it again if it was lent, delete it from the old one. A crash in the
+ * middle leaves the book on both shards rather than on none.
+ * <p>
+ * A visitor's borrowed books are collected from all the shards, in the order each shard lent
+ * them, shard after shard; {@link #view()} is put together the same way and is consistent per
+ * shard only.
+ * <p>
+ * Transactions are the default {@link DataBase#tryTransaction}: the changes go to their shards
+ * one by one and are undone one by one when one fails, with no lock held across them. So they
+ * are not atomic: others may see one half done, and one whose undo can't reach a shard stays
+ * half done and fails with {@link com.reznichenko.library.server.exception.TransactionUndoException}.
+ * <p>
+ * With a {@link RingFile} the ring outlives the router: a shard is written down as joining before
+ * any book moves and as a member once they all have, and {@link #open} finishes a join that a
+ * stopped router left half done.
+ */
+public class ShardedDataBase implements DataBase, Closeable {
+
+    private static final int STRIPES = 1024;
+
+    private final IdAllocator ids;
+    private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[STRIPES];
+    // visitors are added under the read lock, a new shard gets them under the write lock
+    private final ReentrantReadWriteLock topology = new ReentrantReadWriteLock();
+    // codes already on their shard of the new ring while a shard is joining
+    private final Set<String> moved = ConcurrentHashMap.newKeySet();
+    // by shard, the visitors it failed to take, by id
+    private final Map<DataBase, Map<Long, Visitor>> owed = new ConcurrentHashMap<>();
+    private final Object rebalancing = new Object();
+    // null to keep the ring in memory only
+    private final RingFile ringFile;
+    // replaced under the write locks of all the stripes
+    private volatile Routing routing;
+
+    /**
+     * @param shards by name, e.g. host:port; the names place the shards on the ring
+     */
+    public ShardedDataBase(Map<String, ? extends DataBase> shards, IdAllocator ids, int virtualNodes) {
+        this(shards, ids, virtualNodes, null);
+    }
+
+    public ShardedDataBase(Map<String, ? extends DataBase> shards, IdAllocator ids, int virtualNodes, RingFile ringFile) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("no shards");
+        }
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        this.ids = ids;
+        this.ringFile = ringFile;
+        this.routing = new Routing(new HashRing(new ArrayList<>(shards.keySet()), virtualNodes), null,
+                new LinkedHashMap<>(shards));
+        // every shard has every visitor, any one of them tells which ids are taken
+        routing.first().getVisitors().forEach(visitor -> ids.observe(visitor.getId()));
+    }
+
+    /**
+     * A router over the shards the ring file lists, or over {@code nodes} if it lists none yet;
+     * a join the last router didn't finish is finished before this returns.
+     */
+    public static ShardedDataBase open(RingFile ringFile, List<String> nodes, Connector connector,
+                                       IdAllocator ids, int virtualNodes) throws IOException {
+        RingFile.State saved = ringFile.read();
+        List<String> names = saved == null ? nodes : saved.getShards();
+        if (saved == null) {
+            ringFile.write(nodes, null);
+        }
+        Map<String, DataBase> shards = new LinkedHashMap<>();
+        for (String name : names) {
+            shards.put(name, connector.connect(name));
+        }
+        ShardedDataBase db = new ShardedDataBase(shards, ids, virtualNodes, ringFile);
+        if (saved != null && saved.getJoining() != null) {
+            db.addShard(saved.getJoining(), connector.connect(saved.getJoining()));
+        }
+        return db;
+    }
+
+    public List<String> getShards() {
+        return routing.ring.getShards();
+    }
+
+    public boolean isRebalancing() {
+        return routing.previous != null;
+    }
+
+    @Override
+    public List<Book> getBorrowedBooks(long id) throws NoSuchVisitorException {
+        return tryGetBorrowedBooks(id).throwIfNoSuchVisitor().getValue();
+    }
+
+    @Override
+    public String getBookName(String code) throws NoSuchBookException {
+        return tryGetBookName(code).throwIfNoSuchBook().getValue();
+    }
+
+    @Override
+    public String getBookAuthor(String code) throws NoSuchBookException {
+        return tryGetBookAuthor(code).throwIfNoSuchBook().getValue();
+    }
+
+    @Override
+    public long addVisitor(String name, String surname) {
+        topology.readLock().lock();
+        try {
+            long id = ids.nextId();
+            restoreOnEveryShard(List.of(new Visitor(id, name, surname)));
+            return id;
+        } finally {
+            topology.readLock().unlock();
+        }
+    }
+
+    // every shard gets the whole batch at once
+    @Override
+    public long[] addVisitors(List<String> names, List<String> surnames) {
+        topology.readLock().lock();
+        try {
+            long[] added = new long[names.size()];
+            List<Visitor> visitors = new ArrayList<>(added.length);
+            for (int i = 0; i < added.length; i++) {
+                added[i] = ids.nextId();
+                visitors.add(new Visitor(added[i], names.get(i), surnames.get(i)));
+            }
+            restoreOnEveryShard(visitors);
+            return added;
+        } finally {
+            topology.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void restoreVisitor(Visitor visitor) {
+        topology.readLock().lock();
+        try {
+            ids.observe(visitor.getId());
+            restoreOnEveryShard(List.of(visitor));
+        } finally {
+            topology.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void addBook(Book book) throws BookAlreadyExistsException {
+        tryAddBook(book).throwIfAlreadyExists();
+    }
+
+    @Override
+    public void deleteBook(String code) throws NoSuchBookException {
+        tryDeleteBook(code).throwIfNoSuchBook();
+    }
+
+    @Override
+    public void changeCode(String oldCode, String newCode) throws NoSuchBookException, BookAlreadyExistsException {
+        tryChangeCode(oldCode, newCode).throwIfAlreadyExists().throwIfNoSuchBook();
+    }
+
+    @Override
+    public void lendBook(long visitorId, String code) throws NoSuchBookException, BookAlreadyBorrowedException, NoSuchVisitorException {
+        tryLendBook(visitorId, code).throwIfNoSuchBook().throwIfAlreadyBorrowed().throwIfNoSuchVisitor();
+    }
+
+    @Override
+    public void receiveReturnedBook(String code) throws NoSuchBookException {
+        tryReceiveReturnedBook(code).throwIfNoSuchBook();
+    }
+
+    @Override
+    public Outcome<List<Book>> tryGetBorrowedBooks(long id) {
+        List<Book> books = new ArrayList<>();
+        // a book being moved can show up on both of its shards for a moment
+        Set<String> seen = new HashSet<>();
+        for (DataBase shard : routing.shards.values()) {
+            repay(shard);
+            Outcome<List<Book>> part = shard.tryGetBorrowedBooks(id);
+            if (!part.isOk()) {
+                return part;
+            }
+            for (Book book : part.getValue()) {
+                if (seen.add(book.getCode())) {
+                    books.add(book);
+                }
+            }
+        }
+        return Outcome.ok(books);
+    }
+
+    @Override
+    public Outcome<String> tryGetBookName(String code) {
+        return onBook(code, shard -> shard.tryGetBookName(code));
+    }
+
+    @Override
+    public Outcome<String> tryGetBookAuthor(String code) {
+        return onBook(code, shard -> shard.tryGetBookAuthor(code));
+    }
+
+    @Override
+    public Outcome<Void> tryAddBook(Book book) {
+        String code = book.getCode();
+        ReentrantReadWriteLock lock = stripe(code);
+        lock.readLock().lock();
+        try {
+            Routing r = routing;
+            DataBase target = r.owner(code);
+            DataBase current = r.current(code, moved);
+            if (current == target) {
+                return target.tryAddBook(book);
+            }
+            // a shard is joining and the code belongs to it now, but may still be on its old shard
+            if (current.tryGetOwner(code).isOk()) {
+                return alreadyExists(code);
+            }
+            Outcome<Void> added = target.tryAddBook(book);
+            if (added.isOk()) {
+                moved.add(code);
+            }
+            return added;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Outcome<Void> tryDeleteBook(String code) {
+        return onBook(code, shard -> shard.tryDeleteBook(code));
+    }
+
+    @Override
+    public Outcome<Void> tryChangeCode(String oldCode, String newCode) {
+        ReentrantReadWriteLock first = stripe(oldCode);
+        ReentrantReadWriteLock second = stripe(newCode);
+        if (index(newCode) < index(oldCode)) {
+            ReentrantReadWriteLock swap = first;
+            first = second;
+            second = swap;
+        }
+        first.writeLock().lock();
+        second.writeLock().lock();
+        try {
+            Routing r = routing;
+            DataBase source = r.current(oldCode, moved);
+            DataBase holder = r.current(newCode, moved);
+            DataBase target = r.owner(newCode);
+            if (holder != target && holder.tryGetOwner(newCode).isOk()) {
+                return codeTaken(newCode);
+            }
+            if (source == target) {
+                Outcome<Void> changed = source.tryChangeCode(oldCode, newCode);
+                if (changed.isOk() && r.previous != null) {
+                    moved.add(newCode);
+                }
+                return changed;
+            }
+            if (target.tryGetOwner(newCode).isOk()) {
+                return codeTaken(newCode);
+            }
+            if (!source.tryGetOwner(oldCode).isOk()) {
+                return Outcome.noSuchBook(oldCode);
+            }
+            copy(oldCode, newCode, source, target);
+            if (r.previous != null) {
+                moved.add(newCode);
+            }
+            return Outcome.done();
+        } finally {
+            second.writeLock().unlock();
+            first.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Outcome<Void> tryLendBook(long visitorId, String code) {
+        return onBook(code, shard -> shard.tryLendBook(visitorId, code));
+    }
+
+    @Override
+    public Outcome<Void> tryReceiveReturnedBook(String code) {
+        return onBook(code, shard -> shard.tryReceiveReturnedBook(code));
+    }
+
+    @Override
+    public Outcome<Long> tryGetOwner(String code) {
+        return onBook(code, shard -> shard.tryGetOwner(code));
+    }
+
+    // every shard has all of them
+    @Override
+    public List<Visitor> getVisitors() {
+        DataBase first = routing.first();
+        repay(first);
+        return first.getVisitors();
+    }
+
+    @Override
+    public LibraryView view() {
+        ShardView merged = new ShardView();
+        Set<String> books = new HashSet<>();
+        Set<String> lent = new HashSet<>();
+        Map<Long, Visitor> visitors = new LinkedHashMap<>();
+        Map<Long, List<Book>> borrowed = new LinkedHashMap<>();
+        for (DataBase shard : routing.shards.values()) {
+            repay(shard);
+            LibraryView view = shard.view();
+            view.forEachBook(book -> {
+                if (books.add(book.getCode())) {
+                    merged.addBook(book);
+                }
+            });
+            view.forEachVisitor((visitor, list) -> {
+                visitors.putIfAbsent(visitor.getId(), visitor);
+                List<Book> all = borrowed.computeIfAbsent(visitor.getId(), id -> new ArrayList<>());
+                for (Book book : list) {
+                    if (lent.add(book.getCode())) {
+                        all.add(book);
+                    }
+                }
+            });
+        }
+        visitors.forEach((id, visitor) -> merged.addVisitor(visitor, borrowed.get(id)));
+        return merged;
+    }
+
+    /**
+     * Puts a new shard on the ring and moves to it the books it now owns, while the others keep
+     * serving: a book is only out of reach while it is being copied. One shard joins at a time.
+     *
+     * @return how many books were moved
+     */
+    public int addShard(String name, DataBase shard) {
+        synchronized (rebalancing) {
+            Routing before = routing;
+            if (before.shards.containsKey(name)) {
+                throw new IllegalArgumentException("shard " + name + " is already on the ring");
+            }
+            HashRing ring = before.ring.withShard(name);
+            Map<String, DataBase> shards = new LinkedHashMap<>(before.shards);
+            shards.put(name, shard);
+            saveRing(before.shards.keySet(), name);
+
+            topology.writeLock().lock();
+            try {
+                DataBase first = before.first();
+                repay(first);
+                shard.restoreVisitors(first.getVisitors());
+                // what the first shard still owes, the new one is owed
+                Map<Long, Visitor> missed = owed.get(first);
+                if (missed != null && !missed.isEmpty()) {
+                    owed.computeIfAbsent(shard, key -> new ConcurrentHashMap<>()).putAll(missed);
+                }
+                // waits for the operations routed by the old ring, an add among them would be missed below
+                switchTo(new Routing(ring, before.ring, shards));
+            } finally {
+                topology.writeLock().unlock();
+            }
+
+            int count = 0;
+            for (DataBase source : before.shards.values()) {
+                List<String> leaving = new ArrayList<>();
+                source.view().forEachBook(book -> {
+                    if (ring.owner(book.getCode()).equals(name)) {
+                        leaving.add(book.getCode());
+                    }
+                });
+                for (String code : leaving) {
+                    if (move(code, source, shard)) {
+                        count++;
+                    }
+                }
+            }
+            saveRing(shards.keySet(), null);
+            switchTo(new Routing(ring, null, shards));
+            return count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (DataBase shard : routing.shards.values()) {
+            if (shard instanceof Closeable) {
+                ((Closeable) shard).close();
+            }
+        }
+    }
+
+    private boolean move(String code, DataBase source, DataBase target) {
+        ReentrantReadWriteLock lock = stripe(code);
+        lock.writeLock().lock();
+        try {
+            // added again, or given this code, since the list was taken: already where it belongs
+            if (moved.contains(code)) {
+                return false;
+            }
+            // deleted or given another code since
+            if (!source.tryGetOwner(code).isOk()) {
+                return false;
+            }
+            // left by a router that stopped in the middle of copying it, maybe without its loan; open()
+            // finishes that join before serving, so the copy can't have been changed since
+            if (target.tryGetOwner(code).isOk()) {
+                target.tryDeleteBook(code);
+            }
+            copy(code, code, source, target);
+            moved.add(code);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // the book must exist on the source and the new code must be free on the target
+    private void copy(String oldCode, String newCode, DataBase source, DataBase target) {
+        repay(target);
+        String author = source.tryGetBookAuthor(oldCode).getValue();
+        String name = source.tryGetBookName(oldCode).getValue();
+        long owner = source.tryGetOwner(oldCode).getValue();
+        Outcome<Void> added = target.tryAddBook(new Book(newCode, author, name));
+        if (!added.isOk()) {
+            throw new IllegalStateException("couldn't copy book " + oldCode + ": " + added.getMessage());
+        }
+        if (owner >= 0) {
+            Outcome<Void> lent = target.tryLendBook(owner, newCode);
+            if (!lent.isOk()) {
+                throw new IllegalStateException("couldn't lend copied book " + newCode + ": " + lent.getMessage());
+            }
+        }
+        source.tryDeleteBook(oldCode);
+    }
+
+    private void saveRing(Collection<String> shards, String joining) {
+        if (ringFile == null) {
+            return;
+        }
+        try {
+            ringFile.write(new ArrayList<>(shards), joining);
+        } catch (IOException e) {
+            throw new UncheckedIOException("couldn't write the ring", e);
+        }
+    }
+
+    private void switchTo(Routing next) {
+        for (ReentrantReadWriteLock stripe : stripes) {
+            stripe.writeLock().lock();
+        }
+        try {
+            routing = next;
+            if (next.previous == null) {
+                moved.clear();
+            }
+        } finally {
+            for (int i = STRIPES - 1; i >= 0; i--) {
+                stripes[i].writeLock().unlock();
+            }
+        }
+    }
+
+    private <T> Outcome<T> onBook(String code, Function<DataBase, Outcome<T>> operation) {
+        ReentrantReadWriteLock lock = stripe(code);
+        lock.readLock().lock();
+        try {
+            DataBase shard = routing.current(code, moved);
+            repay(shard);
+            return operation.apply(shard);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // under the topology read lock; throws only if no shard took them
+    private void restoreOnEveryShard(List<Visitor> visitors) {
+        List<DataBase> failed = new ArrayList<>();
+        RuntimeException failure = null;
+        for (DataBase shard : routing.shards.values()) {
+            try {
+                repay(shard);
+                shard.restoreVisitors(visitors);
+            } catch (RuntimeException e) {
+                failed.add(shard);
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failed.size() == routing.shards.size()) {
+            throw failure;
+        }
+        for (DataBase shard : failed) {
+            Map<Long, Visitor> missed = owed.computeIfAbsent(shard, key -> new ConcurrentHashMap<>());
+            visitors.forEach(visitor -> missed.put(visitor.getId(), visitor));
+        }
+    }
+
+    // puts the visitors the shard is owed on it; a failure leaves them owed for the next time
+    private void repay(DataBase shard) {
+        Map<Long, Visitor> missed = owed.get(shard);
+        if (missed == null || missed.isEmpty()) {
+            return;
+        }
+        List<Visitor> visitors = new ArrayList<>(missed.values());
+        try {
+            shard.restoreVisitors(visitors);
+        } catch (RuntimeException e) {
+            return;
+        }
+        visitors.forEach(visitor -> missed.remove(visitor.getId(), visitor));
+    }
+
+    private ReentrantReadWriteLock stripe(String code) {
+        return stripes[index(code)];
+    }
+
+    private static int index(String code) {
+        int hash = code.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    private static Outcome<Void> alreadyExists(String code) {
+        return Outcome.failure(Outcome.Status.BOOK_ALREADY_EXISTS, "book with code: " + code + " already exists");
+    }
+
+    private static Outcome<Void> codeTaken(String code) {
+        return Outcome.failure(Outcome.Status.BOOK_ALREADY_EXISTS,
+                "couldn't change code to " + code + ", book with this code already exists");
+    }
+
+    public interface Connector {
+        DataBase connect(String name) throws IOException;
+    }
+
+    private static final class Routing {
+        private final HashRing ring;
+        // the ring before a shard joined, until all its books are moved
+        private final HashRing previous;
+        private final Map<String, DataBase> shards;
+
+        private Routing(HashRing ring, HashRing previous, Map<String, DataBase> shards) {
+            this.ring = ring;
+            this.previous = previous;
+            this.shards = Collections.unmodifiableMap(shards);
+        }
+
+        private DataBase first() {
+            return shards.values().iterator().next();
+        }
+
+        // where the code belongs
+        private DataBase owner(String code) {
+            return shards.get(ring.owner(code));
+        }
+
+        // where the code is now
+        private DataBase current(String code, Set<String> moved) {
+            if (previous == null || moved.contains(code)) {
+                return owner(code);
+            }
+            return shards.get(previous.owner(code));
+        }
+    }
+}
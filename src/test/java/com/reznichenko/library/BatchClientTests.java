@@ -0,0 +1,113 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.client.ClientApplication;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchClientTests {
+
+    private HttpServer server;
+    private ExecutorService executor;
+    // what the server got for each book code, in the order it got it
+    private final Map<String, List<String>> received = new ConcurrentHashMap<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        executor = Executors.newFixedThreadPool(16);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::echo);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    @AfterEach
+    void afterEach() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    @Test
+    void runsConcurrentlyButKeepsOrderPerKeyAndInOutput() throws IOException {
+        StringBuilder input = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        Map<String, List<String>> expectedPerCode = new ConcurrentHashMap<>();
+        for (int i = 0; i < 300; i++) {
+            String code = "c" + i % 7;
+            String echo;
+            if (i % 3 == 0) {
+                input.append("add-book n").append(i).append(" a ").append(code).append('\n');
+                echo = "/add-book name=n" + i + "&author=a&code=" + code;
+            } else if (i % 3 == 1) {
+                input.append("book-name ").append(code).append('\n');
+                echo = "/book-name code=" + code;
+            } else {
+                input.append("lend ").append(i).append(' ').append(code).append('\n');
+                echo = "/lend-book id=" + i + "&code=" + code;
+            }
+            expected.add(echo);
+            expectedPerCode.computeIfAbsent(code, c -> new ArrayList<>()).add(echo);
+            if (i == 150) {
+                input.append("bogus\n");
+                expected.add("no such command, use help");
+            }
+        }
+        input.append("end\nbook-name never\n");
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        HttpUrl base = HttpUrl.get("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        new ClientApplication(base, new BufferedReader(new StringReader(input.toString())),
+                new PrintStream(output, true, StandardCharsets.UTF_8)).runBatch(16);
+
+        assertEquals(expected, List.of(output.toString(StandardCharsets.UTF_8).split(System.lineSeparator())));
+        assertEquals(expectedPerCode, received);
+        assertTrue(maxRunning.get() > 1, "requests never overlapped");
+    }
+
+    private void echo(HttpExchange exchange) throws IOException {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        try {
+            String arguments = exchange.getRequestMethod().equals("POST")
+                    ? new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)
+                    : exchange.getRequestURI().getQuery();
+            String echo = exchange.getRequestURI().getPath() + " " + arguments;
+            String code = arguments.substring(arguments.indexOf("code=") + 5);
+            received.computeIfAbsent(code, c -> new ArrayList<>()).add(echo);
+            Thread.sleep(ThreadLocalRandom.current().nextInt(5));
+            byte[] body = echo.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running.decrementAndGet();
+        }
+    }
+}
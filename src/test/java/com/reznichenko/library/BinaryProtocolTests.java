@@ -0,0 +1,105 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.client.BinaryClient;
+import com.reznichenko.library.protocol.BookData;
+import com.reznichenko.library.protocol.Protocol;
+import com.reznichenko.library.protocol.Reply;
+import com.reznichenko.library.protocol.Status;
+import com.reznichenko.library.server.binary.BinaryServer;
+import com.reznichenko.library.server.service.MapDataBase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BinaryProtocolTests {
+
+    private BinaryServer server;
+    private BinaryClient client;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        server = new BinaryServer(new MapDataBase(), new InetSocketAddress("127.0.0.1", 0), 1, 2);
+        server.start();
+        client = BinaryClient.connect("127.0.0.1", server.getPort());
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        client.close();
+        server.close();
+    }
+
+    @Test
+    void failuresComeBackAsStatuses() {
+        assertTrue(client.addBook("code", "Pushkin", "Onegin").join().isOk());
+        Reply<Void> exists = client.addBook("code", "Pushkin", "Onegin").join();
+        assertEquals(Status.BOOK_ALREADY_EXISTS, exists.getStatus());
+        assertEquals("book with code: code already exists", exists.getMessage());
+
+        Reply<String> missing = client.getBookName("none").join();
+        assertEquals(Status.NO_SUCH_BOOK, missing.getStatus());
+        assertEquals("no book found with code: none", missing.getMessage());
+        assertEquals(Status.NO_SUCH_VISITOR, client.lendBook(42, "code").join().getStatus());
+
+        long id = client.addVisitor("Alexander", "Turgenev").join().getValue();
+        assertTrue(client.lendBook(id, "code").join().isOk());
+        Reply<Void> borrowed = client.lendBook(id, "code").join();
+        assertEquals(Status.BOOK_ALREADY_BORROWED, borrowed.getStatus());
+        assertEquals("book with code code is already borrowed by id " + id, borrowed.getMessage());
+    }
+
+    @Test
+    void pipelinedRequestsAreAnsweredInOrderPerConnection() {
+        long id = client.addVisitor("Alexander", "Turgenev").join().getValue();
+        List<CompletableFuture<Reply<Void>>> lent = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            String code = "code" + i;
+            client.addBook(code, "author" + i, "книга " + i);
+            lent.add(client.lendBook(id, code));
+            if (i % 2 == 0) {
+                client.receiveReturnedBook(code);
+            }
+        }
+        lent.forEach(reply -> assertTrue(reply.join().isOk(), reply.join().toString()));
+
+        List<BookData> books = client.getBorrowedBooks(id).join().getValue();
+        assertEquals(2500, books.size());
+        assertEquals("code1", books.get(0).getCode());
+        assertEquals("author1", books.get(0).getAuthor());
+        assertEquals("книга 1", books.get(0).getName());
+        assertEquals("author4999", client.getBookAuthor("code4999").join().getValue());
+
+        assertTrue(client.changeCode("code1", "renamed").join().isOk());
+        assertTrue(client.deleteBook("renamed").join().isOk());
+        assertEquals(2499, client.getBorrowedBooks(id).join().getValue().size());
+    }
+
+    @Test
+    void aListLargerThanAFrameComesInPages() {
+        long id = client.addVisitor("Alexander", "Turgenev").join().getValue();
+        String author = "a".repeat(60_000);
+        // pipelined well past what a connection lets wait for a worker
+        List<CompletableFuture<Reply<Void>>> lent = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            client.addBook("code" + i, author, "name" + i);
+            lent.add(client.lendBook(id, "code" + i));
+        }
+        lent.forEach(reply -> assertTrue(reply.join().isOk(), reply.join().toString()));
+
+        List<BookData> books = client.getBorrowedBooks(id).join().getValue();
+        assertTrue(300L * author.length() > Protocol.MAX_FRAME);
+        assertEquals(300, books.size());
+        assertEquals("code299", books.get(299).getCode());
+        assertEquals(author, books.get(299).getAuthor());
+        assertEquals(Status.NO_SUCH_VISITOR, client.getBorrowedBooks(id + 1).join().getStatus());
+    }
+}
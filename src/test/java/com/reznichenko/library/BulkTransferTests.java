@@ -0,0 +1,80 @@
+package com.reznichenko.library;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.reznichenko.library.server.bulk.BulkTransfer;
+import com.reznichenko.library.server.bulk.Format;
+import com.reznichenko.library.server.bulk.ImportReport;
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.MapDataBase;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class BulkTransferTests {
+
+    private final DataBase db = new MapDataBase();
+    private final BulkTransfer transfer = new BulkTransfer(db, new ObjectMapper(), 2, 10);
+
+    @Test
+    void importCsvBooks() throws NoSuchBookException {
+        String csv = "name,code,author\r\n" +
+                "Atlas shrugged,r2d2,Ayn Rand\r\n" +
+                "\"Crime, and punishment\",w8m8,\"fedor \"\"the\"\" dostoevsky\"\n" +
+                "\n" +
+                "hpmor,c3po\n" +
+                "\"multi\nline\",c3po,eliezer yudkowsky\n" +
+                "Fountainhead,r2d2,Ayn Rand\n";
+        ImportReport report = transfer.importBooks(new StringReader(csv), Format.CSV);
+        assertEquals(5, report.getRows());
+        assertEquals(3, report.getImported());
+        assertEquals(List.of(3L, 5L), report.getErrors().stream().map(ImportReport.RowError::getRow).collect(Collectors.toList()));
+        assertEquals("missing column: author", report.getErrors().get(0).getMessage());
+        assertEquals("Crime, and punishment", db.getBookName("w8m8"));
+        assertEquals("fedor \"the\" dostoevsky", db.getBookAuthor("w8m8"));
+        assertEquals("multi\nline", db.getBookName("c3po"));
+        assertEquals("Atlas shrugged", db.getBookName("r2d2"));
+    }
+
+    @Test
+    void importNdjsonVisitors() throws NoSuchVisitorException {
+        String ndjson = "{\"id\": 7, \"name\": \"A\", \"surname\": \"T\"}\n" +
+                "{\"id\": \"x\", \"name\": \"B\", \"surname\": \"T\"}\n" +
+                "{\"name\": \"C\"\n" +
+                "{\"name\": \"D\", \"surname\": \"T\"}\n";
+        ImportReport report = transfer.importVisitors(new StringReader(ndjson), Format.NDJSON);
+        assertEquals(4, report.getRows());
+        assertEquals(2, report.getImported());
+        assertEquals(2, report.getFailed());
+        assertFalse(report.isTruncated());
+        assertEquals(List.of(), db.getBorrowedBooks(7));
+    }
+
+    @Test
+    void exportAndImportBack() throws IOException, NoSuchBookException {
+        db.addBooks(List.of(new Book("r2d2", "Ayn Rand", "Atlas, shrugged"), new Book("c3po", "eliezer \"yudkowsky\"", "hpmor")),
+                (i, e) -> {
+                    throw new AssertionError(e);
+                });
+        for (Format format : Format.values()) {
+            StringWriter out = new StringWriter();
+            transfer.exportBooks(db.view(), out, format);
+            DataBase copy = new MapDataBase();
+            ImportReport report = new BulkTransfer(copy, new ObjectMapper(), 1000, 10)
+                    .importBooks(new StringReader(out.toString()), format);
+            assertEquals(2, report.getImported());
+            assertEquals("Atlas, shrugged", copy.getBookName("r2d2"));
+            assertEquals("eliezer \"yudkowsky\"", copy.getBookAuthor("c3po"));
+            assertFalse(out.toString().contains("\n "));
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.feed.ChangeEvent;
+import com.reznichenko.library.server.feed.ChangeFeed;
+import com.reznichenko.library.server.service.ConcurrentDataBase;
+import com.reznichenko.library.server.service.DataBaseListener;
+import com.reznichenko.library.server.service.ListeningDataBase;
+import com.reznichenko.library.server.service.MapDataBase;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChangeFeedTests {
+
+    @Test
+    void successfulChangesAreNumberedAndResumable() throws Exception {
+        ListeningDataBase db = new ListeningDataBase(new MapDataBase());
+        ChangeFeed feed = new ChangeFeed(16);
+        db.addListener(feed);
+        db.addBook(new Book("code", "Pushkin", "Onegin"));
+        long id = db.addVisitor("Alexander", "Turgenev");
+        db.lendBook(id, "code");
+        db.tryLendBook(id, "code");
+        db.tryDeleteBook("none");
+        db.changeCode("code", "other");
+        db.receiveReturnedBook("other");
+
+        ChangeFeed.Page page = feed.read(0, 100);
+        assertEquals(List.of(ChangeEvent.Type.BOOK_ADDED, ChangeEvent.Type.VISITOR_ADDED, ChangeEvent.Type.BOOK_LENT,
+                ChangeEvent.Type.CODE_CHANGED, ChangeEvent.Type.BOOK_RETURNED),
+                page.getEvents().stream().map(ChangeEvent::getType).collect(Collectors.toList()));
+        assertEquals(5, page.getCursor());
+        assertEquals(5, feed.latest());
+        ChangeEvent lent = page.getEvents().get(2);
+        assertEquals(3, lent.getSeq());
+        assertEquals("code", lent.getCode());
+        assertEquals(id, lent.getVisitorId());
+        assertEquals("other", page.getEvents().get(3).getNewCode());
+
+        ChangeFeed.Page resumed = feed.read(3, 1);
+        assertEquals(1, resumed.getEvents().size());
+        assertEquals(4, resumed.getEvents().get(0).getSeq());
+        assertEquals(4, resumed.getCursor());
+        assertTrue(feed.read(5, 10).getEvents().isEmpty());
+        assertEquals(5, feed.read(5, 10).getCursor());
+    }
+
+    @Test
+    void aReaderThatFallsBehindSkipsToTheOldest() {
+        ChangeFeed feed = new ChangeFeed(8);
+        for (int i = 0; i < 20; i++) {
+            feed.onBookDeleted("code" + i);
+        }
+        ChangeFeed.Page page = feed.read(2, 100);
+        assertEquals(10, page.getSkipped());
+        assertEquals(8, page.getEvents().size());
+        assertEquals(13, page.getEvents().get(0).getSeq());
+        assertEquals("code19", page.getEvents().get(7).getCode());
+        assertEquals(20, page.getCursor());
+    }
+
+    @Test
+    void concurrentWritersAreReadInOrderWithoutGaps() throws InterruptedException {
+        ChangeFeed feed = new ChangeFeed(1 << 20);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int writer = t;
+            writers[t] = new Thread(() -> {
+                for (int i = 0; i < 50_000; i++) {
+                    feed.onBookReturned(writer + ":" + i);
+                }
+            });
+            writers[t].start();
+        }
+        long cursor = 0;
+        int[] lastPerWriter = {-1, -1, -1, -1};
+        while (cursor < 200_000) {
+            ChangeFeed.Page page = feed.read(cursor, 1000);
+            assertEquals(0, page.getSkipped());
+            for (ChangeEvent event : page.getEvents()) {
+                assertEquals(++cursor, event.getSeq());
+                String[] parts = event.getCode().split(":");
+                int writer = Integer.parseInt(parts[0]);
+                int i = Integer.parseInt(parts[1]);
+                assertEquals(lastPerWriter[writer] + 1, i);
+                lastPerWriter[writer] = i;
+            }
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(200_000, feed.latest());
+    }
+
+    @Test
+    void aSlowListenerDoesntHoldTheBooks() throws Exception {
+        ConcurrentDataBase store = new ConcurrentDataBase();
+        ListeningDataBase db = new ListeningDataBase(store);
+        ChangeFeed feed = new ChangeFeed(1024);
+        CountDownLatch stuck = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        db.addListener(new DataBaseListener() {
+            @Override
+            public void onBookAdded(Book book) {
+                stuck.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        db.addListener(feed);
+        long id = db.addVisitor("Alexander", "Turgenev");
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            books.add(new Book("code" + i, "Pushkin", "Onegin"));
+        }
+        Thread adder = new Thread(() -> db.addBooks(books, (i, e) -> {
+            throw new IllegalStateException(e);
+        }));
+        adder.start();
+        assertTrue(stuck.await(5, TimeUnit.SECONDS));
+        // the batch held every stripe while the listeners ran
+        Thread lender = new Thread(() -> db.tryLendBook(id, "code7"));
+        lender.start();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (store.tryGetOwner("code7").getValue() != id && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(id, store.tryGetOwner("code7").getValue());
+        // the lend is made, but its answer waits for its event
+        assertTrue(lender.isAlive());
+
+        release.countDown();
+        adder.join();
+        lender.join();
+        List<ChangeEvent> events = feed.read(0, 1000).getEvents();
+        assertEquals(102, events.size());
+        assertEquals(ChangeEvent.Type.BOOK_LENT, events.get(101).getType());
+        assertEquals("code7", events.get(101).getCode());
+    }
+}
@@ -0,0 +1,153 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
+import com.reznichenko.library.server.service.Change;
+import com.reznichenko.library.server.service.ConcurrentDataBase;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.Outcome;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class ConcurrentDataBaseTests extends DataBaseTests {
+
+    @Override
+    DataBase createDataBase() {
+        return new ConcurrentDataBase();
+    }
+
+    @Test
+    void concurrentLendsOfOneBook() throws Exception {
+        DataBase db = createDataBase();
+        int threads = 8;
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            ids.add(db.addVisitor("A", "T" + i));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 200; round++) {
+                String code = "code" + round;
+                db.addBook(new Book(code, "author", "name"));
+                AtomicInteger lent = new AtomicInteger();
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> futures = new ArrayList<>();
+                for (long id : ids) {
+                    futures.add(executor.submit(() -> {
+                        start.await();
+                        try {
+                            db.lendBook(id, code);
+                            lent.incrementAndGet();
+                        } catch (BookAlreadyBorrowedException ignored) {
+                        }
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                assertEquals(1, lent.get());
+            }
+            Set<Book> borrowed = new HashSet<>();
+            for (long id : ids) {
+                borrowed.addAll(db.getBorrowedBooks(id));
+            }
+            assertEquals(200, borrowed.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // every visitor checks out a basket that overlaps the baskets of two others, while two more
+    // threads move a book between two codes, one with single calls and one with transactions
+    @Test
+    void concurrentCheckouts() throws Exception {
+        DataBase db = createDataBase();
+        int visitors = 6;
+        for (int i = 0; i < visitors * 5; i++) {
+            db.addBook(new Book("code" + i, "author", "name" + i));
+        }
+        db.addBook(new Book("left", "author", "moved"));
+        ExecutorService executor = Executors.newFixedThreadPool(visitors + 2);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicInteger checkouts = new AtomicInteger();
+            List<Future<?>> futures = new ArrayList<>();
+            for (int v = 0; v < visitors; v++) {
+                long id = db.addVisitor("A", "T" + v);
+                List<Change> lend = new ArrayList<>();
+                List<Change> receive = new ArrayList<>();
+                Set<String> basket = new HashSet<>();
+                for (int k = 0; k < 10; k++) {
+                    String code = "code" + (v * 5 + k) % (visitors * 5);
+                    lend.add(Change.lendBook(id, code));
+                    receive.add(Change.receiveBook(code));
+                    basket.add(code);
+                }
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int round = 0; round < 2000; round++) {
+                        if (db.tryTransaction(lend).isOk()) {
+                            checkouts.incrementAndGet();
+                            assertEquals(basket, codes(db.getBorrowedBooks(id)));
+                            assertEquals(Outcome.Status.OK, db.tryTransaction(receive).getStatus());
+                        } else {
+                            assertEquals(Set.of(), codes(db.getBorrowedBooks(id)));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int round = 0; round < 20_000; round++) {
+                    db.tryChangeCode("left", "right");
+                }
+                return null;
+            }));
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int round = 0; round < 20_000; round++) {
+                    db.tryTransaction(List.of(Change.changeCode("right", "middle"), Change.changeCode("middle", "left")));
+                }
+                return null;
+            }));
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertNotEquals(0, checkouts.get());
+            int found = 0;
+            for (String code : List.of("left", "middle", "right")) {
+                if (db.tryGetBookName(code).isOk()) {
+                    assertEquals("moved", db.tryGetBookName(code).getValue());
+                    found++;
+                }
+            }
+            assertEquals(1, found);
+            for (int i = 0; i < visitors * 5; i++) {
+                assertEquals(-1L, db.tryGetOwner("code" + i).getValue());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Set<String> codes(List<Book> books) {
+        Set<String> codes = new HashSet<>();
+        for (Book book : books) {
+            codes.add(book.getCode());
+        }
+        return codes;
+    }
+}
@@ -0,0 +1,132 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.client.RevalidatingCache;
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.service.CatalogVersions;
+import com.reznichenko.library.server.service.ListeningDataBase;
+import com.reznichenko.library.server.service.MapDataBase;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConditionalGetTests {
+
+    private HttpServer server;
+    private volatile String tag = "\"1\"";
+    private final AtomicInteger fullAnswers = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::answer);
+        server.start();
+    }
+
+    @AfterEach
+    void afterEach() {
+        server.stop(0);
+    }
+
+    @Test
+    void versionsMoveOnlyWithTheCatalog() throws Exception {
+        ListeningDataBase db = new ListeningDataBase(new MapDataBase());
+        CatalogVersions versions = new CatalogVersions();
+        db.addListener(versions);
+        db.addBook(new Book("code", "Pushkin", "Onegin"));
+        long id = db.addVisitor("Alexander", "Turgenev");
+
+        String first = versions.tag("code");
+        db.lendBook(id, "code");
+        db.receiveReturnedBook("code");
+        assertEquals(first, versions.tag("code"));
+
+        db.changeCode("code", "other");
+        String renamed = versions.tag("code");
+        assertNotEquals(first, renamed);
+        db.deleteBook("other");
+        db.addBook(new Book("code", "Tolstoy", "War and Peace"));
+        assertNotEquals(renamed, versions.tag("code"));
+        assertNotEquals(first, versions.tag("code"));
+
+        String current = versions.tag("code");
+        assertTrue(CatalogVersions.matches(current, current));
+        assertTrue(CatalogVersions.matches("\"x\", W/" + current, current));
+        assertTrue(CatalogVersions.matches("*", current));
+        assertFalse(CatalogVersions.matches(first, current));
+        assertFalse(CatalogVersions.matches(null, current));
+    }
+
+    @Test
+    void cachedAnswersAreOnlyRevalidated() throws IOException {
+        RevalidatingCache cache = new RevalidatingCache(Set.of("book-name"), 1);
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(cache).build();
+        HttpUrl base = HttpUrl.get("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("name of a 1", get(client, base.newBuilder("book-name").addQueryParameter("code", "a").build()));
+        }
+        assertEquals(1, fullAnswers.get());
+        assertEquals(2, notModified.get());
+        assertEquals(2, cache.getRevalidated());
+
+        tag = "\"2\"";
+        assertEquals("name of a 2", get(client, base.newBuilder("book-name").addQueryParameter("code", "a").build()));
+        assertEquals(2, fullAnswers.get());
+
+        // only one entry fits, so b pushes a out
+        get(client, base.newBuilder("book-name").addQueryParameter("code", "b").build());
+        get(client, base.newBuilder("book-name").addQueryParameter("code", "a").build());
+        assertEquals(4, fullAnswers.get());
+        assertEquals(1, cache.size());
+
+        // other endpoints go straight through
+        get(client, base.newBuilder("author").addQueryParameter("code", "a").build());
+        get(client, base.newBuilder("author").addQueryParameter("code", "a").build());
+        assertEquals(6, fullAnswers.get());
+    }
+
+    private static String get(OkHttpClient client, HttpUrl url) throws IOException {
+        try (Response response = client.newCall(new Request.Builder().url(url).build()).execute()) {
+            assertEquals(200, response.code());
+            return response.body().string();
+        }
+    }
+
+    private void answer(HttpExchange exchange) throws IOException {
+        String current = tag;
+        exchange.getResponseHeaders().set("ETag", current);
+        if (current.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            notModified.incrementAndGet();
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+        fullAnswers.incrementAndGet();
+        String query = exchange.getRequestURI().getQuery();
+        byte[] body = ("name of " + query.substring(query.indexOf('=') + 1) + " " + current.replace("\"", ""))
+                .getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -5,15 +5,27 @@ import com.reznichenko.library.server.exception.BookAlreadyBorrowedException;
 import com.reznichenko.library.server.exception.BookAlreadyExistsException;
 import com.reznichenko.library.server.exception.NoSuchBookException;
 import com.reznichenko.library.server.exception.NoSuchVisitorException;
+import com.reznichenko.library.server.exception.TransactionUndoException;
+import com.reznichenko.library.server.service.BookPage;
+import com.reznichenko.library.server.service.Change;
 import com.reznichenko.library.server.service.DataBase;
 import com.reznichenko.library.server.service.MapDataBase;
+import com.reznichenko.library.server.service.Outcome;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class DataBaseTests {
 
@@ -28,7 +40,11 @@ class DataBaseTests {
 
     @BeforeEach
     void beforeEach() {
-        db = new MapDataBase();
+        db = createDataBase();
+    }
+
+    DataBase createDataBase() {
+        return new MapDataBase();
     }
 
     @Test
@@ -47,6 +63,32 @@ class DataBaseTests {
         db.deleteBook("r2d2");
     }
 
+    @Test
+    void addBooksInBatch() throws BookAlreadyExistsException, NoSuchBookException {
+        db.addBook(books.get(2));
+        List<Integer> failed = new ArrayList<>();
+        db.addBooks(List.of(books.get(0), books.get(1), new Book("r2d2", "Ayn Rand", "Anthem"), books.get(2), books.get(3)),
+                (i, e) -> {
+                    assertEquals(BookAlreadyExistsException.class, e.getClass());
+                    failed.add(i);
+                });
+        assertEquals(List.of(2, 3), failed);
+        assertEquals("Atlas shrugged", db.getBookName("r2d2"));
+        assertEquals("idiot", db.getBookName("w8m8"));
+    }
+
+    @Test
+    void addVisitorsInBatch() throws NoSuchVisitorException, NoSuchBookException, BookAlreadyBorrowedException, BookAlreadyExistsException {
+        long first = db.addVisitor("A", "T");
+        long[] ids = db.addVisitors(List.of("B", "C", "D"), List.of("T", "U", "V"));
+        assertEquals(3, ids.length);
+        assertEquals(4, LongStream.concat(LongStream.of(first), LongStream.of(ids)).distinct().count());
+        db.addBook(books.get(0));
+        db.lendBook(ids[2], "r2d2");
+        assertEquals(List.of(books.get(0)), db.getBorrowedBooks(ids[2]));
+        assertEquals(List.of(), db.getBorrowedBooks(ids[0]));
+    }
+
     @Test
     void authorsAndNames() throws BookAlreadyExistsException, NoSuchBookException {
         for (Book book : books) {
@@ -107,6 +149,33 @@ class DataBaseTests {
         assertEquals(List.of(), db.getBorrowedBooks(id2));
     }
 
+    @Test
+    void outcomesInsteadOfExceptions() {
+        long id = db.addVisitor("A", "T");
+        assertEquals(Outcome.Status.OK, db.tryAddBook(books.get(0)).getStatus());
+        assertEquals(Outcome.Status.BOOK_ALREADY_EXISTS, db.tryAddBook(books.get(0)).getStatus());
+        assertEquals("Atlas shrugged", db.tryGetBookName("r2d2").getValue());
+        assertEquals("Ayn Rand", db.tryGetBookAuthor("r2d2").getValue());
+        assertEquals(Outcome.Status.NO_SUCH_BOOK, db.tryGetBookName("r2d3").getStatus());
+        assertEquals(Outcome.Status.NO_SUCH_BOOK, db.tryLendBook(id, "r2d3").getStatus());
+        assertEquals(Outcome.Status.NO_SUCH_VISITOR, db.tryLendBook(-1, "r2d2").getStatus());
+        assertEquals(Outcome.Status.NO_SUCH_VISITOR, db.tryGetBorrowedBooks(-1).getStatus());
+        assertTrue(db.tryLendBook(id, "r2d2").isOk());
+        Outcome<Void> borrowed = db.tryLendBook(id, "r2d2");
+        assertEquals(Outcome.Status.BOOK_ALREADY_BORROWED, borrowed.getStatus());
+        assertEquals("book with code r2d2 is already borrowed by id " + id, borrowed.getMessage());
+        assertEquals(List.of(books.get(0)), db.tryGetBorrowedBooks(id).getValue());
+        assertEquals(Outcome.Status.OK, db.tryAddBook(books.get(1)).getStatus());
+        assertEquals(Outcome.Status.BOOK_ALREADY_EXISTS, db.tryChangeCode("r2d2", "r2d3").getStatus());
+        assertEquals(Outcome.Status.NO_SUCH_BOOK, db.tryChangeCode("c3po", "w8m8").getStatus());
+        assertTrue(db.tryChangeCode("r2d2", "c3po").isOk());
+        assertEquals(Outcome.Status.NO_SUCH_BOOK, db.tryReceiveReturnedBook("r2d2").getStatus());
+        assertTrue(db.tryReceiveReturnedBook("c3po").isOk());
+        assertEquals(List.of(), db.tryGetBorrowedBooks(id).getValue());
+        assertTrue(db.tryDeleteBook("c3po").isOk());
+        assertEquals(Outcome.Status.NO_SUCH_BOOK, db.tryDeleteBook("c3po").getStatus());
+    }
+
     @Test
     void lendAndChangeCode() throws BookAlreadyExistsException, NoSuchBookException, NoSuchVisitorException, BookAlreadyBorrowedException {
         long id = db.addVisitor("A", "T");
@@ -122,4 +191,200 @@ class DataBaseTests {
         db.receiveReturnedBook(newCode);
         assertEquals(List.of(), db.getBorrowedBooks(id));
     }
+
+    @Test
+    void transactionAppliesAllChanges() throws BookAlreadyExistsException, NoSuchBookException, NoSuchVisitorException, BookAlreadyBorrowedException {
+        long id = db.addVisitor("A", "T");
+        long other = db.addVisitor("B", "T");
+        db.addBook(books.get(0));
+        db.addBook(books.get(1));
+        db.lendBook(other, "r2d3");
+        Outcome<Void> outcome = db.tryTransaction(List.of(
+                Change.receiveBook("r2d3"),
+                Change.lendBook(id, "r2d3"),
+                Change.addBook(books.get(2)),
+                Change.lendBook(id, "c3po"),
+                Change.changeCode("r2d2", "qwerty"),
+                Change.deleteBook("qwerty"),
+                // the code freed by the change above
+                Change.addBook(new Book("r2d2", "fedor dostoevsky", "idiot"))));
+        assertTrue(outcome.isOk(), outcome::getMessage);
+        assertEquals(List.of("r2d3", "c3po"), codes(db.getBorrowedBooks(id)));
+        assertEquals(List.of(), db.getBorrowedBooks(other));
+        assertEquals("idiot", db.getBookName("r2d2"));
+        assertEquals(Outcome.Status.NO_SUCH_BOOK, db.tryGetBookName("qwerty").getStatus());
+    }
+
+    @Test
+    void failedTransactionChangesNothing() throws BookAlreadyExistsException, NoSuchBookException, NoSuchVisitorException, BookAlreadyBorrowedException {
+        long id = db.addVisitor("A", "T");
+        long other = db.addVisitor("B", "T");
+        db.addBook(books.get(0));
+        db.addBook(books.get(1));
+        db.lendBook(other, "r2d3");
+        Outcome<Void> outcome = db.tryTransaction(List.of(
+                Change.lendBook(id, "r2d2"),
+                Change.receiveBook("r2d3"),
+                Change.deleteBook("r2d3"),
+                Change.changeCode("r2d2", "qwerty"),
+                Change.addBook(books.get(2)),
+                Change.lendBook(id, "c3po"),
+                Change.lendBook(id, "c3po")));
+        assertEquals(Outcome.Status.BOOK_ALREADY_BORROWED, outcome.getStatus());
+        assertEquals("change 6: book with code c3po is already borrowed by id " + id, outcome.getMessage());
+        assertEquals(List.of(), db.getBorrowedBooks(id));
+        assertEquals(List.of("r2d3"), codes(db.getBorrowedBooks(other)));
+        assertEquals("Atlas shrugged", db.getBookName("r2d2"));
+        assertEquals(Outcome.Status.NO_SUCH_BOOK, db.tryGetBookName("qwerty").getStatus());
+        assertEquals(Outcome.Status.NO_SUCH_BOOK, db.tryGetBookName("c3po").getStatus());
+        assertTrue(db.tryLendBook(id, "r2d2").isOk());
+    }
+
+    @Test
+    void checkoutTransactions() throws BookAlreadyExistsException, NoSuchVisitorException {
+        long id = db.addVisitor("A", "T");
+        for (Book book : books) {
+            db.addBook(book);
+        }
+        Outcome<Void> failed = db.tryTransaction(List.of(
+                Change.lendBook(id, "r2d2"),
+                Change.lendBook(id, "r2d3"),
+                Change.lendBook(id + 1, "c3po")));
+        assertEquals(Outcome.Status.NO_SUCH_VISITOR, failed.getStatus());
+        assertEquals("change 2: " + db.tryGetBorrowedBooks(id + 1).getMessage(), failed.getMessage());
+        assertEquals(List.of(), db.getBorrowedBooks(id));
+
+        assertTrue(db.tryTransaction(List.of(
+                Change.lendBook(id, "r2d2"),
+                Change.lendBook(id, "w8m8"),
+                Change.receiveBook("r2d3"))).isOk());
+        assertEquals(List.of("r2d2", "w8m8"), codes(db.getBorrowedBooks(id)));
+        // the same book twice, the second change sees the first
+        assertEquals(Outcome.Status.BOOK_ALREADY_BORROWED,
+                db.tryTransaction(List.of(Change.lendBook(id, "c3po"), Change.lendBook(id, "c3po"))).getStatus());
+        assertEquals(Outcome.Status.NO_SUCH_VISITOR,
+                db.tryTransaction(List.of(Change.receiveBook("r2d2"), Change.lendBook(id + 1, "r2d2"))).getStatus());
+        // undone by lending it back where it was in the list
+        assertEquals(List.of("r2d2", "w8m8"), codes(db.getBorrowedBooks(id)));
+        assertTrue(db.tryTransaction(List.of(Change.receiveBook("r2d2"), Change.receiveBook("w8m8"))).isOk());
+        assertEquals(List.of(), db.getBorrowedBooks(id));
+    }
+
+    @Test
+    void transactionThatThrowsIsUndone() throws BookAlreadyExistsException, NoSuchVisitorException {
+        // a store whose lend of one book throws, like a shard that can't be reached
+        boolean[] unreachable = {true};
+        DataBase failing = new MapDataBase() {
+            @Override
+            public Outcome<Void> tryLendBook(long visitorId, String code) {
+                if (unreachable[0] && code.equals("c3po")) {
+                    throw new IllegalStateException("unreachable");
+                }
+                return super.tryLendBook(visitorId, code);
+            }
+        };
+        long id = failing.addVisitor("A", "T");
+        for (Book book : books) {
+            failing.addBook(book);
+        }
+        List<Change> changes = List.of(
+                Change.lendBook(id, "r2d2"),
+                Change.changeCode("r2d3", "qwerty"),
+                Change.lendBook(id, "c3po"));
+        IllegalStateException thrown = assertThrows(IllegalStateException.class, () -> Change.applyInOrder(failing, changes));
+        assertEquals("unreachable", thrown.getMessage());
+        assertEquals(List.of(), failing.getBorrowedBooks(id));
+        assertTrue(failing.tryGetBookName("r2d3").isOk());
+
+        // a book lent back goes back where it was in the list
+        assertTrue(failing.tryLendBook(id, "r2d2").isOk());
+        assertTrue(failing.tryLendBook(id, "r2d3").isOk());
+        Outcome<Void> failed = Change.applyInOrder(failing, List.of(Change.receiveBook("r2d2"), Change.deleteBook("nope")));
+        assertEquals(Outcome.Status.NO_SUCH_BOOK, failed.getStatus());
+        assertEquals(List.of("r2d2", "r2d3"), codes(failing.getBorrowedBooks(id)));
+
+        // the book returned first can't be lent back, so the undo fails too
+        unreachable[0] = false;
+        assertTrue(failing.tryLendBook(id, "c3po").isOk());
+        unreachable[0] = true;
+        TransactionUndoException undo = assertThrows(TransactionUndoException.class, () -> Change.applyInOrder(failing,
+                List.of(Change.receiveBook("c3po"), Change.deleteBook("nope"))));
+        assertEquals("change 1: " + failing.tryDeleteBook("nope").getMessage()
+                + ", and the changes before it couldn't all be undone: change 0: unreachable", undo.getMessage());
+    }
+
+    @Test
+    void borrowedBooksInPages() throws BookAlreadyExistsException, NoSuchBookException, NoSuchVisitorException, BookAlreadyBorrowedException {
+        long id = db.addVisitor("A", "T");
+        for (int i = 0; i < 10; i++) {
+            db.addBook(new Book("code" + i, "author", "name" + i));
+            db.lendBook(id, "code" + i);
+        }
+        assertEquals(Outcome.Status.NO_SUCH_VISITOR, db.tryGetBorrowedPage(-1, null, 3).getStatus());
+        BookPage page = db.tryGetBorrowedPage(id, null, 3).getValue();
+        assertEquals(List.of("code0", "code1", "code2"), codes(page.getBooks()));
+
+        // the book the cursor names, one before it and one after it change hands meanwhile
+        db.receiveReturnedBook("code2");
+        db.receiveReturnedBook("code1");
+        db.receiveReturnedBook("code4");
+        db.lendBook(id, "code1");
+        db.changeCode("code5", "code5b");
+        page = nextPage(id, page, 3);
+        assertEquals(List.of("code3", "code5b", "code6"), codes(page.getBooks()));
+
+        db.changeCode("code6", "code6b");
+        page = nextPage(id, page, 3);
+        assertEquals(List.of("code7", "code8", "code9"), codes(page.getBooks()));
+        page = nextPage(id, page, 3);
+        assertEquals(List.of("code1"), codes(page.getBooks()));
+        assertNull(page.getNext());
+
+        page = db.tryGetBorrowedPage(id, null, 100).getValue();
+        assertEquals(codes(db.getBorrowedBooks(id)), codes(page.getBooks()));
+        assertNull(page.getNext());
+    }
+
+    // through the cursor's text, the way a client passes it back
+    private BookPage nextPage(long id, BookPage page, int limit) {
+        return db.tryGetBorrowedPage(id, BookPage.Cursor.parse(page.getNext().toString()), limit).getValue();
+    }
+
+    // returning used to be a linear scan of the visitor's books, this took minutes
+    @Test
+    @Timeout(30)
+    void visitorWithManyLoans() throws BookAlreadyExistsException, NoSuchBookException, NoSuchVisitorException, BookAlreadyBorrowedException {
+        int count = 100_000;
+        long id = db.addVisitor("A", "T");
+        List<Book> many = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            many.add(new Book("code" + i, "author", "name" + i));
+        }
+        db.addBooks(many, (i, e) -> {
+            throw new AssertionError(e);
+        });
+        for (int i = 0; i < count; i++) {
+            db.lendBook(id, "code" + i);
+        }
+        List<Book> borrowed = db.getBorrowedBooks(id);
+        assertEquals(count, borrowed.size());
+        assertThrows(UnsupportedOperationException.class, () -> borrowed.remove(0));
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(7));
+        for (int i : order.subList(0, count - 2)) {
+            db.receiveReturnedBook("code" + i);
+        }
+        assertEquals(count, borrowed.size());
+        List<Integer> left = order.subList(count - 2, count).stream().sorted().collect(Collectors.toList());
+        assertEquals(List.of("code" + left.get(0), "code" + left.get(1)),
+                db.getBorrowedBooks(id).stream().map(Book::getCode).collect(Collectors.toList()));
+    }
+
+    private static List<String> codes(List<Book> books) {
+        return books.stream().map(Book::getCode).collect(Collectors.toList());
+    }
 }
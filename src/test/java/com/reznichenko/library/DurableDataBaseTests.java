@@ -0,0 +1,326 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.exception.StoreFailedException;
+import com.reznichenko.library.server.exception.TransactionUndoException;
+import com.reznichenko.library.server.persistence.DurableDataBase;
+import com.reznichenko.library.server.persistence.FsyncPolicy;
+import com.reznichenko.library.server.persistence.SnapshotStore;
+import com.reznichenko.library.server.persistence.WriteAheadLog;
+import com.reznichenko.library.server.service.Change;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.MapDataBase;
+import com.reznichenko.library.server.service.Outcome;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DurableDataBaseTests extends DataBaseTests {
+
+    @TempDir
+    Path directory;
+
+    private final List<DurableDataBase> opened = new ArrayList<>();
+
+    @Override
+    DataBase createDataBase() {
+        try {
+            return open(FsyncPolicy.INTERVAL, 1 << 20);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @AfterEach
+    void closeAll() throws IOException {
+        for (DurableDataBase db : opened) {
+            db.close();
+        }
+    }
+
+    @Test
+    void survivesRestart() throws Exception {
+        DurableDataBase db = open(FsyncPolicy.COMMIT, 1 << 20);
+        long id = db.addVisitor("A", "T");
+        db.addBook(new Book("r2d2", "Ayn Rand", "Atlas shrugged"));
+        db.addBook(new Book("r2d3", "Ayn Rand", "Fountainhead"));
+        db.addBook(new Book("c3po", "eliezer yudkowsky", "hpmor"));
+        db.lendBook(id, "r2d2");
+        db.lendBook(id, "c3po");
+        db.changeCode("r2d2", "qwerty");
+        db.receiveReturnedBook("c3po");
+        db.deleteBook("r2d3");
+        db.close();
+
+        DurableDataBase recovered = open(FsyncPolicy.COMMIT, 1 << 20);
+        assertEquals(List.of("qwerty"), codes(recovered.getBorrowedBooks(id)));
+        assertEquals("Atlas shrugged", recovered.getBookName("qwerty"));
+        assertEquals("hpmor", recovered.getBookName("c3po"));
+        assertFalse(exists(recovered, "r2d3"));
+        assertEquals(9, recovered.getLog().getLastLsn());
+    }
+
+    @Test
+    void visitorBatchSurvivesRestart() throws Exception {
+        DurableDataBase db = open(FsyncPolicy.COMMIT, 1 << 20);
+        long[] ids = db.addVisitors(List.of("A", "B"), List.of("T", "U"));
+        db.close();
+
+        DurableDataBase recovered = open(FsyncPolicy.COMMIT, 1 << 20);
+        assertEquals(List.of(), recovered.getBorrowedBooks(ids[0]));
+        assertEquals(List.of(), recovered.getBorrowedBooks(ids[1]));
+        assertEquals(2, recovered.getLog().getLastLsn());
+    }
+
+    @Test
+    void tornTailIsCutOff() throws Exception {
+        DurableDataBase db = open(FsyncPolicy.COMMIT, 1 << 20);
+        db.addBook(new Book("r2d2", "Ayn Rand", "Atlas shrugged"));
+        db.addBook(new Book("r2d3", "Ayn Rand", "Fountainhead"));
+        db.close();
+        Path segment = segments().get(0);
+        long size = Files.size(segment);
+        try (var channel = Files.newByteChannel(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 3);
+        }
+
+        DurableDataBase recovered = open(FsyncPolicy.COMMIT, 1 << 20);
+        assertEquals("Atlas shrugged", recovered.getBookName("r2d2"));
+        assertFalse(exists(recovered, "r2d3"));
+        recovered.addBook(new Book("r2d3", "Ayn Rand", "Fountainhead"));
+        recovered.close();
+
+        DurableDataBase again = open(FsyncPolicy.COMMIT, 1 << 20);
+        assertEquals("Fountainhead", again.getBookName("r2d3"));
+    }
+
+    @Test
+    void segmentsRotate() throws Exception {
+        DurableDataBase db = open(FsyncPolicy.COMMIT, 256);
+        for (int i = 0; i < 100; i++) {
+            db.addBook(new Book("code" + i, "author", "name"));
+        }
+        db.close();
+        assertTrue(segments().size() > 10);
+
+        DurableDataBase recovered = open(FsyncPolicy.COMMIT, 256);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("author", recovered.getBookAuthor("code" + i));
+        }
+    }
+
+    @Test
+    void concurrentWritersShareFsyncs() throws Exception {
+        DurableDataBase db = open(FsyncPolicy.COMMIT, 1 << 20);
+        int threads = 16;
+        int perThread = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        db.addBook(new Book(thread + "-" + i, "author", "name"));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(threads * perThread, db.getLog().getDurableLsn());
+        assertTrue(db.getLog().getSyncCount() <= threads * perThread);
+    }
+
+    @Test
+    void recoversFromSnapshotAndLogTail() throws Exception {
+        DurableDataBase db = openWithSnapshots();
+        long id = db.addVisitor("A", "T");
+        for (int i = 0; i < 50; i++) {
+            db.addBook(new Book("code" + i, "author", "name" + i));
+        }
+        db.lendBook(id, "code1");
+        db.lendBook(id, "code0");
+        db.checkpoint();
+        long snapshotLsn = db.getLog().getLastLsn();
+        assertEquals(1, db.getLog().getSegmentCount());
+        db.lendBook(id, "code2");
+        db.changeCode("code0", "zero");
+        db.deleteBook("code1");
+        db.close();
+
+        DurableDataBase recovered = openWithSnapshots();
+        assertEquals(snapshotLsn, recovered.getRecoveryStats().getSnapshotLsn());
+        assertEquals(1 + 50 + 2, recovered.getRecoveryStats().getSnapshotRecords());
+        assertEquals(3, recovered.getRecoveryStats().getLogRecords());
+        assertEquals(List.of("zero", "code2"), codes(recovered.getBorrowedBooks(id)));
+        assertEquals("name0", recovered.getBookName("zero"));
+        assertFalse(exists(recovered, "code1"));
+
+        recovered.checkpoint();
+        recovered.addBook(new Book("late", "author", "name"));
+        recovered.close();
+        DurableDataBase again = openWithSnapshots();
+        assertEquals(1, again.getRecoveryStats().getLogRecords());
+        assertEquals(List.of("zero", "code2"), codes(again.getBorrowedBooks(id)));
+        assertEquals("name", again.getBookName("late"));
+    }
+
+    // each checkpoint is built from the previous one and the log, not from the delegate the writer keeps changing
+    @Test
+    void checkpointsWhileWritersRun() throws Exception {
+        DurableDataBase db = openWithSnapshots();
+        long id = db.addVisitor("A", "T");
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger added = new AtomicInteger();
+        Thread writer = new Thread(() -> {
+            while (running.get()) {
+                int i = added.get();
+                db.tryAddBook(new Book("code" + i, "author", "name" + i));
+                if (i % 3 == 0) {
+                    db.tryLendBook(id, "code" + i);
+                }
+                added.incrementAndGet();
+            }
+        });
+        writer.start();
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(20);
+            db.checkpoint();
+        }
+        running.set(false);
+        writer.join();
+        db.close();
+
+        DurableDataBase recovered = openWithSnapshots();
+        assertTrue(recovered.getRecoveryStats().getSnapshotLsn() > 0);
+        assertEquals(added.get(), recovered.view().bookCount());
+        assertEquals((added.get() + 2) / 3, recovered.getBorrowedBooks(id).size());
+        assertEquals("name" + (added.get() - 1), recovered.getBookName("code" + (added.get() - 1)));
+    }
+
+    @Test
+    void transactionIsOneRecord() throws Exception {
+        DurableDataBase db = open(FsyncPolicy.COMMIT, 1 << 20);
+        long id = db.addVisitor("A", "T");
+        db.addBook(new Book("r2d2", "Ayn Rand", "Atlas shrugged"));
+        assertTrue(db.tryTransaction(List.of(
+                Change.addBook(new Book("c3po", "eliezer yudkowsky", "hpmor")),
+                Change.lendBook(id, "c3po"),
+                Change.changeCode("r2d2", "qwerty"),
+                Change.lendBook(id, "qwerty"))).isOk());
+        // failed, nothing logged
+        assertFalse(db.tryTransaction(List.of(Change.deleteBook("qwerty"), Change.deleteBook("r2d2"))).isOk());
+        assertEquals(3, db.getLog().getLastLsn());
+        db.close();
+
+        DurableDataBase recovered = open(FsyncPolicy.COMMIT, 1 << 20);
+        assertEquals(List.of("c3po", "qwerty"), codes(recovered.getBorrowedBooks(id)));
+        assertFalse(exists(recovered, "r2d2"));
+        assertEquals(3, recovered.getLog().getLastLsn());
+    }
+
+    @Test
+    void undoThatFailsStopsTheStore() throws Exception {
+        // a store left half way through a transaction, like shards that can't all be reached
+        DataBase halfDone = new MapDataBase() {
+            @Override
+            public Outcome<Void> tryTransaction(List<Change> changes) {
+                Change.applyInOrder(this, changes.subList(0, 1));
+                throw new TransactionUndoException("change 1 failed, and change 0 couldn't be undone", null);
+            }
+        };
+        DurableDataBase db = DurableDataBase.recover(halfDone,
+                new WriteAheadLog(directory.resolve("wal"), FsyncPolicy.COMMIT, 5, 1 << 20));
+        opened.add(db);
+        long id = db.addVisitor("A", "T");
+        db.addBook(new Book("r2d2", "Ayn Rand", "Atlas shrugged"));
+        assertThrows(TransactionUndoException.class, () -> db.tryTransaction(List.of(
+                Change.lendBook(id, "r2d2"), Change.deleteBook("nope"))));
+        assertEquals(id, db.tryGetOwner("r2d2").getValue());
+        assertThrows(StoreFailedException.class, () -> db.tryReceiveReturnedBook("r2d2"));
+        assertThrows(StoreFailedException.class, () -> db.addVisitor("B", "U"));
+        assertEquals(2, db.getLog().getLastLsn());
+        db.close();
+
+        DurableDataBase recovered = open(FsyncPolicy.COMMIT, 1 << 20);
+        assertEquals(-1L, recovered.tryGetOwner("r2d2").getValue());
+        assertTrue(recovered.tryLendBook(id, "r2d2").isOk());
+    }
+
+    @Test
+    void logThatFailsStopsTheStore() throws Exception {
+        DurableDataBase db = open(FsyncPolicy.COMMIT, 64);
+        long id = db.addVisitor("A", "T");
+        // the next segment can't be created
+        Path wal = directory.resolve("wal");
+        try (Stream<Path> segments = Files.list(wal)) {
+            for (Path segment : segments.collect(Collectors.toList())) {
+                Files.delete(segment);
+            }
+        }
+        Files.delete(wal);
+        assertThrows(UncheckedIOException.class, () -> db.addBook(new Book("r2d2", "Ayn Rand", "Atlas shrugged")));
+        // applied, but not durable
+        assertEquals("Atlas shrugged", db.getBookName("r2d2"));
+        assertThrows(StoreFailedException.class, () -> db.lendBook(id, "r2d2"));
+        assertThrows(StoreFailedException.class, () -> db.tryDeleteBook("r2d2"));
+        opened.remove(db);
+        assertThrows(IOException.class, db::close);
+    }
+
+    private DurableDataBase openWithSnapshots() throws IOException {
+        DurableDataBase db = DurableDataBase.recover(new MapDataBase(),
+                new WriteAheadLog(directory.resolve("wal"), FsyncPolicy.COMMIT, 5, 256),
+                new SnapshotStore(directory.resolve("snapshots")));
+        opened.add(db);
+        return db;
+    }
+
+    private DurableDataBase open(FsyncPolicy policy, long segmentSize) throws IOException {
+        DurableDataBase db = DurableDataBase.recover(new MapDataBase(),
+                new WriteAheadLog(directory.resolve("wal"), policy, 5, segmentSize));
+        opened.add(db);
+        return db;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory.resolve("wal"))) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static boolean exists(DataBase db, String code) {
+        try {
+            db.getBookName(code);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static List<String> codes(List<Book> books) {
+        return books.stream().map(Book::getCode).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,101 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.id.BlockIdAllocator;
+import com.reznichenko.library.server.id.IdAllocator;
+import com.reznichenko.library.server.id.SnowflakeIdAllocator;
+import com.reznichenko.library.server.service.MapDataBase;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdAllocatorTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void blocksAreUniqueAndIncreasePerThread() throws InterruptedException {
+        assertUniqueAndIncreasing(new BlockIdAllocator(16, null));
+    }
+
+    @Test
+    void snowflakesAreUniqueAndIncreasePerThread() throws InterruptedException {
+        assertUniqueAndIncreasing(new SnowflakeIdAllocator(5));
+    }
+
+    @Test
+    void highWaterMarkSurvivesRestart() {
+        Path file = directory.resolve("ids");
+        long last = 0;
+        BlockIdAllocator ids = new BlockIdAllocator(4, file);
+        for (int i = 0; i < 1000; i++) {
+            last = ids.nextId();
+        }
+        BlockIdAllocator restarted = new BlockIdAllocator(4, file);
+        assertTrue(restarted.nextId() > last);
+    }
+
+    @Test
+    void observedIdsAreSkipped() {
+        BlockIdAllocator ids = new BlockIdAllocator(4, null);
+        MapDataBase db = new MapDataBase(ids);
+        db.restoreVisitor(new Visitor(100, "A", "T"));
+        long id = db.addVisitor("G", "C");
+        assertTrue(id > 100);
+    }
+
+    @Test
+    void snowflakeRunsAheadOfAClockGoingBack() {
+        AtomicLong clock = new AtomicLong(SnowflakeIdAllocator.EPOCH + 1000);
+        SnowflakeIdAllocator ids = new SnowflakeIdAllocator(SnowflakeIdAllocator.MAX_NODE, clock::get);
+        long first = ids.nextId();
+        clock.addAndGet(-500);
+        long second = ids.nextId();
+        assertTrue(second > first);
+        assertEquals(SnowflakeIdAllocator.MAX_NODE, SnowflakeIdAllocator.nodeOf(second));
+        // a sequence that runs out borrows the next millisecond
+        long previous = second;
+        for (int i = 0; i < 10_000; i++) {
+            long id = ids.nextId();
+            assertTrue(id > previous);
+            previous = id;
+        }
+        assertNotEquals(first >>> 22, previous >>> 22);
+        assertTrue(previous > 0);
+    }
+
+    private static void assertUniqueAndIncreasing(IdAllocator ids) throws InterruptedException {
+        Set<Long> seen = ConcurrentHashMap.newKeySet();
+        Thread[] threads = new Thread[8];
+        AssertionError[] failure = new AssertionError[1];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                long previous = -1;
+                for (int i = 0; i < 20_000; i++) {
+                    long id = ids.nextId();
+                    if (id <= previous || id < 0 || !seen.add(id)) {
+                        failure[0] = new AssertionError("id " + id + " after " + previous);
+                    }
+                    previous = id;
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        assertEquals(threads.length * 20_000, seen.size());
+    }
+}
@@ -0,0 +1,130 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.reactive.LibraryHandler;
+import com.reznichenko.library.server.service.MapDataBase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.BodyInserters;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LibraryHandlerTests {
+
+    private final MapDataBase db = new MapDataBase();
+    private Scheduler scheduler;
+    private WebTestClient client;
+
+    @BeforeEach
+    void beforeEach() {
+        scheduler = Schedulers.newBoundedElastic(2, 100, "test-db");
+        client = WebTestClient.bindToRouterFunction(new LibraryHandler(db, scheduler).routes()).build();
+    }
+
+    @AfterEach
+    void afterEach() {
+        scheduler.dispose();
+    }
+
+    @Test
+    void sameRoutesAsTheController() {
+        String id = client.post().uri("/add-visitor")
+                .body(BodyInserters.fromFormData("name", "A").with("surname", "T"))
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).returnResult().getResponseBody();
+        client.post().uri("/add-book?name=Atlas shrugged&author=Ayn Rand&code=r2d2")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("book added");
+        client.post().uri("/lend-book")
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                .bodyValue("id=" + id + "&code=r2d2")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("book lent");
+        client.get().uri("/borrowed-books?id=" + id)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody().jsonPath("$[0]").value(book -> assertTrue(((String) book).contains("r2d2"), (String) book));
+        client.get().uri("/borrowed-books?id=" + id + "&limit=10")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.books[0].code").isEqualTo("r2d2")
+                .jsonPath("$.books[0].author").isEqualTo("Ayn Rand")
+                .jsonPath("$.next").doesNotExist();
+        client.get().uri("/borrowed-books?id=" + id + "&cursor=nonsense")
+                .exchange()
+                .expectStatus().isBadRequest()
+                .expectBody(String.class).isEqualTo("bad request: malformed cursor: nonsense");
+        client.get().uri("/author?code=r2d2")
+                .exchange()
+                .expectBody(String.class).isEqualTo("Ayn Rand");
+    }
+
+    @Test
+    void failuresAreBadRequests() {
+        client.post().uri("/lend-book?id=1&code=missing")
+                .exchange()
+                .expectStatus().isBadRequest()
+                .expectBody(String.class).isEqualTo("bad request: no book found with code: missing");
+        client.get().uri("/borrowed-books?id=x")
+                .exchange()
+                .expectStatus().isBadRequest();
+        client.get().uri("/book-name")
+                .exchange()
+                .expectStatus().isBadRequest()
+                .expectBody(String.class).isEqualTo("bad request: missing parameter code");
+    }
+
+    @Test
+    void transactions() {
+        client.post().uri("/add-visitor?name=A&surname=T")
+                .exchange()
+                .expectStatus().isOk();
+        client.post().uri("/transaction")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("[{\"op\": \"add-book\", \"code\": \"r2d2\", \"author\": \"Ayn Rand\", \"name\": \"Atlas shrugged\"},"
+                        + " {\"op\": \"lend-book\", \"id\": 1, \"code\": \"r2d2\"}]")
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody(String.class).isEqualTo("transaction committed");
+        client.post().uri("/transaction")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("[{\"op\": \"receive\", \"code\": \"r2d2\"}, {\"op\": \"delete-book\", \"code\": \"c3po\"}]")
+                .exchange()
+                .expectStatus().isBadRequest()
+                .expectBody(String.class).isEqualTo("bad request: change 1: no book found with code: c3po");
+        client.post().uri("/transaction")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("[{\"op\": \"burn-book\", \"code\": \"r2d2\"}]")
+                .exchange()
+                .expectStatus().isBadRequest()
+                .expectBody(String.class).isEqualTo("bad request: unknown op: burn-book");
+        client.get().uri("/borrowed-books?id=1")
+                .exchange()
+                .expectBody().jsonPath("$.length()").isEqualTo(1);
+    }
+
+    @Test
+    void aLongListComesInOrderAcrossPages() throws Exception {
+        long id = db.addVisitor("A", "T");
+        for (int i = 0; i < 600; i++) {
+            db.addBook(new Book("code-" + i, "author", "name " + i));
+            db.lendBook(id, "code-" + i);
+        }
+        client.get().uri("/borrowed-books?id=" + id)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.length()").isEqualTo(600)
+                .jsonPath("$[0]").value(book -> assertTrue(((String) book).endsWith("(code-0)"), (String) book))
+                .jsonPath("$[599]").value(book -> assertTrue(((String) book).endsWith("(code-599)"), (String) book));
+    }
+}
@@ -0,0 +1,96 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.client.LoadGenerator;
+import com.reznichenko.library.server.metrics.Histogram;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoadGeneratorTests {
+
+    private static final long STALL_MILLIS = 300;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private final AtomicInteger requests = new AtomicInteger();
+    // a stall holds the write lock, so that it holds up everything behind it
+    private final ReadWriteLock stall = new ReentrantReadWriteLock();
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        executor = Executors.newFixedThreadPool(8);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::answer);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    @AfterEach
+    void afterEach() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    @Test
+    void aStallIsChargedToEverythingDueDuringIt() throws IOException {
+        LoadGenerator generator = new LoadGenerator(new LoadGenerator.Options()
+                .url(HttpUrl.get("http://127.0.0.1:" + server.getAddress().getPort() + "/"))
+                .rate(500)
+                .poisson(false)
+                .duration(1, TimeUnit.SECONDS)
+                .warmup(1, TimeUnit.SECONDS)
+                .books(100)
+                .visitors(2)
+                .setUp(false)
+                .seed(1));
+        generator.run();
+
+        Histogram latencies = generator.getLatencies();
+        assertEquals(500, latencies.count(), 5);
+        assertTrue(latencies.max() >= TimeUnit.MILLISECONDS.toNanos(STALL_MILLIS));
+        // a closed loop would have sent nothing while waiting and seen one slow request out of hundreds
+        assertTrue(latencies.quantile(0.9) >= TimeUnit.MILLISECONDS.toNanos(STALL_MILLIS / 3),
+                "p90 " + latencies.quantile(0.9));
+        assertTrue(latencies.quantile(0.5) < TimeUnit.MILLISECONDS.toNanos(STALL_MILLIS / 3),
+                "p50 " + latencies.quantile(0.5));
+    }
+
+    private void answer(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        // after the visitors and the warmup, halfway through the measured second
+        Lock lock = requests.incrementAndGet() == 2 + 500 + 250 ? stall.writeLock() : stall.readLock();
+        lock.lock();
+        try {
+            if (lock == stall.writeLock()) {
+                Thread.sleep(STALL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+        byte[] body = "1".getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
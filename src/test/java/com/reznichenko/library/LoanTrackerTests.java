@@ -0,0 +1,265 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.loans.Loan;
+import com.reznichenko.library.server.loans.LoanTracker;
+import com.reznichenko.library.server.loans.TimingWheel;
+import com.reznichenko.library.server.persistence.DurableDataBase;
+import com.reznichenko.library.server.persistence.FsyncPolicy;
+import com.reznichenko.library.server.persistence.SnapshotStore;
+import com.reznichenko.library.server.persistence.WriteAheadLog;
+import com.reznichenko.library.server.service.Change;
+import com.reznichenko.library.server.service.ListeningDataBase;
+import com.reznichenko.library.server.service.MapDataBase;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoanTrackerTests {
+
+    private static final class Timer extends TimingWheel.Timer {
+        private final int id;
+
+        private Timer(int id) {
+            this.id = id;
+        }
+    }
+
+    @Test
+    void wheelAgainstBruteForce() {
+        // level 0 narrower than most deadlines, so that most of them move down the levels
+        wheelAgainstBruteForce(64);
+        wheelAgainstBruteForce(5000);
+    }
+
+    // loans are due within level 0's span, so none waits on a higher level for a turn of the wheel to move it down
+    @Test
+    void noTickMovesTheLoansAcrossATurnOfTheWheel() {
+        int span = 1 << 21;
+        int timers = 1_000_000;
+        // a turn of level 1 of the wheel comes round 100 ticks from now
+        long start = 5L * span - 100;
+        TimingWheel<Timer> wheel = new TimingWheel<>(start, span - 1);
+        Random random = new Random(7);
+        for (int i = 0; i < timers; i++) {
+            long deadline = start + 1 + random.nextInt(span - 1);
+            wheel.schedule(new Timer(i), deadline);
+        }
+        long worst = 0;
+        int[] fired = new int[1];
+        for (long tick = start + 1; tick <= start + 200; tick++) {
+            long began = System.nanoTime();
+            wheel.advance(tick, timer -> fired[0]++);
+            long took = System.nanoTime() - began;
+            // the first ticks warm the code up
+            if (tick > start + 50) {
+                worst = Math.max(worst, took);
+            }
+        }
+        assertEquals(timers - fired[0], wheel.size());
+        assertTrue(fired[0] > 0 && fired[0] < 1000, "fired " + fired[0]);
+        // moving half of the timers down a level took tens of milliseconds; firing a few of them takes microseconds
+        assertTrue(worst < TimeUnit.MILLISECONDS.toNanos(5), "worst tick took " + worst + " ns");
+    }
+
+    private static void wheelAgainstBruteForce(long span) {
+        Random random = new Random(42);
+        // not aligned to any level, so that timers are placed across slot boundaries
+        long start = 123_456_789;
+        TimingWheel<Timer> wheel = new TimingWheel<>(start, span);
+        List<Timer> pending = new ArrayList<>();
+        int next = 0;
+        long now = start;
+        for (int round = 0; round < 2000; round++) {
+            for (int i = random.nextInt(50); i > 0; i--) {
+                Timer timer = new Timer(next++);
+                // a few already passed, most within a level or two, some far out
+                int far = random.nextInt(10);
+                long delta = far == 0 ? -random.nextInt(100) : far < 8 ? random.nextInt(5000) : random.nextInt(1_000_000);
+                wheel.schedule(timer, now + delta);
+                pending.add(timer);
+            }
+            for (int i = random.nextInt(10); i > 0 && !pending.isEmpty(); i--) {
+                Timer timer = pending.remove(random.nextInt(pending.size()));
+                assertTrue(wheel.cancel(timer));
+                assertFalse(wheel.cancel(timer));
+            }
+            now += random.nextInt(round % 100 == 0 ? 100_000 : 300);
+            long tick = now;
+            Set<Integer> expected = new HashSet<>();
+            List<Timer> left = new ArrayList<>();
+            for (Timer timer : pending) {
+                if (timer.getDeadline() <= tick) {
+                    expected.add(timer.id);
+                } else {
+                    left.add(timer);
+                }
+            }
+            Set<Integer> fired = new HashSet<>();
+            wheel.advance(tick, timer -> {
+                assertTrue(timer.getDeadline() <= tick);
+                assertTrue(fired.add(timer.id));
+            });
+            assertEquals(expected, fired);
+            pending = left;
+            assertEquals(pending.size(), wheel.size());
+        }
+    }
+
+    @Test
+    void loansFallDueAndRenew() throws Exception {
+        AtomicLong clock = new AtomicLong(1_000_000);
+        LoanTracker loans = new LoanTracker(1000, 10, clock::get);
+        List<Loan> told = new ArrayList<>();
+        loans.addOverdueListener(told::add);
+        ListeningDataBase db = new ListeningDataBase(new MapDataBase());
+        db.addListener(loans);
+        long id = db.addVisitor("A", "T");
+        for (String code : List.of("a", "b", "c", "d")) {
+            db.addBook(new Book(code, "author", "name"));
+        }
+        db.lendBook(id, "a");
+        db.lendBook(id, "b");
+        clock.addAndGet(500);
+        db.lendBook(id, "c");
+        db.lendBook(id, "d");
+        assertEquals(new Loan("c", id, Instant.ofEpochMilli(1_001_500)), loans.getLoan("c"));
+
+        clock.addAndGet(499);
+        loans.tick();
+        assertEquals(List.of(), loans.getOverdue(10));
+        clock.addAndGet(1);
+        loans.tick();
+        assertEquals(List.of("a", "b"), codes(loans.getOverdue(10)));
+        assertEquals(List.of("a", "b"), codes(told));
+
+        db.receiveReturnedBook("a");
+        assertNull(loans.getLoan("a"));
+        assertEquals(Instant.ofEpochMilli(1_002_000), loans.renew("b").getDue());
+        db.changeCode("c", "e");
+        db.deleteBook("d");
+        // returned and lent again in one go starts the period over as well
+        assertTrue(db.tryTransaction(List.of(Change.receiveBook("b"), Change.lendBook(id, "b"))).isOk());
+        assertEquals(List.of(), loans.getOverdue(10));
+
+        clock.addAndGet(500);
+        loans.tick();
+        assertEquals(List.of(new Loan("e", id, Instant.ofEpochMilli(1_001_500))), loans.getOverdue(10));
+        assertEquals(2, loans.size());
+        assertEquals(1, loans.overdueCount());
+        clock.addAndGet(500);
+        loans.tick();
+        assertEquals(List.of("e", "b"), codes(loans.getOverdue(10)));
+        assertEquals(List.of("e"), codes(loans.getOverdue(1)));
+        assertEquals(List.of("a", "b", "e", "b"), codes(told));
+    }
+
+    // the listener calls come under the store's locks, so they mustn't wait for the tracker
+    @Test
+    void writersDontWaitForTheTracker() throws Exception {
+        AtomicLong clock = new AtomicLong(1_000_000);
+        LoanTracker loans = new LoanTracker(1000, 10, clock::get);
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            synchronized (loans) {
+                held.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        reader.start();
+        held.await();
+        ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            writer.submit(() -> {
+                loans.onBookLent(1, "r2d2");
+                loans.onCodeChanged("r2d2", "c3po");
+                loans.onBookLent(1, "w8m8");
+                loans.onBookReturned("w8m8");
+            }).get(5, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            reader.join();
+            writer.shutdownNow();
+        }
+        // applied by the next read, due a period after the lend rather than after the read
+        clock.addAndGet(500);
+        assertNull(loans.getLoan("r2d2"));
+        assertNull(loans.getLoan("w8m8"));
+        assertEquals(new Loan("c3po", 1, Instant.ofEpochMilli(1_001_000)), loans.getLoan("c3po"));
+        assertEquals(1, loans.size());
+    }
+
+    @Test
+    void dueDatesOutlastARestart(@TempDir Path directory) throws Exception {
+        AtomicLong clock = new AtomicLong(1_000_000);
+        DurableDataBase durable = openDurable(directory, clock);
+        LoanTracker loans = new LoanTracker(1000, 10, clock::get);
+        loans.addRenewalListener(loan -> durable.renewBook(loan.getVisitorId(), loan.getCode(),
+                loans.lentAt(loan).toEpochMilli()));
+        ListeningDataBase db = new ListeningDataBase(durable);
+        db.addListener(loans);
+        long id = db.addVisitor("A", "T");
+        for (String code : List.of("a", "b", "c", "d")) {
+            db.addBook(new Book(code, "author", "name"));
+        }
+        db.lendBook(id, "a");
+        db.lendBook(id, "c");
+        durable.checkpoint();
+        clock.addAndGet(300);
+        assertTrue(db.tryTransaction(List.of(Change.lendBook(id, "b"), Change.lendBook(id, "d"))).isOk());
+        clock.addAndGet(100);
+        loans.renew("a");
+        db.receiveReturnedBook("d");
+        db.changeCode("c", "e");
+        durable.close();
+
+        clock.addAndGet(950);
+        DurableDataBase recovered = openDurable(directory, clock);
+        LoanTracker restarted = new LoanTracker(1000, 10, clock::get);
+        restarted.addAll(recovered.view(), recovered.getLendTimes());
+        assertEquals(new Loan("a", id, Instant.ofEpochMilli(1_001_400)), restarted.getLoan("a"));
+        assertNull(restarted.getLoan("d"));
+        restarted.tick();
+        // the longest overdue first
+        assertEquals(List.of(new Loan("e", id, Instant.ofEpochMilli(1_001_000)), new Loan("b", id, Instant.ofEpochMilli(1_001_300))),
+                restarted.getOverdue(10));
+        clock.addAndGet(50);
+        restarted.tick();
+        assertEquals(List.of("e", "b", "a"), codes(restarted.getOverdue(10)));
+        recovered.close();
+    }
+
+    private static DurableDataBase openDurable(Path directory, AtomicLong clock) throws IOException {
+        return DurableDataBase.recover(new MapDataBase(),
+                new WriteAheadLog(directory.resolve("wal"), FsyncPolicy.COMMIT, 5, 1 << 20),
+                new SnapshotStore(directory.resolve("snapshots")), clock::get);
+    }
+
+    private static List<String> codes(List<Loan> loans) {
+        return loans.stream().map(Loan::getCode).collect(Collectors.toList());
+    }
+}
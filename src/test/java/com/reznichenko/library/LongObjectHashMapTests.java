@@ -0,0 +1,118 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.server.collection.ConcurrentLongObjectHashMap;
+import com.reznichenko.library.server.collection.LongObjectHashMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LongObjectHashMapTests {
+
+    @Test
+    void mapAgainstHashMap() {
+        Random random = new Random(42);
+        Map<Long, Integer> expected = new HashMap<>();
+        LongObjectHashMap<Integer> actual = new LongObjectHashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            // few distinct keys, so that removals cut into long probe runs; 0 and negatives included
+            long key = random.nextInt(3000) - 100;
+            switch (random.nextInt(4)) {
+                case 0:
+                    assertEquals(expected.remove(key), actual.remove(key));
+                    break;
+                case 1:
+                    assertEquals(expected.putIfAbsent(key, i), actual.putIfAbsent(key, i));
+                    break;
+                default:
+                    assertEquals(expected.put(key, i), actual.put(key, i));
+            }
+        }
+        assertEquals(expected.size(), actual.size());
+        for (long key = -100; key < 2900; key++) {
+            assertEquals(expected.get(key), actual.get(key));
+        }
+        Map<Long, Integer> iterated = new HashMap<>();
+        actual.forEach(iterated::put);
+        assertEquals(expected, iterated);
+    }
+
+    @Test
+    void concurrentMapAgainstHashMap() {
+        Random random = new Random(7);
+        Map<Long, Integer> expected = new HashMap<>();
+        ConcurrentLongObjectHashMap<Integer> actual = new ConcurrentLongObjectHashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            long key = random.nextInt(3000) - 100;
+            switch (random.nextInt(4)) {
+                case 0:
+                    assertEquals(expected.remove(key), actual.remove(key));
+                    break;
+                case 1:
+                    assertEquals(expected.putIfAbsent(key, i), actual.putIfAbsent(key, i));
+                    break;
+                default:
+                    assertEquals(expected.put(key, i), actual.put(key, i));
+            }
+        }
+        assertEquals(expected.size(), actual.size());
+        for (long key = -100; key < 2900; key++) {
+            assertEquals(expected.get(key), actual.get(key));
+        }
+        Map<Long, Integer> iterated = new HashMap<>();
+        actual.forEach(iterated::put);
+        assertEquals(expected, iterated);
+    }
+
+    @Test
+    void readersNeverMissStableKeys() throws InterruptedException {
+        ConcurrentLongObjectHashMap<Long> map = new ConcurrentLongObjectHashMap<>();
+        for (long key = 0; key < 1000; key++) {
+            map.put(key, key);
+        }
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            long base = 1_000_000L * (t + 1);
+            // writers churn their own keys, growing tables and filling them with tombstones
+            threads.add(new Thread(() -> {
+                for (int round = 0; round < 50; round++) {
+                    for (long key = base; key < base + 2000; key++) {
+                        map.put(key, key);
+                    }
+                    for (long key = base; key < base + 2000; key++) {
+                        map.remove(key);
+                    }
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            try {
+                while (done.getCount() > 0) {
+                    for (long key = 0; key < 1000; key++) {
+                        assertEquals(key, map.get(key));
+                    }
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        }));
+        threads.forEach(Thread::start);
+        for (Thread thread : threads.subList(0, 4)) {
+            thread.join();
+        }
+        done.countDown();
+        threads.get(4).join();
+        assertNull(failure.get());
+        assertEquals(1000, map.size());
+    }
+}
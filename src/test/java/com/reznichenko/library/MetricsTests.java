@@ -0,0 +1,143 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.id.BlockIdAllocator;
+import com.reznichenko.library.server.metrics.CatalogGauges;
+import com.reznichenko.library.server.metrics.Counter;
+import com.reznichenko.library.server.metrics.Histogram;
+import com.reznichenko.library.server.metrics.InstrumentedDataBase;
+import com.reznichenko.library.server.metrics.MetricsRegistry;
+import com.reznichenko.library.server.metrics.TimedLock;
+import com.reznichenko.library.server.service.ListeningDataBase;
+import com.reznichenko.library.server.service.MapDataBase;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class MetricsTests {
+
+    @Test
+    void quantilesAreWithinAnEighth() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 100_000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100_000, histogram.count());
+        assertEquals(100_000, histogram.max());
+        assertEquals(100_000L * 100_001 / 2, histogram.sum());
+        for (double quantile : new double[]{0.5, 0.9, 0.99}) {
+            long exact = (long) (quantile * 100_000);
+            long reported = histogram.quantile(quantile);
+            assertTrue(reported >= exact && reported <= exact * 1.125, quantile + ": " + reported);
+        }
+    }
+
+    @Test
+    void recordingDoesNotAllocate() throws Exception {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        MetricsRegistry registry = new MetricsRegistry();
+        InstrumentedDataBase db = new InstrumentedDataBase(
+                new MapDataBase(new BlockIdAllocator(), new TimedLock(registry)), registry);
+        db.addBook(new Book("code", "author", "name"));
+        Histogram histogram = registry.histogram("histogram", "", "");
+        Counter counter = registry.counter("counter", "", "");
+        for (int i = 0; i < 100_000; i++) {
+            db.receiveReturnedBook("code");
+            histogram.record(i);
+            counter.increment();
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100_000; i++) {
+            db.receiveReturnedBook("code");
+            histogram.record(i);
+            counter.increment();
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertTrue(allocated < 10_000, allocated + " bytes");
+    }
+
+    @Test
+    void lockWaitIsChargedToTheWaitingOperation() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        TimedLock lock = new TimedLock(registry);
+        InstrumentedDataBase db = new InstrumentedDataBase(new MapDataBase(new BlockIdAllocator(), lock), registry);
+        db.addBook(new Book("code", "author", "name"));
+        CountDownLatch locked = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            lock.lock();
+            try {
+                locked.countDown();
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+        });
+        holder.start();
+        locked.await();
+        assertEquals("name", db.getBookName("code"));
+        holder.join();
+
+        Histogram wait = registry.histogram("library_db_lock_wait_seconds", "", MetricsRegistry.labels("op", "getBookName"));
+        Histogram hold = registry.histogram("library_db_lock_hold_seconds", "", MetricsRegistry.labels("op", "other"));
+        assertEquals(1, wait.count());
+        assertTrue(wait.max() >= 50_000_000, wait.max() + " ns");
+        assertTrue(hold.max() >= 100_000_000, hold.max() + " ns");
+    }
+
+    @Test
+    void errorsAreCountedByType() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        InstrumentedDataBase db = new InstrumentedDataBase(new MapDataBase(), registry);
+        assertThrows(NoSuchBookException.class, () -> db.lendBook(1, "missing"));
+        assertThrows(NoSuchBookException.class, () -> db.receiveReturnedBook("missing"));
+        assertThrows(NoSuchBookException.class, () -> db.receiveReturnedBook("missing"));
+
+        StringBuilder out = new StringBuilder();
+        registry.writeTo(out);
+        String text = out.toString();
+        assertTrue(text.contains("# TYPE library_db_errors_total counter\n"), text);
+        assertTrue(text.contains("library_db_errors_total{op=\"lendBook\",type=\"NoSuchBookException\"} 1\n"), text);
+        assertTrue(text.contains("library_db_errors_total{op=\"receiveReturnedBook\",type=\"NoSuchBookException\"} 2\n"), text);
+        assertTrue(text.contains("library_db_operation_seconds_count{op=\"receiveReturnedBook\"} 2\n"), text);
+    }
+
+    @Test
+    void gaugesFollowTheChanges() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        MapDataBase store = new MapDataBase();
+        store.addBook(new Book("old", "author", "name"));
+        long visitor = store.addVisitor("name", "surname");
+        store.lendBook(visitor, "old");
+
+        ListeningDataBase db = new ListeningDataBase(store);
+        CatalogGauges gauges = new CatalogGauges(registry);
+        gauges.addAll(db.view());
+        db.addListener(gauges);
+        db.addBook(new Book("first", "author", "name"));
+        db.addBook(new Book("second", "author", "name"));
+        db.lendBook(visitor, "first");
+        db.changeCode("first", "renamed");
+        db.receiveReturnedBook("second");
+        db.deleteBook("old");
+        db.addVisitor("other", "visitor");
+
+        StringBuilder out = new StringBuilder();
+        registry.writeTo(out);
+        String text = out.toString();
+        assertTrue(text.contains("library_books 2\n"), text);
+        assertTrue(text.contains("library_visitors 2\n"), text);
+        assertTrue(text.contains("library_loans 1\n"), text);
+    }
+}
@@ -0,0 +1,109 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.exception.*;
+import com.reznichenko.library.server.id.BlockIdAllocator;
+import com.reznichenko.library.server.offheap.OffHeapDataBase;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.LibraryView;
+import com.reznichenko.library.server.service.MapDataBase;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class OffHeapDataBaseTests extends DataBaseTests {
+
+    @Override
+    DataBase createDataBase() {
+        return new OffHeapDataBase(1024, new BlockIdAllocator());
+    }
+
+    // books are copied into the arena, so the caller's instance keeps its old code
+    @Test
+    @Override
+    void lendAndChangeCode() throws BookAlreadyExistsException, NoSuchBookException, NoSuchVisitorException, BookAlreadyBorrowedException {
+        DataBase db = createDataBase();
+        long id = db.addVisitor("A", "T");
+        db.addBook(new Book("r2d2", "Ayn Rand", "Atlas shrugged"));
+        db.addBook(new Book("c3po", "eliezer yudkowsky", "hpmor"));
+        db.lendBook(id, "r2d2");
+        db.changeCode("r2d2", "qwerty");
+        assertEquals(List.of("qwerty"), codes(db.getBorrowedBooks(id)));
+        assertThrows(NoSuchBookException.class, () -> db.receiveReturnedBook("r2d2"));
+        db.receiveReturnedBook("qwerty");
+        assertEquals(List.of(), db.getBorrowedBooks(id));
+    }
+
+    @Test
+    void agreesWithMapDataBase() throws Exception {
+        OffHeapDataBase offHeap = new OffHeapDataBase(1024, new BlockIdAllocator());
+        MapDataBase map = new MapDataBase();
+        Random random = new Random(5);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            long id = offHeap.addVisitor("name" + i, "surname" + i);
+            map.restoreVisitor(new Visitor(id, "name" + i, "surname" + i));
+            ids.add(id);
+        }
+        for (int i = 0; i < 20000; i++) {
+            String code = "code" + random.nextInt(3000);
+            String other = "code" + random.nextInt(3000);
+            long id = ids.get(random.nextInt(ids.size()));
+            int operation = random.nextInt(6);
+            assertEquals(outcome(map, operation, id, code, other), outcome(offHeap, operation, id, code, other));
+        }
+        for (long id : ids) {
+            assertEquals(codes(map.getBorrowedBooks(id)), codes(offHeap.getBorrowedBooks(id)));
+        }
+        LibraryView expected = map.view();
+        LibraryView actual = offHeap.view();
+        assertEquals(expected.bookCount(), actual.bookCount());
+        assertEquals(books(expected), books(actual));
+    }
+
+    // name of the book read or the exception thrown
+    private static Object outcome(DataBase db, int operation, long id, String code, String other) {
+        try {
+            switch (operation) {
+                case 0:
+                    db.addBook(new Book(code, "author of " + code, "name of " + code));
+                    return null;
+                case 1:
+                    db.lendBook(id, code);
+                    return null;
+                case 2:
+                    db.receiveReturnedBook(code);
+                    return null;
+                case 3:
+                    db.changeCode(code, other);
+                    return null;
+                case 4:
+                    db.deleteBook(code);
+                    return null;
+                default:
+                    return db.getBookName(code);
+            }
+        } catch (Exception e) {
+            return e.getClass();
+        }
+    }
+
+    private static Map<String, String> books(LibraryView view) {
+        Map<String, String> books = new HashMap<>();
+        view.forEachBook(book -> books.put(book.getCode(), book.getAuthor() + "/" + book.getName()));
+        return books;
+    }
+
+    private static List<String> codes(List<Book> books) {
+        return books.stream().map(Book::getCode).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,73 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.server.collection.PersistentHashMap;
+import com.reznichenko.library.server.collection.PersistentLongTreeMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class PersistentCollectionsTests {
+
+    @Test
+    void hashMapAgainstHashMap() {
+        Random random = new Random(42);
+        Map<String, Integer> expected = new HashMap<>();
+        PersistentHashMap<String, Integer> actual = PersistentHashMap.empty();
+        for (int i = 0; i < 100_000; i++) {
+            // "Aa" and "BB" have equal hash codes, so prefixes of them produce full collisions
+            String key = (random.nextBoolean() ? "Aa" : "BB") + random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                actual = actual.minus(key);
+            } else {
+                expected.put(key, i);
+                actual = actual.plus(key, i);
+            }
+        }
+        assertEquals(expected.size(), actual.size());
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), actual.get(entry.getKey()));
+        }
+        Map<String, Integer> iterated = new HashMap<>();
+        actual.forEach(iterated::put);
+        assertEquals(expected, iterated);
+    }
+
+    @Test
+    void hashMapOldVersionsSurvive() {
+        PersistentHashMap<Long, String> first = PersistentHashMap.<Long, String>empty().plus(1L, "one");
+        PersistentHashMap<Long, String> second = first.plus(2L, "two").minus(1L);
+        assertEquals("one", first.get(1L));
+        assertNull(first.get(2L));
+        assertNull(second.get(1L));
+        assertEquals("two", second.get(2L));
+    }
+
+    @Test
+    void treeMapAgainstTreeMap() {
+        Random random = new Random(7);
+        TreeMap<Long, Integer> expected = new TreeMap<>();
+        PersistentLongTreeMap<Integer> actual = PersistentLongTreeMap.empty();
+        for (int i = 0; i < 100_000; i++) {
+            long key = random.nextInt(10_000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                actual = actual.minus(key);
+            } else {
+                expected.put(key, i);
+                actual = actual.plus(key, i);
+            }
+        }
+        assertEquals(expected.size(), actual.size());
+        assertEquals(new ArrayList<>(expected.values()), actual.values());
+        List<Integer> tail = new ArrayList<>();
+        actual.valuesAfter(5000).forEachRemaining(tail::add);
+        assertEquals(new ArrayList<>(expected.tailMap(5000L, false).values()), tail);
+        for (int i = 0; i < expected.size(); i += 97) {
+            assertEquals(new ArrayList<>(expected.values()).get(i), actual.values().get(i));
+        }
+    }
+}
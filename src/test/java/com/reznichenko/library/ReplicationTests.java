@@ -0,0 +1,215 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.exception.ReadOnlyReplicaException;
+import com.reznichenko.library.server.persistence.DurableDataBase;
+import com.reznichenko.library.server.persistence.FsyncPolicy;
+import com.reznichenko.library.server.persistence.WriteAheadLog;
+import com.reznichenko.library.server.replication.Follower;
+import com.reznichenko.library.server.replication.ReplicaDataBase;
+import com.reznichenko.library.server.replication.ReplicationController;
+import com.reznichenko.library.server.replication.ReplicationLog;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.DataBaseListener;
+import com.reznichenko.library.server.service.ListeningDataBase;
+import com.reznichenko.library.server.service.MapDataBase;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.http.ResponseEntity;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplicationTests {
+
+    @TempDir
+    Path directory;
+
+    private DurableDataBase leader;
+    private ReplicationLog log;
+    private HttpServer server;
+    private volatile CountDownLatch gate = new CountDownLatch(0);
+    private final ListeningDataBase replica = new ListeningDataBase(new ReplicaDataBase(new MapDataBase(), "leader"));
+    // what a listener of the follower learnt about the catalog
+    private final Set<String> heardCodes = ConcurrentHashMap.newKeySet();
+    private Follower follower;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        leader = DurableDataBase.recover(new MapDataBase(),
+                new WriteAheadLog(directory, FsyncPolicy.COMMIT, 5, 1 << 20));
+        log = new ReplicationLog(leader, 64);
+        ReplicationController controller = new ReplicationController(log);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/replication/log", exchange -> serveLog(exchange, controller));
+        server.createContext("/replication/snapshot", exchange -> serveSnapshot(exchange, controller));
+        server.start();
+        replica.addListener(new DataBaseListener() {
+            @Override
+            public void onBookAdded(Book book) {
+                heardCodes.add(book.getCode());
+            }
+
+            @Override
+            public void onBookDeleted(String code) {
+                heardCodes.remove(code);
+            }
+
+            @Override
+            public void onCodeChanged(String oldCode, String newCode) {
+                heardCodes.remove(oldCode);
+                heardCodes.add(newCode);
+            }
+        });
+        ReplicaDataBase store = (ReplicaDataBase) replica.getDelegate();
+        HttpUrl url = HttpUrl.get("http://127.0.0.1:" + server.getAddress().getPort());
+        follower = new Follower(replica, store, url, "test", 8, 5);
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        gate.countDown();
+        follower.close();
+        server.stop(0);
+        leader.close();
+    }
+
+    @Test
+    void followerStartsFromASnapshotAndKeepsUp() throws Exception {
+        long id = leader.addVisitor("Alexander", "Turgenev");
+        leader.addBook(new Book("r2d2", "Ayn Rand", "Atlas shrugged"));
+        leader.lendBook(id, "r2d2");
+        follower.start();
+        assertTrue(follower.awaitLsn(log.getLastLsn(), 5000));
+        assertEquals(1, follower.getSnapshotCount());
+
+        for (int i = 0; i < 40; i++) {
+            leader.addBook(new Book("code-" + i, "author", "name " + i));
+        }
+        leader.changeCode("r2d2", "c3po");
+        leader.lendBook(id, "code-7");
+        leader.deleteBook("code-8");
+        assertTrue(follower.awaitLsn(log.getLastLsn(), 5000));
+
+        assertEquals(state(leader), state(replica));
+        assertEquals(codes(leader), heardCodes);
+        assertEquals("Atlas shrugged", replica.getBookName("c3po"));
+        assertEquals(0, follower.getLagRecords());
+        assertEquals(1, follower.getSnapshotCount());
+        // acknowledged by the next poll
+        for (int i = 0; i < 100 && log.getFollowers().get("test").getLsn() < log.getLastLsn(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(log.getLastLsn(), log.getFollowers().get("test").getLsn());
+
+        assertThrows(ReadOnlyReplicaException.class, () -> replica.addBook(new Book("x", "y", "z")));
+        assertThrows(ReadOnlyReplicaException.class, () -> replica.tryLendBook(id, "code-1"));
+        assertThrows(ReadOnlyReplicaException.class, () -> replica.addVisitor("Ivan", "Pushkin"));
+    }
+
+    @Test
+    void followerTooFarBehindCatchesUpFromANewSnapshot() throws Exception {
+        long id = leader.addVisitor("Alexander", "Turgenev");
+        for (int i = 0; i < 10; i++) {
+            leader.addBook(new Book("code-" + i, "author", "name " + i));
+        }
+        leader.lendBook(id, "code-1");
+        leader.lendBook(id, "code-2");
+        leader.lendBook(id, "code-5");
+        follower.start();
+        assertTrue(follower.awaitLsn(log.getLastLsn(), 5000));
+
+        // the follower's next poll waits while the leader writes more than it keeps in memory
+        gate = new CountDownLatch(1);
+        Thread.sleep(50);
+        long second = leader.addVisitor("Ivan", "Pushkin");
+        for (int i = 10; i < 100; i++) {
+            leader.addBook(new Book("code-" + i, "author", "name " + i));
+        }
+        leader.receiveReturnedBook("code-1");
+        leader.receiveReturnedBook("code-2");
+        // the same books, in another order
+        leader.receiveReturnedBook("code-5");
+        leader.lendBook(id, "code-6");
+        leader.lendBook(id, "code-5");
+        leader.lendBook(second, "code-2");
+        leader.lendBook(second, "code-20");
+        leader.deleteBook("code-3");
+        leader.changeCode("code-4", "renamed");
+        gate.countDown();
+
+        assertTrue(follower.awaitLsn(log.getLastLsn(), 5000));
+        assertEquals(2, follower.getSnapshotCount());
+        assertEquals(state(leader), state(replica));
+        assertEquals(codes(leader), heardCodes);
+    }
+
+    private void serveLog(HttpExchange exchange, ReplicationController controller) throws IOException {
+        try {
+            gate.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Map<String, String> query = new HashMap<>();
+        for (String pair : exchange.getRequestURI().getQuery().split("&")) {
+            String[] parts = pair.split("=", 2);
+            query.put(parts[0], parts[1]);
+        }
+        ResponseEntity<byte[]> response = controller.log(Long.parseLong(query.get("after")),
+                Integer.parseInt(query.get("max")), query.get("follower"), null);
+        response.getHeaders().forEach((name, values) -> exchange.getResponseHeaders().put(name, values));
+        byte[] body = response.getBody() == null ? new byte[0] : response.getBody();
+        exchange.sendResponseHeaders(response.getStatusCodeValue(), body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private void serveSnapshot(HttpExchange exchange, ReplicationController controller) throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        controller.snapshot(response);
+        byte[] body = response.getContentAsByteArray();
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Set<String> codes(DataBase db) {
+        Set<String> codes = new TreeSet<>();
+        db.view().forEachBook(book -> codes.add(book.getCode()));
+        return codes;
+    }
+
+    // books with their contents, visitors with what they hold in the order they got it
+    private static Set<String> state(DataBase db) {
+        Set<String> state = new TreeSet<>();
+        db.view().forEachBook(book -> state.add(book.getCode() + "|" + book.getAuthor() + "|" + book.getName()));
+        db.view().forEachVisitor((visitor, books) -> {
+            List<String> held = new ArrayList<>();
+            books.forEach(book -> held.add(book.getCode()));
+            state.add(visitor.getId() + "|" + visitor.getName() + "|" + visitor.getSurname() + "|" + held);
+        });
+        return state;
+    }
+}
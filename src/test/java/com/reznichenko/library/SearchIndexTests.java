@@ -0,0 +1,105 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.exception.NoSuchBookException;
+import com.reznichenko.library.server.search.SearchIndex;
+import com.reznichenko.library.server.search.SearchResult;
+import com.reznichenko.library.server.service.ListeningDataBase;
+import com.reznichenko.library.server.service.MapDataBase;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchIndexTests {
+
+    private final ListeningDataBase db = new ListeningDataBase(new MapDataBase());
+    private final SearchIndex index = new SearchIndex();
+
+    @Test
+    void wordsAndPrefixes() throws BookAlreadyExistsException, NoSuchBookException {
+        db.addBook(new Book("w8m8", "Fedor Dostoevsky", "The Idiot"));
+        index.addAll(db.view());
+        db.addListener(index);
+        db.addBook(new Book("c4c4", "Fedor Dostoevsky", "Crime and Punishment"));
+        db.addBook(new Book("d0d0", "Leonid Grossman", "Dostoevsky: a biography"));
+        db.addBook(new Book("r2d2", "Ayn Rand", "Atlas shrugged"));
+
+        assertEquals(List.of("d0d0", "w8m8", "c4c4"), codes(index.search("dostoevsky", 0, 10)));
+        assertEquals(List.of("d0d0", "w8m8", "c4c4"), codes(index.search("DOSTO", 0, 10)));
+        assertEquals(List.of("c4c4"), codes(index.search("fedor pun", 0, 10)));
+        assertEquals(List.of(), codes(index.search("fed punishment", 0, 10)));
+        assertEquals(List.of("w8m8"), codes(index.search("dostoevsky", 1, 1)));
+        assertEquals(3, index.search("dostoevsky", 1, 1).getTotal());
+        // the heap goes as deep as the page, so the pages stop at 10000 hits
+        assertEquals(List.of(), codes(index.search("dostoevsky", 99, 100)));
+        assertThrows(IllegalArgumentException.class, () -> index.search("dostoevsky", 100, 100));
+        assertThrows(IllegalArgumentException.class, () -> index.search("dostoevsky", Integer.MAX_VALUE, 100));
+
+        db.changeCode("w8m8", "i1i1");
+        db.deleteBook("c4c4");
+        assertEquals(List.of("d0d0", "i1i1"), codes(index.search("dostoevsky", 0, 10)));
+        assertEquals(List.of(), codes(index.search("crime", 0, 10)));
+    }
+
+    // enough deletes to compact the postings and renumber the documents a few times
+    @Test
+    void survivesChurn() throws BookAlreadyExistsException, NoSuchBookException {
+        db.addListener(index);
+        for (int round = 1; round <= 5; round++) {
+            for (int i = 0; i < 3000; i++) {
+                db.addBook(new Book(round + "-" + i, "author" + (i % 7), "name " + (i % 2 == 0 ? "even" : "odd")));
+            }
+            for (int i = 0; i < 3000; i++) {
+                if (i % 3 != 0) {
+                    db.deleteBook(round + "-" + i);
+                }
+            }
+            assertEquals(1000 * round, index.size());
+            SearchResult author = index.search("author0", 0, 1000);
+            assertEquals(143 * round, author.getTotal());
+            assertTrue(author.isTotalExact());
+            assertFalse(index.search("author0", 0, 10).isTotalExact());
+            SearchResult even = index.search("even author0", 0, 1000);
+            assertEquals(72 * round, even.getTotal());
+            for (SearchResult.Hit hit : even.getHits()) {
+                int i = Integer.parseInt(hit.getCode().substring(hit.getCode().indexOf('-') + 1));
+                assertEquals(0, i % 42);
+                assertEquals(3, hit.getScore());
+            }
+        }
+    }
+
+    @Test
+    void prefixesOfManyWordsAndPagesFullOfBestHits() throws BookAlreadyExistsException {
+        db.addListener(index);
+        for (int i = 0; i < 2000; i++) {
+            db.addBook(new Book("t" + i, "someone", "term" + i));
+        }
+        SearchResult terms = index.search("term", 0, 5000);
+        assertEquals(2000, terms.getTotal());
+        assertTrue(terms.isTotalExact());
+        SearchResult first = index.search("term", 0, 3);
+        assertEquals(List.of("t0", "t1", "t2"), codes(first));
+        assertFalse(first.isTotalExact());
+
+        for (int i = 0; i < 1000; i++) {
+            db.addBook(new Book("s" + i, "Sea", "The sea " + i));
+        }
+        SearchResult sea = index.search("sea", 1, 10);
+        assertEquals(List.of("s10", "s11", "s12", "s13", "s14", "s15", "s16", "s17", "s18", "s19"), codes(sea));
+        assertEquals(3, sea.getHits().get(0).getScore());
+        assertFalse(sea.isTotalExact());
+        assertEquals(20, sea.getTotal());
+    }
+
+    private static List<String> codes(SearchResult result) {
+        return result.getHits().stream().map(SearchResult.Hit::getCode).collect(Collectors.toList());
+    }
+}
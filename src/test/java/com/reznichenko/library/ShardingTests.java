@@ -0,0 +1,295 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.server.binary.BinaryServer;
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.exception.BookAlreadyExistsException;
+import com.reznichenko.library.server.id.BlockIdAllocator;
+import com.reznichenko.library.server.service.LibraryView;
+import com.reznichenko.library.server.service.MapDataBase;
+import com.reznichenko.library.server.service.Outcome;
+import com.reznichenko.library.server.shard.HashRing;
+import com.reznichenko.library.server.shard.RemoteDataBase;
+import com.reznichenko.library.server.shard.RingFile;
+import com.reznichenko.library.server.shard.ShardedDataBase;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardingTests {
+
+    private static final int VIRTUAL_NODES = 64;
+
+    private final List<MapDataBase> stores = new ArrayList<>();
+    private final List<BinaryServer> servers = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+    private ShardedDataBase db;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            MapDataBase store = new MapDataBase();
+            BinaryServer server = new BinaryServer(store, new InetSocketAddress("127.0.0.1", 0), 1, 2);
+            server.start();
+            stores.add(store);
+            servers.add(server);
+            names.add("127.0.0.1:" + server.getPort());
+        }
+        Map<String, RemoteDataBase> shards = new LinkedHashMap<>();
+        for (String name : names.subList(0, 2)) {
+            shards.put(name, RemoteDataBase.connect(name));
+        }
+        db = new ShardedDataBase(shards, new BlockIdAllocator(), VIRTUAL_NODES);
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        db.close();
+        for (BinaryServer server : servers) {
+            server.close();
+        }
+    }
+
+    @Test
+    void booksAreSpreadAndLoansFollowThemAcrossShards() throws Exception {
+        long first = db.addVisitor("Alexander", "Turgenev");
+        long second = db.addVisitor("Ivan", "Pushkin");
+        for (int i = 0; i < 200; i++) {
+            db.addBook(new Book("code-" + i, "author", "name " + i));
+        }
+        for (int i = 0; i < 50; i++) {
+            db.lendBook(first, "code-" + i);
+        }
+        assertThrows(BookAlreadyExistsException.class, () -> db.addBook(new Book("code-7", "a", "b")));
+
+        // every shard knows both visitors, but holds only its own books
+        for (MapDataBase store : stores.subList(0, 2)) {
+            assertEquals(2, store.view().visitorCount());
+            assertTrue(store.view().bookCount() > 50);
+        }
+        assertEquals(200, stores.get(0).view().bookCount() + stores.get(1).view().bookCount());
+        assertEquals(50, db.getBorrowedBooks(first).size());
+        assertEquals(200, db.view().bookCount());
+
+        // a lent book given a code owned by the other shard stays lent to the same visitor
+        HashRing ring = new HashRing(names.subList(0, 2), VIRTUAL_NODES);
+        String newCode = "moved-0";
+        for (int k = 1; ring.owner(newCode).equals(ring.owner("code-3")); k++) {
+            newCode = "moved-" + k;
+        }
+        db.changeCode("code-3", newCode);
+        assertEquals(Outcome.Status.NO_SUCH_BOOK, db.tryGetOwner("code-3").getStatus());
+        assertEquals(first, db.tryGetOwner(newCode).getValue());
+        assertEquals("name 3", db.getBookName(newCode));
+        assertEquals(50, db.getBorrowedBooks(first).size());
+        assertEquals(Outcome.Status.BOOK_ALREADY_EXISTS, db.tryChangeCode("code-4", newCode).getStatus());
+
+        db.receiveReturnedBook(newCode);
+        db.lendBook(second, newCode);
+        assertEquals(List.of(newCode), codes(db.getBorrowedBooks(second)));
+    }
+
+    @Test
+    void aJoiningShardTakesItsBooksWhileTheOthersServe() throws Exception {
+        long visitor = db.addVisitor("Alexander", "Turgenev");
+        for (int i = 0; i < 2000; i++) {
+            db.addBook(new Book("code-" + i, "author", "name " + i));
+        }
+        for (int i = 0; i < 100; i++) {
+            db.lendBook(visitor, "code-" + i);
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        Set<String> errors = ConcurrentHashMap.newKeySet();
+        Set<String> added = ConcurrentHashMap.newKeySet();
+        Thread traffic = new Thread(() -> {
+            for (int i = 0; running.get(); i++) {
+                String code = "code-" + (i % 2000);
+                Outcome<String> name = db.tryGetBookName(code);
+                if (!name.isOk()) {
+                    errors.add(code + ": " + name.getMessage());
+                }
+                if (db.tryAddBook(new Book("late-" + i, "author", "late")).isOk()) {
+                    added.add("late-" + i);
+                }
+                if (db.tryAddBook(new Book(code, "author", "again")).isOk()) {
+                    errors.add(code + " added twice");
+                }
+            }
+        });
+        traffic.start();
+        Thread.sleep(50);
+        int moved = db.addShard(names.get(2), RemoteDataBase.connect(names.get(2)));
+        Thread.sleep(50);
+        running.set(false);
+        traffic.join();
+
+        assertEquals(Set.of(), errors);
+        assertTrue(moved > 300, "moved " + moved);
+        assertEquals(3, db.getShards().size());
+        int total = 0;
+        for (MapDataBase store : stores) {
+            total += store.view().bookCount();
+            assertEquals(1, store.view().visitorCount());
+        }
+        assertEquals(2000 + added.size(), total);
+
+        HashRing ring = new HashRing(names, VIRTUAL_NODES);
+        for (int i = 0; i < 2000; i++) {
+            String code = "code-" + i;
+            MapDataBase owner = stores.get(names.indexOf(ring.owner(code)));
+            assertEquals("name " + i, owner.getBookName(code));
+            assertEquals(i < 100 ? visitor : -1, db.tryGetOwner(code).getValue());
+        }
+        assertEquals(100, db.getBorrowedBooks(visitor).size());
+
+        long later = db.addVisitor("Ivan", "Pushkin");
+        for (MapDataBase store : stores) {
+            assertEquals(List.of(), store.getBorrowedBooks(later));
+        }
+        String onNewShard = added.stream().filter(code -> ring.owner(code).equals(names.get(2))).findFirst().orElseThrow();
+        db.lendBook(later, onNewShard);
+        assertEquals(List.of(onNewShard), codes(stores.get(2).getBorrowedBooks(later)));
+        assertNotEquals(0, stores.get(2).view().bookCount());
+    }
+
+    @Test
+    void aJoinLeftHalfDoneIsFinishedWhenTheRouterOpens(@TempDir Path directory) throws Exception {
+        long visitor = db.addVisitor("Alexander", "Turgenev");
+        for (int i = 0; i < 500; i++) {
+            db.addBook(new Book("code-" + i, "author", "name " + i));
+        }
+        HashRing ring = new HashRing(names, VIRTUAL_NODES);
+        String leftover = IntStream.range(0, 500).mapToObj(i -> "code-" + i)
+                .filter(code -> ring.owner(code).equals(names.get(2))).findFirst().orElseThrow();
+        db.lendBook(visitor, leftover);
+        db.close();
+        // the router stopped after copying one book to the joining shard, before lending it there
+        stores.get(2).restoreVisitor(new Visitor(visitor, "Alexander", "Turgenev"));
+        stores.get(2).addBook(new Book(leftover, "author", "copy"));
+        RingFile ringFile = new RingFile(directory.resolve("ring"));
+        ringFile.write(names.subList(0, 2), names.get(2));
+
+        db = ShardedDataBase.open(ringFile, List.of("ignored:1"), RemoteDataBase::connect, new BlockIdAllocator(), VIRTUAL_NODES);
+
+        assertEquals(names, db.getShards());
+        assertEquals(names, ringFile.read().getShards());
+        assertNull(ringFile.read().getJoining());
+        int total = 0;
+        for (MapDataBase store : stores) {
+            total += store.view().bookCount();
+        }
+        assertEquals(500, total);
+        for (int i = 0; i < 500; i++) {
+            String code = "code-" + i;
+            assertEquals("name " + i, stores.get(names.indexOf(ring.owner(code))).getBookName(code));
+        }
+        assertEquals(List.of(leftover), codes(stores.get(2).getBorrowedBooks(visitor)));
+        assertEquals(List.of(leftover), codes(db.getBorrowedBooks(visitor)));
+    }
+
+    @Test
+    void aRouterStartsOverAShardLargerThanAFrame() throws Exception {
+        String padding = "x".repeat(120);
+        int count = 150_000;
+        for (MapDataBase store : stores.subList(0, 2)) {
+            store.restoreVisitor(new Visitor(1_000_000, "Alexander", "Turgenev"));
+        }
+        for (int i = 0; i < count; i++) {
+            stores.get(0).addBook(new Book("code-" + i, "author", padding + i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            stores.get(0).lendBook(1_000_000, "code-" + i);
+        }
+        db.close();
+        Map<String, RemoteDataBase> shards = new LinkedHashMap<>();
+        for (String name : names.subList(0, 2)) {
+            shards.put(name, RemoteDataBase.connect(name));
+        }
+
+        db = new ShardedDataBase(shards, new BlockIdAllocator(), VIRTUAL_NODES);
+
+        assertTrue(db.addVisitor("Ivan", "Pushkin") > 1_000_000);
+        LibraryView view = db.view();
+        assertEquals(count, view.bookCount());
+        assertEquals(2, view.visitorCount());
+        view.forEachVisitor((visitor, books) -> {
+            if (visitor.getId() == 1_000_000) {
+                assertEquals(IntStream.range(0, 1000).mapToObj(i -> "code-" + i).collect(Collectors.toList()), codes(books));
+            }
+        });
+        Set<String> bookNames = new HashSet<>();
+        view.forEachBook(book -> bookNames.add(book.getName()));
+        assertTrue(bookNames.contains(padding + (count - 1)));
+        assertEquals(count, bookNames.size());
+    }
+
+    @Test
+    void aShardThatMissedAVisitorIsGivenItBeforeItLends() throws Exception {
+        AtomicBoolean down = new AtomicBoolean(true);
+        MapDataBase up = new MapDataBase();
+        MapDataBase flaky = new MapDataBase() {
+            @Override
+            public void restoreVisitor(Visitor visitor) {
+                if (down.get()) {
+                    throw new IllegalStateException("down");
+                }
+                super.restoreVisitor(visitor);
+            }
+        };
+        Map<String, MapDataBase> shards = new LinkedHashMap<>();
+        shards.put("up", up);
+        shards.put("flaky", flaky);
+        ShardedDataBase local = new ShardedDataBase(shards, new BlockIdAllocator(), VIRTUAL_NODES);
+
+        long visitor = local.addVisitor("Alexander", "Turgenev");
+        assertEquals(1, up.getVisitors().size());
+        assertTrue(flaky.getVisitors().isEmpty());
+        for (int i = 0; i < 50; i++) {
+            local.addBook(new Book("code-" + i, "author", "name " + i));
+        }
+        down.set(false);
+        for (int i = 0; i < 50; i++) {
+            local.lendBook(visitor, "code-" + i);
+        }
+
+        assertEquals(List.of(visitor), flaky.getVisitors().stream().map(Visitor::getId).collect(Collectors.toList()));
+        assertTrue(flaky.getBorrowedBooks(visitor).size() > 0);
+        assertEquals(50, local.getBorrowedBooks(visitor).size());
+        down.set(true);
+        MapDataBase alsoDown = new MapDataBase() {
+            @Override
+            public void restoreVisitor(Visitor visitor) {
+                throw new IllegalStateException("down");
+            }
+        };
+        ShardedDataBase unreachable = new ShardedDataBase(Map.of("flaky", flaky, "down", alsoDown), new BlockIdAllocator(), VIRTUAL_NODES);
+        assertThrows(IllegalStateException.class, () -> unreachable.addVisitor("Ivan", "Pushkin"));
+        assertEquals(1, flaky.getVisitors().size());
+    }
+
+    private static List<String> codes(List<Book> books) {
+        return books.stream().map(Book::getCode).collect(Collectors.toList());
+    }
+}
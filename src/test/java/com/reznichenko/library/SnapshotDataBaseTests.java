@@ -0,0 +1,64 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.exception.*;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.SnapshotDataBase;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SnapshotDataBaseTests extends DataBaseTests {
+
+    @Override
+    DataBase createDataBase() {
+        return new SnapshotDataBase();
+    }
+
+    // books are immutable inside the snapshots, so the caller's instance keeps its old code
+    @Test
+    @Override
+    void lendAndChangeCode() throws BookAlreadyExistsException, NoSuchBookException, NoSuchVisitorException, BookAlreadyBorrowedException {
+        DataBase db = createDataBase();
+        long id = db.addVisitor("A", "T");
+        db.addBook(new Book("r2d2", "Ayn Rand", "Atlas shrugged"));
+        db.addBook(new Book("c3po", "eliezer yudkowsky", "hpmor"));
+        db.lendBook(id, "r2d2");
+        db.changeCode("r2d2", "qwerty");
+        assertEquals(List.of("qwerty"), codes(db.getBorrowedBooks(id)));
+        assertThrows(NoSuchBookException.class, () -> db.receiveReturnedBook("r2d2"));
+        db.receiveReturnedBook("qwerty");
+        assertEquals(List.of(), db.getBorrowedBooks(id));
+    }
+
+    @Test
+    void snapshotIsolation() throws BookAlreadyExistsException, NoSuchBookException, NoSuchVisitorException, BookAlreadyBorrowedException {
+        SnapshotDataBase db = new SnapshotDataBase();
+        long id = db.addVisitor("A", "T");
+        db.addBook(new Book("r2d2", "Ayn Rand", "Atlas shrugged"));
+        db.addBook(new Book("c3po", "eliezer yudkowsky", "hpmor"));
+        db.lendBook(id, "r2d2");
+        SnapshotDataBase.Snapshot before = db.snapshot();
+        List<Book> borrowedBefore = before.getBorrowedBooks(id);
+
+        db.lendBook(id, "c3po");
+        db.changeCode("r2d2", "qwerty");
+        db.deleteBook("c3po");
+
+        assertEquals(List.of("r2d2"), codes(borrowedBefore));
+        assertEquals("hpmor", before.getBook("c3po").getName());
+        assertEquals(-1, before.getOwner("c3po"));
+        assertEquals(2, before.bookCount());
+        assertThrows(NoSuchBookException.class, () -> db.snapshot().getBook("c3po"));
+        assertEquals(id, db.snapshot().getOwner("qwerty"));
+        assertEquals(List.of("qwerty"), codes(db.getBorrowedBooks(id)));
+    }
+
+    private static List<String> codes(List<Book> books) {
+        return books.stream().map(Book::getCode).collect(Collectors.toList());
+    }
+}
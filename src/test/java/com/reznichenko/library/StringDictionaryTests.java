@@ -0,0 +1,91 @@
+package com.reznichenko.library;
+
+import com.reznichenko.library.server.entity.Book;
+import com.reznichenko.library.server.entity.StringDictionary;
+import com.reznichenko.library.server.entity.Visitor;
+import com.reznichenko.library.server.service.Change;
+import com.reznichenko.library.server.service.ConcurrentDataBase;
+import com.reznichenko.library.server.service.DataBase;
+import com.reznichenko.library.server.service.MapDataBase;
+import com.reznichenko.library.server.service.SnapshotDataBase;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StringDictionaryTests {
+
+    @Test
+    void booksAndVisitorsOfAStoreShareOneCopy() throws Exception {
+        for (DataBase db : List.of(new MapDataBase(), new ConcurrentDataBase(), new SnapshotDataBase())) {
+            db.addBook(new Book("code-1", new String("Dostoevsky"), "The Idiot"));
+            assertTrue(db.tryTransaction(List.of(Change.addBook(new Book("code-2", new String("Dostoevsky"), "Demons")),
+                    Change.changeCode("code-2", "code-3"))).isOk());
+            assertEquals("Dostoevsky", db.getBookAuthor("code-1"));
+            assertSame(db.getBookAuthor("code-1"), db.getBookAuthor("code-3"));
+
+            long first = db.addVisitor(new String("Ivan"), "Petrov");
+            db.restoreVisitor(new Visitor(first + 100, new String("Ivan"), new String("Petrov")));
+            Visitor visitor = visitor(db, first);
+            Visitor namesake = visitor(db, first + 100);
+            assertSame(visitor.getName(), namesake.getName());
+            assertSame(visitor.getSurname(), namesake.getSurname());
+        }
+    }
+
+    @Test
+    void onlyWhatGetsInIsShared() throws Exception {
+        for (DataBase db : List.of(new MapDataBase(), new ConcurrentDataBase(), new SnapshotDataBase())) {
+            db.addBook(new Book("code-1", "Dostoevsky", "The Idiot"));
+            // built for a request that fails, and for a check that goes nowhere
+            Book rejected = new Book("code-1", new String("Tolstoy"), "War and Peace");
+            assertFalse(db.tryAddBook(rejected).isOk());
+            new Book("code-2", new String("Tolstoy"), "Resurrection");
+
+            Book added = new Book("code-3", new String("Tolstoy"), "Anna Karenina");
+            db.addBook(added);
+            assertNotSame(rejected.getAuthor(), db.getBookAuthor("code-3"));
+            // a store of its own shares its own copies
+            DataBase other = new MapDataBase();
+            other.addBook(new Book("code-3", new String("Tolstoy"), "Anna Karenina"));
+            assertNotSame(db.getBookAuthor("code-3"), other.getBookAuthor("code-3"));
+        }
+    }
+
+    @Test
+    void concurrentSharingGivesOneCopy() throws InterruptedException {
+        StringDictionary dictionary = new StringDictionary();
+        String[][] shared = new String[4][1000];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    shared[thread][i] = dictionary.share("author " + i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1000, dictionary.size());
+        for (int i = 0; i < 1000; i++) {
+            for (String[] other : shared) {
+                assertSame(shared[0][i], other[i]);
+            }
+            assertEquals("author " + i, shared[0][i]);
+        }
+        assertNull(dictionary.share(null));
+    }
+
+    private static Visitor visitor(DataBase db, long id) {
+        return db.getVisitors().stream().filter(visitor -> visitor.getId() == id).findFirst().orElseThrow();
+    }
+}